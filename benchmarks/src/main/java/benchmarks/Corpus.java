@@ -0,0 +1,68 @@
+package benchmarks;
+
+import domain.TwitNewsTrend;
+import domain.TwitNewsTweet;
+import fileIO.FileIO;
+import fileIO.SqlDumpReader;
+import org.openjdk.jmh.annotations.*;
+import ranker.SpamScorer;
+import util.TextUtils;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Benchmark inputs extracted from one of the TweetDB dumps in data/. Paths are relative to the repo root, so run the
+ * benchmarks from there.
+ */
+@State(Scope.Benchmark)
+public class Corpus {
+
+  @Param({"data/TweetDB_2011-10-30_12pm.sql"})
+  public String dump;
+
+  public List<TwitNewsTrend> trends;
+  public TwitNewsTweet[] tweets;
+  public String[] texts;
+  public String[][] keywords;
+  public String[][] trendKeywords;
+  public Set<String> stopWords;
+  public Set<String> badWords;
+  public SpamScorer spamScorer;
+
+  @Setup(Level.Trial)
+  public void load() throws IOException {
+    SqlDumpReader reader = new SqlDumpReader(dump);
+    reader.read();
+
+    stopWords = new FileIO("files/stopwords.txt").getWordSet(new HashSet<String>());
+    badWords = new FileIO("files/badwords.txt").getWordSet(new HashSet<String>());
+    badWords = new FileIO("files/swear.txt").getWordSet(badWords);
+
+    trends = reader.getTrends();
+    spamScorer = new SpamScorer(trends, badWords);
+    trendKeywords = new String[trends.size()][];
+    for (int i = 0; i < trends.size(); ++i) {
+      trendKeywords[i] = toArray(TextUtils.parseKeywordsFromTweetText(trends.get(i).getName(), stopWords));
+    }
+
+    // Empty tweets never reach the ranker in practice.
+    List<TwitNewsTweet> nonEmpty = new ArrayList<TwitNewsTweet>();
+    for (TwitNewsTweet tweet : reader.getTweets()) {
+      if (tweet.getText() != null && tweet.getText().length() > 0) {
+        nonEmpty.add(tweet);
+      }
+    }
+    tweets = nonEmpty.toArray(new TwitNewsTweet[nonEmpty.size()]);
+    texts = new String[tweets.length];
+    keywords = new String[tweets.length][];
+    for (int i = 0; i < tweets.length; ++i) {
+      texts[i] = tweets[i].getText();
+      keywords[i] = toArray(TextUtils.parseKeywordsFromTweetText(texts[i], stopWords));
+    }
+  }
+
+  private static String[] toArray(Collection<String> strings) {
+    return strings.toArray(new String[strings.size()]);
+  }
+}
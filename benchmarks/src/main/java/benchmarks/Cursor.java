@@ -0,0 +1,20 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Walks the corpus one tweet per benchmark invocation, so every score is per tweet.
+ */
+@State(Scope.Thread)
+public class Cursor {
+
+  private int index = 0;
+
+  public int next(int size) {
+    if (++index >= size) {
+      index = 0;
+    }
+    return index;
+  }
+}
@@ -0,0 +1,147 @@
+package benchmarks;
+
+import datastructures.IntInvertedIndex;
+import datastructures.InvertedIndex;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The InvertedIndex operations NewsCrawler uses: putAll when trends are refreshed, get for every keyword of every
+ * status, and single puts. The count benchmarks compare the per status trend counting of the boxed InvertedIndex
+ * with the IntInvertedIndex accumulator.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvertedIndexBenchmark {
+
+  /**
+   * An index of the corpus trends, the way NewsCrawler builds it.
+   */
+  @State(Scope.Thread)
+  public static class TrendIndex {
+
+    public InvertedIndex<String, Integer> index;
+
+    @Setup(Level.Trial)
+    public void build(Corpus corpus) {
+      index = buildIndex(corpus);
+    }
+  }
+
+  /**
+   * The same trends in an IntInvertedIndex.
+   */
+  @State(Scope.Thread)
+  public static class IntTrendIndex {
+
+    public IntInvertedIndex index;
+    public IntInvertedIndex.Accumulator accumulator;
+
+    @Setup(Level.Trial)
+    public void build(Corpus corpus) {
+      index = buildIntIndex(corpus);
+      accumulator = index.newAccumulator();
+    }
+  }
+
+  /**
+   * Builds the whole trend index, once per trend refresh in NewsCrawler.
+   */
+  @Benchmark
+  public InvertedIndex<String, Integer> putAll(Corpus corpus) {
+    return buildIndex(corpus);
+  }
+
+  /**
+   * Puts every keyword of one tweet into an index that already holds the trends.
+   */
+  @Benchmark
+  public void put(Corpus corpus, Cursor cursor, TrendIndex trendIndex) {
+    int i = cursor.next(corpus.keywords.length);
+    for (String keyword : corpus.keywords[i]) {
+      trendIndex.index.put(keyword, i & 31);
+    }
+  }
+
+  /**
+   * Looks up every keyword of one tweet, the per status matching cost.
+   */
+  @Benchmark
+  public void get(Corpus corpus, Cursor cursor, TrendIndex trendIndex, Blackhole blackhole) {
+    for (String keyword : corpus.keywords[cursor.next(corpus.keywords.length)]) {
+      blackhole.consume(trendIndex.index.get(keyword));
+    }
+  }
+
+  @Benchmark
+  public IntInvertedIndex intPutAll(Corpus corpus) {
+    return buildIntIndex(corpus);
+  }
+
+  /**
+   * Counts the trends the keywords of one tweet point at and picks the best one, with boxed counters.
+   */
+  @Benchmark
+  public int count(Corpus corpus, Cursor cursor, TrendIndex trendIndex) {
+    Map<Integer, Integer> counters = new HashMap<Integer, Integer>();
+    for (String keyword : corpus.keywords[cursor.next(corpus.keywords.length)]) {
+      Set<Integer> trendIds = trendIndex.index.get(keyword);
+      if (trendIds != null) {
+        for (Integer trendId : trendIds) {
+          Integer count = counters.get(trendId);
+          counters.put(trendId, count == null ? 1 : count + 1);
+        }
+      }
+    }
+    int best = 0;
+    int bestCount = 0;
+    for (Map.Entry<Integer, Integer> entry : counters.entrySet()) {
+      if (entry.getValue() > bestCount) {
+        bestCount = entry.getValue();
+        best = entry.getKey();
+      }
+    }
+    return best;
+  }
+
+  /**
+   * The same counting with an accumulator.
+   */
+  @Benchmark
+  public int intCount(Corpus corpus, Cursor cursor, IntTrendIndex trendIndex) {
+    IntInvertedIndex.Accumulator accumulator = trendIndex.accumulator;
+    accumulator.reset();
+    for (String keyword : corpus.keywords[cursor.next(corpus.keywords.length)]) {
+      int termId = trendIndex.index.getDictionary().get(keyword);
+      if (termId >= 0) {
+        accumulator.addTerm(termId);
+      }
+    }
+    return accumulator.getBestValue();
+  }
+
+  private static IntInvertedIndex buildIntIndex(Corpus corpus) {
+    IntInvertedIndex index = new IntInvertedIndex();
+    for (int i = 0; i < corpus.trendKeywords.length; ++i) {
+      index.putAll(Arrays.asList(corpus.trendKeywords[i]), corpus.trends.get(i).getTrendId());
+    }
+    return index;
+  }
+
+  private static InvertedIndex<String, Integer> buildIndex(Corpus corpus) {
+    InvertedIndex<String, Integer> index = new InvertedIndex<String, Integer>();
+    for (int i = 0; i < corpus.trendKeywords.length; ++i) {
+      index.putAll(Arrays.asList(corpus.trendKeywords[i]), corpus.trends.get(i).getTrendId());
+    }
+    return index;
+  }
+}
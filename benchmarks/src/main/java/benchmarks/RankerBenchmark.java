@@ -0,0 +1,33 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ranker.NewsRanker;
+import ranker.Ranker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per tweet cost of both rank implementations and of the spam score Ranker computes along the way.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RankerBenchmark {
+
+  @Benchmark
+  public int newsRankerComputeRank(Corpus corpus, Cursor cursor) {
+    return NewsRanker.computeRank(corpus.tweets[cursor.next(corpus.tweets.length)]);
+  }
+
+  @Benchmark
+  public int rankerComputeRank(Corpus corpus, Cursor cursor) {
+    return Ranker.computeRank(corpus.tweets[cursor.next(corpus.tweets.length)], corpus.spamScorer);
+  }
+
+  @Benchmark
+  public double spamScorerScore(Corpus corpus, Cursor cursor) {
+    return corpus.spamScorer.score(corpus.tweets[cursor.next(corpus.tweets.length)]);
+  }
+}
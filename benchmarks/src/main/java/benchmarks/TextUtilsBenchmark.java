@@ -0,0 +1,66 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import util.CaseInsensitiveWordSet;
+import util.KeywordSink;
+import util.KeywordTokenizer;
+import util.Lexicon;
+import util.TextUtils;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keyword extraction, run once per streamed status by NewsCrawler.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextUtilsBenchmark {
+
+  /**
+   * A tokenizer and a sink that only consumes the keywords, to measure the tokenizer without building a set.
+   */
+  @State(Scope.Thread)
+  public static class Tokenizer {
+
+    public KeywordTokenizer tokenizer;
+    public CaseInsensitiveWordSet stopWords;
+    public Lexicon lexicon;
+    public KeywordSink sink;
+
+    @Setup(Level.Trial)
+    public void setup(Corpus corpus, final Blackhole blackhole) {
+      tokenizer = new KeywordTokenizer();
+      stopWords = new CaseInsensitiveWordSet(corpus.stopWords);
+      lexicon = Lexicon.stopWords();
+      sink = new KeywordSink() {
+        @Override
+        public void keyword(char[] buffer, int length) {
+          blackhole.consume(buffer[0]);
+          blackhole.consume(length);
+        }
+      };
+    }
+  }
+
+  @Benchmark
+  public Set<String> parseKeywordsFromTweetText(Corpus corpus, Cursor cursor) {
+    return TextUtils.parseKeywordsFromTweetText(corpus.texts[cursor.next(corpus.texts.length)], corpus.stopWords);
+  }
+
+  @Benchmark
+  public int tokenize(Corpus corpus, Cursor cursor, Tokenizer tokenizer) {
+    return tokenizer.tokenizer.tokenize(corpus.texts[cursor.next(corpus.texts.length)], tokenizer.stopWords,
+                                        tokenizer.sink);
+  }
+
+  @Benchmark
+  public int tokenizeWithLexicon(Corpus corpus, Cursor cursor, Tokenizer tokenizer) {
+    return tokenizer.tokenizer.tokenize(corpus.texts[cursor.next(corpus.texts.length)], tokenizer.lexicon,
+                                        tokenizer.sink);
+  }
+}
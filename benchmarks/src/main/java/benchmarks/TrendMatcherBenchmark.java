@@ -0,0 +1,63 @@
+package benchmarks;
+
+import datastructures.AhoCorasick;
+import domain.TwitNewsTrend;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the trend names mentioned in a status, run once per streamed status by ContinuousCrawler.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrendMatcherBenchmark {
+
+  /**
+   * The corpus trends, as the map ContinuousCrawler used to scan and as an automaton.
+   */
+  @State(Scope.Benchmark)
+  public static class Trends {
+
+    public Map<String, Integer> trendNameToId;
+    public AhoCorasick automaton;
+
+    @Setup(Level.Trial)
+    public void build(Corpus corpus) {
+      trendNameToId = new HashMap<String, Integer>();
+      AhoCorasick.Builder builder = new AhoCorasick.Builder(true);
+      for (TwitNewsTrend trend : corpus.trends) {
+        trendNameToId.put(trend.getName().trim().toLowerCase(), trend.getTrendId());
+        builder.add(trend.getName().trim(), trend.getTrendId());
+      }
+      automaton = builder.build();
+    }
+  }
+
+  /**
+   * The String.contains scan ContinuousCrawler.getCorrespondingTrendId used to do, finding the first trend only.
+   */
+  @Benchmark
+  public int containsScan(Corpus corpus, Cursor cursor, Trends trends) {
+    String text = corpus.texts[cursor.next(corpus.texts.length)].replaceAll(" ", "").trim().toLowerCase();
+    for (String key : trends.trendNameToId.keySet()) {
+      if (text.contains(key.replace(" ", "").trim().toLowerCase())) {
+        return trends.trendNameToId.get(key);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * One pass of the automaton, finding every trend.
+   */
+  @Benchmark
+  public int[] ahoCorasick(Corpus corpus, Cursor cursor, Trends trends) {
+    return trends.automaton.matchAll(corpus.texts[cursor.next(corpus.texts.length)]);
+  }
+}
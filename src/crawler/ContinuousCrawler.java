@@ -1,15 +1,18 @@
 package crawler;
 
 import dao.TrendDAO;
-import dao.TweetDAO;
-import dao.UserDAO;
 import database.MySQL_UI;
 import database.SqlConstants;
+import datastructures.AhoCorasick;
 import domain.*;
+import ingest.IngestPipeline;
+import ingest.IngestRecord;
 import twitter4j.*;
 
 import java.io.IOException;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -26,14 +29,17 @@ public class ContinuousCrawler {
 
   // Twitter instances that should be shared throughout the crawler
   private static final Twitter twitter = TwitterFactory.getSingleton();
-  private static final TwitterStream twitterStream = TwitterStreamFactory.getSingleton();
+  private static final TweetSource tweetSource = TweetSource.Factory.create();
 
   // Objects that should be shared throughout the crawler
   private static MySQL_UI sql;
+  private static IngestPipeline pipeline;
   private static final Logger log = Logger.getLogger(StreamCrawler.class.getName());
 
-  // A mapping of trendNames to their id's in the db, global to facilitate access within the StatusListener
-  private static final Map<String, Integer> trendNameToId = new HashMap<String, Integer>();
+  // Finds the current trend names in a status and maps them to their id's in the db. Global to facilitate access
+  // within the StatusListener, and replaced as a whole on every refresh.
+  private static final AtomicReference<AhoCorasick> trendMatcher =
+      new AtomicReference<AhoCorasick>(new AhoCorasick.Builder(true).build());
 
 	/**
 	 * Entry point for the crawler. Sets up necessary data structures and objects and kicks off a crawl.
@@ -46,112 +52,61 @@ public class ContinuousCrawler {
 
     sql = createDbConnection(args);
 
+    pipeline = IngestPipeline.create(sql);
+    pipeline.start();
+
     // This is where the crawling occurs. Happens on a separate thread from the main thread.
     StatusListener statusListener = new StatusListener() {
 
-      private TweetDAO tweetDAO = new TweetDAO(sql);
-      private UserDAO userDAO = new UserDAO(sql);
-      int tweetsCrawled = 0;
-      private Map<Integer, List<TwitNewsTweet>> tweetsByTrendId = new HashMap<Integer, List<TwitNewsTweet>>();
-      private Set<TwitNewsUser> users = new HashSet<TwitNewsUser>();
-
       @Override
       public void onStatus(Status status) {
 
-        int correspondingTrendId = getCorrespondingTrendId(status);
+        // The tweet is filed under the first trend it mentions. Statuses mentioning none have no trend to be filed
+        // under, the trendId foreign key would reject them.
+        int[] correspondingTrendIds = getCorrespondingTrendIds(status);
+        if (correspondingTrendIds.length == 0) {
+          return;
+        }
+        int correspondingTrendId = correspondingTrendIds[0];
 
         TwitNewsTweet twitNewsTweet = TwitNewsTweetFactory.fromStatus(status, correspondingTrendId);
+        twitNewsTweet.setNumTrendsContained(correspondingTrendIds.length);
         TwitNewsUser twitNewsUser = TwitNewsUserFactory.fromStatus(status);
 
-        // Update the trend id to tweet mapping
-        if (tweetsByTrendId.containsKey(correspondingTrendId)) {
-          List<TwitNewsTweet> tweetsForTrend = tweetsByTrendId.get(correspondingTrendId);
-          tweetsForTrend.add(twitNewsTweet);
-          if (status.isRetweet()) {
-            tweetsForTrend.add(TwitNewsTweetFactory.fromStatus(status.getRetweetedStatus(), correspondingTrendId));
-          }
-        }
-        else {
-          List<TwitNewsTweet> tweetsForTrend = new ArrayList<TwitNewsTweet>();
-          tweetsForTrend.add(twitNewsTweet);
-          if (status.isRetweet()) {
-            tweetsForTrend.add(TwitNewsTweetFactory.fromStatus(status.getRetweetedStatus(), correspondingTrendId));
-          }
-          tweetsByTrendId.put(correspondingTrendId, tweetsForTrend);
+        TwitNewsTweet originalTweet = null;
+        if (status.isRetweet()) {
+          originalTweet = TwitNewsTweetFactory.fromStatus(status.getRetweetedStatus(), correspondingTrendId);
         }
-        ++tweetsCrawled;
 
-        users.add(twitNewsUser);
-
-        // Let's insert the tweets or users if we get more than 250 of any of them
+        // Hand off to the ingest writers, persistence never happens on the stream thread.
         log.info(status.getText());
-        if (tweetsCrawled >= 250) {
-          for (Integer trendId : tweetsByTrendId.keySet()) {
-            insertTweets(tweetsByTrendId.get(trendId), trendId);
-          }
-        }
-        if (users.size() >= 250) {
-          insertUsers();
+        if (!pipeline.offer(new IngestRecord(correspondingTrendId, twitNewsTweet, originalTweet, twitNewsUser))) {
+          log.warning("Ingest buffer is full, dropping status.");
         }
       }
 
       /**
-       * Gets the corresponding trend id for a given status.
+       * Gets the ids of all the trends whose names appear in a status, ignoring case and spaces.
        *
-       * @param status The status to get the trend if for.
+       * @param status The status to get the trends for.
        *
-       * @return int The corresponding trend id.
+       * @return int[] The corresponding trend ids, in the order they appear in the status.
        */
-      private int getCorrespondingTrendId(Status status) {
-        String text = status.getText().replaceAll(" ", "").trim().toLowerCase();
-        for (String key : trendNameToId.keySet()) {
-          if (text.contains(key.replace(" ", "").trim().toLowerCase())) {
-            return trendNameToId.get(key);
-          }
-        }
-        log.fine("Couldn't find a matching trend.");
-        return 0;
-      }
-
-      /**
-       * Inserts tweets into the db.
-       *
-       * @param tweets The tweet to insert.
-       * @param correspondingTrendId The tweet's corresponding trend id.
-       */
-      private void insertTweets(Collection<TwitNewsTweet> tweets, int correspondingTrendId) {
-        try {
-          tweetDAO.insertTweets(tweets, correspondingTrendId);
-          log.info("Successfully logged 250 tweets.");
-          tweets.clear();
-          tweetsCrawled = 0;
-        }
-        catch (Exception e) {
-          log.severe(e.toString());
-          log.severe("Failure persisting tweets. Will try again on next received status.");
-        }
-      }
-
-      /**
-       * Inserts users into the db.
-       */
-      private void insertUsers() {
-        try {
-          userDAO.insertUsers(users);
-          log.info("Successfully logged 250 users.");
-          users.clear();
-        }
-        catch (Exception e) {
-          log.severe(e.toString());
-          log.severe("Failure persisting users. Will try again on next received status.");
+      private int[] getCorrespondingTrendIds(Status status) {
+        int[] trendIds = trendMatcher.get().matchAll(status.getText());
+        if (trendIds.length == 0) {
+          log.fine("Couldn't find a matching trend.");
         }
+        return trendIds;
       }
 
       @Override
       public void onDeletionNotice(StatusDeletionNotice statusDeletionNotice) {}
 
       @Override
-      public void onTrackLimitationNotice(int numberOfLimitedStatuses) {}
+      public void onTrackLimitationNotice(int numberOfLimitedStatuses) {
+        pipeline.getMetrics().recordTrackLimitation(numberOfLimitedStatuses);
+      }
 
       @Override
       public void onScrubGeo(long userId, long upToStatusId) {}
@@ -161,7 +116,7 @@ public class ContinuousCrawler {
         ex.printStackTrace();
       }
     };
-    twitterStream.addListener(statusListener);
+    tweetSource.addListener(statusListener);
 
     try {
       //noinspection InfiniteLoopStatement
@@ -172,12 +127,12 @@ public class ContinuousCrawler {
 
         waitOneHour();
 
-        twitterStream.cleanUp();
-        trendNameToId.clear();
+        tweetSource.cleanUp();
       }
     }
     finally {
-      twitterStream.shutdown();
+      tweetSource.shutdown();
+      pipeline.shutdown(60000);
       log.info("Finished crawling current trends!");
     }
 	}
@@ -192,18 +147,25 @@ public class ContinuousCrawler {
     Trend[] trends = getTrendsFromRestApi();
 
     // Insert trends and create keyword array for twitter stream filtering.
+    List<TwitNewsTrend> twitNewsTrends = new ArrayList<TwitNewsTrend>(trends.length);
+    for (Trend trend : trends) {
+      twitNewsTrends.add(TwitNewsTrendFactory.fromTrend(trend));
+    }
+    int[] trendIds = attemptToInsertTrends(twitNewsTrends);
+
+    AhoCorasick.Builder matcherBuilder = new AhoCorasick.Builder(true);
     String[] trendStrings = new String[trends.length];
     for (int i = 0; i < trends.length; ++i) {
       Trend trend = trends[i];
-      int trendId = attemptToInsertTrend(TwitNewsTrendFactory.fromTrend(trend));
-      trendNameToId.put(trend.getName().trim().toLowerCase(), trendId);
+      matcherBuilder.add(trend.getName().trim(), trendIds[i]);
       trendStrings[i] = trend.getName();
     }
 
+    // Statuses keep matching the previous trends until the new matcher is swapped in.
+    trendMatcher.set(matcherBuilder.build());
+
     // Let's just grab tweets from the stream matching the trend keywords!
-    FilterQuery filter = new FilterQuery();
-    filter.track(trendStrings);
-    twitterStream.filter(filter);
+    tweetSource.track(trendStrings);
   }
 
   /**
@@ -230,27 +192,21 @@ public class ContinuousCrawler {
   }
 
   /**
-   * Attempts to insert a trend until it succeeds.
+   * Attempts to insert the trends until it succeeds, in one batch.
    *
-   * @param twitNewsTrend The trend to insert.
+   * @param twitNewsTrends The trends to insert.
    *
-   * @return int the trend if of the just inserted trend in the db.
+   * @return int[] the trend ids of the trends in the db, in the order of the list.
    */
-  private static int attemptToInsertTrend(TwitNewsTrend twitNewsTrend) {
+  private static int[] attemptToInsertTrends(List<TwitNewsTrend> twitNewsTrends) {
     TrendDAO trendDAO = new TrendDAO(sql);
-    int trendId = 0;
-    boolean successfullyInsertedTrend = false;
-    while (!successfullyInsertedTrend) {
-      try {
-        trendId = trendDAO.insertTrend(twitNewsTrend);
-        successfullyInsertedTrend = true;
-      }
-      catch (Exception e) {
-        log.severe("There was a problem persisting the trend. Lets try again!");
-        e.printStackTrace();
-      }
+    int[] trendIds = trendDAO.upsertTrends(twitNewsTrends);
+    while (trendIds == null) {
+      log.severe("There was a problem persisting the trends. Lets try again!");
+      waitOneMinute();
+      trendIds = trendDAO.upsertTrends(twitNewsTrends);
     }
-    return trendId;
+    return trendIds;
   }
 
   /**
@@ -319,7 +275,7 @@ public class ContinuousCrawler {
       password = args[5];
     }
 
-    return new MySQL_UI(host, port, user, password);
+    return MySQL_UI.createPooled(host, port, user, password);
   }
 
   /**
@@ -335,13 +291,16 @@ public class ContinuousCrawler {
   }
 
   /**
-   * Blocks for 1 hour.
+   * Blocks for 1 hour, logging the ingest metrics along the way.
    */
   private static void waitOneHour() {
     int timeWaitedInMillis = 0;
     while (timeWaitedInMillis < ONE_HOUR_IN_MILLIS) {
       waitOneMinute();
       timeWaitedInMillis += ONE_MINUTE_IN_MILLIS;
+      if (timeWaitedInMillis % 60000 == 0) {
+        log.info(pipeline.getMetrics().toString());
+      }
     }
   }
 
@@ -2,6 +2,7 @@ package crawler;
 
 import dao.TrendDAO;
 import dao.TweetDAO;
+import dao.UserCache;
 import database.MySQL_UI;
 import database.SqlConstants;
 import domain.TwitNewsTrend;
@@ -13,12 +14,17 @@ import twitter4j.*;
 import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static util.TwitNewsConstants.US_WOEID;
-import static util.TwitNewsConstants.WORLD_WOEID;
+import static util.TwitNewsConstants.CRAWL_ROUNDS;
+import static util.TwitNewsConstants.ONE_HOUR_IN_MILLIS;
+import static util.TwitNewsConstants.ONE_MINUTE_IN_MILLIS;
 
 /**
  * Crawler class for retrieving twitter data from twitter.com.
@@ -28,9 +34,10 @@ import static util.TwitNewsConstants.WORLD_WOEID;
 public class Crawler {
 
   private static final Twitter twitter = TwitterFactory.getSingleton();
-  private static final Map<String, TwitNewsUser> userCache = new HashMap<String, TwitNewsUser>();
-
   private static MySQL_UI sql;
+  private static UserCache userCache;
+  private static RateLimitScheduler scheduler;
+  private static RetweetEnricher retweetEnricher;
 
   private static final Logger log = Logger.getLogger(Crawler.class.getName());
 
@@ -38,207 +45,208 @@ public class Crawler {
 	 * Entry point for the crawler. Sets up necessary data structures and objects, parses arguments, and kicks off a
    * crawl.
 	 *
-	 * @param args The command line arguments.
+	 * @param args First argument: true for us only trends, false for worldwide trends, or a comma separated list of
+   *             woeids to crawl concurrently.
 	 */
 	public static void main(String[] args) {
 
     setupLogging();
-    setupRateLimitStatusListener();
+    scheduler = RateLimitScheduler.create(twitter);
 
-    boolean getUSTrendsOnly = Boolean.parseBoolean(args[0]);
+    List<Integer> woeids = LocationScheduler.parseWoeids(args[0]);
 
-    sql = new MySQL_UI(SqlConstants.HOST, SqlConstants.PORT, SqlConstants.USER, SqlConstants.PASSWORD);
+    // The crawling thread and the retweet fetchers inserting enriched tweets share the db.
+    sql = MySQL_UI.createPooled(SqlConstants.HOST, SqlConstants.PORT, SqlConstants.USER, SqlConstants.PASSWORD);
+    userCache = UserCache.forTable(sql.getUserTableName());
+    retweetEnricher = RetweetEnricher.create(twitter, scheduler);
 
-    if (getUSTrendsOnly) {
-      log.info("Crawling trends for the US...");
-      crawlTrends(US_WOEID);
+    // Every location is crawled on a thread of its own, all of them sharing the rate limit budget.
+    LocationScheduler locations = LocationScheduler.create(twitter, scheduler, new TrendDAO(sql), woeids);
+    final List<CompletableFuture<?>> inserts = new ArrayList<CompletableFuture<?>>();
+    log.info("Crawling trends for locations " + woeids + "...");
+    locations.crawl(Integer.getInteger("twitnews.crawl.rounds", CRAWL_ROUNDS), new LocationScheduler.TrendCrawler() {
+      @Override
+      public void crawl(int woeid, List<TwitNewsTrend> trends) {
+        List<CompletableFuture<?>> trendInserts = crawlTrends(trends);
+        synchronized (inserts) {
+          inserts.addAll(trendInserts);
+        }
+      }
+    });
+    try {
+      CompletableFuture.allOf(inserts.toArray(new CompletableFuture<?>[inserts.size()])).get(ONE_HOUR_IN_MILLIS,
+                                                                                             TimeUnit.MILLISECONDS);
     }
-    else {
-      log.info("Crawling worldwide trends...");
-      crawlTrends(WORLD_WOEID);
+    catch (Exception e) {
+      log.severe("Gave up waiting for the tweets of the last trends to be inserted.");
+      e.printStackTrace();
     }
+    scheduler.shutdown(ONE_MINUTE_IN_MILLIS);
+    log.info(locations.toString());
+    log.info(retweetEnricher.toString());
+    log.info(scheduler.toString());
     log.info("Finished crawling recent trends!");
 	}
 
   /**
-   * Queries twitter and lists all the current, unique trends for the given location using the REST api.
+   * Searches twitter for the tweets of trends a location claimed using the REST api. Every call goes through the
+   * {@link RateLimitScheduler}, so the searches for all trends are queued up front and run as fast as the search
+   * budget allows, rather than an hour apart.
    *
-   * @param woeid The Yahoo woeid for the location to get trends for.
-   *
-   * @see "http://developer.yahoo.com/geo/geoplanet/guide/concepts.html"
+   * @param trends The trends, already persisted by the {@link LocationScheduler}.
+   * @return The futures of the trends' tweet inserts, which run once their retweet counts are in.
    */
-  private static void crawlTrends(int woeid) {
-
-    boolean firstTime = true;
-
-    // Local cache to avoid fetching information about the same trend multiple times
-    Set<String> trendNames = new HashSet<String>();
-
-    Trends trendsForLocation = null;
-    try {
-      trendsForLocation = twitter.getLocationTrends(woeid);
-    }
-    catch (TwitterException e) {
-      log.severe("Error obtaining trends from twitter.");
-      e.printStackTrace();
-      System.exit(1);
-    }
-
-    for (Trend trend : trendsForLocation.getTrends()) {
-
-      String trendName = trend.getName().trim().toLowerCase();
-      TwitNewsTrend twitNewsTrend = new TwitNewsTrend();
-      twitNewsTrend.setName(trend.getName());
-
-      if (!trendNames.contains(trendName)) {
-
-        trendNames.add(trendName);
-        QueryResult queryResult = null;
-        try {
+  private static List<CompletableFuture<?>> crawlTrends(List<TwitNewsTrend> trends) {
+
+    Map<TwitNewsTrend, CompletableFuture<QueryResult>> searches =
+        new LinkedHashMap<TwitNewsTrend, CompletableFuture<QueryResult>>();
+    for (final TwitNewsTrend trend : trends) {
+      searches.put(trend, scheduler.submit(RateLimitScheduler.Endpoint.SEARCH, new Callable<QueryResult>() {
+        @Override
+        public QueryResult call() throws TwitterException {
           Query query = new Query(trend.getName());
           query.setPage(3);
           query.setRpp(50);
-          queryResult = twitter.search(query);
-        }
-        catch (TwitterException e) {
-          log.warning("There was an error retrieving the tweets for this trend. Continuing onto the next trend...");
-          e.printStackTrace();
-          continue;
+          return twitter.search(query);
         }
+      }));
+    }
+
+    List<CompletableFuture<?>> inserts = new ArrayList<CompletableFuture<?>>();
+    for (Map.Entry<TwitNewsTrend, CompletableFuture<QueryResult>> search : searches.entrySet()) {
 
-        List<Tweet> tweets = queryResult.getTweets();
+      QueryResult queryResult = null;
+      try {
+        queryResult = search.getValue().get();
+      }
+      catch (Exception e) {
+        log.warning("There was an error retrieving the tweets for this trend. Continuing onto the next trend...");
+        e.printStackTrace();
+        continue;
+      }
 
-        if (!tweets.isEmpty()) {
+      List<Tweet> tweets = queryResult.getTweets();
 
-          TrendDAO trendDAO = new TrendDAO(sql);
-          int trendId = trendDAO.insertTrend(twitNewsTrend);
+      if (!tweets.isEmpty()) {
 
-          if (!firstTime) {
-            hourLongSleep();
-          }
-          firstTime = false;
+        final int trendId = search.getKey().getTrendId();
 
-          for (Tweet tweet : tweets) {
+        Map<String, TwitNewsUser> users = getUserInformation(tweets);
 
-            TwitNewsUser twitNewsUser = getUserInformation(tweet);
+        List<TwitNewsTweet> twitNewsTweets = new ArrayList<TwitNewsTweet>(tweets.size());
+        for (Tweet tweet : tweets) {
 
-            Timestamp timestamp = new Timestamp(tweet.getCreatedAt().getTime());
+          TwitNewsUser twitNewsUser = users.get(tweet.getFromUser());
 
-            // Parse location information if available
-            GeoLocation location = tweet.getGeoLocation();
-            double latitude = -1.0;
-            double longitude = -1.0;
-            if (location != null) {
-              latitude = location.getLatitude();
-              longitude = location.getLongitude();
-            }
+          Timestamp timestamp = new Timestamp(tweet.getCreatedAt().getTime());
 
-            // Parse tweet text to determine various attributes
-            String tweetText = tweet.getText();
-            String[] tweetTokens = tweetText.split(" ");
-            boolean hasLink = false;
-            boolean isRetweet = false;
-            String link = null;
-            for (String token : tweetTokens) {
-              if (token.startsWith("http://")) {
-                hasLink = true;
-                link = token.trim();
-              }
-              if (token.trim().equals("RT")) {
-                isRetweet = true;
-              }
-            }
+          // Parse location information if available
+          GeoLocation location = tweet.getGeoLocation();
+          double latitude = -1.0;
+          double longitude = -1.0;
+          if (location != null) {
+            latitude = location.getLatitude();
+            longitude = location.getLongitude();
+          }
 
-            // TODO Figure out if there is away to avoid this call to reduce rate limiting strain.
-            // default info in case we can't get the number of retweets from Twitter
-            int numRetweets = -1;
-            try {
-              ResponseList<Status> retweets = twitter.getRetweets(tweet.getId());
-              numRetweets = retweets.size();
+          // Parse tweet text to determine various attributes
+          String tweetText = tweet.getText();
+          String[] tweetTokens = tweetText.split(" ");
+          boolean hasLink = false;
+          boolean isRetweet = false;
+          String link = null;
+          for (String token : tweetTokens) {
+            if (token.startsWith("http://")) {
+              hasLink = true;
+              link = token.trim();
             }
-            catch (TwitterException e) {
-              System.err.println("There was an error retrieving the retweets from twitter.");
-              e.printStackTrace();
+            if (token.trim().equals("RT")) {
+              isRetweet = true;
             }
+          }
 
-            TwitNewsTweet twitNewsTweet = new TwitNewsTweet();
-            twitNewsTweet.setTweetId(tweet.getId());
-            twitNewsTweet.setTrendId(trendId);
-            twitNewsTweet.setText(tweet.getText());
-            twitNewsTweet.setUserId(tweet.getFromUserId());
-            twitNewsTweet.setUserName(tweet.getFromUser());
-            twitNewsTweet.setVerifiedUser(twitNewsUser.isVerifiedUser());
-            twitNewsTweet.setNumFollowers(twitNewsUser.getNumFollowers());
-            twitNewsTweet.setTimestamp(timestamp);
-            twitNewsTweet.setLocationName(tweet.getLocation());
-            twitNewsTweet.setLatitude(latitude);
-            twitNewsTweet.setLongitude(longitude);
-            twitNewsTweet.setHasLink(hasLink);
-            twitNewsTweet.setLink(link);
-            twitNewsTweet.setRetweet(isRetweet);
-            twitNewsTweet.setRetweetCount(numRetweets);
+          TwitNewsTweet twitNewsTweet = new TwitNewsTweet();
+          twitNewsTweet.setTweetId(tweet.getId());
+          twitNewsTweet.setTrendId(trendId);
+          twitNewsTweet.setText(tweet.getText());
+          twitNewsTweet.setUserId(tweet.getFromUserId());
+          twitNewsTweet.setUserName(tweet.getFromUser());
+          twitNewsTweet.setVerifiedUser(twitNewsUser.isVerifiedUser());
+          twitNewsTweet.setNumFollowers(twitNewsUser.getNumFollowers());
+          twitNewsTweet.setTimestamp(timestamp);
+          twitNewsTweet.setLocationName(tweet.getLocation());
+          twitNewsTweet.setLatitude(latitude);
+          twitNewsTweet.setLongitude(longitude);
+          twitNewsTweet.setHasLink(hasLink);
+          twitNewsTweet.setLink(link);
+          twitNewsTweet.setRetweet(isRetweet);
+          twitNewsTweets.add(twitNewsTweet);
+        }
 
+        // Retweet counts are fetched in the background, the tweets are inserted once they are all in.
+        inserts.add(retweetEnricher.enrich(twitNewsTweets).thenAccept(new Consumer<List<TwitNewsTweet>>() {
+          @Override
+          public void accept(List<TwitNewsTweet> tweets) {
             TweetDAO tweetDAO = new TweetDAO(sql);
-            int success = tweetDAO.insertTweet(twitNewsTweet, trendId);
-            log.info(twitNewsTweet.toString());
+            if (!tweetDAO.insertTweets(tweets, trendId)) {
+              log.severe("Failure inserting the tweets of trend " + trendId + ".");
+            }
+            for (TwitNewsTweet twitNewsTweet : tweets) {
+              log.info(twitNewsTweet.toString());
+            }
           }
-        }
+        }));
       }
     }
+    return inserts;
   }
 
   /**
-   * Method that sleeps for 1 hour, printing out a status every minute. Intended as a convenience method to help
-   * avoid rate limiting.
+   * Queries twitter and extracts relevant information about the users who authored the given tweets. The users not
+   * cached are all queued with the {@link RateLimitScheduler} before waiting for any of them.
+   *
+   * @param tweets The tweets from which author information is desired.
+   * @return The TwitNewsUser containing the relevant information about each tweet author, by user name.
    */
-  private static void hourLongSleep() {
-    log.info("Sleeping so we don't get rate limited...");
-    for (int i  = 0; i < 60; ++i) {
-      try {
-        // sleep for 1 minute
-        Thread.sleep(60000);
-        log.info(i + " minutes slept (probably).");
+  private static Map<String, TwitNewsUser> getUserInformation(List<Tweet> tweets) {
+    Map<String, TwitNewsUser> users = new HashMap<String, TwitNewsUser>();
+    Map<String, CompletableFuture<User>> lookups = new LinkedHashMap<String, CompletableFuture<User>>();
+    for (Tweet tweet : tweets) {
+      final String userName = tweet.getFromUser();
+      if (users.containsKey(userName) || lookups.containsKey(userName)) {
+        continue;
       }
-      catch (InterruptedException e) {
-        log.severe("Interupted while waiting!");
-        --i;
+      TwitNewsUser twitNewsUser = userCache.get(userName);
+      if (twitNewsUser != null) {
+        users.put(userName, twitNewsUser);
       }
-      finally {
-        if (i < -5) {
-          log.severe("We're probably never going to break out of this sleeping loop, let's exit.");
-          System.exit(1);
-        }
+      else {
+        lookups.put(userName, scheduler.submit(RateLimitScheduler.Endpoint.USERS, new Callable<User>() {
+          @Override
+          public User call() throws TwitterException {
+            return twitter.showUser(userName);
+          }
+        }));
       }
     }
-  }
 
-  /**
-   * Queries twitter and extracts relevant information about the user who authored the given tweet.
-   *
-   * @param tweet The tweet from which author information is desired.
-   * @return TwitNewsUser containing the relevant information about the tweet author.
-   */
-  private static TwitNewsUser getUserInformation(Tweet tweet) {
-    TwitNewsUser twitNewsUser = null;
-    if (userCache.containsKey(tweet.getFromUser())) {
-      twitNewsUser = userCache.get(tweet.getFromUser());
-    }
-    else {
+    for (Map.Entry<String, CompletableFuture<User>> lookup : lookups.entrySet()) {
+      TwitNewsUser twitNewsUser;
       try {
-        User user = twitter.showUser(tweet.getFromUser());
-        twitNewsUser = TwitNewsUserFactory.fromUser(user);
+        twitNewsUser = TwitNewsUserFactory.fromUser(lookup.getValue().get());
       }
-      catch (TwitterException e) {
+      catch (Exception e) {
         log.warning("Error retrieving user information from twitter, returning default user info.");
         e.printStackTrace();
         twitNewsUser = new TwitNewsUser();
         twitNewsUser.setVerifiedUser(false);
         twitNewsUser.setNumFollowers(0);
-        twitNewsUser.setUserName(tweet.getFromUser());
-        userCache.put(tweet.getFromUser(), twitNewsUser);
+        twitNewsUser.setUserName(lookup.getKey());
       }
+      userCache.put(twitNewsUser);
+      users.put(lookup.getKey(), twitNewsUser);
     }
-    return twitNewsUser;
+    return users;
   }
 
   /**
@@ -262,43 +270,4 @@ public class Crawler {
       System.exit(1);
     }
   }
-
-  /**
-   * Sets up the rate limit status listener. When the account or ip becomes rate limited, the listener will attempt
-   * to sleep the thread until the application is no longer rate limited.
-   *
-   * TODO Currently this method doesn't work, as it operates on a seperate thread.
-   *
-   * @see "https://dev.twitter.com/docs/rate-limiting"
-   */
-  private static void setupRateLimitStatusListener() {
-    // Need to add rate limit status listener to throttle crawler when we hit the rate limit
-    RateLimitStatusListener rateLimitStatusListener = new RateLimitStatusListener() {
-      @Override
-      public void onRateLimitStatus(RateLimitStatusEvent event) {}
-
-      @Override
-      public void onRateLimitReached(RateLimitStatusEvent event) {
-        try {
-          RateLimitStatus status = event.getRateLimitStatus();
-          if (event.isAccountRateLimitStatus()) {
-            log.warning("Account is rate limited!");
-          }
-          if (event.isIPRateLimitStatus()) {
-            log.warning("IP is rate limited!");
-          }
-          Date date = new Date();
-          log.warning("The time is now: " + new Date());
-          log.warning("Attempting to wait until rate limit reset at " + status.getResetTime() + " (" +
-              status.getSecondsUntilReset() + " seconds).");
-          Thread.sleep(status.getSecondsUntilReset());
-        }
-        catch (InterruptedException e) {
-          e.printStackTrace();
-          log.severe("Failure to wait!");
-        }
-      }
-    };
-    twitter.addRateLimitStatusListener(rateLimitStatusListener);
-  }
-}
\ No newline at end of file
+}
@@ -0,0 +1,141 @@
+package crawler;
+
+import domain.TwitNewsTweet;
+import domain.TwitNewsUser;
+
+import java.util.*;
+
+/**
+ * Plays back the tweets of a TweetDB dump in timestamp order, optionally paced so that the gaps between tweets match
+ * the gaps between their timestamps. A speed of 1 is wall clock faithful, 10 plays back ten times faster, and
+ * {@link #MAX_SPEED} plays back as fast as the listener can keep up.
+ */
+public class DumpReplayer {
+
+  public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+  /**
+   * Receives tweets as they are played back.
+   */
+  public interface Listener {
+
+    /**
+     * Called once per tweet, on the thread that called {@link DumpReplayer#replay(Listener)}.
+     *
+     * @param tweet The tweet.
+     * @param user The author of the tweet.
+     */
+    void onTweet(TwitNewsTweet tweet, TwitNewsUser user);
+  }
+
+  private final List<TwitNewsTweet> tweets;
+  private final Map<String, TwitNewsUser> usersByName = new HashMap<String, TwitNewsUser>();
+  private final double speed;
+
+  private long maxLagMillis = 0;
+
+  /**
+   * Creates a new DumpReplayer.
+   *
+   * @param tweets The tweets to play back, in any order.
+   * @param users The users of the dump, used to look up the author of each tweet.
+   * @param speed The playback speed, must be positive.
+   */
+  public DumpReplayer(Collection<TwitNewsTweet> tweets, Collection<TwitNewsUser> users, double speed) {
+    if (!(speed > 0)) {
+      throw new IllegalArgumentException("Playback speed must be positive.");
+    }
+    this.tweets = new ArrayList<TwitNewsTweet>(tweets);
+    this.speed = speed;
+    for (TwitNewsUser user : users) {
+      usersByName.put(user.getUserName(), user);
+    }
+
+    // Stable, so tweets with equal timestamps keep their dump order.
+    Collections.sort(this.tweets, new Comparator<TwitNewsTweet>() {
+      @Override
+      public int compare(TwitNewsTweet a, TwitNewsTweet b) {
+        long timeA = a.getTimestamp() == null ? Long.MIN_VALUE : a.getTimestamp().getTime();
+        long timeB = b.getTimestamp() == null ? Long.MIN_VALUE : b.getTimestamp().getTime();
+        return timeA < timeB ? -1 : (timeA == timeB ? 0 : 1);
+      }
+    });
+  }
+
+  /**
+   * Parses a playback speed such as "1", "10x" or "max".
+   *
+   * @param speed The speed string.
+   * @return The playback speed.
+   */
+  public static double parseSpeed(String speed) {
+    String s = speed.trim().toLowerCase();
+    if (s.equals("max")) {
+      return MAX_SPEED;
+    }
+    if (s.endsWith("x")) {
+      s = s.substring(0, s.length() - 1);
+    }
+    return Double.parseDouble(s);
+  }
+
+  /**
+   * Plays back every tweet to the listener, blocking until the last one has been delivered.
+   *
+   * @param listener The listener to deliver tweets to.
+   * @return The number of tweets played back.
+   */
+  public int replay(Listener listener) {
+    long startMillis = System.currentTimeMillis();
+    long firstTimestamp = -1;
+    int replayed = 0;
+
+    for (TwitNewsTweet tweet : tweets) {
+      if (speed != MAX_SPEED && tweet.getTimestamp() != null) {
+        long timestamp = tweet.getTimestamp().getTime();
+        if (firstTimestamp < 0) {
+          firstTimestamp = timestamp;
+        }
+        long dueMillis = startMillis + (long) ((timestamp - firstTimestamp) / speed);
+        long waitMillis = dueMillis - System.currentTimeMillis();
+        if (waitMillis > 0) {
+          try {
+            Thread.sleep(waitMillis);
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return replayed;
+          }
+        }
+        else if (-waitMillis > maxLagMillis) {
+          maxLagMillis = -waitMillis;
+        }
+      }
+      listener.onTweet(tweet, userFor(tweet));
+      ++replayed;
+    }
+    return replayed;
+  }
+
+  /**
+   * @return The furthest playback fell behind the requested pace, in millis.
+   */
+  public long getMaxLagMillis() {
+    return maxLagMillis;
+  }
+
+  public int size() {
+    return tweets.size();
+  }
+
+  private TwitNewsUser userFor(TwitNewsTweet tweet) {
+    TwitNewsUser user = usersByName.get(tweet.getUserName());
+    if (user == null) {
+      user = new TwitNewsUser();
+      user.setUserName(tweet.getUserName());
+      user.setVerifiedUser(tweet.isVerifiedUser());
+      user.setNumFollowers(tweet.getNumFollowers());
+    }
+    return user;
+  }
+}
@@ -0,0 +1,459 @@
+package crawler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import domain.TwitNewsTweet;
+import domain.TwitNewsUser;
+import fileIO.SqlDumpReader;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A local stand in for the twitter Stream API's filter endpoint, for load testing the stream crawlers without the
+ * network. Every connection gets an endless chunked stream of JSON statuses, one per line, in the format twitter4j
+ * parses, at a set rate. Statuses are sent in bursts of a set size, so a burst size of 1 streams evenly and larger
+ * bursts stress how the crawlers cope with spikes.
+ *
+ * Statuses are either synthetic, each mentioning one of the tracked keywords, or taken from TweetDB dumps, keeping
+ * only those that mention a tracked keyword. Either way they are stamped with the time they are sent and get fresh
+ * ids, so a connection never runs out of statuses.
+ */
+public class FakeStreamServer {
+
+  private static final Logger log = Logger.getLogger(FakeStreamServer.class.getName());
+
+  public static final String FILTER_PATH = "/1/statuses/filter.json";
+
+  private static final int NUM_SYNTHETIC_STATUSES = 1000;
+  private static final int NUM_SYNTHETIC_USERS = 1000;
+  private static final String[] SYNTHETIC_WORDS = {
+      "breaking", "news", "just", "now", "live", "update", "report", "says", "video", "photos", "watch", "today",
+      "people", "world", "official", "statement", "more", "latest", "via", "story",
+  };
+  private static final long KEEP_ALIVE_NANOS = 30000000000L;
+  private static final byte[] NEW_LINE = {'\r', '\n'};
+
+  private final List<TwitNewsTweet> tweets;
+  private final Map<String, TwitNewsUser> usersByName = new HashMap<String, TwitNewsUser>();
+  private final double ratePerSecond;
+  private final int burst;
+
+  // Status ids start from the clock like twitter's do, so that they differ from run to run and never collide with the
+  // ids of the retweeted tweets, which are numbered from 1.
+  private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis() << 22);
+  private final AtomicLong statusesSent = new AtomicLong();
+  private final AtomicInteger openStreams = new AtomicInteger();
+
+  private HttpServer server;
+  private ExecutorService executor;
+
+  /**
+   * @param tweets The tweets to stream, or null to stream synthetic statuses.
+   * @param users The authors of the tweets.
+   * @param ratePerSecond The statuses to send per second to every connection, infinity for as many as it takes.
+   * @param burst The number of statuses to send back to back.
+   */
+  public FakeStreamServer(Collection<TwitNewsTweet> tweets, Collection<TwitNewsUser> users, double ratePerSecond,
+                          int burst) {
+    if (!(ratePerSecond > 0) || burst < 1) {
+      throw new IllegalArgumentException("Rate and burst must be positive.");
+    }
+    this.tweets = tweets == null ? null : new ArrayList<TwitNewsTweet>(tweets);
+    this.ratePerSecond = ratePerSecond;
+    this.burst = burst;
+    if (users != null) {
+      for (TwitNewsUser user : users) {
+        usersByName.put(user.getUserName(), user);
+      }
+    }
+  }
+
+  /**
+   * Streams what the arguments say until killed.
+   *
+   * @param args First argument: the port to listen on. Second argument: statuses per second, e.g. 10000 or max.
+   *             Third argument: the burst size. Remaining arguments are the dumps to stream, synthetic statuses are
+   *             streamed if there are none.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.err.println("Must provide at least 3 arguments: port rate burst [dumps...]");
+      System.exit(1);
+    }
+    FakeStreamServer server = create(Arrays.asList(args).subList(3, args.length), DumpReplayer.parseSpeed(args[1]),
+                                     Integer.parseInt(args[2]));
+    server.start(Integer.parseInt(args[0]));
+    log.info("Streaming at http://localhost:" + server.getPort() + FILTER_PATH);
+  }
+
+  /**
+   * Creates a server streaming the tweets of dumps, or synthetic statuses if no dumps are given.
+   *
+   * @param dumps The dumps.
+   * @param ratePerSecond The statuses to send per second to every connection.
+   * @param burst The number of statuses to send back to back.
+   * @return The server, not started yet.
+   */
+  public static FakeStreamServer create(List<String> dumps, double ratePerSecond, int burst) throws IOException {
+    if (dumps.isEmpty()) {
+      return new FakeStreamServer(null, null, ratePerSecond, burst);
+    }
+    List<TwitNewsTweet> tweets = new ArrayList<TwitNewsTweet>();
+    List<TwitNewsUser> users = new ArrayList<TwitNewsUser>();
+    for (String dump : dumps) {
+      SqlDumpReader reader = new SqlDumpReader(dump);
+      reader.read();
+      tweets.addAll(reader.getTweets());
+      users.addAll(reader.getUsers());
+    }
+    return new FakeStreamServer(tweets, users, ratePerSecond, burst);
+  }
+
+  /**
+   * Starts listening.
+   *
+   * @param port The port to listen on, 0 for any free port.
+   */
+  public void start(int port) throws IOException {
+    final AtomicInteger threadNumber = new AtomicInteger();
+    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "fake-stream-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext(FILTER_PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        stream(exchange);
+      }
+    });
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * Stops listening and closes every open stream.
+   */
+  public void stop() {
+    if (server != null) {
+      server.stop(0);
+      executor.shutdownNow();
+      server = null;
+    }
+  }
+
+  /**
+   * @return The port the server listens on.
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * @return The url to point an {@link HttpTweetSource} at.
+   */
+  public String getUrl() {
+    return "http://localhost:" + getPort() + "/";
+  }
+
+  public long getStatusesSent() {
+    return statusesSent.get();
+  }
+
+  public int getOpenStreams() {
+    return openStreams.get();
+  }
+
+  @Override
+  public String toString() {
+    return "FakeStreamServer{statusesSent=" + getStatusesSent() + ", openStreams=" + getOpenStreams() + '}';
+  }
+
+  /**
+   * Streams statuses matching the request's track keywords until the client goes away.
+   */
+  private void stream(HttpExchange exchange) throws IOException {
+    List<String> keywords = trackKeywords(exchange);
+    List<byte[]> statuses = statusesFor(keywords);
+
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, 0);
+    OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024);
+    openStreams.incrementAndGet();
+    log.info("Streaming " + statuses.size() + " distinct statuses for " + keywords + ".");
+
+    SimpleDateFormat dateFormat = new SimpleDateFormat("EEE MMM dd HH:mm:ss Z yyyy", Locale.US);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    long second = -1;
+    byte[] createdAt = null;
+
+    long intervalNanos = ratePerSecond == Double.POSITIVE_INFINITY ? 0 : (long) (burst * 1e9 / ratePerSecond);
+    long nextBurst = System.nanoTime();
+    int next = 0;
+    try {
+      // Like the Stream API, a stream nothing matches is kept open with keep-alives only.
+      while (statuses.isEmpty()) {
+        Thread.sleep(KEEP_ALIVE_NANOS / 1000000);
+        out.write(NEW_LINE);
+        out.flush();
+      }
+      while (!Thread.currentThread().isInterrupted()) {
+        long now = System.currentTimeMillis();
+        if (now / 1000 != second) {
+          second = now / 1000;
+          createdAt = ("\"created_at\":\"" + dateFormat.format(new Date(now)) + "\",").getBytes("UTF-8");
+        }
+        for (int i = 0; i < burst; ++i) {
+          out.write('{');
+          out.write(("\"id\":" + nextId.getAndIncrement() + ",").getBytes("UTF-8"));
+          out.write(createdAt);
+          out.write(statuses.get(next));
+          out.write(NEW_LINE);
+          next = next + 1 == statuses.size() ? 0 : next + 1;
+        }
+        out.flush();
+        statusesSent.addAndGet(burst);
+
+        nextBurst += intervalNanos;
+        long waitNanos = nextBurst - System.nanoTime();
+        while (waitNanos > KEEP_ALIVE_NANOS) {
+          Thread.sleep(KEEP_ALIVE_NANOS / 1000000);
+          out.write(NEW_LINE);
+          out.flush();
+          waitNanos = nextBurst - System.nanoTime();
+        }
+        if (waitNanos > 0) {
+          Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+        else if (waitNanos < -1000000000L) {
+          // The client fell more than a second behind, don't make it catch up in one go.
+          nextBurst = System.nanoTime();
+        }
+      }
+    }
+    catch (IOException e) {
+      // The client went away.
+    }
+    catch (InterruptedException e) {
+      // The server was stopped.
+    }
+    finally {
+      openStreams.decrementAndGet();
+      exchange.close();
+    }
+  }
+
+  /**
+   * Reads the track keywords from the query string or, as twitter4j sends them, from a form encoded POST body.
+   */
+  private static List<String> trackKeywords(HttpExchange exchange) throws IOException {
+    String form = exchange.getRequestURI().getRawQuery();
+    if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+      BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+      try {
+        form = in.readLine();
+      }
+      finally {
+        in.close();
+      }
+    }
+    List<String> keywords = new ArrayList<String>();
+    if (form == null) {
+      return keywords;
+    }
+    for (String parameter : form.split("&")) {
+      if (parameter.startsWith("track=")) {
+        for (String keyword : URLDecoder.decode(parameter.substring("track=".length()), "UTF-8").split(",")) {
+          if (!keyword.trim().isEmpty()) {
+            keywords.add(keyword.trim());
+          }
+        }
+      }
+    }
+    return keywords;
+  }
+
+  /**
+   * Renders the statuses to stream for the keywords, everything after the id and the creation time.
+   */
+  private List<byte[]> statusesFor(List<String> keywords) throws UnsupportedEncodingException {
+    List<byte[]> statuses = new ArrayList<byte[]>();
+    if (tweets == null) {
+      Random random = new Random(keywords.hashCode());
+      List<String> mentions = keywords.isEmpty() ? Collections.singletonList("twitnews") : keywords;
+      List<TwitNewsTweet> synthetic = new ArrayList<TwitNewsTweet>(NUM_SYNTHETIC_STATUSES);
+      for (int i = 0; i < NUM_SYNTHETIC_STATUSES; ++i) {
+        synthetic.add(syntheticTweet(i, mentions.get(i % mentions.size()), random));
+      }
+      for (int i = 0; i < NUM_SYNTHETIC_STATUSES; ++i) {
+        // Every fourth status is a retweet of the status before it.
+        TwitNewsTweet retweeted = i % 4 == 3 ? synthetic.get(i - 1) : null;
+        statuses.add(render(synthetic.get(i), syntheticUser(synthetic.get(i).getUserName()), retweeted));
+      }
+      return statuses;
+    }
+
+    List<String> lowerCaseKeywords = new ArrayList<String>(keywords.size());
+    for (String keyword : keywords) {
+      lowerCaseKeywords.add(keyword.toLowerCase());
+    }
+    for (TwitNewsTweet tweet : tweets) {
+      if (tweet.getText() != null && mentionsAny(tweet.getText().toLowerCase(), lowerCaseKeywords)) {
+        statuses.add(render(tweet, usersByName.get(tweet.getUserName()), null));
+      }
+    }
+    return statuses;
+  }
+
+  private static boolean mentionsAny(String text, List<String> keywords) {
+    if (keywords.isEmpty()) {
+      return true;
+    }
+    for (String keyword : keywords) {
+      if (text.contains(keyword)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static TwitNewsTweet syntheticTweet(int i, String mention, Random random) {
+    StringBuilder text = new StringBuilder(mention);
+    int numWords = 5 + random.nextInt(10);
+    for (int j = 0; j < numWords; ++j) {
+      text.append(' ').append(SYNTHETIC_WORDS[random.nextInt(SYNTHETIC_WORDS.length)]);
+    }
+    TwitNewsTweet tweet = new TwitNewsTweet();
+    tweet.setUserName("user" + random.nextInt(NUM_SYNTHETIC_USERS));
+    if (i % 3 == 0) {
+      tweet.setHasLink(true);
+      tweet.setLink("http://t.co/" + Integer.toString(i, 36));
+      text.append(' ').append(tweet.getLink());
+    }
+    if (i % 10 == 0) {
+      tweet.setLatitude(-90 + 180 * random.nextDouble());
+      tweet.setLongitude(-180 + 360 * random.nextDouble());
+    }
+    else {
+      tweet.setLatitude(-1.0);
+      tweet.setLongitude(-1.0);
+    }
+    tweet.setTweetId(i + 1);
+    tweet.setText(text.toString());
+    tweet.setRetweetCount(random.nextInt(100));
+    return tweet;
+  }
+
+  private static TwitNewsUser syntheticUser(String userName) {
+    int n = Integer.parseInt(userName.substring("user".length()));
+    TwitNewsUser user = new TwitNewsUser();
+    user.setUserName(userName);
+    user.setName("User " + n);
+    user.setVerifiedUser(n % 100 == 0);
+    user.setNumFollowers(n * 37 % 100000);
+    return user;
+  }
+
+  /**
+   * Renders a tweet as the fields of a Stream API status that follow its id and creation time, up to the closing
+   * brace.
+   */
+  private static byte[] render(TwitNewsTweet tweet, TwitNewsUser user, TwitNewsTweet retweeted)
+      throws UnsupportedEncodingException {
+    StringBuilder json = new StringBuilder(512);
+    String text = retweeted == null ? tweet.getText() : "RT @" + retweeted.getUserName() + ": " + retweeted.getText();
+    appendFields(json, tweet, user, text);
+    if (retweeted != null) {
+      json.append(",\"retweeted_status\":{\"id\":").append(retweeted.getTweetId())
+          .append(",\"created_at\":\"Thu Jan 01 00:00:00 +0000 1970\",");
+      appendFields(json, retweeted, syntheticUser(retweeted.getUserName()), retweeted.getText());
+      json.append('}');
+    }
+    json.append('}');
+    return json.toString().getBytes("UTF-8");
+  }
+
+  private static void appendFields(StringBuilder json, TwitNewsTweet tweet, TwitNewsUser user, String text) {
+    json.append("\"text\":");
+    appendString(json, text);
+    json.append(",\"source\":\"web\",\"truncated\":false,\"favorited\":false,\"retweet_count\":")
+        .append(Math.max(0, tweet.getRetweetCount()));
+
+    if (tweet.getLatitude() != -1.0 || tweet.getLongitude() != -1.0) {
+      json.append(",\"geo\":{\"type\":\"Point\",\"coordinates\":[").append(tweet.getLatitude()).append(',')
+          .append(tweet.getLongitude()).append("]}");
+    }
+
+    json.append(",\"entities\":{\"hashtags\":[],\"user_mentions\":[],\"urls\":[");
+    int linkStart = tweet.getLink() == null ? -1 : text.indexOf(tweet.getLink());
+    if (tweet.isHasLink() && linkStart >= 0) {
+      json.append("{\"url\":");
+      appendString(json, tweet.getLink());
+      json.append(",\"expanded_url\":");
+      appendString(json, tweet.getLink());
+      json.append(",\"indices\":[").append(linkStart).append(',').append(linkStart + tweet.getLink().length())
+          .append("]}");
+    }
+    json.append("]}");
+
+    String userName = user == null ? tweet.getUserName() : user.getUserName();
+    json.append(",\"user\":{\"id\":").append(userName == null ? 0 : userName.hashCode() & Integer.MAX_VALUE)
+        .append(",\"screen_name\":");
+    appendString(json, userName);
+    json.append(",\"name\":");
+    appendString(json, user == null ? userName : user.getName());
+    json.append(",\"followers_count\":").append(user == null ? tweet.getNumFollowers() : user.getNumFollowers())
+        .append(",\"verified\":").append(user == null ? tweet.isVerifiedUser() : user.isVerifiedUser()).append('}');
+  }
+
+  private static void appendString(StringBuilder json, String s) {
+    if (s == null) {
+      json.append("null");
+      return;
+    }
+    json.append('"');
+    for (int i = 0; i < s.length(); ++i) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20 || c > 0x7e) {
+            json.append(String.format("\\u%04x", (int) c));
+          }
+          else {
+            json.append(c);
+          }
+      }
+    }
+    json.append('"');
+  }
+}
@@ -0,0 +1,451 @@
+package crawler;
+
+import twitter4j.Status;
+import twitter4j.StatusListener;
+import twitter4j.TwitterException;
+import twitter4j.json.DataObjectFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static util.TwitNewsConstants.STREAM_PARSER_THREADS;
+
+/**
+ * A {@link TweetSource} that reads statuses from a stream server speaking the Stream API's wire format: a chunked
+ * HTTP response of one JSON status per line, with blank lines as keep-alives and limit notices in between. Pointed at
+ * a {@link FakeStreamServer}, it feeds the crawlers without touching the network.
+ *
+ * Statuses are parsed with twitter4j, so listeners get the same {@link Status} objects they would from the Stream API.
+ * twitter4j's parser tops out at around ten thousand statuses a second on one thread, so to load test listeners at
+ * higher rates, lines can be parsed in batches on several threads. Listeners are still called on one thread, in
+ * stream order. A dropped connection is reopened with a growing back off for as long as the stream is open.
+ */
+public class HttpTweetSource implements TweetSource {
+
+  private static final Logger log = Logger.getLogger(HttpTweetSource.class.getName());
+
+  private static final String FILTER_PATH = "1/statuses/filter.json";
+  private static final String LIMIT_NOTICE = "{\"limit\":{\"track\":";
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final int READ_TIMEOUT_MILLIS = 90000;
+  private static final long MIN_BACK_OFF_MILLIS = 250;
+  private static final long MAX_BACK_OFF_MILLIS = 16000;
+  private static final int PARSE_BATCH_SIZE = 64;
+  private static final long DISPATCHER_CHECK_MILLIS = 1000;
+
+  private final String baseUrl;
+  private final int parserThreads;
+  private final ExecutorService parsers;
+  private final List<StatusListener> listeners = new CopyOnWriteArrayList<StatusListener>();
+
+  private final AtomicLong statuses = new AtomicLong();
+  private final AtomicLong malformed = new AtomicLong();
+  private final AtomicLong reconnects = new AtomicLong();
+
+  // Guarded by this.
+  private Reader reader;
+
+  /**
+   * Creates a source parsing on as many threads as the twitnews.stream.parserThreads system property says.
+   *
+   * @param baseUrl The url of the stream server, e.g. http://localhost:8089/.
+   */
+  public HttpTweetSource(String baseUrl) {
+    this(baseUrl, Integer.getInteger("twitnews.stream.parserThreads", STREAM_PARSER_THREADS));
+  }
+
+  /**
+   * @param baseUrl The url of the stream server, e.g. http://localhost:8089/.
+   * @param parserThreads The number of threads to parse statuses on, 1 to parse them on the thread reading them.
+   */
+  public HttpTweetSource(String baseUrl, int parserThreads) {
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    this.parserThreads = parserThreads;
+    if (parserThreads > 1) {
+      final AtomicInteger threadNumber = new AtomicInteger();
+      parsers = Executors.newFixedThreadPool(parserThreads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "http-tweet-source-parser-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    else {
+      parsers = null;
+    }
+  }
+
+  @Override
+  public void addListener(StatusListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public synchronized void track(String[] keywords) {
+    cleanUp();
+    StringBuilder track = new StringBuilder();
+    for (String keyword : keywords) {
+      if (track.length() > 0) {
+        track.append(',');
+      }
+      track.append(keyword);
+    }
+    try {
+      reader = new Reader(new URL(baseUrl + FILTER_PATH + "?track=" + URLEncoder.encode(track.toString(), "UTF-8")));
+    }
+    catch (IOException e) {
+      throw new IllegalArgumentException("Bad stream url " + baseUrl + ".", e);
+    }
+    reader.start();
+  }
+
+  @Override
+  public synchronized void cleanUp() {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    cleanUp();
+    listeners.clear();
+    if (parsers != null) {
+      parsers.shutdownNow();
+    }
+  }
+
+  /**
+   * @return The number of statuses delivered to the listeners.
+   */
+  public long getStatuses() {
+    return statuses.get();
+  }
+
+  /**
+   * @return The number of lines that could not be parsed as a status.
+   */
+  public long getMalformed() {
+    return malformed.get();
+  }
+
+  public long getReconnects() {
+    return reconnects.get();
+  }
+
+  @Override
+  public String toString() {
+    return "HttpTweetSource{url=" + baseUrl + ", statuses=" + getStatuses() + ", malformed=" + getMalformed() +
+           ", reconnects=" + getReconnects() + '}';
+  }
+
+  /**
+   * Parses a line of the stream. Lines that are neither a status nor a limit notice come back as an error, parsing
+   * never throws.
+   *
+   * @return The message on the line, or null for a keep-alive.
+   */
+  private Message parse(String line) {
+    if (line.isEmpty()) {
+      return null;
+    }
+    try {
+      if (line.startsWith(LIMIT_NOTICE)) {
+        int end = LIMIT_NOTICE.length();
+        while (end < line.length() && Character.isDigit(line.charAt(end))) {
+          ++end;
+        }
+        return new Message(null, Integer.parseInt(line.substring(LIMIT_NOTICE.length(), end)), null);
+      }
+      return new Message(DataObjectFactory.createStatus(line), 0, null);
+    }
+    catch (TwitterException e) {
+      malformed.incrementAndGet();
+      return new Message(null, 0, e);
+    }
+    catch (RuntimeException e) {
+      malformed.incrementAndGet();
+      return new Message(null, 0, e);
+    }
+  }
+
+  /**
+   * Delivers a message of the stream to the listeners. Like twitter4j's own streams, a listener that throws is told
+   * about it through its onException, and the stream goes on.
+   */
+  private void deliver(Message message) {
+    if (message == null) {
+      return;
+    }
+    if (message.status != null) {
+      statuses.incrementAndGet();
+    }
+    else if (message.error != null) {
+      onException(message.error);
+      return;
+    }
+    for (StatusListener listener : listeners) {
+      try {
+        if (message.status != null) {
+          listener.onStatus(message.status);
+        }
+        else {
+          listener.onTrackLimitationNotice(message.numberOfLimitedStatuses);
+        }
+      }
+      catch (RuntimeException e) {
+        onException(listener, e);
+      }
+    }
+  }
+
+  private void onException(Exception e) {
+    for (StatusListener listener : listeners) {
+      onException(listener, e);
+    }
+  }
+
+  private void onException(StatusListener listener, Exception e) {
+    try {
+      listener.onException(e);
+    }
+    catch (RuntimeException listenerFailure) {
+      log.severe("Listener failed handling an exception of the stream from " + baseUrl + ".");
+      listenerFailure.printStackTrace();
+    }
+  }
+
+  /**
+   * A status, limit notice or unparseable status read from the stream.
+   */
+  private static final class Message {
+
+    private final Status status;
+    private final int numberOfLimitedStatuses;
+    private final Exception error;
+
+    private Message(Status status, int numberOfLimitedStatuses, Exception error) {
+      this.status = status;
+      this.numberOfLimitedStatuses = numberOfLimitedStatuses;
+      this.error = error;
+    }
+  }
+
+  /**
+   * Parses a batch of lines on a parser thread.
+   */
+  private final class ParseBatch implements Callable<List<Message>> {
+
+    private final List<String> lines;
+
+    private ParseBatch(List<String> lines) {
+      this.lines = lines;
+    }
+
+    @Override
+    public List<Message> call() {
+      List<Message> messages = new ArrayList<Message>(lines.size());
+      for (String line : lines) {
+        messages.add(parse(line));
+      }
+      return messages;
+    }
+  }
+
+  /**
+   * Reads one stream on a thread of its own until it is closed, reconnecting whenever the connection drops.
+   */
+  private final class Reader extends Thread {
+
+    private final URL url;
+
+    private volatile boolean open = true;
+    private volatile HttpURLConnection connection;
+
+    private Reader(URL url) {
+      super("http-tweet-source");
+      this.url = url;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      long backOffMillis = MIN_BACK_OFF_MILLIS;
+      while (open) {
+        try {
+          connection = (HttpURLConnection) url.openConnection();
+          connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+          connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+          if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Stream server answered " + connection.getResponseCode() + " for " + url + ".");
+          }
+          BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+          try {
+            backOffMillis = MIN_BACK_OFF_MILLIS;
+            if (parsers == null) {
+              String line;
+              while (open && (line = in.readLine()) != null) {
+                deliver(parse(line));
+              }
+            }
+            else {
+              readInParallel(in);
+            }
+          }
+          finally {
+            in.close();
+          }
+        }
+        catch (IOException e) {
+          if (open) {
+            log.warning("Lost the stream from " + url + ", reconnecting in " + backOffMillis + "ms.");
+            onException(e);
+          }
+        }
+        catch (RuntimeException e) {
+          if (open) {
+            log.severe("Failure reading the stream from " + url + ", reconnecting in " + backOffMillis + "ms.");
+            e.printStackTrace();
+            onException(e);
+          }
+        }
+        finally {
+          if (connection != null) {
+            connection.disconnect();
+          }
+        }
+
+        if (open) {
+          reconnects.incrementAndGet();
+          try {
+            Thread.sleep(backOffMillis);
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+          backOffMillis = Math.min(backOffMillis * 2, MAX_BACK_OFF_MILLIS);
+        }
+      }
+    }
+
+    /**
+     * Reads lines in batches, hands them to the parsers, and delivers the parsed batches in order on a dispatcher
+     * thread. A batch is handed off when it is full or no more lines have arrived yet, so a slow stream is not held
+     * back. Returns once the connection drops and everything read has been delivered, or right away when closed.
+     * The dispatcher only stops at the end of the stream, a batch that failed is reported and skipped.
+     */
+    private void readInParallel(BufferedReader in) throws IOException {
+      final BlockingQueue<Future<List<Message>>> parsed =
+          new ArrayBlockingQueue<Future<List<Message>>>(parserThreads * 4);
+      final Thread dispatcher = new Thread("http-tweet-source-dispatcher") {
+        @Override
+        public void run() {
+          try {
+            while (true) {
+              List<Message> messages;
+              try {
+                messages = parsed.take().get();
+              }
+              catch (ExecutionException e) {
+                log.severe("Failure parsing the stream from " + url + ", skipping a batch.");
+                e.printStackTrace();
+                onException(e);
+                continue;
+              }
+              if (messages == null) {
+                return;
+              }
+              for (Message message : messages) {
+                deliver(message);
+              }
+            }
+          }
+          catch (InterruptedException e) {
+            // The stream was closed.
+          }
+        }
+      };
+      dispatcher.setDaemon(true);
+      dispatcher.start();
+
+      IOException failure = null;
+      try {
+        List<String> batch = new ArrayList<String>(PARSE_BATCH_SIZE);
+        try {
+          String line;
+          while (open && (line = in.readLine()) != null) {
+            batch.add(line);
+            if (batch.size() == PARSE_BATCH_SIZE || !in.ready()) {
+              handOff(parsed, parsers.submit(new ParseBatch(batch)), dispatcher);
+              batch = new ArrayList<String>(PARSE_BATCH_SIZE);
+            }
+          }
+        }
+        catch (IOException e) {
+          failure = e;
+        }
+        if (open) {
+          // The connection dropped, deliver what was read before reconnecting.
+          handOff(parsed, parsers.submit(new ParseBatch(batch)), dispatcher);
+          handOff(parsed, CompletableFuture.completedFuture((List<Message>) null), dispatcher);
+          dispatcher.join();
+        }
+        else {
+          dispatcher.interrupt();
+        }
+      }
+      catch (InterruptedException e) {
+        dispatcher.interrupt();
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    /**
+     * Queues a batch for the dispatcher, waiting for room while it is alive.
+     *
+     * @throws IOException If the dispatcher died, so that the stream is read again from a new connection.
+     */
+    private void handOff(BlockingQueue<Future<List<Message>>> parsed, Future<List<Message>> batch, Thread dispatcher)
+        throws IOException, InterruptedException {
+      while (!parsed.offer(batch, DISPATCHER_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+        if (!dispatcher.isAlive()) {
+          throw new IOException("The dispatcher of the stream from " + url + " died.");
+        }
+      }
+    }
+
+    /**
+     * Stops reading and waits for the thread to finish.
+     */
+    private void close() {
+      open = false;
+      HttpURLConnection openConnection = connection;
+      if (openConnection != null) {
+        openConnection.disconnect();
+      }
+      interrupt();
+      try {
+        join(CONNECT_TIMEOUT_MILLIS);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
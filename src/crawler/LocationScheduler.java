@@ -0,0 +1,325 @@
+package crawler;
+
+import dao.TrendDAO;
+import domain.TwitNewsTrend;
+import twitter4j.Trend;
+import twitter4j.Trends;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static util.TwitNewsConstants.CRAWL_REFRESH_MILLIS;
+import static util.TwitNewsConstants.US_WOEID;
+import static util.TwitNewsConstants.WORLD_WOEID;
+
+/**
+ * Crawls the trends of several locations at once, each location on a thread of its own, virtual threads where the
+ * JVM has them. All locations share one {@link RateLimitScheduler}, so crawling more locations spreads the same rate
+ * limit budget rather than multiplying it.
+ *
+ * A trend is only crawled once however many locations it trends in. Trends are claimed by name, ignoring case and
+ * surrounding spaces, and a claimed trend is not crawled again until the refresh interval has passed. Claimed trends
+ * are upserted through {@link TrendDAO} in one batch per location, so every location gets the same trend id for the
+ * same trend.
+ */
+public class LocationScheduler {
+
+  private static final Logger log = Logger.getLogger(LocationScheduler.class.getName());
+
+  /**
+   * Crawls the trends a location claimed.
+   */
+  public interface TrendCrawler {
+
+    /**
+     * Called on the location's thread once every round the location claimed any trends.
+     *
+     * @param woeid The location.
+     * @param trends The trends, with their trend ids set.
+     */
+    void crawl(int woeid, List<TwitNewsTrend> trends);
+  }
+
+  private final Twitter twitter;
+  private final RateLimitScheduler rateLimits;
+  private final TrendDAO trendDAO;
+  private final List<Integer> woeids;
+  private final long refreshMillis;
+
+  // Guarded by itself.
+  private final Map<String, Long> claimedAt = new HashMap<String, Long>();
+
+  private final AtomicLong locationsCrawled = new AtomicLong();
+  private final AtomicLong failedLocations = new AtomicLong();
+  private final AtomicLong trendsClaimed = new AtomicLong();
+  private final AtomicLong duplicateTrends = new AtomicLong();
+
+  /**
+   * @param twitter The twitter to fetch trends from.
+   * @param rateLimits The scheduler every call to twitter goes through.
+   * @param trendDAO The DAO to upsert trends with.
+   * @param woeids The Yahoo woeids of the locations.
+   * @param refreshMillis How often a location's trends are fetched, and how long a trend stays claimed.
+   */
+  public LocationScheduler(Twitter twitter, RateLimitScheduler rateLimits, TrendDAO trendDAO, List<Integer> woeids,
+                           long refreshMillis) {
+    this.twitter = twitter;
+    this.rateLimits = rateLimits;
+    this.trendDAO = trendDAO;
+    this.woeids = new ArrayList<Integer>(new LinkedHashSet<Integer>(woeids));
+    this.refreshMillis = refreshMillis;
+  }
+
+  /**
+   * Creates a scheduler refreshing trends as often as the twitnews.crawl.refreshMillis system property says.
+   *
+   * @param twitter The twitter to fetch trends from.
+   * @param rateLimits The scheduler every call to twitter goes through.
+   * @param trendDAO The DAO to upsert trends with.
+   * @param woeids The Yahoo woeids of the locations.
+   * @return The scheduler.
+   */
+  public static LocationScheduler create(Twitter twitter, RateLimitScheduler rateLimits, TrendDAO trendDAO,
+                                         List<Integer> woeids) {
+    return new LocationScheduler(twitter, rateLimits, trendDAO, woeids,
+                                 Long.getLong("twitnews.crawl.refreshMillis", CRAWL_REFRESH_MILLIS));
+  }
+
+  /**
+   * Parses the locations to crawl from a command line argument: true for the US, false for the whole world, as the
+   * crawlers always took, or a comma separated list of woeids.
+   *
+   * @param arg The argument.
+   * @return The woeids.
+   */
+  public static List<Integer> parseWoeids(String arg) {
+    List<Integer> woeids = new ArrayList<Integer>();
+    if (arg.equalsIgnoreCase("true")) {
+      woeids.add(US_WOEID);
+    }
+    else if (arg.equalsIgnoreCase("false")) {
+      woeids.add(WORLD_WOEID);
+    }
+    else {
+      for (String woeid : arg.split(",")) {
+        if (!woeid.trim().isEmpty()) {
+          woeids.add(Integer.parseInt(woeid.trim()));
+        }
+      }
+    }
+    return woeids;
+  }
+
+  /**
+   * Fetches the current trends of every location concurrently and claims them.
+   *
+   * @return The trends no other location claimed, with their trend ids, in the order of the locations.
+   */
+  public List<TwitNewsTrend> fetchTrends() {
+    ExecutorService executor = newExecutor(woeids.size());
+    try {
+      List<Future<List<TwitNewsTrend>>> fetches = new ArrayList<Future<List<TwitNewsTrend>>>();
+      for (final int woeid : woeids) {
+        fetches.add(executor.submit(new Callable<List<TwitNewsTrend>>() {
+          @Override
+          public List<TwitNewsTrend> call() {
+            return claimTrends(woeid);
+          }
+        }));
+      }
+      List<TwitNewsTrend> trends = new ArrayList<TwitNewsTrend>();
+      for (Future<List<TwitNewsTrend>> fetch : fetches) {
+        try {
+          trends.addAll(fetch.get());
+        }
+        catch (ExecutionException e) {
+          e.printStackTrace();
+        }
+      }
+      return trends;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Collections.emptyList();
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Crawls every location concurrently, each on a thread of its own. Every round, a location's trends are fetched
+   * and claimed, and those it claimed are handed to the crawler. Rounds of a location start the refresh interval
+   * apart.
+   *
+   * @param rounds The number of rounds to crawl every location for.
+   * @param crawler Crawls the claimed trends.
+   */
+  public void crawl(final int rounds, final TrendCrawler crawler) {
+    ExecutorService executor = newExecutor(woeids.size());
+    for (final int woeid : woeids) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          for (int round = 0; round < rounds; ++round) {
+            long startedAt = System.currentTimeMillis();
+            List<TwitNewsTrend> trends = claimTrends(woeid);
+            if (!trends.isEmpty()) {
+              try {
+                crawler.crawl(woeid, trends);
+              }
+              catch (RuntimeException e) {
+                log.severe("Failure crawling the trends of location " + woeid + ".");
+                e.printStackTrace();
+              }
+            }
+            long untilNextRound = startedAt + refreshMillis - System.currentTimeMillis();
+            if (round + 1 < rounds && untilNextRound > 0) {
+              try {
+                Thread.sleep(untilNextRound);
+              }
+              catch (InterruptedException e) {
+                log.warning("Interrupted while waiting to crawl location " + woeid + " again.");
+                return;
+              }
+            }
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        log.info(toString());
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+    }
+  }
+
+  public long getLocationsCrawled() {
+    return locationsCrawled.get();
+  }
+
+  public long getFailedLocations() {
+    return failedLocations.get();
+  }
+
+  public long getTrendsClaimed() {
+    return trendsClaimed.get();
+  }
+
+  public long getDuplicateTrends() {
+    return duplicateTrends.get();
+  }
+
+  @Override
+  public String toString() {
+    return "LocationScheduler{locations=" + woeids.size() + ", locationsCrawled=" + getLocationsCrawled() +
+           ", failedLocations=" + getFailedLocations() + ", trendsClaimed=" + getTrendsClaimed() +
+           ", duplicateTrends=" + getDuplicateTrends() + '}';
+  }
+
+  /**
+   * Fetches the current trends of a location and claims those no location claimed within the refresh interval.
+   *
+   * @return The claimed trends, with their trend ids.
+   */
+  private List<TwitNewsTrend> claimTrends(final int woeid) {
+    Trends trendsForLocation;
+    try {
+      trendsForLocation = rateLimits.submit(RateLimitScheduler.Endpoint.TRENDS, new Callable<Trends>() {
+        @Override
+        public Trends call() throws TwitterException {
+          return twitter.getLocationTrends(woeid);
+        }
+      }).get();
+    }
+    catch (Exception e) {
+      log.severe("Error obtaining trends for location " + woeid + " from twitter.");
+      e.printStackTrace();
+      failedLocations.incrementAndGet();
+      return Collections.emptyList();
+    }
+    locationsCrawled.incrementAndGet();
+
+    List<TwitNewsTrend> claimed = new ArrayList<TwitNewsTrend>();
+    long now = System.currentTimeMillis();
+    synchronized (claimedAt) {
+      for (Trend trend : trendsForLocation.getTrends()) {
+        String key = trend.getName().trim().toLowerCase();
+        Long claimedAtMillis = claimedAt.get(key);
+        if (claimedAtMillis != null && now - claimedAtMillis < refreshMillis) {
+          duplicateTrends.incrementAndGet();
+          continue;
+        }
+        claimedAt.put(key, now);
+        TwitNewsTrend twitNewsTrend = new TwitNewsTrend();
+        twitNewsTrend.setName(trend.getName());
+        claimed.add(twitNewsTrend);
+      }
+    }
+    if (claimed.isEmpty()) {
+      return claimed;
+    }
+
+    int[] trendIds = trendDAO.upsertTrends(claimed);
+    if (trendIds == null) {
+      log.severe("There was a problem persisting the trends of location " + woeid + ", skipping them.");
+      release(claimed);
+      return Collections.emptyList();
+    }
+    List<TwitNewsTrend> persisted = new ArrayList<TwitNewsTrend>(claimed.size());
+    for (int i = 0; i < trendIds.length; ++i) {
+      if (trendIds[i] >= 0) {
+        claimed.get(i).setTrendId(trendIds[i]);
+        persisted.add(claimed.get(i));
+      }
+    }
+    trendsClaimed.addAndGet(persisted.size());
+    log.info("Claimed " + persisted.size() + " trends for location " + woeid + ".");
+    return persisted;
+  }
+
+  /**
+   * Gives up the claims on trends, so another location can claim them.
+   */
+  private void release(List<TwitNewsTrend> trends) {
+    synchronized (claimedAt) {
+      for (TwitNewsTrend trend : trends) {
+        claimedAt.remove(trend.getName().trim().toLowerCase());
+      }
+    }
+  }
+
+  /**
+   * Returns an executor that runs every task on a virtual thread of its own where the JVM has them, since Java 21,
+   * and otherwise on a pool of a thread per task.
+   */
+  private static ExecutorService newExecutor(int numTasks) {
+    try {
+      Method newVirtualThreadPerTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+    }
+    catch (Exception e) {
+      // Not there before Java 21, or only as a preview feature.
+      final AtomicInteger threadNumber = new AtomicInteger();
+      return Executors.newFixedThreadPool(Math.max(1, numTasks), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "location-crawler-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+}
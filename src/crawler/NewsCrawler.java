@@ -1,17 +1,12 @@
 package crawler;
 
 import dao.TrendDAO;
-import dao.TweetDAO;
-import dao.UserDAO;
 import database.MySQL_UI;
 import database.SqlConstants;
-import datastructures.InvertedIndex;
 import domain.*;
-import fileIO.FileConstants;
-import fileIO.FileIO;
-import ranker.NewsRanker;
+import ingest.IngestPipeline;
 import twitter4j.*;
-import util.TextUtils;
+import util.Lexicon;
 
 import java.io.IOException;
 import java.util.*;
@@ -32,15 +27,14 @@ public class NewsCrawler {
 
 // Twitter instances that should be shared throughout the crawler
 private static final Twitter twitter = TwitterFactory.getSingleton();
-private static final TwitterStream twitterStream = TwitterStreamFactory.getSingleton();
+private static final TweetSource tweetSource = TweetSource.Factory.create();
 
 // Objects that should be shared throughout the crawler
 private static MySQL_UI sql;
+private static IngestPipeline pipeline;
 private static final Logger log = Logger.getLogger(StreamCrawler.class.getName());
 
-private static final InvertedIndex<String, Integer> invertedIndex = new InvertedIndex<String, Integer>();
-
-private static final Set<String> stopWords = new HashSet<String>();
+private static NewsStatusHandler handler;
 
 // A mapping of trendNames to their id's in the db, global to facilitate access within the StatusListener
 //private static final Map<String, Integer> trendNameToId = new HashMap<String, Integer>();
@@ -54,23 +48,20 @@ private static final Set<String> stopWords = new HashSet<String>();
 
     setupLogging();
 
-    loadStopWords();
-
     sql = createDbConnection(args);
 
+    pipeline = IngestPipeline.create(sql);
+    pipeline.start();
+
+    handler = new NewsStatusHandler(Lexicon.stopWords(), pipeline);
+
     // This is where the crawling occurs. Happens on a separate thread from the main thread.
     StatusListener statusListener = new StatusListener() {
 
-      private TweetDAO tweetDAO = new TweetDAO(sql);
-      private UserDAO userDAO = new UserDAO(sql);
-      int tweetsCrawled = 0;
-      private Map<Integer, List<TwitNewsTweet>> tweetsByTrendId = new HashMap<Integer, List<TwitNewsTweet>>();
-      private Set<TwitNewsUser> users = new HashSet<TwitNewsUser>();
-
       @Override
       public void onStatus(Status status) {
 
-        int[] trendIdAndScore = getCorrespondingTrendId(status);
+        int[] trendIdAndScore = handler.match(status.getText());
         int correspondingTrendId = trendIdAndScore[0];
         int tfidf = trendIdAndScore[1];
 
@@ -79,121 +70,17 @@ private static final Set<String> stopWords = new HashSet<String>();
         }
 
         TwitNewsTweet twitNewsTweet = TwitNewsTweetFactory.fromStatus(status, correspondingTrendId);
-        twitNewsTweet.setTfidf(tfidf);
-
-        int rank = NewsRanker.computeRank(twitNewsTweet);
-        twitNewsTweet.setRank(rank);
-
         TwitNewsUser twitNewsUser = TwitNewsUserFactory.fromStatus(status);
 
-        // Update the trend id to tweet mapping
-        if (tweetsByTrendId.containsKey(correspondingTrendId)) {
-          List<TwitNewsTweet> tweetsForTrend = tweetsByTrendId.get(correspondingTrendId);
-          tweetsForTrend.add(twitNewsTweet);
-          if (status.isRetweet()) {
-            tweetsForTrend.add(TwitNewsTweetFactory.fromStatus(status.getRetweetedStatus(), correspondingTrendId));
-          }
-        }
-        else {
-          List<TwitNewsTweet> tweetsForTrend = new ArrayList<TwitNewsTweet>();
-          tweetsForTrend.add(twitNewsTweet);
-          if (status.isRetweet()) {
-            tweetsForTrend.add(TwitNewsTweetFactory.fromStatus(status.getRetweetedStatus(), correspondingTrendId));
-          }
-          tweetsByTrendId.put(correspondingTrendId, tweetsForTrend);
+        TwitNewsTweet originalTweet = null;
+        if (status.isRetweet()) {
+          originalTweet = TwitNewsTweetFactory.fromStatus(status.getRetweetedStatus(), correspondingTrendId);
         }
-        ++tweetsCrawled;
-
-        users.add(twitNewsUser);
 
-        // Let's insert the tweets or users if we get more than 250 of any of them
+        // Hand off to the ingest writers, persistence never happens on the stream thread.
         log.info(status.getText());
-        if (tweetsCrawled >= 250) {
-          for (Integer trendId : tweetsByTrendId.keySet()) {
-            insertTweets(tweetsByTrendId.get(trendId), trendId);
-          }
-        }
-        if (users.size() >= 250) {
-          insertUsers();
-        }
-      }
-
-      /**
-       * Gets the corresponding trend id for a given status.
-       *
-       * @param status The status to get the trend if for.
-       *
-       * @return int The corresponding trend id.
-       */
-      private int[] getCorrespondingTrendId(Status status) {
-        return searchInvertedIndex(status.getText());
-      }
-
-      private int[] searchInvertedIndex(String text) {
-        Map<Integer, Integer> counters = new HashMap<Integer, Integer>();
-        Set<String> keywords = TextUtils.parseKeywordsFromTweetText(text, stopWords);
-        for (String keyword : keywords) {
-          if (invertedIndex.containsKey(keyword)) {
-            Set<Integer> matchingTrendIds = invertedIndex.get(keyword);
-            for (Integer matchingTrendId : matchingTrendIds) {
-              if (counters.containsKey(matchingTrendId)) {
-                int count = counters.get(matchingTrendId);
-                ++count;
-                counters.put(matchingTrendId, count);
-              }
-              else {
-                counters.put(matchingTrendId, 1);
-              }
-            }
-          }
-        }
-        int highestRank = 0;
-        int highestRankedTrendId = 0;
-        for (Integer trendId : counters.keySet()) {
-          int rank = counters.get(trendId);
-          if (rank > highestRank) {
-            highestRank = rank;
-            highestRankedTrendId = trendId;
-          }
-        }
-        int score = 0;
-        if (counters.containsKey(highestRankedTrendId)) {
-          score = counters.get(highestRankedTrendId);
-        }
-        return new int[]{highestRankedTrendId, score};
-      }
-
-      /**
-       * Inserts tweets into the db.
-       *
-       * @param tweets The tweet to insert.
-       * @param correspondingTrendId The tweet's corresponding trend id.
-       */
-      private void insertTweets(Collection<TwitNewsTweet> tweets, int correspondingTrendId) {
-        try {
-          tweetDAO.insertTweets(tweets, correspondingTrendId);
-          log.info("Successfully logged 250 tweets.");
-          tweets.clear();
-          tweetsCrawled = 0;
-        }
-        catch (Exception e) {
-          log.severe(e.toString());
-          log.severe("Failure persisting tweets. Will try again on next received status.");
-        }
-      }
-
-      /**
-       * Inserts users into the db.
-       */
-      private void insertUsers() {
-        try {
-          userDAO.insertUsers(users);
-          log.info("Successfully logged 250 users.");
-          users.clear();
-        }
-        catch (Exception e) {
-          log.severe(e.toString());
-          log.severe("Failure persisting users. Will try again on next received status.");
+        if (!handler.accept(correspondingTrendId, tfidf, twitNewsTweet, originalTweet, twitNewsUser)) {
+          log.warning("Ingest buffer is full, dropping status.");
         }
       }
 
@@ -201,7 +88,9 @@ private static final Set<String> stopWords = new HashSet<String>();
       public void onDeletionNotice(StatusDeletionNotice statusDeletionNotice) {}
 
       @Override
-      public void onTrackLimitationNotice(int numberOfLimitedStatuses) {}
+      public void onTrackLimitationNotice(int numberOfLimitedStatuses) {
+        pipeline.getMetrics().recordTrackLimitation(numberOfLimitedStatuses);
+      }
 
       @Override
       public void onScrubGeo(long userId, long upToStatusId) {}
@@ -211,7 +100,7 @@ private static final Set<String> stopWords = new HashSet<String>();
         ex.printStackTrace();
       }
     };
-    twitterStream.addListener(statusListener);
+    tweetSource.addListener(statusListener);
 
     try {
       //noinspection InfiniteLoopStatement
@@ -222,16 +111,28 @@ private static final Set<String> stopWords = new HashSet<String>();
 
         waitOneHour();
 
-        twitterStream.cleanUp();
+        tweetSource.cleanUp();
 //        trendNameToId.clear();
       }
     }
     finally {
-      twitterStream.shutdown();
+      tweetSource.shutdown();
+      pipeline.shutdown(60000);
       log.info("Finished crawling current trends!");
     }
   }
 
+  /**
+   * Returns the best ranked tweets the crawler has seen for a trend it is crawling, straight from memory.
+   *
+   * @param trendId The id of the trend in the db.
+   * @param n The number of tweets wanted.
+   * @return The best tweets, best first, empty if the trend is not being crawled.
+   */
+  public static List<TwitNewsTweet> getTopTweets(int trendId, int n) {
+    return handler == null ? Collections.<TwitNewsTweet>emptyList() : handler.getTopTweets(trendId, n);
+  }
+
   /**
    * Queries twitter for the latest trends and sets the track keywords to the trend names.
    *
@@ -239,19 +140,24 @@ private static final Set<String> stopWords = new HashSet<String>();
    */
   private static void refreshStreamApiTrackKeywords() {
 
-    invertedIndex.clear();
+    // Tweets keep matching the previous trends until the new ones are published below.
+    handler.startTrendRefresh();
 
     Set<String> trends = getTrendsFromRestAPI();
 
-    Set<String> keywords = new LinkedHashSet<String>();
+    List<TwitNewsTrend> twitNewsTrends = new ArrayList<TwitNewsTrend>(trends.size());
     for (String trendText : trends) {
       TwitNewsTrend trend = new TwitNewsTrend();
       trend.setName(trendText);
-      int trendId = attemptToInsertTrend(trend);
-      Set<String> keywordsForTrend = TextUtils.parseKeywordsFromTweetText(trendText, stopWords);
-      keywords.addAll(keywordsForTrend);
-      invertedIndex.putAll(keywordsForTrend, trendId);
+      twitNewsTrends.add(trend);
     }
+    int[] trendIds = attemptToInsertTrends(twitNewsTrends);
+
+    Set<String> keywords = new LinkedHashSet<String>();
+    for (int i = 0; i < trendIds.length; ++i) {
+      keywords.addAll(handler.indexTrend(twitNewsTrends.get(i).getName(), trendIds[i]));
+    }
+    handler.publishTrends();
 
     // Insert trends and create keyword array for twitter stream filtering.
     String[] trendStrings = new String[keywords.size()];
@@ -262,9 +168,7 @@ private static final Set<String> stopWords = new HashSet<String>();
     }
 
     // Let's just grab tweets from the stream matching the trend keywords!
-    FilterQuery filter = new FilterQuery();
-    filter.track(trendStrings);
-    twitterStream.filter(filter);
+    tweetSource.track(trendStrings);
   }
 
   /**
@@ -288,27 +192,21 @@ private static final Set<String> stopWords = new HashSet<String>();
   }
 
   /**
-   * Attempts to insert a trend until it succeeds.
+   * Attempts to insert the trends until it succeeds, in one batch.
    *
-   * @param twitNewsTrend The trend to insert.
+   * @param twitNewsTrends The trends to insert.
    *
-   * @return int the trend if of the just inserted trend in the db.
+   * @return int[] the trend ids of the trends in the db, in the order of the list.
    */
-  private static int attemptToInsertTrend(TwitNewsTrend twitNewsTrend) {
+  private static int[] attemptToInsertTrends(List<TwitNewsTrend> twitNewsTrends) {
     TrendDAO trendDAO = new TrendDAO(sql);
-    int trendId = 0;
-    boolean successfullyInsertedTrend = false;
-    while (!successfullyInsertedTrend) {
-      try {
-        trendId = trendDAO.insertTrend(twitNewsTrend);
-        successfullyInsertedTrend = true;
-      }
-      catch (Exception e) {
-        log.severe("There was a problem persisting the trend. Lets try again!");
-        e.printStackTrace();
-      }
+    int[] trendIds = trendDAO.upsertTrends(twitNewsTrends);
+    while (trendIds == null) {
+      log.severe("There was a problem persisting the trends. Lets try again!");
+      waitOneMinute();
+      trendIds = trendDAO.upsertTrends(twitNewsTrends);
     }
-    return trendId;
+    return trendIds;
   }
 
   /**
@@ -333,11 +231,6 @@ private static final Set<String> stopWords = new HashSet<String>();
     }
   }
 
-  private static void loadStopWords() {
-    FileIO fileIO = new FileIO(FileConstants.STOP_WORDS);
-    fileIO.getWordSet(stopWords);
-  }
-
   /**
    * Creates a new connection to the db.
    *
@@ -382,7 +275,7 @@ private static final Set<String> stopWords = new HashSet<String>();
       password = args[5];
     }
 
-    return new MySQL_UI(host, port, user, password);
+    return MySQL_UI.createPooled(host, port, user, password);
   }
 
   /**
@@ -398,13 +291,16 @@ private static final Set<String> stopWords = new HashSet<String>();
   }
 
   /**
-   * Blocks for 1 hour.
+   * Blocks for 1 hour, logging the ingest metrics along the way.
    */
   private static void waitOneHour() {
     int timeWaitedInMillis = 0;
     while (timeWaitedInMillis < ONE_HOUR_IN_MILLIS) {
       waitOneMinute();
       timeWaitedInMillis += ONE_MINUTE_IN_MILLIS;
+      if (timeWaitedInMillis % 60000 == 0) {
+        log.info(pipeline.getMetrics().toString());
+      }
     }
   }
 
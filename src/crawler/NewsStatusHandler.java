@@ -0,0 +1,210 @@
+package crawler;
+
+import datastructures.IntInvertedIndex;
+import domain.TwitNewsTweet;
+import domain.TwitNewsUser;
+import ingest.IngestPipeline;
+import ingest.IngestRecord;
+import ranker.NewsRanker;
+import ranker.TopTweets;
+import util.KeywordSink;
+import util.KeywordTokenizer;
+import util.TextUtils;
+import util.WordSet;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static util.TwitNewsConstants.TOP_TWEETS_PER_TREND;
+
+/**
+ * The work {@link NewsCrawler} does for every status it receives: match the text against the current trends, rank
+ * the tweet, and hand it off to the ingest pipeline. Kept separate from the StatusListener so that other sources,
+ * like {@link ReplayCrawler}, can push tweets through exactly the same path.
+ *
+ * Trends are matched against an immutable snapshot of the trend index. A refresh builds the next snapshot off to
+ * the side, see {@link #startTrendRefresh()}, and publishes it with a single reference swap, so matching never
+ * locks, never sees a half built index, and scales with the number of threads calling {@link #match(String)}.
+ *
+ * Every trend in the index also keeps its best ranked tweets in memory as they are accepted, see
+ * {@link #getTopTweets(int, int)}, so the best tweets of a trend are known without going back to the db. A trend's
+ * tweets are dropped once a refresh publishes an index without the trend.
+ */
+public class NewsStatusHandler {
+
+  private final WordSet stopWords;
+  private final IngestPipeline pipeline;
+
+  // The index matching threads read, only ever replaced as a whole.
+  private final AtomicReference<IntInvertedIndex> published =
+      new AtomicReference<IntInvertedIndex>(newFrozenIndex());
+
+  // The index being built by the current refresh and the trends in it, guarded by this.
+  private IntInvertedIndex pending = null;
+  private Set<Integer> pendingTrendIds = null;
+
+  // The best tweets of every published trend. Trends are only added and removed holding topTweetsLock, so a trend
+  // that has just been dropped by a refresh is never added back by a tweet matched against the previous index.
+  private final int topTweetsPerTrend;
+  private final ConcurrentMap<Integer, TopTweets> topTweets = new ConcurrentHashMap<Integer, TopTweets>();
+  private final Object topTweetsLock = new Object();
+  private Set<Integer> publishedTrendIds = Collections.emptySet();
+
+  private final ThreadLocal<Matcher> matchers = new ThreadLocal<Matcher>() {
+    @Override
+    protected Matcher initialValue() {
+      return new Matcher();
+    }
+  };
+
+  /**
+   * Creates a new NewsStatusHandler.
+   *
+   * @param stopWords Words that are never used as keywords, usually the shared {@link util.Lexicon#stopWords()}.
+   * @param pipeline The pipeline matched tweets are handed to.
+   */
+  public NewsStatusHandler(WordSet stopWords, IngestPipeline pipeline) {
+    this.stopWords = stopWords;
+    this.pipeline = pipeline;
+    this.topTweetsPerTrend = Integer.getInteger("twitnews.topTweetsPerTrend", TOP_TWEETS_PER_TREND);
+  }
+
+  /**
+   * Starts building a new trend index. Tweets keep being matched against the current trends until
+   * {@link #publishTrends()} is called.
+   */
+  public synchronized void startTrendRefresh() {
+    pending = new IntInvertedIndex();
+    pendingTrendIds = new HashSet<Integer>();
+  }
+
+  /**
+   * Adds a trend to the index being built by the current refresh.
+   *
+   * @param trendText The text the trend keywords are parsed from.
+   * @param trendId The id of the trend in the db.
+   * @return The keywords the trend was indexed under.
+   */
+  public synchronized Set<String> indexTrend(String trendText, int trendId) {
+    if (pending == null) {
+      throw new IllegalStateException("indexTrend called without startTrendRefresh.");
+    }
+    Set<String> keywordsForTrend = TextUtils.parseKeywordsFromTweetText(trendText, stopWords);
+    pending.putAll(keywordsForTrend, trendId);
+    pendingTrendIds.add(trendId);
+    return keywordsForTrend;
+  }
+
+  /**
+   * Makes the trends indexed since {@link #startTrendRefresh()} the ones tweets are matched against, and drops the
+   * best tweets of the trends that are no longer indexed.
+   */
+  public synchronized void publishTrends() {
+    if (pending == null) {
+      throw new IllegalStateException("publishTrends called without startTrendRefresh.");
+    }
+    pending.freeze();
+    published.set(pending);
+    synchronized (topTweetsLock) {
+      publishedTrendIds = pendingTrendIds;
+      topTweets.keySet().retainAll(publishedTrendIds);
+    }
+    pending = null;
+    pendingTrendIds = null;
+  }
+
+  /**
+   * Finds the trend that shares the most keywords with the given text. Ties go to the lowest trend id.
+   *
+   * @param text The text of the tweet.
+   * @return int[] holding the matching trend id, 0 if nothing matched, and the number of shared keywords.
+   */
+  public int[] match(String text) {
+    return matchers.get().match(text);
+  }
+
+  /**
+   * Ranks a matched tweet, keeps it if it is among the best of its trend, and hands it off to the ingest pipeline.
+   *
+   * @param trendId The id of the matching trend.
+   * @param tfidf The keyword match score for the trend.
+   * @param tweet The tweet.
+   * @param originalTweet The retweeted tweet, null if this is not a retweet.
+   * @param user The author of the tweet.
+   * @return boolean true if the pipeline accepted the tweet, false if it was dropped.
+   */
+  public boolean accept(int trendId, int tfidf, TwitNewsTweet tweet, TwitNewsTweet originalTweet, TwitNewsUser user) {
+    tweet.setTfidf(tfidf);
+    tweet.setRank(NewsRanker.computeRank(tweet));
+    TopTweets top = topTweetsFor(trendId);
+    if (top != null) {
+      top.offer(tweet);
+    }
+    return pipeline.offer(new IngestRecord(trendId, tweet, originalTweet, user));
+  }
+
+  /**
+   * Returns the best ranked tweets accepted for a trend since it was first published, up to the
+   * twitnews.topTweetsPerTrend system property of them.
+   *
+   * @param trendId The id of the trend in the db.
+   * @param n The number of tweets wanted.
+   * @return The best tweets, best first, empty if the trend is not published.
+   */
+  public List<TwitNewsTweet> getTopTweets(int trendId, int n) {
+    TopTweets top = topTweets.get(trendId);
+    return top == null ? Collections.<TwitNewsTweet>emptyList() : top.best(n);
+  }
+
+  /**
+   * @return The best tweets of the trend, null if the trend is no longer published.
+   */
+  private TopTweets topTweetsFor(int trendId) {
+    TopTweets top = topTweets.get(trendId);
+    if (top == null) {
+      synchronized (topTweetsLock) {
+        top = topTweets.get(trendId);
+        if (top == null && publishedTrendIds.contains(trendId)) {
+          top = new TopTweets(topTweetsPerTrend);
+          topTweets.put(trendId, top);
+        }
+      }
+    }
+    return top;
+  }
+
+  private static IntInvertedIndex newFrozenIndex() {
+    IntInvertedIndex index = new IntInvertedIndex();
+    index.freeze();
+    return index;
+  }
+
+  /**
+   * Per thread matching state. The accumulator belongs to one index, so it is replaced the first time a thread
+   * matches after a new index has been published.
+   */
+  private final class Matcher implements KeywordSink {
+
+    private final KeywordTokenizer tokenizer = new KeywordTokenizer();
+    private IntInvertedIndex index;
+    private IntInvertedIndex.Accumulator accumulator;
+
+    private int[] match(String text) {
+      IntInvertedIndex current = published.get();
+      if (current != index) {
+        index = current;
+        accumulator = current.newAccumulator();
+      }
+      accumulator.reset();
+      tokenizer.tokenize(text, stopWords, this);
+      return new int[]{accumulator.getBestValue(), accumulator.getBestCount()};
+    }
+
+    @Override
+    public void keyword(char[] buffer, int length) {
+      accumulator.addTerm(buffer, length);
+    }
+  }
+}
@@ -0,0 +1,462 @@
+package crawler;
+
+import twitter4j.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static util.TwitNewsConstants.*;
+
+/**
+ * Runs the crawler's twitter REST calls at the pace the rate limits allow, instead of firing them as fast as possible
+ * and then sleeping once twitter says no. Every {@link Endpoint} draws from a token bucket, and calls wait in line,
+ * per bucket, for a token. A caller gets a {@link CompletableFuture} for the result of its call straight away.
+ *
+ * Buckets refill evenly over the hour, so the hourly budget is spent without long stalls. The scheduler also listens
+ * to the rate limit status twitter reports with every REST response. Once the remaining calls and the time until the
+ * reset are known, the REST bucket is paced to spend exactly what is left, less a reserve, by the reset. A call that
+ * fails for exceeding the rate limit empties its bucket until the reset and is queued again once.
+ */
+public class RateLimitScheduler implements RateLimitStatusListener {
+
+  private static final Logger log = Logger.getLogger(RateLimitScheduler.class.getName());
+
+  private static final double MILLIS_PER_HOUR = 3600000.0;
+
+  // How long an empty bucket stays empty when twitter reports the limit reached without saying when it resets.
+  private static final long UNKNOWN_RESET_MILLIS = 60000;
+
+  private static final int MAX_ATTEMPTS = 2;
+
+  /**
+   * The twitter endpoints the crawler calls. Search has a budget of its own, the REST endpoints share the account
+   * wide budget of the REST api.
+   */
+  public enum Endpoint {
+    SEARCH, TRENDS, USERS, STATUSES
+  }
+
+  private final Bucket restBucket;
+  private final Bucket searchBucket;
+  private final int reserve;
+  private final ExecutorService workers;
+  private final Thread dispatcher;
+
+  // Guarded by this.
+  private final Map<Bucket, Deque<Request<?>>> queues = new LinkedHashMap<Bucket, Deque<Request<?>>>();
+  private int running = 0;
+  private boolean shutdown = false;
+
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+  private final AtomicLong rateLimited = new AtomicLong();
+
+  /**
+   * @param restPerHour The hourly budget of the REST api.
+   * @param searchPerHour The hourly budget of the search api.
+   * @param burst The most calls an idle bucket lets through at once.
+   * @param reserve The number of REST calls to leave unused before a reset.
+   * @param numWorkers The most calls to run at a time.
+   */
+  public RateLimitScheduler(int restPerHour, int searchPerHour, int burst, int reserve, int numWorkers) {
+    long now = System.currentTimeMillis();
+    this.restBucket = new Bucket("rest", restPerHour, burst, now);
+    this.searchBucket = new Bucket("search", searchPerHour, burst, now);
+    this.reserve = reserve;
+    queues.put(restBucket, new ArrayDeque<Request<?>>());
+    queues.put(searchBucket, new ArrayDeque<Request<?>>());
+
+    final AtomicInteger threadNumber = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(Math.max(1, numWorkers), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "rate-limited-call-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.dispatcher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        dispatch();
+      }
+    }, "rate-limit-scheduler");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  /**
+   * Creates a scheduler configured by the twitnews.rateLimit.* system properties and has it listen to the rate limit
+   * status of the twitter.
+   *
+   * @param twitter The twitter whose calls are scheduled.
+   * @return The scheduler.
+   */
+  public static RateLimitScheduler create(Twitter twitter) {
+    RateLimitScheduler scheduler = new RateLimitScheduler(
+        Integer.getInteger("twitnews.rateLimit.restPerHour", RATE_LIMIT_REST_PER_HOUR),
+        Integer.getInteger("twitnews.rateLimit.searchPerHour", RATE_LIMIT_SEARCH_PER_HOUR),
+        Integer.getInteger("twitnews.rateLimit.burst", RATE_LIMIT_BURST),
+        Integer.getInteger("twitnews.rateLimit.reserve", RATE_LIMIT_RESERVE),
+        Integer.getInteger("twitnews.rateLimit.workers", RATE_LIMIT_WORKERS));
+    twitter.addRateLimitStatusListener(scheduler);
+    return scheduler;
+  }
+
+  /**
+   * Queues a call, to be made once its endpoint's budget allows.
+   *
+   * @param endpoint The endpoint the call goes to.
+   * @param call The call.
+   * @return A future for the result of the call. Completes with the exception the call threw if it failed.
+   */
+  public <T> CompletableFuture<T> submit(Endpoint endpoint, Callable<T> call) {
+    return submit(endpoint, call, Long.MAX_VALUE);
+  }
+
+  /**
+   * Queues a call, to be made once its endpoint's budget allows, or given up on if that takes too long.
+   *
+   * @param endpoint The endpoint the call goes to.
+   * @param call The call.
+   * @param maxWaitMillis The longest the call may wait in line.
+   * @return A future for the result of the call. Completes with a {@link TimeoutException} if the call waited too
+   *         long, or with the exception the call threw if it failed.
+   */
+  public synchronized <T> CompletableFuture<T> submit(Endpoint endpoint, Callable<T> call, long maxWaitMillis) {
+    if (shutdown) {
+      throw new IllegalStateException("Rate limit scheduler is shut down.");
+    }
+    long now = System.currentTimeMillis();
+    long deadline = maxWaitMillis >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + maxWaitMillis;
+    Request<T> request = new Request<T>(bucketFor(endpoint), call, deadline);
+    queues.get(request.bucket).addLast(request);
+    submitted.incrementAndGet();
+    notifyAll();
+    return request.future;
+  }
+
+  /**
+   * Stops taking calls and waits for the queued ones to be made.
+   *
+   * @param timeoutMillis How long to wait.
+   * @return boolean true if every queued call was made in time.
+   */
+  public boolean shutdown(long timeoutMillis) {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (this) {
+      shutdown = true;
+      notifyAll();
+      try {
+        long remaining;
+        while ((hasQueuedRequests() || running > 0) && (remaining = deadline - System.currentTimeMillis()) > 0) {
+          wait(remaining);
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (hasQueuedRequests() || running > 0) {
+        log.severe("Shutting down with calls still queued or running.");
+        return false;
+      }
+    }
+    workers.shutdown();
+    return true;
+  }
+
+  @Override
+  public void onRateLimitStatus(RateLimitStatusEvent event) {
+    RateLimitStatus status = event.getRateLimitStatus();
+    if (status == null) {
+      return;
+    }
+    synchronized (this) {
+      restBucket.pace(status.getRemainingHits() - reserve, status.getSecondsUntilReset() * 1000L,
+                      System.currentTimeMillis());
+      notifyAll();
+    }
+  }
+
+  @Override
+  public void onRateLimitReached(RateLimitStatusEvent event) {
+    RateLimitStatus status = event.getRateLimitStatus();
+    log.warning((event.isIPRateLimitStatus() ? "IP" : "Account") + " is rate limited until " +
+                (status == null ? "an unknown time" : status.getResetTime()) + ".");
+    exhausted(restBucket, status);
+  }
+
+  public long getSubmitted() {
+    return submitted.get();
+  }
+
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getExpired() {
+    return expired.get();
+  }
+
+  public long getRateLimited() {
+    return rateLimited.get();
+  }
+
+  /**
+   * @return The number of calls waiting for a token.
+   */
+  public synchronized int getQueued() {
+    int queued = 0;
+    for (Deque<Request<?>> queue : queues.values()) {
+      queued += queue.size();
+    }
+    return queued;
+  }
+
+  @Override
+  public synchronized String toString() {
+    long now = System.currentTimeMillis();
+    return "RateLimitScheduler{submitted=" + getSubmitted() + ", completed=" + getCompleted() + ", failed=" +
+           getFailed() + ", expired=" + getExpired() + ", rateLimited=" + getRateLimited() + ", queued=" +
+           getQueued() + ", running=" + running + ", " + restBucket.describe(now) + ", " +
+           searchBucket.describe(now) + '}';
+  }
+
+  private Bucket bucketFor(Endpoint endpoint) {
+    return endpoint == Endpoint.SEARCH ? searchBucket : restBucket;
+  }
+
+  private boolean hasQueuedRequests() {
+    for (Deque<Request<?>> queue : queues.values()) {
+      if (!queue.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The dispatcher loop. Hands every queued call whose bucket has a token to a worker, gives up on the calls past
+   * their deadline, and sleeps until the next token or deadline. The futures of the calls given up on are completed
+   * only after letting go of the lock, since whatever depends on them runs right there, and may take its time.
+   */
+  private void dispatch() {
+    List<Request<?>> givenUp = new ArrayList<Request<?>>();
+    Exception failure = null;
+    while (true) {
+      synchronized (this) {
+        // Running calls may still be queued again after a shutdown, for exceeding the rate limit.
+        if (shutdown && !hasQueuedRequests() && running == 0) {
+          notifyAll();
+          return;
+        }
+        long now = System.currentTimeMillis();
+        long wakeAt = Long.MAX_VALUE;
+        for (Map.Entry<Bucket, Deque<Request<?>>> entry : queues.entrySet()) {
+          Bucket bucket = entry.getKey();
+          Deque<Request<?>> queue = entry.getValue();
+          Iterator<Request<?>> it = queue.iterator();
+          while (it.hasNext()) {
+            Request<?> request = it.next();
+            if (request.deadline <= now) {
+              it.remove();
+              expired.incrementAndGet();
+              givenUp.add(request);
+            }
+            else {
+              wakeAt = Math.min(wakeAt, request.deadline);
+            }
+          }
+          bucket.refill(now);
+          while (!queue.isEmpty() && bucket.tryTake()) {
+            run(queue.removeFirst());
+          }
+          if (!queue.isEmpty()) {
+            wakeAt = Math.min(wakeAt, now + bucket.millisUntilToken(now));
+          }
+        }
+        try {
+          // With calls given up on, completes them and looks again right away.
+          if (givenUp.isEmpty() && wakeAt == Long.MAX_VALUE) {
+            wait();
+          }
+          else if (givenUp.isEmpty() && wakeAt > now) {
+            wait(wakeAt - now);
+          }
+        }
+        catch (InterruptedException e) {
+          log.severe("Rate limit scheduler interrupted, failing the queued calls.");
+          for (Deque<Request<?>> queue : queues.values()) {
+            givenUp.addAll(queue);
+            queue.clear();
+          }
+          failure = e;
+          notifyAll();
+        }
+      }
+
+      for (Request<?> request : givenUp) {
+        request.future.completeExceptionally(failure != null ? failure :
+            new TimeoutException("Waited too long for the " + request.bucket.name + " rate limit."));
+      }
+      givenUp.clear();
+      if (failure != null) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Makes a call on a worker thread. A call that exceeded the rate limit is queued again, ahead of the others.
+   */
+  private <T> void run(final Request<T> request) {
+    ++running;
+    workers.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          request.future.complete(request.call.call());
+          completed.incrementAndGet();
+        }
+        catch (TwitterException e) {
+          if (e.exceededRateLimitation()) {
+            rateLimited.incrementAndGet();
+            exhausted(request.bucket, e.getRateLimitStatus());
+            if (++request.attempts < MAX_ATTEMPTS) {
+              requeue(request);
+              return;
+            }
+          }
+          failed.incrementAndGet();
+          request.future.completeExceptionally(e);
+        }
+        catch (Exception e) {
+          failed.incrementAndGet();
+          request.future.completeExceptionally(e);
+        }
+        finally {
+          synchronized (RateLimitScheduler.this) {
+            --running;
+            RateLimitScheduler.this.notifyAll();
+          }
+        }
+      }
+    });
+  }
+
+  private synchronized void requeue(Request<?> request) {
+    queues.get(request.bucket).addFirst(request);
+    notifyAll();
+  }
+
+  private synchronized void exhausted(Bucket bucket, RateLimitStatus status) {
+    long resetInMillis = status == null ? UNKNOWN_RESET_MILLIS : status.getSecondsUntilReset() * 1000L;
+    bucket.pace(0, resetInMillis, System.currentTimeMillis());
+    notifyAll();
+  }
+
+  /**
+   * A token bucket. Refills evenly at the hourly budget, or, once the calls left until a reset are known, at the
+   * rate that spends them by the reset.
+   */
+  private static final class Bucket {
+
+    private final String name;
+    private final double hourlyRate;
+    private final double burst;
+
+    private double tokens;
+    private double tokensPerMilli;
+    private long refilledAt;
+    private long resetAt = 0;
+
+    private Bucket(String name, int perHour, int burst, long now) {
+      this.name = name;
+      this.hourlyRate = perHour / MILLIS_PER_HOUR;
+      this.burst = Math.max(1, burst);
+      this.tokens = this.burst;
+      this.tokensPerMilli = hourlyRate;
+      this.refilledAt = now;
+    }
+
+    private void refill(long now) {
+      if (resetAt > 0 && now >= resetAt) {
+        tokens += (resetAt - refilledAt) * tokensPerMilli;
+        refilledAt = resetAt;
+        tokensPerMilli = hourlyRate;
+        resetAt = 0;
+      }
+      tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerMilli);
+      refilledAt = now;
+    }
+
+    private boolean tryTake() {
+      if (tokens < 1) {
+        return false;
+      }
+      --tokens;
+      return true;
+    }
+
+    /**
+     * @return The time until the next token, at least one milli.
+     */
+    private long millisUntilToken(long now) {
+      if (tokensPerMilli <= 0) {
+        return Math.max(1, resetAt - now);
+      }
+      long untilToken = (long) Math.ceil((1 - tokens) / tokensPerMilli);
+      if (resetAt > 0) {
+        untilToken = Math.min(untilToken, resetAt - now);
+      }
+      return Math.max(1, untilToken);
+    }
+
+    /**
+     * Paces the bucket to spend the calls left by the reset.
+     *
+     * @param callsLeft The calls that may still be made before the reset.
+     * @param resetInMillis The time until the reset.
+     * @param now The current time.
+     */
+    private void pace(int callsLeft, long resetInMillis, long now) {
+      refill(now);
+      double usable = Math.max(0, callsLeft);
+      tokens = Math.min(tokens, usable);
+      resetAt = now + Math.max(1, resetInMillis);
+      tokensPerMilli = (usable - tokens) / (resetAt - now);
+    }
+
+    private String describe(long now) {
+      refill(now);
+      return String.format("%s={tokens=%.1f, perHour=%.0f}", name, tokens, tokensPerMilli * MILLIS_PER_HOUR);
+    }
+  }
+
+  /**
+   * A queued call.
+   */
+  private static final class Request<T> {
+
+    private final Bucket bucket;
+    private final Callable<T> call;
+    private final long deadline;
+    private final CompletableFuture<T> future = new CompletableFuture<T>();
+    private int attempts = 0;
+
+    private Request(Bucket bucket, Callable<T> call, long deadline) {
+      this.bucket = bucket;
+      this.call = call;
+      this.deadline = deadline;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package crawler;
+
+import dao.TrendDAO;
+import dao.TweetDAO;
+import database.MySQL_UI;
+import database.SqlConstants;
+import domain.TwitNewsTrend;
+import domain.TwitNewsTweet;
+import domain.TwitNewsUser;
+import fileIO.SqlDumpReader;
+import ingest.IngestPipeline;
+import util.Lexicon;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * An offline stand in for {@link NewsCrawler} that replays the TweetDB dumps in data/ instead of listening to the
+ * Stream API. Every tweet goes through the same {@link NewsStatusHandler} the live crawler uses, which makes this a
+ * reproducible load generator for measuring ingest throughput and latency without the network.
+ *
+ * Every dump numbers its tweets from 1, while tweets are keyed on their status id. The replayed tweets are therefore
+ * numbered on from the highest tweet id in the db, and on across the dumps of one run, so that neither the write-behind
+ * buffer nor the insert takes them for repeats of tweets replayed before.
+ */
+public class ReplayCrawler {
+
+  private static final Logger log = Logger.getLogger(ReplayCrawler.class.getName());
+
+  private static MySQL_UI sql;
+
+  /**
+   * Entry point for the replay.
+   *
+   * @param args First argument: comma separated list of dumps to replay. Second argument: playback speed, e.g. 1,
+   *             10x or max. Remaining arguments are the optional db host, port, user and password.
+   */
+  public static void main(String[] args) {
+    if (args.length < 2) {
+      System.err.println("Must provide at least 2 arguments: dumps speed [host port user password]");
+      System.exit(1);
+    }
+    String[] dumps = args[0].split(",");
+    double speed = DumpReplayer.parseSpeed(args[1]);
+
+    sql = createDbConnection(args);
+
+    long tweetId = new TweetDAO(sql).fetchMaxTweetId();
+    if (tweetId < 0) {
+      log.severe("Failure reading the highest tweet id, can't number the replayed tweets.");
+      System.exit(1);
+    }
+
+    IngestPipeline pipeline = IngestPipeline.create(sql);
+    pipeline.start();
+
+    final NewsStatusHandler handler = new NewsStatusHandler(Lexicon.stopWords(), pipeline);
+
+    for (String dump : dumps) {
+      SqlDumpReader reader = new SqlDumpReader(dump);
+      try {
+        reader.read();
+      }
+      catch (IOException e) {
+        log.severe("Failure reading dump " + dump + ", skipping it.");
+        e.printStackTrace();
+        continue;
+      }
+
+      handler.startTrendRefresh();
+      for (TwitNewsTrend trend : reader.getTrends()) {
+        TwitNewsTrend twitNewsTrend = new TwitNewsTrend();
+        twitNewsTrend.setName(trend.getName());
+        int trendId = attemptToInsertTrend(twitNewsTrend);
+        if (trendId > 0) {
+          handler.indexTrend(trend.getName(), trendId);
+        }
+      }
+      handler.publishTrends();
+
+      for (TwitNewsTweet tweet : reader.getTweets()) {
+        tweet.setTweetId(++tweetId);
+      }
+
+      final int[] matched = new int[1];
+      final int[] dropped = new int[1];
+      DumpReplayer replayer = new DumpReplayer(reader.getTweets(), reader.getUsers(), speed);
+
+      log.info("Replaying " + replayer.size() + " tweets from " + dump + " at " + args[1] + "...");
+      long start = System.nanoTime();
+      int replayed = replayer.replay(new DumpReplayer.Listener() {
+        @Override
+        public void onTweet(TwitNewsTweet tweet, TwitNewsUser user) {
+          int[] trendIdAndScore = handler.match(tweet.getText());
+          if (trendIdAndScore[0] == 0) {
+            return;
+          }
+          ++matched[0];
+          if (!handler.accept(trendIdAndScore[0], trendIdAndScore[1], tweet, null, user)) {
+            ++dropped[0];
+          }
+        }
+      });
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      log.info("Replayed " + replayed + " tweets (" + matched[0] + " matched, " + dropped[0] + " dropped) in " +
+               String.format("%.3f", seconds) + "s, " + String.format("%.0f", replayed / seconds) +
+               " statuses/s, max lag " + replayer.getMaxLagMillis() + "ms.");
+      log.info(pipeline.getMetrics().toString());
+    }
+
+    pipeline.shutdown(60000);
+    log.info(pipeline.getMetrics().toString());
+    sql.closeConnection();
+  }
+
+  /**
+   * Attempts to insert a trend up to 3 times before giving up.
+   *
+   * @param twitNewsTrend The trend to insert.
+   *
+   * @return int the trend id of the just inserted trend in the db, -1 if it couldn't be inserted.
+   */
+  private static int attemptToInsertTrend(TwitNewsTrend twitNewsTrend) {
+    TrendDAO trendDAO = new TrendDAO(sql);
+    int trendId = -1;
+    int tries = 0;
+    while (tries < 3 && trendId <= 0) {
+      ++tries;
+      trendId = trendDAO.insertTrend(twitNewsTrend);
+    }
+    if (trendId <= 0) {
+      log.severe("There was a problem persisting the trend " + twitNewsTrend.getName() + ".");
+    }
+    return trendId;
+  }
+
+  /**
+   * Creates a new connection to the db.
+   *
+   * @param args A copy of the command line args.
+   * @return The connection to the db.
+   */
+  private static MySQL_UI createDbConnection(String[] args) {
+    String host = args.length < 3 ? SqlConstants.HOST : args[2];
+    String port = args.length < 4 ? SqlConstants.PORT : args[3];
+    String user = args.length < 5 ? SqlConstants.USER : args[4];
+    String password = args.length < 6 ? SqlConstants.PASSWORD : args[5];
+    return MySQL_UI.createPooled(host, port, user, password);
+  }
+}
@@ -0,0 +1,192 @@
+package crawler;
+
+import domain.TwitNewsTweet;
+import twitter4j.*;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.logging.Logger;
+
+import static util.TwitNewsConstants.RETWEET_KNOWN_COUNTS;
+import static util.TwitNewsConstants.RETWEET_MAX_WAIT_MILLIS;
+
+/**
+ * Fills in the retweet counts of crawled tweets off the crawling thread. The ids of a batch are collected once each
+ * and fetched through the {@link RateLimitScheduler}, and the batch's future completes once every count is in. The
+ * counts in every fetched status are remembered, along with the count of the status it retweets, so a tweet whose
+ * retweet was fetched before is not fetched at all. Only the search results {@link Crawler} enriches need this, they
+ * carry no retweet counts of their own. The stream crawlers take the counts straight from the statuses they get.
+ *
+ * A fetch that would wait in line for the rate limit longer than the longest wait is skipped and its count left at
+ * -1, so a crawl is never held up for an hour.
+ */
+public class RetweetEnricher {
+
+  private static final Logger log = Logger.getLogger(RetweetEnricher.class.getName());
+
+  private final Twitter twitter;
+  private final RateLimitScheduler scheduler;
+  private final Map<Long, Long> knownCounts;
+  private final long maxWaitMillis;
+
+  private final AtomicLong fromKnownCounts = new AtomicLong();
+  private final AtomicLong fetched = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong skippedForRateLimit = new AtomicLong();
+
+  /**
+   * @param twitter The twitter to fetch counts from.
+   * @param scheduler The scheduler to make the fetches through.
+   * @param maxKnownCounts The most counts to remember.
+   * @param maxWaitMillis The longest a fetch waits in line for the rate limit.
+   */
+  public RetweetEnricher(Twitter twitter, RateLimitScheduler scheduler, final int maxKnownCounts,
+                         long maxWaitMillis) {
+    this.twitter = twitter;
+    this.scheduler = scheduler;
+    this.maxWaitMillis = maxWaitMillis;
+    this.knownCounts = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+        return size() > maxKnownCounts;
+      }
+    };
+  }
+
+  /**
+   * Creates an enricher configured by the twitnews.retweets.* system properties.
+   *
+   * @param twitter The twitter to fetch counts from.
+   * @param scheduler The scheduler to make the fetches through.
+   * @return The enricher.
+   */
+  public static RetweetEnricher create(Twitter twitter, RateLimitScheduler scheduler) {
+    return new RetweetEnricher(twitter, scheduler,
+                               Integer.getInteger("twitnews.retweets.knownCounts", RETWEET_KNOWN_COUNTS),
+                               Long.getLong("twitnews.retweets.maxWaitMillis", RETWEET_MAX_WAIT_MILLIS));
+  }
+
+  /**
+   * Fills in the retweet counts of a batch of tweets, in the background.
+   *
+   * @param tweets The tweets. Must not be changed until the future completes.
+   * @return A future for the tweets, completed on a scheduler thread once their retweet counts are set, -1 for those
+   *         that could not be fetched. Never completes exceptionally.
+   */
+  public CompletableFuture<List<TwitNewsTweet>> enrich(final List<TwitNewsTweet> tweets) {
+    final Map<Long, Long> counts = new HashMap<Long, Long>();
+    Set<Long> unknownIds = new LinkedHashSet<Long>();
+    synchronized (knownCounts) {
+      for (TwitNewsTweet tweet : tweets) {
+        Long count = knownCounts.get(tweet.getTweetId());
+        if (count != null) {
+          counts.put(tweet.getTweetId(), count);
+          fromKnownCounts.incrementAndGet();
+        }
+        else {
+          unknownIds.add(tweet.getTweetId());
+        }
+      }
+    }
+
+    List<CompletableFuture<Long>> fetches = new ArrayList<CompletableFuture<Long>>(unknownIds.size());
+    for (final Long tweetId : unknownIds) {
+      fetches.add(fetch(tweetId).whenComplete(new BiConsumer<Long, Throwable>() {
+        @Override
+        public void accept(Long count, Throwable failure) {
+          if (count != null) {
+            synchronized (counts) {
+              counts.put(tweetId, count);
+            }
+          }
+        }
+      }));
+    }
+
+    return CompletableFuture.allOf(fetches.toArray(new CompletableFuture<?>[fetches.size()])).handle(
+        new BiFunction<Void, Throwable, List<TwitNewsTweet>>() {
+          @Override
+          public List<TwitNewsTweet> apply(Void ignored, Throwable failure) {
+            synchronized (counts) {
+              for (TwitNewsTweet tweet : tweets) {
+                Long count = counts.get(tweet.getTweetId());
+                tweet.setRetweetCount(count == null ? -1 : count);
+              }
+            }
+            return tweets;
+          }
+        });
+  }
+
+  public long getFromKnownCounts() {
+    return fromKnownCounts.get();
+  }
+
+  public long getFetched() {
+    return fetched.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getSkippedForRateLimit() {
+    return skippedForRateLimit.get();
+  }
+
+  @Override
+  public String toString() {
+    return "RetweetEnricher{fromKnownCounts=" + getFromKnownCounts() + ", fetched=" + getFetched() + ", failed=" +
+           getFailed() + ", skippedForRateLimit=" + getSkippedForRateLimit() + '}';
+  }
+
+  /**
+   * Fetches the retweet count of a tweet.
+   *
+   * @return A future for the count, completed with null if it could not be fetched.
+   */
+  private CompletableFuture<Long> fetch(final long tweetId) {
+    return scheduler.submit(RateLimitScheduler.Endpoint.STATUSES, new Callable<Status>() {
+      @Override
+      public Status call() throws TwitterException {
+        return twitter.showStatus(tweetId);
+      }
+    }, maxWaitMillis).handle(new BiFunction<Status, Throwable, Long>() {
+      @Override
+      public Long apply(Status status, Throwable failure) {
+        if (failure == null) {
+          remember(status);
+          fetched.incrementAndGet();
+          return status.getRetweetCount();
+        }
+        if (failure instanceof TimeoutException) {
+          skippedForRateLimit.incrementAndGet();
+        }
+        else {
+          log.warning("Error retrieving the retweet count of " + tweetId + " from twitter.");
+          failure.printStackTrace();
+          failed.incrementAndGet();
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Remembers the retweet counts in a fetched status, and in the status it retweets if it is a retweet.
+   */
+  private void remember(Status status) {
+    synchronized (knownCounts) {
+      knownCounts.put(status.getId(), status.getRetweetCount());
+      if (status.isRetweet() && status.getRetweetedStatus() != null) {
+        Status retweeted = status.getRetweetedStatus();
+        knownCounts.put(retweeted.getId(), retweeted.getRetweetCount());
+      }
+    }
+  }
+}
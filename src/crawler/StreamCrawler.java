@@ -1,15 +1,14 @@
 package crawler;
 
 import dao.TrendDAO;
-import dao.TweetDAO;
-import dao.UserDAO;
 import database.MySQL_UI;
 import database.SqlConstants;
 import domain.*;
+import ingest.IngestPipeline;
+import ingest.IngestRecord;
 import twitter4j.*;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -17,8 +16,7 @@ import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static util.TwitNewsConstants.US_WOEID;
-import static util.TwitNewsConstants.WORLD_WOEID;
+import static util.TwitNewsConstants.ONE_MINUTE_IN_MILLIS;
 
 /**
  * A crawler that uses the Twitter Stream API to avoid rate limiting.
@@ -36,11 +34,12 @@ public class StreamCrawler {
   private static final int switchRateThresholdHigh = 15000;
 
   private static final Twitter twitter = TwitterFactory.getSingleton();
-  private static final TwitterStream twitterStream = TwitterStreamFactory.getSingleton();
+  private static final TweetSource tweetSource = TweetSource.Factory.create();
 
   private static Set<String> trends = new HashSet<String>();
 
   private static MySQL_UI sql;
+  private static IngestPipeline pipeline;
 
   private static final Logger log = Logger.getLogger(StreamCrawler.class.getName());
 
@@ -55,7 +54,8 @@ public class StreamCrawler {
 	 * Entry point for the crawler. Sets up necessary data structures and objects, parses arguments, and kicks off a
    * crawl.
 	 *
-	 * @param args First argument: true for us only trends, else false. Second argument: number of tweets to crawl per trend.
+	 * @param args First argument: true for us only trends, false for worldwide trends, or a comma separated list of
+   *             woeids. Second argument: number of tweets to crawl per trend.
 	 */
 	public static void main(String[] args) {
 
@@ -64,38 +64,35 @@ public class StreamCrawler {
     sql = createDbConnection(args);
 
     // Parse command line args
-    boolean getUSTrendsOnly = Boolean.parseBoolean(args[0]);
+    List<Integer> woeids = LocationScheduler.parseWoeids(args[0]);
     tweetsToCrawlForTrend = Integer.parseInt(args[1]);
 
+    pipeline = IngestPipeline.create(sql);
+    pipeline.start();
+
     // This is where the crawling occurs. Happens on a seperate thread from the main thread.
     StatusListener statusListener = new StatusListener() {
 
       private long timeOfLastTweet;
       private int numTweetsOverThreshold = 0;
       private int numTweetsOverHighThreshold = 0;
-      private TweetDAO tweetDAO = new TweetDAO(sql);
-      private UserDAO userDAO = new UserDAO(sql);
-      private List<TwitNewsTweet> tweets = new ArrayList<TwitNewsTweet>();
-      private Set<TwitNewsTweet> originalTweets = new HashSet<TwitNewsTweet>();
-      private Set<TwitNewsUser> users = new HashSet<TwitNewsUser>();
 
       @Override
       public void onStatus(Status status) {
-        TwitNewsTweet twitNewsTweet = TwitNewsTweetFactory.fromStatus(status, currentTrendId);
+        int trendId = currentTrendId;
+        TwitNewsTweet twitNewsTweet = TwitNewsTweetFactory.fromStatus(status, trendId);
         TwitNewsUser twitNewsUser = TwitNewsUserFactory.fromStatus(status);
-        tweets.add(twitNewsTweet);
-        users.add(twitNewsUser);
 
         // If this is a Retweet, get the original status
+        TwitNewsTweet originalTweet = null;
         if (status.isRetweet()) {
-          Status originalTweet = status.getRetweetedStatus();
-          originalTweets.add(TwitNewsTweetFactory.fromStatus(originalTweet, currentTrendId));
+          originalTweet = TwitNewsTweetFactory.fromStatus(status.getRetweetedStatus(), trendId);
         }
 
-        // Let's insert the tweets, users, or the original tweets if we get more than 250 of any of them
+        // Hand off to the ingest writers, persistence never happens on the stream thread.
         log.info(status.getText());
-        if (tweets.size() >= 250 || users.size() >= 250 || originalTweets.size() >= 250) {
-          insertTrendsAndUsers();
+        if (!pipeline.offer(new IngestRecord(trendId, twitNewsTweet, originalTweet, twitNewsUser))) {
+          log.warning("Ingest buffer is full, dropping status.");
         }
 
         ++tweetsCrawledForTrend;
@@ -116,52 +113,14 @@ public class StreamCrawler {
         if (tweetsCrawledForTrend >= tweetsToCrawlForTrend) {
           log.info("Got " + tweetsToCrawlForTrend + " tweets for this trend, time to switch to the next one.");
           timeToSwitchTrends = true;
-          insertTrendsAndUsers();
         }
         else if (numTweetsOverThreshold > 10) {
           log.info("Tweets coming in too slow, lets switch to the next trend");
           timeToSwitchTrends = true;
-          insertTrendsAndUsers();
         }
         else if (numTweetsOverHighThreshold > 1) {
           log.info("Tweets coming in too slow, lets switch to the next trend");
           timeToSwitchTrends = true;
-          insertTrendsAndUsers();
-        }
-      }
-
-      private void insertTrendsAndUsers() {
-        // Insert Tweets
-        try {
-          tweetDAO.insertTweets(tweets, currentTrendId);
-          log.info("Successfully logged 250 tweets.");
-          tweets.clear();
-        }
-        catch (Exception e) {
-          log.severe(e.toString());
-          log.severe("Failure persisting tweets. Will try again.");
-        }
-
-        // Insert Users
-        try {
-          userDAO.insertUsers(users);
-          log.info("Successfully logged 250 users.");
-          users.clear();
-        }
-        catch (Exception e) {
-          log.severe(e.toString());
-          log.severe("Failure persisting users. Will try again.");
-        }
-
-        // Insert original tweets
-        try {
-          tweetDAO.insertTweets(originalTweets, currentTrendId);
-          log.info("Successfully inserted 250 original tweets.");
-          originalTweets.clear();
-        }
-        catch (Exception e) {
-          log.severe(e.toString());
-          log.severe("Failure persisting original tweets. Will try again");
         }
       }
 
@@ -169,7 +128,9 @@ public class StreamCrawler {
       public void onDeletionNotice(StatusDeletionNotice statusDeletionNotice) {}
 
       @Override
-      public void onTrackLimitationNotice(int numberOfLimitedStatuses) {}
+      public void onTrackLimitationNotice(int numberOfLimitedStatuses) {
+        pipeline.getMetrics().recordTrackLimitation(numberOfLimitedStatuses);
+      }
 
       @Override
       public void onScrubGeo(long userId, long upToStatusId) {}
@@ -179,72 +140,52 @@ public class StreamCrawler {
         ex.printStackTrace();
       }
     };
-    twitterStream.addListener(statusListener);
+    tweetSource.addListener(statusListener);
 
-    if (getUSTrendsOnly) {
-      log.info("Crawling trends for the US via Stream API...");
-      crawlTrends(US_WOEID);
-    }
-    else {
-      log.info("Crawling worldwide trends via Stream API...");
-      crawlTrends(WORLD_WOEID);
-    }
-    twitterStream.shutdown();
+    log.info("Crawling trends for locations " + woeids + " via Stream API...");
+    crawlTrends(woeids);
+    tweetSource.shutdown();
+    pipeline.shutdown(60000);
+    log.info(pipeline.getMetrics().toString());
     log.info("Finished crawling current trends!");
 	}
 
   /**
-   * Queries twitter and lists all the current, unique trends for the given location.
+   * Lists the current, unique trends of all the given locations and streams the tweets of each. The trends of all
+   * locations are fetched concurrently and deduplicated across locations by the {@link LocationScheduler}, but as an
+   * account only gets one stream connection the trends are streamed one after the other.
    *
-   * @param woeid The Yahoo woeid for the location to get trends for.
+   * @param woeids The Yahoo woeids for the locations to get trends for.
    *
    * @see "http://developer.yahoo.com/geo/geoplanet/guide/concepts.html"
    */
-  private static void crawlTrends(int woeid) {
-
-    // Cache to avoid fetching information about the same trend multiple times
-    Set<String> trendNames = new HashSet<String>();
+  private static void crawlTrends(List<Integer> woeids) {
 
-    Trends trendsForLocation = null;
-    try {
-      trendsForLocation = twitter.getLocationTrends(woeid);
-    }
-    catch (TwitterException e) {
-      log.severe("Error obtaining trends from twitter.");
-      e.printStackTrace();
-      System.exit(1);
-    }
+    RateLimitScheduler scheduler = RateLimitScheduler.create(twitter);
+    LocationScheduler locations = LocationScheduler.create(twitter, scheduler, new TrendDAO(sql), woeids);
+    List<TwitNewsTrend> trendsForLocations = locations.fetchTrends();
+    scheduler.shutdown(ONE_MINUTE_IN_MILLIS);
+    log.info(locations.toString());
 
-    TrendDAO trendDAO = new TrendDAO(sql);
+    for (TwitNewsTrend trend : trendsForLocations) {
 
-    for (Trend trend : trendsForLocation.getTrends()) {
+      trends.add(trend.getName());
+      currentTrendId = trend.getTrendId();
 
-      String trendName = trend.getName().trim().toLowerCase();
-      TwitNewsTrend twitNewsTrend = new TwitNewsTrend();
-      twitNewsTrend.setName(trend.getName());
-
-      if (!trendNames.contains(trendName)) {
-
-        trends.add(trend.getName());
-        trendNames.add(trendName);
-        attemptToInsertTrend(trendDAO, twitNewsTrend);
-
-        // Let's just grab tweets from the stream matching the trend keyword!
-        FilterQuery filter = new FilterQuery();
-        filter.track(new String[]{trend.getName()});
-        twitterStream.filter(filter);
-        while (!timeToSwitchTrends) {
-          try {
-            Thread.sleep(1000);
-          }
-          catch (InterruptedException e) {
-            log.warning("Interrupted while waiting!");
-          }
+      // Let's just grab tweets from the stream matching the trend keyword!
+      tweetSource.track(new String[]{trend.getName()});
+      while (!timeToSwitchTrends) {
+        try {
+          Thread.sleep(1000);
+        }
+        catch (InterruptedException e) {
+          log.warning("Interrupted while waiting!");
         }
-        twitterStream.cleanUp();
-        timeToSwitchTrends = false;
-        tweetsCrawledForTrend = 0;
       }
+      tweetSource.cleanUp();
+      log.info(pipeline.getMetrics().toString());
+      timeToSwitchTrends = false;
+      tweetsCrawledForTrend = 0;
     }
   }
 
@@ -314,32 +255,7 @@ public class StreamCrawler {
       password = args[5];
     }
 
-    return new MySQL_UI(host, port, user, password);
-  }
-
-  /**
-   * Attempts to insert a trend up to 3 times before giving up.
-   *
-   * @param trendDAO TrendDAO object.
-   * @param twitNewsTrend The trend to insert.
-   */
-  private static void attemptToInsertTrend(TrendDAO trendDAO, TwitNewsTrend twitNewsTrend) {
-    int tries = 0;
-    boolean successfullyInsertedTrend = false;
-    while (tries < 3 && ! successfullyInsertedTrend) {
-      try {
-        ++tries;
-        currentTrendId = trendDAO.insertTrend(twitNewsTrend);
-        successfullyInsertedTrend = true;
-      }
-      catch (Exception e) {
-        log.severe("There was a problem persisting the trend (try " + tries + "). Lets try again later?");
-        e.printStackTrace();
-      }
-    }
-    if (!successfullyInsertedTrend) {
-      timeToSwitchTrends = true;
-    }
+    return MySQL_UI.createPooled(host, port, user, password);
   }
 
 }
@@ -0,0 +1,56 @@
+package crawler;
+
+import twitter4j.StatusListener;
+import twitter4j.TwitterStreamFactory;
+
+import static util.TwitNewsConstants.STREAM_URL;
+
+/**
+ * A stream of statuses matching track keywords, as the stream crawlers consume it. Statuses are delivered to the
+ * listeners on a thread of the source's own, like the Stream API does.
+ */
+public interface TweetSource {
+
+  /**
+   * @param listener A listener to deliver statuses to from now on.
+   */
+  void addListener(StatusListener listener);
+
+  /**
+   * Starts streaming the statuses that contain any of the keywords, replacing any stream already open. Returns
+   * right away.
+   *
+   * @param keywords The keywords to track.
+   */
+  void track(String[] keywords);
+
+  /**
+   * Closes the stream, if open. The source can be tracking keywords again afterwards.
+   */
+  void cleanUp();
+
+  /**
+   * Closes the stream for good.
+   */
+  void shutdown();
+
+  /**
+   * Creates the sources the crawlers use. Statuses come from the twitter Stream API, unless the twitnews.stream.url
+   * system property points at a stream server such as {@link FakeStreamServer}.
+   */
+  class Factory {
+
+    private Factory() {}
+
+    /**
+     * @return A new source, as configured by the twitnews.stream.url system property.
+     */
+    public static TweetSource create() {
+      String url = System.getProperty("twitnews.stream.url", STREAM_URL);
+      if (url.isEmpty()) {
+        return new TwitterStreamSource(TwitterStreamFactory.getSingleton());
+      }
+      return new HttpTweetSource(url);
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package crawler;
+
+import twitter4j.FilterQuery;
+import twitter4j.StatusListener;
+import twitter4j.TwitterStream;
+
+/**
+ * A {@link TweetSource} backed by the twitter Stream API, through twitter4j.
+ *
+ * @see "https://dev.twitter.com/docs/streaming-api"
+ */
+public class TwitterStreamSource implements TweetSource {
+
+  private final TwitterStream twitterStream;
+
+  /**
+   * @param twitterStream The stream to filter.
+   */
+  public TwitterStreamSource(TwitterStream twitterStream) {
+    this.twitterStream = twitterStream;
+  }
+
+  @Override
+  public void addListener(StatusListener listener) {
+    twitterStream.addListener(listener);
+  }
+
+  @Override
+  public void track(String[] keywords) {
+    FilterQuery filter = new FilterQuery();
+    filter.track(keywords);
+    twitterStream.filter(filter);
+  }
+
+  @Override
+  public void cleanUp() {
+    twitterStream.cleanUp();
+  }
+
+  @Override
+  public void shutdown() {
+    twitterStream.shutdown();
+  }
+}
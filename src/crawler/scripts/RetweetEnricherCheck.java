@@ -0,0 +1,167 @@
+package crawler.scripts;
+
+import crawler.RateLimitScheduler;
+import crawler.RetweetEnricher;
+import domain.TwitNewsTweet;
+import twitter4j.Status;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Quick script that checks {@link RetweetEnricher} against a stub twitter, without the network. The stub knows the
+ * retweet counts of a few statuses, one of them a retweet, and fails for the rest. Checks that every id is fetched
+ * once however often it occurs, that counts seen in fetched statuses, including the status a retweet retweets, are
+ * not fetched again, that failed fetches and fetches that would wait too long for the rate limit leave
+ * the count at -1. Exits with status 1 if any check fails.
+ */
+public class RetweetEnricherCheck {
+
+  // Status id, retweet count and the id of the retweeted status, 0 for none.
+  private static final long[][] STATUSES = {
+      {1, 10, 0}, {2, 20, 0}, {3, 0, 0}, {4, 40, 5}, {5, 50, 0}, {7, 70, 0},
+  };
+
+  private static final Map<Long, Integer> showStatusCalls = new HashMap<Long, Integer>();
+  private static int numFailures = 0;
+
+  public static void main(String[] args) throws Exception {
+    Twitter twitter = stubTwitter();
+    RateLimitScheduler scheduler = new RateLimitScheduler(3600, 3600, 100, 0, 2);
+    RetweetEnricher enricher = new RetweetEnricher(twitter, scheduler, 1000, 60000);
+
+    // Duplicates are fetched once, unknown statuses come back as -1.
+    check(enricher, new long[]{1, 2, 1, 3, 99}, new long[]{10, 20, 10, 0, -1});
+    checkCalls(new long[]{1, 2, 3, 99});
+
+    // Fetching a retweet teaches the count of the status it retweets.
+    check(enricher, new long[]{4}, new long[]{40});
+    check(enricher, new long[]{5, 1}, new long[]{50, 10});
+    checkCalls(new long[]{1, 2, 3, 4, 99});
+    scheduler.shutdown(1000);
+
+    // A fetch that would wait longer than the longest wait is skipped.
+    RateLimitScheduler exhausted = new RateLimitScheduler(1, 1, 1, 0, 1);
+    RetweetEnricher impatient = new RetweetEnricher(twitter, exhausted, 1000, 100);
+    check(impatient, new long[]{2, 7}, new long[]{20, -1});
+    exhausted.shutdown(1000);
+
+    System.out.println(enricher);
+    System.out.println(impatient);
+    System.out.println(numFailures + " checks failed.");
+    System.exit(numFailures == 0 ? 0 : 1);
+  }
+
+  private static void check(RetweetEnricher enricher, long[] tweetIds, long[] expectedCounts) throws Exception {
+    List<TwitNewsTweet> tweets = new ArrayList<TwitNewsTweet>();
+    for (long tweetId : tweetIds) {
+      TwitNewsTweet tweet = new TwitNewsTweet();
+      tweet.setTweetId(tweetId);
+      tweets.add(tweet);
+    }
+    enricher.enrich(tweets).get(10, TimeUnit.SECONDS);
+    for (int i = 0; i < tweetIds.length; ++i) {
+      if (tweets.get(i).getRetweetCount() != expectedCounts[i]) {
+        System.out.println("Tweet " + tweetIds[i] + " got count " + tweets.get(i).getRetweetCount() + ", expected " +
+                           expectedCounts[i] + ".");
+        ++numFailures;
+      }
+    }
+  }
+
+  private static void checkCalls(long[] expectedIds) {
+    synchronized (showStatusCalls) {
+      Set<Long> expected = new TreeSet<Long>();
+      for (long id : expectedIds) {
+        expected.add(id);
+      }
+      if (!new TreeSet<Long>(showStatusCalls.keySet()).equals(expected)) {
+        System.out.println("Fetched " + showStatusCalls.keySet() + ", expected " + expected + ".");
+        ++numFailures;
+      }
+      for (Map.Entry<Long, Integer> entry : showStatusCalls.entrySet()) {
+        if (entry.getValue() != 1) {
+          System.out.println("Fetched " + entry.getKey() + " " + entry.getValue() + " times.");
+          ++numFailures;
+        }
+      }
+    }
+  }
+
+  /**
+   * A twitter whose showStatus knows the STATUSES, and which does nothing else.
+   */
+  private static Twitter stubTwitter() {
+    return (Twitter) Proxy.newProxyInstance(Twitter.class.getClassLoader(), new Class<?>[]{Twitter.class},
+                                            new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (!method.getName().equals("showStatus")) {
+          return defaultValue(method.getReturnType());
+        }
+        long id = (Long) args[0];
+        synchronized (showStatusCalls) {
+          Integer calls = showStatusCalls.get(id);
+          showStatusCalls.put(id, calls == null ? 1 : calls + 1);
+        }
+        Status status = stubStatus(id);
+        if (status == null) {
+          throw new TwitterException("No status " + id + ".");
+        }
+        return status;
+      }
+    });
+  }
+
+  private static Status stubStatus(long id) {
+    for (long[] status : STATUSES) {
+      if (status[0] == id) {
+        return status(id, status[1], status[2] == 0 ? null : stubStatus(status[2]));
+      }
+    }
+    return null;
+  }
+
+  private static Status status(final long id, final long retweetCount, final Status retweeted) {
+    return (Status) Proxy.newProxyInstance(Status.class.getClassLoader(), new Class<?>[]{Status.class},
+                                           new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("getId")) {
+          return id;
+        }
+        if (method.getName().equals("getRetweetCount")) {
+          return retweetCount;
+        }
+        if (method.getName().equals("isRetweet")) {
+          return retweeted != null;
+        }
+        if (method.getName().equals("getRetweetedStatus")) {
+          return retweeted;
+        }
+        return defaultValue(method.getReturnType());
+      }
+    });
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == long.class) {
+      return 0L;
+    }
+    if (type == int.class) {
+      return 0;
+    }
+    if (type == double.class) {
+      return 0.0;
+    }
+    return null;
+  }
+}
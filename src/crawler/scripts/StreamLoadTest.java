@@ -0,0 +1,142 @@
+package crawler.scripts;
+
+import crawler.FakeStreamServer;
+import crawler.HttpTweetSource;
+import crawler.NewsStatusHandler;
+import domain.*;
+import fileIO.SqlDumpReader;
+import ranker.NewsRanker;
+import twitter4j.Status;
+import twitter4j.StatusDeletionNotice;
+import twitter4j.StatusListener;
+import util.Lexicon;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static crawler.DumpReplayer.parseSpeed;
+
+/**
+ * Quick script that load tests the stream crawlers' per status work without the network or a db. Starts a
+ * {@link FakeStreamServer} on a free port, reads it through an {@link HttpTweetSource}, and runs every status through
+ * what NewsCrawler's listener does short of the ingest pipeline: parsing, trend matching, conversion and ranking.
+ * Prints the statuses handled every second and exits with status 1 if the source fell short of the requested rate by
+ * more than 5% or could not parse a status, so it can gate CI. The first seconds warm up the JIT and don't count.
+ * Set -Dtwitnews.stream.parserThreads to parse on more than one thread.
+ *
+ * Takes the rate, e.g. 10000 or max, the burst size, the seconds to measure for and optionally the dumps to stream.
+ * The dumps' trends are tracked, a handful of made up trends are tracked for synthetic statuses.
+ */
+public class StreamLoadTest {
+
+  private static final String[] SYNTHETIC_TRENDS = {
+      "Occupy Wall Street", "Steve Jobs", "World Series", "#tcot", "Gaddafi", "Halloween", "Kim Kardashian",
+      "#nowplaying",
+  };
+
+  private static final int WARM_UP_SECONDS = 5;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("Must provide at least 3 arguments: rate burst seconds [dumps...]");
+      System.exit(1);
+    }
+    double rate = parseSpeed(args[0]);
+    int burst = Integer.parseInt(args[1]);
+    int seconds = Integer.parseInt(args[2]);
+    List<String> dumps = Arrays.asList(args).subList(3, args.length);
+
+    final NewsStatusHandler handler = new NewsStatusHandler(Lexicon.stopWords(), null);
+    List<String> trends = trendsFor(dumps);
+    handler.startTrendRefresh();
+    Set<String> keywords = new LinkedHashSet<String>();
+    for (int i = 0; i < trends.size(); ++i) {
+      keywords.addAll(handler.indexTrend(trends.get(i), i + 1));
+    }
+    handler.publishTrends();
+
+    final AtomicLong handled = new AtomicLong();
+    final AtomicLong matched = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    StatusListener listener = new StatusListener() {
+      @Override
+      public void onStatus(Status status) {
+        int[] trendIdAndScore = handler.match(status.getText());
+        TwitNewsTweet tweet = TwitNewsTweetFactory.fromStatus(status, trendIdAndScore[0]);
+        TwitNewsUserFactory.fromStatus(status);
+        if (status.isRetweet()) {
+          TwitNewsTweetFactory.fromStatus(status.getRetweetedStatus(), trendIdAndScore[0]);
+        }
+        if (trendIdAndScore[0] != 0) {
+          tweet.setTfidf(trendIdAndScore[1]);
+          tweet.setRank(NewsRanker.computeRank(tweet));
+          matched.incrementAndGet();
+        }
+        handled.incrementAndGet();
+      }
+
+      @Override
+      public void onDeletionNotice(StatusDeletionNotice statusDeletionNotice) {}
+
+      @Override
+      public void onTrackLimitationNotice(int numberOfLimitedStatuses) {}
+
+      @Override
+      public void onScrubGeo(long userId, long upToStatusId) {}
+
+      @Override
+      public void onException(Exception ex) {
+        errors.incrementAndGet();
+      }
+    };
+
+    FakeStreamServer server = FakeStreamServer.create(dumps, rate, burst);
+    server.start(0);
+    HttpTweetSource source = new HttpTweetSource(server.getUrl());
+    source.addListener(listener);
+
+    source.track(keywords.toArray(new String[keywords.size()]));
+    long start = 0;
+    long handledAtStart = 0;
+    long matchedAtStart = 0;
+    long last = 0;
+    for (int second = 1 - WARM_UP_SECONDS; second <= seconds; ++second) {
+      Thread.sleep(1000);
+      long now = handled.get();
+      System.out.println(String.format("%3ds %8d statuses/s%s", second, now - last, second <= 0 ? " (warm up)" : ""));
+      last = now;
+      if (second == 0) {
+        start = System.nanoTime();
+        handledAtStart = now;
+        matchedAtStart = matched.get();
+      }
+    }
+    long measured = handled.get() - handledAtStart;
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    source.shutdown();
+    server.stop();
+
+    double achieved = measured / elapsed;
+    System.out.println(String.format("Handled %d statuses (%d matched, %d errors) in %.1fs, %.0f statuses/s. %s",
+                                     measured, matched.get() - matchedAtStart, errors.get(), elapsed, achieved,
+                                     source));
+    boolean keptUp = rate == Double.POSITIVE_INFINITY || achieved >= 0.95 * rate;
+    System.exit(keptUp && source.getMalformed() == 0 ? 0 : 1);
+  }
+
+  private static List<String> trendsFor(List<String> dumps) throws IOException {
+    if (dumps.isEmpty()) {
+      return Arrays.asList(SYNTHETIC_TRENDS);
+    }
+    List<String> trends = new ArrayList<String>();
+    for (String dump : dumps) {
+      SqlDumpReader reader = new SqlDumpReader(dump);
+      reader.read();
+      for (TwitNewsTrend trend : reader.getTrends()) {
+        trends.add(trend.getName());
+      }
+    }
+    return trends;
+  }
+}
@@ -1,10 +1,14 @@
 package dao;
 
+import database.MultiRowInsert;
 import database.MySQL_UI;
+import database.RowBinder;
 import domain.TwitNewsRank;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -15,7 +19,18 @@ import java.util.List;
  */
 public class RankDAO {
 
+  private static final RowBinder<TwitNewsRank> RANK_BINDER = new RowBinder<TwitNewsRank>() {
+    @Override
+    public void bind(PreparedStatement statement, int offset, TwitNewsRank rank) throws SQLException {
+      statement.setInt(offset, rank.getTrendId());
+      statement.setLong(offset + 1, rank.getTweetId());
+      statement.setInt(offset + 2, rank.getRank());
+    }
+  };
+
   MySQL_UI sql;
+  private final MultiRowInsert<TwitNewsRank> rankInsert;
+  private final String insertString;
 
   /**
    * Construct a new RankDAO object.
@@ -24,6 +39,9 @@ public class RankDAO {
    */
   public RankDAO(MySQL_UI sql) {
     this.sql = sql;
+    this.rankInsert = new MultiRowInsert<TwitNewsRank>("INSERT INTO " + sql.getRankTableName() +
+                                                       " (trendId, tweetId, rank) VALUES", 3);
+    this.insertString = "INSERT IGNORE INTO " + sql.getRankTableName() + " (trendId, tweetId, rank) VALUES (?, ?, ?)";
   }
 
   /**
@@ -34,72 +52,67 @@ public class RankDAO {
    */
   public int insertRank(TwitNewsRank rank) {
     int lastId = -1;
-    PreparedStatement statement = null;
-    ResultSet result = null;
+    Connection conn = null;
     try {
-      String insertString = "INSERT IGNORE INTO " + sql.getRankTableName() + " (trendId, tweetId, rank) VALUES (?, ?, ?);";
-      statement = sql.prepareStatement(insertString);
+      conn = sql.borrowConnection();
+      PreparedStatement statement = sql.prepareCachedStatement(conn, insertString);
       statement.setInt(1, rank.getTrendId());
-      statement.setInt(2, rank.getTweetId());
-      statement.setInt(3, rank.getRank());      
-      
+      statement.setLong(2, rank.getTweetId());
+      statement.setInt(3, rank.getRank());
+
       statement.execute();
 
       /* get return value */
-      statement = sql.prepareStatement("SELECT LAST_INSERT_ID();");
-      result = statement.executeQuery();
-
-      if(result != null){
-        result.next();
-        lastId = result.getInt(1);
-      }
+      lastId = sql.getGeneratedKey(conn, statement);
     }
     catch (Exception e) {
       e.printStackTrace();
     }
     finally {
-      sql.cleanUp(statement, result);
+      sql.releaseConnection(conn);
     }
     return lastId;
   }
 
   /**
-   * Inserts a series of rank info into the db.
+   * Inserts a series of rank info into the db, via multi-row inserts.
    *
    * @param ranks {@link List} of {@link TwitNewsRank} objects.
-   * @return boolean indicating the success or failure of the operation.
+   * @return boolean indicating the success or failure of the operation, none of the ranks are inserted if it failed.
    */
   public boolean insertRanks(List<TwitNewsRank> ranks) {
     boolean success = true;
-    PreparedStatement statement = null;
-    ResultSet result = null;
+    Connection conn = null;
     try {
-      String insertString = "INSERT INTO " + sql.getRankTableName() + " (trendId, tweetId, rank) VALUES (?, ?, ?)";
-      statement = sql.prepareStatement(insertString);
-
-      for (TwitNewsRank rank : ranks) {
-
-        statement.setInt(1, rank.getTrendId());
-        statement.setInt(2, rank.getTweetId());
-        statement.setInt(3, rank.getRank());
+      conn = sql.borrowConnection();
 
-        statement.addBatch();
-      }
-
-      sql.setAutoCommit(false);
-      statement.executeBatch();
-      sql.setAutoCommit(true);
+      conn.setAutoCommit(false);
+      insertRanks(conn, ranks);
+      conn.commit();
     }
     catch (Exception e) {
       e.printStackTrace();
+      sql.rollback(conn);
       success = false;
     }
     finally {
-      sql.cleanUp(statement, result);
+      sql.releaseConnection(conn);
     }
     return success;
   }
 
+  /**
+   * Inserts a series of rank info on a connection the caller borrowed, as part of whatever transaction the caller
+   * has open on it.
+   *
+   * @param conn The connection.
+   * @param ranks {@link Collection} of {@link TwitNewsRank} objects.
+   * @throws SQLException If an insert failed.
+   */
+  public void insertRanks(Connection conn, Collection<TwitNewsRank> ranks) throws SQLException {
+    rankInsert.execute(sql, conn, ranks, RANK_BINDER);
+  }
+
   /**
    * Close the connection to the backing {@link MySQL_UI object}.
    */
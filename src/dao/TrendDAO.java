@@ -1,9 +1,13 @@
 package dao;
 
+import database.IdLookup;
+import database.MultiRowInsert;
 import database.MySQL_UI;
+import database.RowBinder;
 import domain.TwitNewsTrend;
 import domain.TwitNewsTrendFactory;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -18,20 +22,40 @@ import java.util.List;
  */
 public class TrendDAO {
 
+  private static final RowBinder<TwitNewsTrend> TREND_BINDER = new RowBinder<TwitNewsTrend>() {
+    @Override
+    public void bind(PreparedStatement statement, int offset, TwitNewsTrend trend) throws SQLException {
+      statement.setString(offset, trend.getName());
+    }
+  };
+
   private MySQL_UI sql;
+  private final MultiRowInsert<TwitNewsTrend> trendInsert;
+  private final IdLookup trendIds;
+
+  // On a duplicate name, LAST_INSERT_ID(trendId) makes the existing id the generated key.
+  private final String upsertString;
 
   public TrendDAO(MySQL_UI sql) {
     this.sql = sql;
+    this.trendInsert = new MultiRowInsert<TwitNewsTrend>("INSERT IGNORE INTO " + sql.getTrendTableName() +
+                                                         " (trendName) VALUES", 1);
+    this.trendIds = new IdLookup(sql.getTrendTableName(), "trendId", "trendName");
+    this.upsertString = "INSERT INTO " + sql.getTrendTableName() + " (trendName) VALUES (?)" +
+                        " ON DUPLICATE KEY UPDATE trendId=LAST_INSERT_ID(trendId)";
   }
 
   public TwitNewsTrend fetchTrend(int trendId) {
-    PreparedStatement statement;
+    Connection conn = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
     TwitNewsTrend trend = null;
     try {
       String queryString = "SELECT * FROM " + sql.getTrendTableName() + "WHERE trendId=?";
-      statement = sql.prepareStatement(queryString);
+      conn = sql.borrowConnection();
+      statement = conn.prepareStatement(queryString);
       statement.setInt(1, trendId);
-      ResultSet resultSet = statement.executeQuery();
+      resultSet = statement.executeQuery();
 
       if (resultSet != null) {
         if(resultSet.next()) {
@@ -42,17 +66,24 @@ public class TrendDAO {
     catch (SQLException e) {
       e.printStackTrace();
     }
+    finally {
+      sql.cleanUp(statement, resultSet);
+      sql.releaseConnection(conn);
+    }
     return trend;
   }
 
   public TwitNewsTrend fetchTrend(String trendName) {
-    PreparedStatement statement;
+    Connection conn = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
     TwitNewsTrend trend = null;
     try {
       String queryString = "SELECT * FROM " + sql.getTrendTableName() + "WHERE trendName=?";
-      statement = sql.prepareStatement(queryString);
+      conn = sql.borrowConnection();
+      statement = conn.prepareStatement(queryString);
       statement.setString(1, trendName);
-      ResultSet resultSet = statement.executeQuery();
+      resultSet = statement.executeQuery();
 
       if (resultSet != null) {
         if(resultSet.next()) {
@@ -63,16 +94,23 @@ public class TrendDAO {
     catch (SQLException e) {
       e.printStackTrace();
     }
+    finally {
+      sql.cleanUp(statement, resultSet);
+      sql.releaseConnection(conn);
+    }
     return trend;
   }
 
   public List<TwitNewsTrend> fetchAllTrends() {
-    PreparedStatement statement;
+    Connection conn = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
     List<TwitNewsTrend> trends = new ArrayList<TwitNewsTrend>();
     try {
       String queryString = "SELECT * FROM " + sql.getTrendTableName();
-      statement = sql.prepareStatement(queryString);
-      ResultSet resultSet = statement.executeQuery();
+      conn = sql.borrowConnection();
+      statement = conn.prepareStatement(queryString);
+      resultSet = statement.executeQuery();
 
       if (resultSet != null) {
         while(resultSet.next()) {
@@ -84,11 +122,15 @@ public class TrendDAO {
     catch (SQLException e) {
       e.printStackTrace();
     }
+    finally {
+      sql.cleanUp(statement, resultSet);
+      sql.releaseConnection(conn);
+    }
     return trends;
   }
 
  /**
-   * Tries to insert a single Twitter trend record.
+   * Tries to insert a single Twitter trend record, in one round trip whether or not the trend already exists.
    *
    * @param trendRecord trend record
    *
@@ -96,77 +138,83 @@ public class TrendDAO {
    */
   public int insertTrend(TwitNewsTrend trendRecord) {
     int lastId = -1;
-    PreparedStatement statement = null;
-    ResultSet result = null;
+    Connection conn = null;
     try {
-      String insertString = "INSERT IGNORE INTO " + sql.getTrendTableName() + " (trendName) VALUES (?)";
-      statement = sql.prepareStatement(insertString);
+      conn = sql.borrowConnection();
+      PreparedStatement statement = sql.prepareCachedStatement(conn, upsertString);
       statement.setString(1, trendRecord.getName());
 
-      statement.execute();
+      statement.executeUpdate();
 
-      /* get return value */
-      statement = sql.prepareStatement("SELECT LAST_INSERT_ID();");
-      result = statement.executeQuery();
-
-      if(result != null){
-        result.next();
-        lastId = result.getInt(1);
-      }
-
-      // If we ignored, we have to manually get the id for the matching row.
-      if (lastId == 0) {
-        result.close();
-        statement = sql.prepareStatement("SELECT trendId FROM " + sql.getTrendTableName() + " WHERE trendName=?");
-        statement.setString(1, trendRecord.getName());
-        result = statement.executeQuery();
-        if (result != null) {
-          result.next();
-          lastId = result.getInt(1);
-        }
-      }
+      /* get return value, the id of the existing trend if there was one */
+      lastId = sql.getGeneratedKey(conn, statement);
     }
     catch (Exception e) {
       e.printStackTrace();
     }
     finally {
-      sql.cleanUp(statement, result);
+      sql.releaseConnection(conn);
     }
     return lastId;
   }
 
   /**
-   * Inserts a list of trends into the database via a batch insert.
+   * Inserts a list of trends into the database via multi-row inserts.
    *
    * @param trends {@link java.util.Collection} of trends to insert
    * @return boolean indicating the success of the sql query.
    */
   public boolean insertTrends(Collection<TwitNewsTrend> trends) {
     boolean success = true;
-    PreparedStatement statement = null;
+    Connection conn = null;
     try {
-      String insertString = "INSERT IGNORE INTO " + sql.getTrendTableName() + " (trendName) VALUES (?)";
-      statement = sql.prepareStatement(insertString);
+      conn = sql.borrowConnection();
 
-      for (TwitNewsTrend trend : trends) {
-        statement.setString(1, trend.getName());
-        statement.addBatch();
-      }
-
-      sql.setAutoCommit(false);
-      statement.executeBatch();
-      sql.setAutoCommit(true);
+      conn.setAutoCommit(false);
+      trendInsert.execute(sql, conn, trends, TREND_BINDER);
+      conn.commit();
     }
     catch (Exception e) {
       e.printStackTrace();
+      sql.rollback(conn);
       success = false;
     }
     finally {
-      sql.cleanUp(statement, null);
+      sql.releaseConnection(conn);
     }
     return success;
   }
 
+  /**
+   * Inserts the trends that don't exist yet and returns the ids of all of them, in two round trips per chunk of
+   * trends.
+   *
+   * @param trends The trends.
+   * @return int[] the id of each trend, in the order of the list, -1 for any trend that could not be found, or null
+   *         if something went wrong.
+   */
+  public int[] upsertTrends(List<TwitNewsTrend> trends) {
+    int[] ids = null;
+    Connection conn = null;
+    try {
+      conn = sql.borrowConnection();
+      trendInsert.execute(sql, conn, trends, TREND_BINDER);
+
+      List<String> names = new ArrayList<String>(trends.size());
+      for (TwitNewsTrend trend : trends) {
+        names.add(trend.getName());
+      }
+      ids = trendIds.lookup(sql, conn, names);
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+    }
+    finally {
+      sql.releaseConnection(conn);
+    }
+    return ids;
+  }
+
   public void close() {
     sql.closeConnection();
   }
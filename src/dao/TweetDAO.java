@@ -1,24 +1,35 @@
 package dao;
 
+import database.MultiRowInsert;
 import database.MySQL_UI;
+import database.RowBinder;
 import domain.TwitNewsTweet;
 import domain.TwitNewsTweetFactory;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 /**
- * A class for persisting Tweets to the database.
+ * A class for persisting Tweets to the database. Tweets are keyed on their twitter status id, and inserting a tweet
+ * that is already in the db leaves the row there as it is, so replays and parallel writers can insert the same tweets
+ * safely.
+ *
+ * Databases created while tweet ids were an INT AUTO_INCREMENT must be set up again with CreateCleanDB, or migrated
+ * with SET FOREIGN_KEY_CHECKS=0 and then ALTER TABLE tweets MODIFY tweetId BIGINT NOT NULL and ALTER TABLE ranks
+ * MODIFY tweetId BIGINT NOT NULL. Rows already stored keep their old ids.
  *
  * @author Chris Moghbel (cmoghbel@cs.ucla.edu)
  */
 public class TweetDAO {
 
   private MySQL_UI sql;
+  private final MultiRowInsert<TwitNewsTweet> tweetInsert;
 
   /**
    * Constructs a new TweetDAO object.
@@ -27,22 +38,30 @@ public class TweetDAO {
    */
   public TweetDAO(MySQL_UI sql) {
     this.sql = sql;
+    this.tweetInsert = new MultiRowInsert<TwitNewsTweet>("INSERT IGNORE INTO " + sql.getTweetTableName() +
+                                                         " (tweetId, trendId, userName, isVerifiedUser, numFollowers," +
+                                                         " text, timestamp, locationName, latitude, longitude," +
+                                                         " hasLink, link, isRetweet, retweetCount, tfidf, rank)" +
+                                                         " VALUES", 16);
   }
 
   /**
    * Retrieves an individual tweet from the db.
    *
-   * @param tweetId The id of the tweet to fetch.
-   * @return A new {@link TwitNewsTweet} object representing the tweet.
+   * @param tweetId The status id of the tweet to fetch.
+   * @return A new {@link TwitNewsTweet} object representing the tweet, null if there is none.
    */
-  public TwitNewsTweet fetchTweet(int tweetId) {
-    PreparedStatement statement;
+  public TwitNewsTweet fetchTweet(long tweetId) {
+    Connection conn = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
     TwitNewsTweet tweet = null;
     try {
-      String queryString = "SELECT * FROM " + sql.getTweetTableName() + "WHERE tweetId=?";
-      statement = sql.prepareStatement(queryString);
-      statement.setInt(1, tweetId);
-      ResultSet resultSet = statement.executeQuery();
+      String queryString = "SELECT * FROM " + sql.getTweetTableName() + " WHERE tweetId=?";
+      conn = sql.borrowConnection();
+      statement = conn.prepareStatement(queryString);
+      statement.setLong(1, tweetId);
+      resultSet = statement.executeQuery();
 
       if (resultSet != null) {
         if(resultSet.next()) {
@@ -53,6 +72,10 @@ public class TweetDAO {
     catch (SQLException e) {
       e.printStackTrace();
     }
+    finally {
+      sql.cleanUp(statement, resultSet);
+      sql.releaseConnection(conn);
+    }
     return tweet;
   }
 
@@ -63,12 +86,14 @@ public class TweetDAO {
    * @return A {@link List} of {@link TwitNewsTweet} objects representing the tweets.
    */
   public List<TwitNewsTweet> fetchTweets(int trendId) {
+    Connection conn = null;
     PreparedStatement statement = null;
     ResultSet resultSet = null;
     List<TwitNewsTweet> tweets = new ArrayList<TwitNewsTweet>();
     try {
       String queryString = "SELECT * FROM " + sql.getTweetTableName() + " WHERE trendId=?";
-      statement = sql.prepareStatement(queryString);
+      conn = sql.borrowConnection();
+      statement = conn.prepareStatement(queryString);
       statement.setInt(1, trendId);
       resultSet = statement.executeQuery();
 
@@ -84,186 +109,272 @@ public class TweetDAO {
     }
     finally {
       sql.cleanUp(statement, resultSet);
+      sql.releaseConnection(conn);
     }
     return tweets;
   }
 
   /**
-   * Inserts a tweet into the db.
+   * Streams every tweet of a trend to a handler without holding them all in memory, see
+   * {@link MySQL_UI#prepareStreamingStatement(Connection, String)}.
    *
-   * @param tweet {@link domain.TwitNewsTweet} object to insert.
-   * @param trendId int representing the associated trends id in the db
-   * @return int the id of the item just inserted into the db, -1 if something went wrong.
+   * @param trendId The associated trendId of the tweets to stream.
+   * @param handler Receives the tweets, in tweet id order.
+   * @return int the number of tweets streamed, -1 if something went wrong.
    */
-  public int insertTweet(TwitNewsTweet tweet, int trendId) {
-    int lastId = -1;
-
-    String insertString = "INSERT INTO " + sql.getTweetTableName() +
-                         " (trendId, " +
-                         " userName," +
-                         " isVerifiedUser," +
-                         " numFollowers," +
-                         " text," +
-                         " timestamp," +
-                         " locationName," +
-                         " latitude," +
-                         " longitude," +
-                         " hasLink," +
-                         " link," +
-                         " isRetweet," +
-                         " retweetCount," +
-                         " tfidf," +
-                         " rank)" +
-                         " VALUES " +
-                         "(?," + // trendId
-                         " ?," + // userName
-                         " ?," + // isVerifiedUser
-                         " ?," + // numFollowers
-                         " ?," + // text
-                         " ?," + // timestamp
-                         " ?," + // locationName
-                         " ?," + // latitude
-                         " ?," + // longitude
-                         " ?," + // hasLink
-                         " ?," + // link
-                         " ?," + // isRetweet
-                         " ?," + // retweetCount
-                         " ?," + // tfidf
-                         " ?);"; // rank
+  public int streamTweets(int trendId, TweetHandler handler) {
+    return streamTweets(trendId, Long.MIN_VALUE, Long.MAX_VALUE, handler);
+  }
 
+  /**
+   * Streams the tweets of a trend whose ids fall in a range to a handler.
+   *
+   * @param trendId The associated trendId of the tweets to stream.
+   * @param fromTweetId The lowest tweet id to stream.
+   * @param toTweetId One past the highest tweet id to stream.
+   * @param handler Receives the tweets, in tweet id order.
+   * @return int the number of tweets streamed, -1 if something went wrong.
+   */
+  public int streamTweets(int trendId, long fromTweetId, long toTweetId, TweetHandler handler) {
+    Connection conn = null;
     PreparedStatement statement = null;
-    ResultSet result = null;
     try {
-      statement = sql.prepareStatement(insertString);
+      String queryString = "SELECT * FROM " + sql.getTweetTableName() +
+                           " WHERE trendId=? AND tweetId>=? AND tweetId<? ORDER BY tweetId";
+      conn = sql.borrowConnection();
+      statement = sql.prepareStreamingStatement(conn, queryString);
+      statement.setInt(1, trendId);
+      statement.setLong(2, fromTweetId);
+      statement.setLong(3, toTweetId);
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+      sql.cleanUp(statement, null);
+      sql.releaseConnection(conn);
+      return -1;
+    }
+    return stream(conn, statement, handler);
+  }
 
+  /**
+   * Streams the tweets of a trend to a handler grouped by text, so that duplicates arrive one after another. The
+   * tweets can be split across several streams by a hash of their text, which keeps all duplicates of a text in the
+   * same stream.
+   *
+   * @param trendId The associated trendId of the tweets to stream.
+   * @param bucket Which of the numBuckets streams to return, from 0.
+   * @param numBuckets How many streams the tweets are split across, 1 for all of them in one stream.
+   * @param handler Receives the tweets, ordered by the exact bytes of their text and then by tweet id.
+   * @return int the number of tweets streamed, -1 if something went wrong.
+   */
+  public int streamTweetsByText(int trendId, int bucket, int numBuckets, TweetHandler handler) {
+    Connection conn = null;
+    PreparedStatement statement = null;
+    try {
+      // BINARY, because the column's collation would group texts that only differ in case or trailing spaces.
+      String queryString = "SELECT * FROM " + sql.getTweetTableName() + " WHERE trendId=?" +
+                           (numBuckets > 1 ? " AND COALESCE(CRC32(text), 0) % ?=?" : "") +
+                           " ORDER BY BINARY text, tweetId";
+      conn = sql.borrowConnection();
+      statement = sql.prepareStreamingStatement(conn, queryString);
       statement.setInt(1, trendId);
-      statement.setString(2, tweet.getUserName());
-      statement.setBoolean(3, tweet.isVerifiedUser());
-      statement.setInt(4, tweet.getNumFollowers());
-      statement.setString(5, tweet.getText());
-      statement.setTimestamp(6, tweet.getTimestamp());
-      statement.setString(7, tweet.getLocationName());
-      statement.setDouble(8, tweet.getLatitude());
-      statement.setDouble(9, tweet.getLongitude());
-      statement.setBoolean(10, tweet.isHasLink());
-      statement.setString(11, tweet.getLink());
-      statement.setBoolean(12, tweet.isRetweet());
-      statement.setLong(13, tweet.getRetweetCount());
-      statement.setInt(14, tweet.getTfidf());
-      statement.setInt(15, tweet.getRank());
+      if (numBuckets > 1) {
+        statement.setInt(2, numBuckets);
+        statement.setInt(3, bucket);
+      }
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+      sql.cleanUp(statement, null);
+      sql.releaseConnection(conn);
+      return -1;
+    }
+    return stream(conn, statement, handler);
+  }
 
-      statement.executeUpdate();
+  /**
+   * Runs a prepared streaming query and hands every row to the handler, closing the statement and releasing its
+   * connection when done. The connection stays borrowed for the whole stream, so a handler that writes to the db
+   * through a pooled MySQL_UI gets a different connection.
+   */
+  private int stream(Connection conn, PreparedStatement statement, TweetHandler handler) {
+    ResultSet resultSet = null;
+    int count = 0;
+    try {
+      resultSet = statement.executeQuery();
+      if (resultSet != null) {
+        while (resultSet.next()) {
+          handler.onTweet(TwitNewsTweetFactory.fromResultSet(resultSet));
+          ++count;
+        }
+      }
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+      count = -1;
+    }
+    finally {
+      sql.cleanUp(statement, resultSet);
+      sql.releaseConnection(conn);
+    }
+    return count;
+  }
 
-      /* get return value */
-      statement = sql.prepareStatement("SELECT LAST_INSERT_ID();");
-      result = statement.executeQuery();
+  /**
+   * Gets the highest tweet id in the db.
+   *
+   * @return long the highest tweet id, 0 if there are no tweets, -1 if it could not be read.
+   */
+  public long fetchMaxTweetId() {
+    Connection conn = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    long maxTweetId = -1;
+    try {
+      String queryString = "SELECT COALESCE(MAX(tweetId), 0) FROM " + sql.getTweetTableName();
+      conn = sql.borrowConnection();
+      statement = conn.prepareStatement(queryString);
+      resultSet = statement.executeQuery();
 
-      if(result != null){
-        result.next();
-        lastId = result.getInt(1);
+      if (resultSet != null && resultSet.next()) {
+        maxTweetId = resultSet.getLong(1);
       }
     }
-    catch (Exception e) {
+    catch (SQLException e) {
+      e.printStackTrace();
+    }
+    finally {
+      sql.cleanUp(statement, resultSet);
+      sql.releaseConnection(conn);
+    }
+    return maxTweetId;
+  }
+
+  /**
+   * Gets the lowest and highest tweet id of a trend, and how many tweets it has.
+   *
+   * @param trendId The id of the trend.
+   * @return long[] holding the min tweet id, max tweet id and tweet count, all 0 if the trend has no tweets.
+   */
+  public long[] fetchTweetIdRange(int trendId) {
+    Connection conn = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    long[] range = new long[3];
+    try {
+      String queryString = "SELECT MIN(tweetId), MAX(tweetId), COUNT(*) FROM " + sql.getTweetTableName() +
+                           " WHERE trendId=?";
+      conn = sql.borrowConnection();
+      statement = conn.prepareStatement(queryString);
+      statement.setInt(1, trendId);
+      resultSet = statement.executeQuery();
+
+      if (resultSet != null && resultSet.next()) {
+        range[0] = resultSet.getLong(1);
+        range[1] = resultSet.getLong(2);
+        range[2] = resultSet.getLong(3);
+      }
+    }
+    catch (SQLException e) {
       e.printStackTrace();
     }
     finally {
-      sql.cleanUp(statement, result);
+      sql.cleanUp(statement, resultSet);
+      sql.releaseConnection(conn);
     }
-    return lastId;
+    return range;
+  }
+
+  /**
+   * Inserts a tweet into the db, unless a tweet with its status id is there already.
+   *
+   * @param tweet {@link domain.TwitNewsTweet} object to insert.
+   * @param trendId int representing the associated trends id in the db
+   * @return boolean indicating the success of the sql query.
+   */
+  public boolean insertTweet(TwitNewsTweet tweet, int trendId) {
+    return insertTweets(Collections.singletonList(tweet), trendId);
   }
 
   /**
-   * Inserts a list of tweets to the db, via a batch insert.
+   * Inserts a list of tweets to the db, via multi-row inserts. Tweets whose status id is in the db already are
+   * skipped.
    *
    * @param tweets {@link java.util.Collection} of {@link TwitNewsTweet} objects to persist to the db.
    * @param trendId int representing the associated trends id in the database.
-   * @return boolean indicating the success of the sql query.
+   * @return boolean indicating the success of the sql query, none of the tweets are inserted if it failed.
    */
   public boolean insertTweets(Collection<TwitNewsTweet> tweets, int trendId) {
 
     boolean success = true;
 
-    String insertString = "INSERT INTO " + sql.getTweetTableName() +
-                         " (trendId, " +
-                         " userName," +
-                         " isVerifiedUser," +
-                         " numFollowers," +
-                         " text," +
-                         " timestamp," +
-                         " locationName," +
-                         " latitude," +
-                         " longitude," +
-                         " hasLink," +
-                         " link," +
-                         " isRetweet," +
-                         " retweetCount," +
-                         " tfidf," +
-                         " rank)" +
-                         " VALUES " +
-                         "(?," + // trendId
-                         " ?," + // userName
-                         " ?," + // isVerifiedUser
-                         " ?," + // numFollowers
-                         " ?," + // text
-                         " ?," + // timestamp
-                         " ?," + // locationName
-                         " ?," + // latitude
-                         " ?," + // longitude
-                         " ?," + // hasLink
-                         " ?," + // link
-                         " ?," + // isRetweet
-                         " ?," + // retweetCount
-                         " ?," + // tfidf
-                         " ?);"; // rank
-
-    PreparedStatement statement = null;
+    Connection conn = null;
     try {
-      statement = sql.prepareStatement(insertString);
-
-      for (TwitNewsTweet tweetRecord : tweets) {
-
-        statement.setInt(1, trendId);
-        statement.setString(2, tweetRecord.getUserName());
-        statement.setBoolean(3, tweetRecord.isVerifiedUser());
-        statement.setInt(4, tweetRecord.getNumFollowers());
-        statement.setString(5, tweetRecord.getText());
-        statement.setTimestamp(6, tweetRecord.getTimestamp());
-        statement.setString(7, tweetRecord.getLocationName());
-        statement.setDouble(8, tweetRecord.getLatitude());
-        statement.setDouble(9, tweetRecord.getLongitude());
-        statement.setBoolean(10, tweetRecord.isHasLink());
-        statement.setString(11, tweetRecord.getLink());
-        statement.setBoolean(12, tweetRecord.isRetweet());
-        statement.setLong(13, tweetRecord.getRetweetCount());
-        statement.setInt(14, tweetRecord.getTfidf());
-        statement.setInt(15, tweetRecord.getRank());
-
-        statement.addBatch();
-      }
+      conn = sql.borrowConnection();
 
-      sql.setAutoCommit(false);
-      statement.executeBatch();
-      sql.setAutoCommit(true);
+      conn.setAutoCommit(false);
+      insertTweets(conn, tweets, trendId);
+      conn.commit();
     }
     catch (Exception e) {
       e.printStackTrace();
+      sql.rollback(conn);
       success = false;
     }
     finally {
-      sql.cleanUp(statement, null);
+      sql.releaseConnection(conn);
     }
     return success;
   }
 
+  /**
+   * Inserts a list of tweets on a connection the caller borrowed, as part of whatever transaction the caller has
+   * open on it.
+   *
+   * @param conn The connection.
+   * @param tweets {@link java.util.Collection} of {@link TwitNewsTweet} objects to persist to the db.
+   * @param trendId int representing the associated trends id in the database.
+   * @throws SQLException If an insert failed.
+   */
+  public void insertTweets(Connection conn, Collection<TwitNewsTweet> tweets, int trendId) throws SQLException {
+    tweetInsert.execute(sql, conn, tweets, tweetBinder(trendId));
+  }
+
+  private static RowBinder<TwitNewsTweet> tweetBinder(final int trendId) {
+    return new RowBinder<TwitNewsTweet>() {
+      @Override
+      public void bind(PreparedStatement statement, int offset, TwitNewsTweet tweetRecord) throws SQLException {
+        statement.setLong(offset, tweetRecord.getTweetId());
+        statement.setInt(offset + 1, trendId);
+        statement.setString(offset + 2, tweetRecord.getUserName());
+        statement.setBoolean(offset + 3, tweetRecord.isVerifiedUser());
+        statement.setInt(offset + 4, tweetRecord.getNumFollowers());
+        statement.setString(offset + 5, tweetRecord.getText());
+        statement.setTimestamp(offset + 6, tweetRecord.getTimestamp());
+        statement.setString(offset + 7, tweetRecord.getLocationName());
+        statement.setDouble(offset + 8, tweetRecord.getLatitude());
+        statement.setDouble(offset + 9, tweetRecord.getLongitude());
+        statement.setBoolean(offset + 10, tweetRecord.isHasLink());
+        statement.setString(offset + 11, tweetRecord.getLink());
+        statement.setBoolean(offset + 12, tweetRecord.isRetweet());
+        statement.setLong(offset + 13, tweetRecord.getRetweetCount());
+        statement.setInt(offset + 14, tweetRecord.getTfidf());
+        statement.setInt(offset + 15, tweetRecord.getRank());
+      }
+    };
+  }
+
 
   public void updateRank(TwitNewsTweet tweet) {
     String queryString = "UPDATE " + sql.getTweetTableName() + " SET rank=? WHERE tweetId=?";
 
+    Connection conn = null;
     PreparedStatement statement = null;
     try {
-      statement = sql.prepareStatement(queryString);
+      conn = sql.borrowConnection();
+      statement = conn.prepareStatement(queryString);
       statement.setInt(1, tweet.getRank());
-      statement.setLong(1, tweet.getTweetId());
+      statement.setLong(2, tweet.getTweetId());
 
       statement.executeUpdate();
     }
@@ -272,15 +383,18 @@ public class TweetDAO {
     }
     finally {
       sql.cleanUp(statement, null);
+      sql.releaseConnection(conn);
     }
   }
 
   public void updateRanks(List<TwitNewsTweet> tweets) {
     String queryString = "UPDATE " + sql.getTweetTableName() + " SET rank=? WHERE tweetId=?";
 
+    Connection conn = null;
     PreparedStatement statement = null;
     try {
-      statement = sql.prepareStatement(queryString);
+      conn = sql.borrowConnection();
+      statement = sql.prepareCachedStatement(conn, queryString);
 
       for (TwitNewsTweet tweet : tweets) {
         statement.setInt(1, tweet.getRank());
@@ -289,15 +403,16 @@ public class TweetDAO {
         statement.addBatch();
       }
 
-      sql.setAutoCommit(false);
+      conn.setAutoCommit(false);
       statement.executeBatch();
-      sql.setAutoCommit(true);
+      conn.commit();
     }
     catch (SQLException e) {
       e.printStackTrace();
+      sql.rollback(conn);
     }
     finally {
-      sql.cleanUp(statement, null);
+      sql.releaseConnection(conn);
     }
   }
 
@@ -0,0 +1,17 @@
+package dao;
+
+import domain.TwitNewsTweet;
+
+/**
+ * Receives tweets one at a time as they are streamed from the db by {@link TweetDAO}.
+ */
+public interface TweetHandler {
+
+  /**
+   * Called once per tweet, on the thread that started the stream. The stream's connection is busy until the stream
+   * ends, so the handler must not use it.
+   *
+   * @param tweet The tweet.
+   */
+  void onTweet(TwitNewsTweet tweet);
+}
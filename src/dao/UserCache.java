@@ -0,0 +1,283 @@
+package dao;
+
+import domain.TwitNewsUser;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static util.TwitNewsConstants.USER_CACHE_MAX_SIZE;
+import static util.TwitNewsConstants.USER_CACHE_TTL_MILLIS;
+
+/**
+ * A bounded cache of users by user name, shared by every {@link UserDAO} of the same user table and by the crawlers
+ * looking users up. Besides the user, an entry remembers whether the user is known to be in the db as it is, and its
+ * id if known, so that writing a user that was already written unchanged can be skipped altogether.
+ *
+ * The cache is split into segments by a hash of the user name, each an LRU map with a lock of its own, so threads
+ * only contend when they hit the same segment. Once a segment is full its least recently used user is evicted, and
+ * entries older than the time to live are treated as missing, so follower counts and verified flags are refreshed
+ * at least that often: {@link UserDAO} writes users as upserts, which update a user already in the db.
+ */
+public class UserCache {
+
+  private static final int NUM_SEGMENTS = 16;
+
+  private static final ConcurrentMap<String, UserCache> cachesByTable = new ConcurrentHashMap<String, UserCache>();
+
+  private final Segment[] segments = new Segment[NUM_SEGMENTS];
+  private final long ttlMillis;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+  private final AtomicLong writesSkipped = new AtomicLong();
+
+  /**
+   * @param maxSize The most users to hold.
+   * @param ttlMillis How long an entry is good for after it was put.
+   */
+  public UserCache(int maxSize, long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+    int segmentSize = Math.max(1, (maxSize + NUM_SEGMENTS - 1) / NUM_SEGMENTS);
+    for (int i = 0; i < NUM_SEGMENTS; ++i) {
+      segments[i] = new Segment(segmentSize);
+    }
+  }
+
+  /**
+   * Returns the cache shared by everything using the user table, sized by the twitnews.userCache.maxSize and
+   * twitnews.userCache.ttlMillis system properties.
+   *
+   * @param userTableName The name of the user table.
+   * @return The cache.
+   */
+  public static UserCache forTable(String userTableName) {
+    UserCache cache = cachesByTable.get(userTableName);
+    if (cache == null) {
+      cache = new UserCache(Integer.getInteger("twitnews.userCache.maxSize", USER_CACHE_MAX_SIZE),
+                            Long.getLong("twitnews.userCache.ttlMillis", USER_CACHE_TTL_MILLIS));
+      UserCache existing = cachesByTable.putIfAbsent(userTableName, cache);
+      if (existing != null) {
+        cache = existing;
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * @param userName The user name.
+   * @return The cached user, or null if the user is not cached or its entry has expired.
+   */
+  public TwitNewsUser get(String userName) {
+    CachedUser entry = lookup(userName);
+    return entry == null ? null : entry.user;
+  }
+
+  /**
+   * Caches a user that was looked up, but that is not known to be in the db. Replaces whatever was cached for the
+   * user name, unless it was the same user already in the db.
+   *
+   * @param user The user.
+   */
+  public void put(TwitNewsUser user) {
+    Segment segment = segmentFor(user.getUserName());
+    synchronized (segment) {
+      CachedUser entry = segment.get(user.getUserName());
+      if (entry != null && entry.persisted && sameUser(entry.user, user) && !isExpired(entry)) {
+        return;
+      }
+      segment.put(user.getUserName(), new CachedUser(user, false, -1, System.currentTimeMillis()));
+    }
+  }
+
+  /**
+   * Returns whether the user is in the db exactly as it is, in which case writing it can be skipped. Counts a
+   * skipped write when it is.
+   *
+   * @param user The user.
+   * @return boolean true if an unexpired entry says the same user was written.
+   */
+  public boolean isPersisted(TwitNewsUser user) {
+    CachedUser entry = lookup(user.getUserName());
+    if (entry != null && entry.persisted && sameUser(entry.user, user)) {
+      writesSkipped.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the id of a user that is in the db exactly as it is. Counts a skipped write when there is one.
+   *
+   * @param user The user.
+   * @return int the user's id, or -1 if it is not known.
+   */
+  public int persistedId(TwitNewsUser user) {
+    CachedUser entry = lookup(user.getUserName());
+    if (entry != null && entry.persisted && entry.userId >= 0 && sameUser(entry.user, user)) {
+      writesSkipped.incrementAndGet();
+      return entry.userId;
+    }
+    return -1;
+  }
+
+  /**
+   * Records that users were committed to the db.
+   *
+   * @param users The users.
+   */
+  public void persisted(Collection<TwitNewsUser> users) {
+    long now = System.currentTimeMillis();
+    for (TwitNewsUser user : users) {
+      Segment segment = segmentFor(user.getUserName());
+      synchronized (segment) {
+        segment.put(user.getUserName(), new CachedUser(user, true, -1, now));
+      }
+    }
+  }
+
+  /**
+   * Records that a user was committed to the db under an id.
+   *
+   * @param user The user.
+   * @param userId The user's id.
+   */
+  public void persisted(TwitNewsUser user, int userId) {
+    Segment segment = segmentFor(user.getUserName());
+    synchronized (segment) {
+      segment.put(user.getUserName(), new CachedUser(user, true, userId, System.currentTimeMillis()));
+    }
+  }
+
+  /**
+   * @return The number of users cached, including expired ones not evicted yet.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getExpirations() {
+    return expirations.get();
+  }
+
+  public long getWritesSkipped() {
+    return writesSkipped.get();
+  }
+
+  /**
+   * @return The share of lookups that found an unexpired user, 0 if there were none.
+   */
+  public double getHitRate() {
+    long lookups = hits.get() + misses.get();
+    return lookups == 0 ? 0.0 : (double) hits.get() / lookups;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("users cached=%d hits=%d misses=%d hitRate=%.3f evictions=%d expirations=%d " +
+                         "writesSkipped=%d", size(), getHits(), getMisses(), getHitRate(), getEvictions(),
+                         getExpirations(), getWritesSkipped());
+  }
+
+  private CachedUser lookup(String userName) {
+    Segment segment = segmentFor(userName);
+    synchronized (segment) {
+      CachedUser entry = segment.get(userName);
+      if (entry != null && isExpired(entry)) {
+        segment.remove(userName);
+        expirations.incrementAndGet();
+        entry = null;
+      }
+      if (entry == null) {
+        misses.incrementAndGet();
+      }
+      else {
+        hits.incrementAndGet();
+      }
+      return entry;
+    }
+  }
+
+  private boolean isExpired(CachedUser entry) {
+    return System.currentTimeMillis() - entry.putAt > ttlMillis;
+  }
+
+  private Segment segmentFor(String userName) {
+    int hash = userName == null ? 0 : userName.hashCode();
+    hash ^= hash >>> 16;
+    return segments[hash & (NUM_SEGMENTS - 1)];
+  }
+
+  /**
+   * Like {@link TwitNewsUser#equals(Object)}, but the display name counts as well, as it is a column of its own.
+   */
+  private static boolean sameUser(TwitNewsUser a, TwitNewsUser b) {
+    return a.equals(b) && (a.getName() == null ? b.getName() == null : a.getName().equals(b.getName()));
+  }
+
+  /**
+   * One user in the cache.
+   */
+  private static final class CachedUser {
+
+    private final TwitNewsUser user;
+    private final boolean persisted;
+    private final int userId;
+    private final long putAt;
+
+    private CachedUser(TwitNewsUser user, boolean persisted, int userId, long putAt) {
+      this.user = user;
+      this.persisted = persisted;
+      this.userId = userId;
+      this.putAt = putAt;
+    }
+  }
+
+  /**
+   * The users of one segment, least recently used first.
+   */
+  private final class Segment extends LinkedHashMap<String, CachedUser> {
+
+    // Never serialized, only declared so that the map subclass compiles without warnings.
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    private Segment(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedUser> eldest) {
+      if (size() <= capacity) {
+        return false;
+      }
+      evictions.incrementAndGet();
+      return true;
+    }
+  }
+}
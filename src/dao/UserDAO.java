@@ -1,9 +1,13 @@
 package dao;
 
+import database.IdLookup;
+import database.MultiRowInsert;
 import database.MySQL_UI;
+import database.RowBinder;
 import domain.TwitNewsUser;
 import domain.TwitNewsUserFactory;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -20,20 +24,60 @@ import java.util.List;
  */
 public class UserDAO {
 
+  private static final RowBinder<TwitNewsUser> USER_BINDER = new RowBinder<TwitNewsUser>() {
+    @Override
+    public void bind(PreparedStatement statement, int offset, TwitNewsUser user) throws SQLException {
+      statement.setString(offset, user.getUserName());
+      statement.setString(offset + 1, user.getName());
+      statement.setBoolean(offset + 2, user.isVerifiedUser());
+      statement.setInt(offset + 3, user.getNumFollowers());
+    }
+  };
+
   private MySQL_UI sql;
+  private final UserCache userCache;
+  private final MultiRowInsert<TwitNewsUser> userInsert;
+  private final IdLookup userIds;
+
+  // An existing user gets the name, verified flag and follower count written.
+  private static final String UPDATE_EXISTING =
+      " ON DUPLICATE KEY UPDATE name=VALUES(name), isVerifiedUser=VALUES(isVerifiedUser)," +
+      " numFollowers=VALUES(numFollowers)";
+
+  // On a duplicate user name, LAST_INSERT_ID(userId) makes the existing id the generated key.
+  private final String upsertString;
 
   public UserDAO(MySQL_UI sql) {
+    this(sql, UserCache.forTable(sql.getUserTableName()));
+  }
+
+  /**
+   * @param sql The db.
+   * @param userCache The cache of users known to be in the db, used to skip writing them again, or null to write
+   *                  every user.
+   */
+  public UserDAO(MySQL_UI sql, UserCache userCache) {
     this.sql = sql;
+    this.userCache = userCache;
+    this.userInsert = new MultiRowInsert<TwitNewsUser>("INSERT INTO " + sql.getUserTableName() +
+                                                       " (userName, name, isVerifiedUser, numFollowers) VALUES",
+                                                       UPDATE_EXISTING, 4);
+    this.userIds = new IdLookup(sql.getUserTableName(), "userId", "userName");
+    this.upsertString = "INSERT INTO " + sql.getUserTableName() + " (userName, name, isVerifiedUser, numFollowers)" +
+                        " VALUES (?, ?, ?, ?)" + UPDATE_EXISTING + ", userId=LAST_INSERT_ID(userId)";
   }
 
   public TwitNewsUser fetchUser(int userId) {
-    PreparedStatement statement;
+    Connection conn = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
     TwitNewsUser user = null;
     try {
       String queryString = "SELECT * FROM " + sql.getUserTableName() + "WHERE userId=?";
-      statement = sql.prepareStatement(queryString);
+      conn = sql.borrowConnection();
+      statement = conn.prepareStatement(queryString);
       statement.setInt(1, userId);
-      ResultSet resultSet = statement.executeQuery();
+      resultSet = statement.executeQuery();
 
       if (resultSet != null) {
         if(resultSet.next()) {
@@ -44,16 +88,23 @@ public class UserDAO {
     catch (SQLException e) {
       e.printStackTrace();
     }
+    finally {
+      sql.cleanUp(statement, resultSet);
+      sql.releaseConnection(conn);
+    }
     return user;
   }
 
   public List<TwitNewsUser> fetchUsers() {
-    PreparedStatement statement;
+    Connection conn = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
     List<TwitNewsUser> users = new ArrayList<TwitNewsUser>();
     try {
       String queryString = "SELECT * FROM " + sql.getUserTableName();
-      statement = sql.prepareStatement(queryString);
-      ResultSet resultSet = statement.executeQuery();
+      conn = sql.borrowConnection();
+      statement = conn.prepareStatement(queryString);
+      resultSet = statement.executeQuery();
 
       if (resultSet != null) {
         while(resultSet.next()) {
@@ -65,97 +116,171 @@ public class UserDAO {
     catch (SQLException e) {
       e.printStackTrace();
     }
+    finally {
+      sql.cleanUp(statement, resultSet);
+      sql.releaseConnection(conn);
+    }
     return users;
   }
 
   /**
-   * Tries to insert a single Twitter user record.
+   * Tries to insert a single Twitter user record, in one round trip whether or not the user already exists, or none
+   * if the cache knows it to be in the db unchanged. An existing user is updated.
    *
    * @param userRecord user record
    *
    * @return userId, -1 if anything went wrong
    */
   public int insertUser(TwitNewsUser userRecord) {
+    if (userCache != null) {
+      int cachedId = userCache.persistedId(userRecord);
+      if (cachedId >= 0) {
+        return cachedId;
+      }
+    }
     int lastId = -1;
-    PreparedStatement statement = null;
-    ResultSet result = null;
+    Connection conn = null;
     try {
-      String insertString = "INSERT IGNORE INTO " + sql.getUserTableName() + " (userName, name, isVerifiedUser, numFollowers) " +
-                            "VALUES (?, ?, ?, ?)";
-
-      statement = sql.prepareStatement(insertString);
-      statement.setString(1, userRecord.getUserName());
-      statement.setString(2, userRecord.getName());
-      statement.setBoolean(3, userRecord.isVerifiedUser());
-      statement.setInt(4, userRecord.getNumFollowers());
+      conn = sql.borrowConnection();
+      PreparedStatement statement = sql.prepareCachedStatement(conn, upsertString);
+      USER_BINDER.bind(statement, 1, userRecord);
 
       statement.executeUpdate();
 
-      /* get return value */
-      statement = sql.prepareStatement("SELECT LAST_INSERT_ID();");
-      result = statement.executeQuery();
-
-      if(result != null){
-        result.next();
-        lastId = result.getInt(1);
-      }
-
-      // If we ignored, we have to manually get the id for the matching row.
-      if (lastId == 0) {
-        result.close();
-        statement = sql.prepareStatement("SELECT userId FROM " + sql.getUserTableName() + "WHERE trendName=?");
-        statement.setString(1, userRecord.getUserName());
-        result = statement.executeQuery();
-        if (result != null) {
-          result.next();
-          lastId = result.getInt(1);
-        }
+      /* get return value, the id of the existing user if there was one */
+      lastId = sql.getGeneratedKey(conn, statement);
+      if (userCache != null && lastId >= 0) {
+        userCache.persisted(userRecord, lastId);
       }
     }
     catch (Exception e) {
       e.printStackTrace();
     }
     finally {
-      sql.cleanUp(statement, result);
+      sql.releaseConnection(conn);
     }
     return lastId;
   }
 
   /**
-   * Inserts a list of users into the db, via a batch insert.
+   * Inserts a list of users into the db, via multi-row inserts. Users the cache knows to be in the db unchanged are
+   * skipped.
    *
    * @param users A {@link java.util.Collection} of users to insert into the db.
-   * @return boolean indicating the success or failure of the sql query.
+   * @return boolean indicating the success or failure of the sql query, none of the users are inserted if it failed.
    */
   public boolean insertUsers(Collection<TwitNewsUser> users) {
+    users = unpersisted(users);
+    if (users.isEmpty()) {
+      return true;
+    }
     boolean success = true;
-    PreparedStatement statement = null;
+    Connection conn = null;
     try {
-      String insertString = "INSERT IGNORE INTO " + sql.getUserTableName() + " (userName, name, isVerifiedUser, numFollowers) " +
-                            "VALUES (?, ?, ?, ?)";
+      conn = sql.borrowConnection();
 
-      statement = sql.prepareStatement(insertString);
-      for (TwitNewsUser user : users) {
-        statement.setString(1, user.getUserName());
-        statement.setString(2, user.getName());
-        statement.setBoolean(3, user.isVerifiedUser());
-        statement.setInt(4, user.getNumFollowers());
+      conn.setAutoCommit(false);
+      insertUsers(conn, users);
+      conn.commit();
+      committed(users);
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+      sql.rollback(conn);
+      success = false;
+    }
+    finally {
+      sql.releaseConnection(conn);
+    }
+    return success;
+  }
 
-        statement.addBatch();
+  /**
+   * Returns the users the cache does not know to be in the db unchanged.
+   *
+   * @param users The users.
+   * @return The users that need to be written, the given collection itself if there is no cache.
+   */
+  public Collection<TwitNewsUser> unpersisted(Collection<TwitNewsUser> users) {
+    if (userCache == null) {
+      return users;
+    }
+    List<TwitNewsUser> unpersisted = new ArrayList<TwitNewsUser>(users.size());
+    for (TwitNewsUser user : users) {
+      if (!userCache.isPersisted(user)) {
+        unpersisted.add(user);
       }
+    }
+    return unpersisted;
+  }
 
-      sql.setAutoCommit(false);
-      statement.executeBatch();
-      sql.setAutoCommit(true);
+  /**
+   * Tells the cache that users written with {@link #insertUsers(Connection, Collection)} were committed, so they are
+   * not written again while they stay unchanged.
+   *
+   * @param users The committed users.
+   */
+  public void committed(Collection<TwitNewsUser> users) {
+    if (userCache != null) {
+      userCache.persisted(users);
+    }
+  }
+
+  /**
+   * @return The cache of users known to be in the db, null if there is none.
+   */
+  public UserCache getUserCache() {
+    return userCache;
+  }
+
+  /**
+   * Inserts a list of users on a connection the caller borrowed, as part of whatever transaction the caller has open
+   * on it. Existing users are updated. The caller tells the cache once the transaction committed, see
+   * {@link #committed(Collection)}.
+   *
+   * @param conn The connection.
+   * @param users A {@link java.util.Collection} of users to insert into the db.
+   * @throws SQLException If an insert failed.
+   */
+  public void insertUsers(Connection conn, Collection<TwitNewsUser> users) throws SQLException {
+    userInsert.execute(sql, conn, users, USER_BINDER);
+  }
+
+  /**
+   * Inserts the users that don't exist yet, updates those that do, and returns the ids of all of them, in two round
+   * trips per chunk of users.
+   *
+   * @param users The users.
+   * @return int[] the id of each user, in the order of the list, -1 for any user that could not be found, or null if
+   *         something went wrong.
+   */
+  public int[] upsertUsers(List<TwitNewsUser> users) {
+    int[] ids = null;
+    Connection conn = null;
+    try {
+      conn = sql.borrowConnection();
+      userInsert.execute(sql, conn, users, USER_BINDER);
+
+      List<String> userNames = new ArrayList<String>(users.size());
+      for (TwitNewsUser user : users) {
+        userNames.add(user.getUserName());
+      }
+      ids = userIds.lookup(sql, conn, userNames);
+      if (userCache != null) {
+        for (int i = 0; i < ids.length; ++i) {
+          if (ids[i] >= 0) {
+            userCache.persisted(users.get(i), ids[i]);
+          }
+        }
+      }
     }
     catch (Exception e) {
       e.printStackTrace();
-      success = false;
     }
     finally {
-      sql.cleanUp(statement, null);
+      sql.releaseConnection(conn);
     }
-    return success;
+    return ids;
   }
 
   public void close() {
@@ -0,0 +1,363 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static util.TwitNewsConstants.DB_LEAK_STACK_TRACES;
+
+/**
+ * A bounded pool of JDBC connections. Between minConnections and maxConnections connections are kept open, idle
+ * ones are checked with {@link Connection#isValid(int)} before they are handed out, and borrowers wait up to a
+ * timeout for a connection to come back once all of them are in use.
+ *
+ * Every borrowed connection must be given back with {@link #release(Connection)}, in a finally block. Connections
+ * held for longer than the leak threshold are logged once, together with the thread that borrowed them, so forgotten
+ * releases show up in the logs rather than as a pool that slowly runs dry. Since every DAO call borrows a connection,
+ * the stack trace of the code that borrowed it is only taken with -Dtwitnews.db.leakStackTraces=true.
+ */
+public class ConnectionPool {
+
+  private static final Logger log = Logger.getLogger(ConnectionPool.class.getName());
+
+  private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+  private final String url;
+  private final String user;
+  private final String password;
+  private final int minConnections;
+  private final int maxConnections;
+  private final long borrowTimeoutMillis;
+  private final long leakThresholdMillis;
+  private final boolean leakStackTraces;
+  private final int statementCacheSize;
+
+  // Guarded by this.
+  private final Deque<Connection> idle = new ArrayDeque<Connection>();
+  private final Map<Connection, Lease> leased = new IdentityHashMap<Connection, Lease>();
+  private final Map<Connection, StatementCache> statementCaches = new IdentityHashMap<Connection, StatementCache>();
+  private int numOpening = 0;
+  private boolean closed = false;
+  private long numLeaks = 0;
+
+  private final Timer leakDetector;
+
+  /**
+   * Creates a new ConnectionPool and opens its first minConnections connections.
+   *
+   * @param url The JDBC url of the db.
+   * @param user Username.
+   * @param password Password.
+   * @param minConnections The number of connections kept open even when idle.
+   * @param maxConnections The most connections open at once.
+   * @param borrowTimeoutMillis How long {@link #borrow()} waits for a free connection before giving up.
+   * @param leakThresholdMillis How long a connection can be held before it is reported as leaked, 0 to never.
+   * @param statementCacheSize The most prepared statements cached per connection.
+   */
+  public ConnectionPool(String url, String user, String password, int minConnections, int maxConnections,
+                        long borrowTimeoutMillis, long leakThresholdMillis, int statementCacheSize) {
+    if (minConnections < 0 || maxConnections < 1 || minConnections > maxConnections) {
+      throw new IllegalArgumentException("Need 0 <= minConnections <= maxConnections and maxConnections >= 1.");
+    }
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    this.minConnections = minConnections;
+    this.maxConnections = maxConnections;
+    this.borrowTimeoutMillis = borrowTimeoutMillis;
+    this.leakThresholdMillis = leakThresholdMillis;
+    this.leakStackTraces = leakThresholdMillis > 0 &&
+                           Boolean.parseBoolean(System.getProperty("twitnews.db.leakStackTraces",
+                                                                   String.valueOf(DB_LEAK_STACK_TRACES)));
+    this.statementCacheSize = Math.max(1, statementCacheSize);
+
+    for (int i = 0; i < minConnections; ++i) {
+      try {
+        idle.push(open());
+      }
+      catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+
+    if (leakThresholdMillis > 0) {
+      leakDetector = new Timer("connection-pool-leak-detector", true);
+      long period = Math.max(1, leakThresholdMillis / 2);
+      leakDetector.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          detectLeaks();
+        }
+      }, period, period);
+    }
+    else {
+      leakDetector = null;
+    }
+  }
+
+  /**
+   * Hands out a valid connection, opening a new one if none is idle and the pool is not full, and otherwise waiting
+   * for one to be released.
+   *
+   * @return A connection in auto commit mode, to be given back with {@link #release(Connection)}.
+   * @throws SQLException If no connection could be opened, or none became free within the borrow timeout.
+   */
+  public Connection borrow() throws SQLException {
+    long deadline = System.currentTimeMillis() + borrowTimeoutMillis;
+    while (true) {
+      Connection conn;
+      synchronized (this) {
+        while (!closed && idle.isEmpty() && leased.size() + numOpening >= maxConnections) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            throw new SQLException("Timed out after " + borrowTimeoutMillis + "ms waiting for one of " +
+                                   maxConnections + " connections.");
+          }
+          try {
+            wait(remaining);
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection.");
+          }
+        }
+        if (closed) {
+          throw new SQLException("The connection pool is closed.");
+        }
+        conn = idle.poll();
+        if (conn != null) {
+          leased.put(conn, new Lease());
+        }
+        else {
+          ++numOpening;
+        }
+      }
+
+      if (conn == null) {
+        // Opened outside the lock, connecting can take a while.
+        try {
+          conn = open();
+        }
+        finally {
+          synchronized (this) {
+            --numOpening;
+            if (conn != null) {
+              leased.put(conn, new Lease());
+            }
+            notifyAll();
+          }
+        }
+        return conn;
+      }
+
+      if (isValid(conn)) {
+        return conn;
+      }
+      log.warning("Discarding a pooled connection that failed validation.");
+      discard(conn);
+    }
+  }
+
+  /**
+   * Gives a borrowed connection back to the pool. Connections left outside auto commit mode are rolled back first.
+   * Releasing null does nothing, so this can be called from a finally block whether or not the borrow succeeded.
+   *
+   * @param conn The connection.
+   */
+  public void release(Connection conn) {
+    if (conn == null) {
+      return;
+    }
+    synchronized (this) {
+      if (!leased.containsKey(conn)) {
+        log.warning("Ignoring the release of a connection that was not borrowed from this pool.");
+        return;
+      }
+    }
+
+    boolean reusable = true;
+    try {
+      if (!conn.getAutoCommit()) {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+      reusable = false;
+    }
+
+    // Only stops counting as leased once it is idle again, so the pool never opens more than maxConnections.
+    synchronized (this) {
+      leased.remove(conn);
+      if (reusable && !closed) {
+        idle.push(conn);
+        notifyAll();
+        return;
+      }
+      notifyAll();
+    }
+    closeQuietly(conn);
+  }
+
+  /**
+   * Closes the idle connections and stops handing out new ones. Connections still borrowed are closed as they are
+   * released.
+   */
+  public void close() {
+    List<Connection> toClose;
+    synchronized (this) {
+      closed = true;
+      toClose = new ArrayList<Connection>(idle);
+      idle.clear();
+      notifyAll();
+    }
+    if (leakDetector != null) {
+      leakDetector.cancel();
+    }
+    for (Connection conn : toClose) {
+      closeQuietly(conn);
+    }
+  }
+
+  /**
+   * @param conn A connection borrowed from this pool.
+   * @return The statement cache of the connection, which lives as long as the connection.
+   */
+  synchronized StatementCache getStatementCache(Connection conn) {
+    StatementCache cache = statementCaches.get(conn);
+    if (cache == null) {
+      cache = new StatementCache(statementCacheSize);
+      statementCaches.put(conn, cache);
+    }
+    return cache;
+  }
+
+  /**
+   * @return The number of connections currently borrowed.
+   */
+  public synchronized int getNumActive() {
+    return leased.size();
+  }
+
+  /**
+   * @return The number of open connections waiting in the pool.
+   */
+  public synchronized int getNumIdle() {
+    return idle.size();
+  }
+
+  /**
+   * @return The number of borrowed connections reported as leaked so far.
+   */
+  public synchronized long getNumLeaks() {
+    return numLeaks;
+  }
+
+  private Connection open() throws SQLException {
+    return DriverManager.getConnection(url, user, password);
+  }
+
+  private boolean isValid(Connection conn) {
+    try {
+      return conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+    }
+    catch (SQLException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Drops a borrowed connection that turned out to be broken, topping the pool back up to minConnections.
+   */
+  private void discard(Connection conn) {
+    boolean refill;
+    synchronized (this) {
+      leased.remove(conn);
+      refill = !closed && idle.size() + leased.size() + numOpening < minConnections;
+      if (refill) {
+        ++numOpening;
+      }
+      notifyAll();
+    }
+    closeQuietly(conn);
+    if (refill) {
+      Connection replacement = null;
+      try {
+        replacement = open();
+      }
+      catch (SQLException e) {
+        e.printStackTrace();
+      }
+      synchronized (this) {
+        --numOpening;
+        if (replacement != null && !closed) {
+          idle.push(replacement);
+          replacement = null;
+        }
+        notifyAll();
+      }
+      closeQuietly(replacement);
+    }
+  }
+
+  private void detectLeaks() {
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      for (Lease lease : leased.values()) {
+        if (!lease.reported && now - lease.borrowedAt > leakThresholdMillis) {
+          lease.reported = true;
+          ++numLeaks;
+          String message = "A connection has been held by " + lease.threadName + " for " + (now - lease.borrowedAt) +
+                           "ms, it may have leaked.";
+          if (lease.borrowSite != null) {
+            log.log(Level.WARNING, message + " Borrowed at:", lease.borrowSite);
+          }
+          else {
+            log.warning(message + " Run with -Dtwitnews.db.leakStackTraces=true to log where it was borrowed.");
+          }
+        }
+      }
+    }
+  }
+
+  private void closeQuietly(Connection conn) {
+    if (conn == null) {
+      return;
+    }
+    StatementCache cache;
+    synchronized (this) {
+      cache = statementCaches.remove(conn);
+    }
+    if (cache != null) {
+      cache.close();
+    }
+    try {
+      conn.close();
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Who holds a borrowed connection, and since when.
+   */
+  private final class Lease {
+
+    private final long borrowedAt = System.currentTimeMillis();
+    private final String threadName = Thread.currentThread().getName();
+    private final Throwable borrowSite = leakStackTraces ? new Throwable("Connection borrowed here") : null;
+    private boolean reported = false;
+  }
+}
@@ -0,0 +1,132 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+import static util.TwitNewsConstants.DB_INSERT_CHUNK_SIZE;
+
+/**
+ * Looks up the ids of rows by a unique name column, many names per query, such as the trend ids of a batch of trends
+ * just written with a multi-row INSERT IGNORE. Together they upsert a batch in two round trips per chunk, however
+ * many of its rows already existed, where the generated keys of the insert alone would skip the existing rows.
+ *
+ * Names are matched the way the column's case insensitive collation compares them. A name the db matched to a stored
+ * name that differs in more than case and trailing spaces, such as in accents, is looked up again on its own.
+ */
+public class IdLookup {
+
+  public static final int NOT_FOUND = -1;
+
+  private final String selectHead;
+  private final String selectOne;
+  private final int chunkSize;
+
+  // The sql for n names, built on first use. Racing threads at worst build the same immutable String twice.
+  private final String[] sqlByNumNames;
+
+  /**
+   * Creates a new IdLookup.
+   *
+   * @param table The table.
+   * @param idColumn The int id column.
+   * @param nameColumn The unique name column.
+   */
+  public IdLookup(String table, String idColumn, String nameColumn) {
+    this.selectHead = "SELECT " + idColumn + ", " + nameColumn + " FROM " + table + " WHERE " + nameColumn + " IN ";
+    this.selectOne = "SELECT " + idColumn + " FROM " + table + " WHERE " + nameColumn + "=?";
+    this.chunkSize = Math.max(1, Integer.getInteger("twitnews.db.insertChunkSize", DB_INSERT_CHUNK_SIZE));
+    this.sqlByNumNames = new String[chunkSize + 1];
+  }
+
+  /**
+   * @param sql The {@link MySQL_UI} the connection was borrowed from.
+   * @param conn The connection.
+   * @param names The names to look up, null names are never found.
+   * @return int[] the id of each name, in the order of the names, {@link #NOT_FOUND} for names not in the table.
+   * @throws SQLException If a query failed.
+   */
+  public int[] lookup(MySQL_UI sql, Connection conn, List<String> names) throws SQLException {
+    Map<String, Integer> idByName = new HashMap<String, Integer>();
+    Map<String, Integer> idByFoldedName = new HashMap<String, Integer>();
+
+    int done = 0;
+    while (done < names.size()) {
+      int remaining = names.size() - done;
+      int numNames = remaining >= chunkSize ? chunkSize : Integer.highestOneBit(remaining);
+      PreparedStatement statement = sql.prepareCachedStatement(conn, getSql(numNames));
+      for (int i = 0; i < numNames; ++i) {
+        statement.setString(i + 1, names.get(done + i));
+      }
+      ResultSet result = null;
+      try {
+        result = statement.executeQuery();
+        while (result.next()) {
+          idByName.put(result.getString(2), result.getInt(1));
+          idByFoldedName.put(fold(result.getString(2)), result.getInt(1));
+        }
+      }
+      finally {
+        sql.cleanUp(null, result);
+      }
+      done += numNames;
+    }
+
+    int[] ids = new int[names.size()];
+    for (int i = 0; i < ids.length; ++i) {
+      String name = names.get(i);
+      Integer id = null;
+      if (name != null) {
+        id = idByName.get(name);
+        if (id == null) {
+          id = idByFoldedName.get(fold(name));
+        }
+        if (id == null) {
+          id = lookupOne(sql, conn, name);
+        }
+      }
+      ids[i] = id == null ? NOT_FOUND : id;
+    }
+    return ids;
+  }
+
+  private Integer lookupOne(MySQL_UI sql, Connection conn, String name) throws SQLException {
+    PreparedStatement statement = sql.prepareCachedStatement(conn, selectOne);
+    statement.setString(1, name);
+    ResultSet result = null;
+    try {
+      result = statement.executeQuery();
+      return result.next() ? result.getInt(1) : null;
+    }
+    finally {
+      sql.cleanUp(null, result);
+    }
+  }
+
+  /**
+   * Lower cases the name and strips its trailing spaces, which the db ignores when comparing names.
+   */
+  private static String fold(String name) {
+    int end = name.length();
+    while (end > 0 && name.charAt(end - 1) == ' ') {
+      --end;
+    }
+    return name.substring(0, end).toLowerCase(Locale.ROOT);
+  }
+
+  private String getSql(int numNames) {
+    String sqlString = sqlByNumNames[numNames];
+    if (sqlString == null) {
+      StringBuilder sb = new StringBuilder(selectHead.length() + 3 * numNames + 1);
+      sb.append(selectHead).append('(');
+      for (int i = 0; i < numNames; ++i) {
+        sb.append(i == 0 ? "?" : ", ?");
+      }
+      sqlString = sb.append(')').toString();
+      sqlByNumNames[numNames] = sqlString;
+    }
+    return sqlString;
+  }
+}
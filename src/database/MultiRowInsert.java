@@ -0,0 +1,141 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Iterator;
+
+import static util.TwitNewsConstants.DB_INSERT_CHUNK_SIZE;
+
+/**
+ * Inserts rows with multi-row INSERT ... VALUES (...), (...) statements instead of one statement per row, which
+ * saves a round trip and a statement parse per row.
+ *
+ * Rows are sent in chunks of up to twitnews.db.insertChunkSize rows. Whatever is left after the last full chunk is
+ * split into chunks whose sizes are powers of two, so only a handful of distinct statements are ever run for one
+ * table, and all of them stay in the {@link MySQL_UI#prepareCachedStatement(Connection, String) statement cache}.
+ * A chunk size of 1 inserts one row per statement, as the DAOs used to.
+ *
+ * @param <T> The type of the rows.
+ */
+public class MultiRowInsert<T> {
+
+  private final String head;
+  private final String tail;
+  private final String rowPlaceholders;
+  private final int numColumns;
+  private final int chunkSize;
+
+  // The sql for n rows, built on first use. Racing threads at worst build the same immutable String twice.
+  private final String[] sqlByNumRows;
+
+  /**
+   * Creates a new MultiRowInsert.
+   *
+   * @param head The statement up to and including VALUES, such as "INSERT IGNORE INTO t (a, b) VALUES".
+   * @param numColumns The number of parameters per row.
+   */
+  public MultiRowInsert(String head, int numColumns) {
+    this(head, "", numColumns);
+  }
+
+  /**
+   * Creates a new MultiRowInsert.
+   *
+   * @param head The statement up to and including VALUES, such as "INSERT INTO t (a, b) VALUES".
+   * @param tail What follows the rows, such as " ON DUPLICATE KEY UPDATE b=VALUES(b)", or "" for nothing.
+   * @param numColumns The number of parameters per row.
+   */
+  public MultiRowInsert(String head, String tail, int numColumns) {
+    this(head, tail, numColumns, Integer.getInteger("twitnews.db.insertChunkSize", DB_INSERT_CHUNK_SIZE));
+  }
+
+  /**
+   * Creates a new MultiRowInsert.
+   *
+   * @param head The statement up to and including VALUES, such as "INSERT IGNORE INTO t (a, b) VALUES".
+   * @param numColumns The number of parameters per row.
+   * @param chunkSize The most rows sent in one statement.
+   */
+  public MultiRowInsert(String head, int numColumns, int chunkSize) {
+    this(head, "", numColumns, chunkSize);
+  }
+
+  /**
+   * Creates a new MultiRowInsert.
+   *
+   * @param head The statement up to and including VALUES, such as "INSERT INTO t (a, b) VALUES".
+   * @param tail What follows the rows, such as " ON DUPLICATE KEY UPDATE b=VALUES(b)", or "" for nothing.
+   * @param numColumns The number of parameters per row.
+   * @param chunkSize The most rows sent in one statement.
+   */
+  public MultiRowInsert(String head, String tail, int numColumns, int chunkSize) {
+    if (numColumns < 1) {
+      throw new IllegalArgumentException("A row needs at least one column.");
+    }
+    this.head = head;
+    this.tail = tail;
+    this.numColumns = numColumns;
+    // MySQL allows at most 65535 parameters per statement.
+    this.chunkSize = Math.max(1, Math.min(chunkSize, 65535 / numColumns));
+    this.sqlByNumRows = new String[this.chunkSize + 1];
+
+    StringBuilder sb = new StringBuilder(2 + 3 * numColumns);
+    sb.append('(');
+    for (int i = 0; i < numColumns; ++i) {
+      sb.append(i == 0 ? "?" : ", ?");
+    }
+    this.rowPlaceholders = sb.append(')').toString();
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Inserts the rows on the given connection. Callers wanting the rows inserted all or nothing should turn auto
+   * commit off around the call.
+   *
+   * @param sql The {@link MySQL_UI} the connection was borrowed from.
+   * @param conn The connection.
+   * @param rows The rows.
+   * @param binder Sets the parameters of a row.
+   * @return int the total update count reported by the db.
+   * @throws SQLException If a chunk failed. Earlier chunks have been run by then.
+   */
+  public int execute(MySQL_UI sql, Connection conn, Collection<? extends T> rows, RowBinder<? super T> binder)
+      throws SQLException {
+    int updateCount = 0;
+    int remaining = rows.size();
+    Iterator<? extends T> it = rows.iterator();
+    while (remaining > 0) {
+      int numRows = remaining >= chunkSize ? chunkSize : Integer.highestOneBit(remaining);
+      PreparedStatement statement = sql.prepareCachedStatement(conn, getSql(numRows));
+      for (int row = 0; row < numRows; ++row) {
+        binder.bind(statement, row * numColumns + 1, it.next());
+      }
+      updateCount += statement.executeUpdate();
+      remaining -= numRows;
+    }
+    return updateCount;
+  }
+
+  /**
+   * @param numRows The number of rows.
+   * @return The sql of the statement inserting that many rows.
+   */
+  String getSql(int numRows) {
+    String sqlString = sqlByNumRows[numRows];
+    if (sqlString == null) {
+      StringBuilder sb = new StringBuilder(head.length() + numRows * (rowPlaceholders.length() + 2) + tail.length());
+      sb.append(head);
+      for (int row = 0; row < numRows; ++row) {
+        sb.append(row == 0 ? " " : ", ").append(rowPlaceholders);
+      }
+      sqlString = sb.append(tail).toString();
+      sqlByNumRows[numRows] = sqlString;
+    }
+    return sqlString;
+  }
+}
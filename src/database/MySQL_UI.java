@@ -2,9 +2,20 @@ package database;
 
 import java.sql.*;
 
+import static util.TwitNewsConstants.DB_BORROW_TIMEOUT_MILLIS;
+import static util.TwitNewsConstants.DB_LEAK_THRESHOLD_MILLIS;
+import static util.TwitNewsConstants.DB_MAX_CONNECTIONS;
+import static util.TwitNewsConstants.DB_MIN_CONNECTIONS;
+import static util.TwitNewsConstants.DB_STATEMENT_CACHE_SIZE;
+import static util.TwitNewsConstants.STREAM_FETCH_SIZE;
+
 /**
  * Simple interface between Java and MySQL
  *
+ * An instance either wraps a single connection, which only one thread may use at a time, or a {@link ConnectionPool}
+ * shared by any number of threads. Either way DAOs borrow a connection per operation with
+ * {@link #borrowConnection()} and give it back with {@link #releaseConnection(Connection)}.
+ *
  * @author Lei (Ricky) Jin (rickyjin@cs.ucla.edu)
  * @author Chris Moghbel (cmoghbel@cs.ucla.edu)
  */
@@ -16,6 +27,8 @@ public class MySQL_UI {
   private final String SQL_PASSWORD;
 
   private Connection conn = null;
+  private ConnectionPool pool = null;
+  private StatementCache statementCache = null;
   
   private String twitterDB = "TweetDB";
   private String trendTable = "TweetDB.trends";
@@ -43,6 +56,143 @@ public class MySQL_UI {
     catch (Exception e) {
       e.printStackTrace();
     }
+    statementCache = new StatementCache(getStatementCacheSize());
+  }
+
+  /**
+   * Create a new MySQL_UI instance backed by a connection pool, which can be shared between threads.
+   *
+   * @param host Hostname.
+   * @param port Port.
+   * @param user Username.
+   * @param password Password.
+   * @param minConnections The number of connections kept open even when idle.
+   * @param maxConnections The most connections open at once.
+   */
+  public MySQL_UI(String host, String port, String user, String password, int minConnections, int maxConnections) {
+    SQL_HOST = host;
+    SQL_PORT = port;
+    SQL_USER = user;
+    SQL_PASSWORD = password;
+
+    try {
+      /* load the MySQL driver */
+      Class.forName("com.mysql.jdbc.Driver");
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+    }
+    pool = new ConnectionPool(getUrl(), SQL_USER, SQL_PASSWORD, minConnections, maxConnections,
+                              Integer.getInteger("twitnews.db.borrowTimeoutMillis", DB_BORROW_TIMEOUT_MILLIS),
+                              Integer.getInteger("twitnews.db.leakThresholdMillis", DB_LEAK_THRESHOLD_MILLIS),
+                              getStatementCacheSize());
+  }
+
+  /**
+   * Create a new pooled MySQL_UI instance sized from the twitnews.db.* system properties, falling back to the
+   * defaults in {@link util.TwitNewsConstants}.
+   *
+   * @param host Hostname.
+   * @param port Port.
+   * @param user Username.
+   * @param password Password.
+   * @return The new MySQL_UI.
+   */
+  public static MySQL_UI createPooled(String host, String port, String user, String password) {
+    int maxConnections = Integer.getInteger("twitnews.db.maxConnections", DB_MAX_CONNECTIONS);
+    return createPooled(host, port, user, password, maxConnections);
+  }
+
+  /**
+   * Create a new pooled MySQL_UI instance with room for at least the given number of connections.
+   *
+   * @param host Hostname.
+   * @param port Port.
+   * @param user Username.
+   * @param password Password.
+   * @param maxConnections The most connections the caller needs open at once.
+   * @return The new MySQL_UI.
+   */
+  public static MySQL_UI createPooled(String host, String port, String user, String password, int maxConnections) {
+    int minConnections = Integer.getInteger("twitnews.db.minConnections", DB_MIN_CONNECTIONS);
+    maxConnections = Math.max(1, maxConnections);
+    return new MySQL_UI(host, port, user, password, Math.min(minConnections, maxConnections), maxConnections);
+  }
+
+  /**
+   * @return boolean true if this instance is backed by a connection pool and can be shared between threads.
+   */
+  public boolean isPooled() {
+    return pool != null;
+  }
+
+  /**
+   * @return The pool backing this instance, null if it wraps a single connection.
+   */
+  public ConnectionPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Borrows a connection for one operation. Must be paired with {@link #releaseConnection(Connection)} in a finally
+   * block. Without a pool this is always the single connection of this instance.
+   *
+   * @return A connection in auto commit mode.
+   * @throws SQLException If no connection could be had.
+   */
+  public Connection borrowConnection() throws SQLException {
+    if (pool != null) {
+      return pool.borrow();
+    }
+    if (conn == null) {
+      throw new SQLException("Not connected to " + getUrl());
+    }
+    return conn;
+  }
+
+  /**
+   * Gives back a connection borrowed with {@link #borrowConnection()}. A transaction left open by a failed operation
+   * is rolled back. Null is ignored.
+   *
+   * @param connection The connection.
+   */
+  public void releaseConnection(Connection connection) {
+    if (pool != null) {
+      pool.release(connection);
+      return;
+    }
+    if (connection == null) {
+      return;
+    }
+    try {
+      if (!connection.getAutoCommit()) {
+        connection.rollback();
+        connection.setAutoCommit(true);
+      }
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Rolls back the open transaction of a borrowed connection, for the catch block of a failed transaction. A failed
+   * rollback is only logged, the connection is rolled back again when it is released. Null is ignored.
+   *
+   * @param connection The connection.
+   */
+  public void rollback(Connection connection) {
+    if (connection == null) {
+      return;
+    }
+    try {
+      if (!connection.getAutoCommit()) {
+        connection.rollback();
+      }
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+    }
   }
   
   public String getDBName() {
@@ -106,10 +256,12 @@ public class MySQL_UI {
    * Tries to create Twitter database.
    */
   public void createDatabase() {
+    Connection connection = null;
     Statement query = null;
     try {
+      connection = borrowConnection();
       /* create a query statement */
-      query = conn.createStatement();
+      query = connection.createStatement();
 
       /* execute the query */
       query.executeUpdate("CREATE DATABASE IF NOT EXISTS " + twitterDB + ";");
@@ -119,6 +271,7 @@ public class MySQL_UI {
     }
     finally {
       cleanUp(query, null);
+      releaseConnection(connection);
     }
   }
 
@@ -129,10 +282,12 @@ public class MySQL_UI {
    */
   public boolean createTrendTable() {
     boolean success = true;
+    Connection connection = null;
     Statement query = null;
     try {
+      connection = borrowConnection();
       /* create a query statement */
-      query = conn.createStatement();
+      query = connection.createStatement();
 
       /* execute the query */
       query.executeUpdate("CREATE TABLE IF NOT EXISTS " + trendTable +
@@ -148,6 +303,7 @@ public class MySQL_UI {
     }
     finally {
       cleanUp(query, null);
+      releaseConnection(connection);
     }
     return success;
   }
@@ -159,10 +315,12 @@ public class MySQL_UI {
    */
   public boolean createUserTable() {
     boolean success = true;
+    Connection connection = null;
     Statement query = null;
     try {
+      connection = borrowConnection();
       /* create a query statement */
-      query = conn.createStatement();
+      query = connection.createStatement();
 
       /* execute the query */
       query.executeUpdate("CREATE TABLE IF NOT EXISTS " + userTable +
@@ -181,6 +339,7 @@ public class MySQL_UI {
     }
     finally {
       cleanUp(query, null);
+      releaseConnection(connection);
     }
     return success;
   }
@@ -192,15 +351,17 @@ public class MySQL_UI {
    */
   public boolean createTweetTable() {
     boolean success = true;
+    Connection connection = null;
     Statement query = null;
     try {
+      connection = borrowConnection();
       
       /* create a query statement */
-      query = conn.createStatement();
+      query = connection.createStatement();
 
       /* execute the query */
       query.executeUpdate("CREATE TABLE IF NOT EXISTS " + tweetTable +
-                          "(tweetId         INT NOT NULL AUTO_INCREMENT," +
+                          "(tweetId         BIGINT NOT NULL," +
                           "                 PRIMARY KEY (tweetId)," +
                           " trendId         INT," +
                           " userName        VARCHAR(40)," +
@@ -228,6 +389,7 @@ public class MySQL_UI {
     }
     finally {
       cleanUp(query, null);
+      releaseConnection(connection);
     }
     return success;
   }
@@ -239,14 +401,16 @@ public class MySQL_UI {
    */
   public boolean createRankTable() {
     boolean  success = true;
+    Connection connection = null;
     PreparedStatement statement = null;
     try {
+      connection = borrowConnection();
 
       String queryString = "CREATE TABLE IF NOT EXISTS " + getRankTableName() +
                            "(rankId           INT NOT NULL AUTO_INCREMENT," +
                            "                  PRIMARY KEY (rankId)," +
                            " trendId          INT NOT NULL," +
-                           " tweetId          INT NOT NULL," +
+                           " tweetId          BIGINT NOT NULL," +
                            " rank             INT NOT NULL," +
                            " FOREIGN KEY (trendId)" +
                            "   REFERENCES TweetDB.trends(trendId)" +
@@ -255,13 +419,17 @@ public class MySQL_UI {
                            "   REFERENCES TweetDB.tweets(tweetId)" +
                            "   " +
                            ");";
-      statement = conn.prepareStatement(queryString);
+      statement = connection.prepareStatement(queryString);
       statement.execute();
     }
     catch (SQLException e) {
       e.printStackTrace();
       success = false;
     }
+    finally {
+      cleanUp(statement, null);
+      releaseConnection(connection);
+    }
     return success;
   }
   
@@ -269,10 +437,12 @@ public class MySQL_UI {
    * Drops the entire database, useful for a quick reset.
    */
   public void dropDatabase() {
+    Connection connection = null;
     Statement query = null;
     try {
+      connection = borrowConnection();
       /* create a query statement */
-      query = conn.createStatement();
+      query = connection.createStatement();
 
       /* execute the query */
       query.executeUpdate("DROP DATABASE IF EXISTS " + twitterDB + ";");
@@ -282,34 +452,107 @@ public class MySQL_UI {
     }
     finally {
       cleanUp(query, null);
+      releaseConnection(connection);
     }
   }
 
   /**
-   * Creates a {@link PreparedStatement} from the backing connection.
+   * Creates a {@link PreparedStatement} from the backing connection. Not available on pooled instances, use
+   * {@link #borrowConnection()} instead.
    *
    * @param sqlString The string representing the sql query.
    * @return The new PerparedStatement object.
    * @throws SQLException If there was a problem creating the prepared statement.
    */
   public PreparedStatement prepareStatement(String sqlString) throws SQLException {
+    checkNotPooled();
     return conn.prepareStatement(sqlString);
   }
 
   /**
-   * Changes the state of the auto commmit feature of sql connection.
+   * Creates a forward only, read only {@link PreparedStatement} whose results are streamed from the server instead of
+   * being read into memory all at once. The fetch size is set by the twitnews.fetchSize system property. The default,
+   * Integer.MIN_VALUE, makes Connector/J stream row by row. Positive sizes need useCursorFetch=true on the connection.
+   *
+   * While a streamed result set is open, no other statement can be run on its connection.
+   *
+   * @param connection A connection borrowed with {@link #borrowConnection()}.
+   * @param sqlString The string representing the sql query.
+   * @return The new PreparedStatement object.
+   * @throws SQLException If there was a problem creating the prepared statement.
+   */
+  public PreparedStatement prepareStreamingStatement(Connection connection, String sqlString) throws SQLException {
+    PreparedStatement statement = connection.prepareStatement(sqlString, ResultSet.TYPE_FORWARD_ONLY,
+                                                              ResultSet.CONCUR_READ_ONLY);
+    statement.setFetchSize(Integer.getInteger("twitnews.fetchSize", STREAM_FETCH_SIZE));
+    return statement;
+  }
+
+  /**
+   * Returns a prepared statement for the sql text from the statement cache of the connection, preparing it only the
+   * first time the connection runs that sql. Its parameters and batch are cleared. The statement belongs to the
+   * cache: close its result sets, but not the statement itself, and don't use it once the connection is released.
+   *
+   * @param connection A connection borrowed with {@link #borrowConnection()}.
+   * @param sqlString The string representing the sql query.
+   * @return The cached PreparedStatement object.
+   * @throws SQLException If there was a problem creating the prepared statement.
+   */
+  public PreparedStatement prepareCachedStatement(Connection connection, String sqlString) throws SQLException {
+    StatementCache cache = pool != null ? pool.getStatementCache(connection) : statementCache;
+    return cache.prepare(connection, sqlString);
+  }
+
+  /**
+   * Reads the auto increment id generated by the insert just run on a statement prepared with
+   * {@link Statement#RETURN_GENERATED_KEYS}, such as a cached one. For an INSERT ... ON DUPLICATE KEY UPDATE
+   * id=LAST_INSERT_ID(id) this is the id of the existing row. Only falls back to a SELECT LAST_INSERT_ID() if the
+   * driver reported no key.
+   *
+   * @param connection The connection the insert ran on.
+   * @param statement The statement.
+   * @return int the generated id, 0 if the insert generated none.
+   * @throws SQLException If the id could not be read.
+   */
+  public int getGeneratedKey(Connection connection, Statement statement) throws SQLException {
+    ResultSet result = null;
+    Statement query = null;
+    try {
+      result = statement.getGeneratedKeys();
+      if (result.next()) {
+        return result.getInt(1);
+      }
+      result.close();
+      query = connection.createStatement();
+      result = query.executeQuery("SELECT LAST_INSERT_ID();");
+      return result.next() ? result.getInt(1) : 0;
+    }
+    finally {
+      cleanUp(query, result);
+    }
+  }
+
+  /**
+   * Changes the state of the auto commmit feature of sql connection. Not available on pooled instances, set it on a
+   * borrowed connection instead.
    *
    * @param state The new state.
    * @throws SQLException If there was a problem changing the state.
    */
   public void setAutoCommit(boolean state) throws SQLException {
+    checkNotPooled();
     conn.setAutoCommit(state);
   }
 
   /**
-   * Closes the connection for this instance.
+   * Closes the connection for this instance, or all pooled connections as they are released.
    */
   public void closeConnection() {
+    if (pool != null) {
+      pool.close();
+      return;
+    }
+    statementCache.close();
     try {
       conn.close();
     } catch (Exception e) {
@@ -326,7 +569,7 @@ public class MySQL_UI {
    */
   private Connection getConnection(Connection conn) {
     try {
-      String url = "jdbc:mysql://" + SQL_HOST + ":" + SQL_PORT + "/mysql";
+      String url = getUrl();
       
       /* load the MySQL driver */
       Class.forName("com.mysql.jdbc.Driver");
@@ -340,6 +583,25 @@ public class MySQL_UI {
     return conn;
   }
   
+  /**
+   * The connection url. Statements are prepared server side, so that the statements in the statement caches are only
+   * parsed once by the server, unless twitnews.db.serverPrepStmts is set to false.
+   */
+  private String getUrl() {
+    boolean serverPrepStmts = Boolean.parseBoolean(System.getProperty("twitnews.db.serverPrepStmts", "true"));
+    return "jdbc:mysql://" + SQL_HOST + ":" + SQL_PORT + "/mysql?useServerPrepStmts=" + serverPrepStmts;
+  }
+
+  private static int getStatementCacheSize() {
+    return Math.max(1, Integer.getInteger("twitnews.db.statementCacheSize", DB_STATEMENT_CACHE_SIZE));
+  }
+
+  private void checkNotPooled() {
+    if (pool != null) {
+      throw new IllegalStateException("Pooled instances have no single connection, borrow one instead.");
+    }
+  }
+
   /**
    * Cleans up the variables.
    *
@@ -0,0 +1,20 @@
+package database;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Sets the parameters of one row of a {@link MultiRowInsert}.
+ *
+ * @param <T> The type of the rows.
+ */
+public interface RowBinder<T> {
+
+  /**
+   * @param statement The insert statement.
+   * @param offset The index of the row's first parameter. The row's columns are offset, offset + 1, and so on.
+   * @param row The row.
+   * @throws SQLException If a parameter could not be set.
+   */
+  void bind(PreparedStatement statement, int offset, T row) throws SQLException;
+}
@@ -0,0 +1,76 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The prepared statements of one connection, keyed by their sql text, so that statements run over and over, such as
+ * the batch inserts of the ingest writers, are only prepared once per connection. The least recently used statement
+ * is closed once more than capacity statements are cached. Statements are prepared with
+ * {@link Statement#RETURN_GENERATED_KEYS}, so inserts can read back the ids they generated without another query.
+ *
+ * Like the connection it belongs to, a cache must only be used by one thread at a time.
+ */
+class StatementCache {
+
+  private final Map<String, PreparedStatement> statements;
+
+  StatementCache(final int capacity) {
+    statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+        if (size() <= capacity) {
+          return false;
+        }
+        close(eldest.getValue());
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached statement for the sql text, with its parameters and batch cleared, preparing it on the
+   * connection if it is not cached yet.
+   *
+   * @param conn The connection the cache belongs to.
+   * @param sqlString The sql text.
+   * @return The statement. Callers must not close it.
+   * @throws SQLException If the statement could not be prepared.
+   */
+  PreparedStatement prepare(Connection conn, String sqlString) throws SQLException {
+    PreparedStatement statement = statements.get(sqlString);
+    if (statement != null && !statement.isClosed()) {
+      statement.clearParameters();
+      statement.clearBatch();
+      return statement;
+    }
+    statement = conn.prepareStatement(sqlString, Statement.RETURN_GENERATED_KEYS);
+    statements.put(sqlString, statement);
+    return statement;
+  }
+
+  /**
+   * Closes every cached statement.
+   */
+  void close() {
+    Iterator<PreparedStatement> it = statements.values().iterator();
+    while (it.hasNext()) {
+      close(it.next());
+      it.remove();
+    }
+  }
+
+  private static void close(PreparedStatement statement) {
+    try {
+      statement.close();
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+}
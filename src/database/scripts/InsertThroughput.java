@@ -0,0 +1,159 @@
+package database.scripts;
+
+import dao.TrendDAO;
+import dao.TweetDAO;
+import dao.UserDAO;
+import database.MySQL_UI;
+import domain.TwitNewsTrend;
+import domain.TwitNewsTweet;
+import domain.TwitNewsUser;
+import fileIO.SqlDumpReader;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.*;
+
+import static util.TwitNewsConstants.INGEST_BATCH_SIZE;
+
+/**
+ * Quick script that measures how many rows per second the DAO batch inserts write, replaying the tweets and users of
+ * a dump in batches of INGEST_BATCH_SIZE rows, one transaction per batch. Each insert chunk size given is measured in
+ * turn, 1 being one row per statement as the DAOs used to insert. The replayed tweets are given fresh ids above the
+ * highest one in the db before each pass, since tweets already there would be skipped, and deleted again after it.
+ * Users are upserted, so later passes rewrite the users of the first one with the same values.
+ *
+ * Requires host port user password dump, in that order, and optionally a comma separated list of chunk sizes, 1,100
+ * by default. Run it against a scratch database set up with CreateCleanDB, never against real data.
+ */
+public class InsertThroughput {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 5) {
+      System.err.println("Must provide 5 arguments: host port user password dump [chunkSizes]");
+      System.exit(1);
+    }
+    String[] chunkSizes = (args.length > 5 ? args[5] : "1,100").split(",");
+
+    SqlDumpReader reader = new SqlDumpReader(args[4]);
+    reader.read();
+    System.out.println("Read " + reader.getTweets().size() + " tweets and " + reader.getUsers().size() +
+                       " users from " + args[4]);
+
+    MySQL_UI sql = MySQL_UI.createPooled(args[0], args[1], args[2], args[3], 1);
+    Map<Integer, List<List<TwitNewsTweet>>> batches = batchTweetsByTrend(sql, reader);
+
+    for (String chunkSize : chunkSizes) {
+      System.setProperty("twitnews.db.insertChunkSize", chunkSize.trim());
+      TweetDAO tweetDAO = new TweetDAO(sql);
+      UserDAO userDAO = new UserDAO(sql, null);
+      long maxTweetIdBefore = maxTweetId(sql);
+      renumberTweets(batches, maxTweetIdBefore);
+
+      long start = System.nanoTime();
+      long rows = 0;
+      for (Map.Entry<Integer, List<List<TwitNewsTweet>>> entry : batches.entrySet()) {
+        for (List<TwitNewsTweet> batch : entry.getValue()) {
+          if (tweetDAO.insertTweets(batch, entry.getKey())) {
+            rows += batch.size();
+          }
+        }
+      }
+      long tweetNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      long userRows = 0;
+      List<TwitNewsUser> users = reader.getUsers();
+      for (int i = 0; i < users.size(); i += INGEST_BATCH_SIZE) {
+        List<TwitNewsUser> batch = users.subList(i, Math.min(users.size(), i + INGEST_BATCH_SIZE));
+        if (userDAO.insertUsers(batch)) {
+          userRows += batch.size();
+        }
+      }
+      long userNanos = System.nanoTime() - start;
+
+      System.out.println(String.format("chunk size %4s: %8.0f tweet rows/s, %8.0f user rows/s",
+                                       chunkSize.trim(), rows / (tweetNanos / 1e9), userRows / (userNanos / 1e9)));
+      deleteTweetsAfter(sql, maxTweetIdBefore);
+    }
+    sql.closeConnection();
+  }
+
+  /**
+   * Inserts the trends of the dump and splits its tweets into ingest sized batches per trend id of the db.
+   */
+  private static Map<Integer, List<List<TwitNewsTweet>>> batchTweetsByTrend(MySQL_UI sql, SqlDumpReader reader) {
+    TrendDAO trendDAO = new TrendDAO(sql);
+    trendDAO.insertTrends(reader.getTrends());
+    Map<String, Integer> trendIdByName = new HashMap<String, Integer>();
+    for (TwitNewsTrend trend : trendDAO.fetchAllTrends()) {
+      trendIdByName.put(trend.getName(), trend.getTrendId());
+    }
+    Map<Integer, Integer> trendIdByDumpId = new HashMap<Integer, Integer>();
+    for (TwitNewsTrend trend : reader.getTrends()) {
+      trendIdByDumpId.put(trend.getTrendId(), trendIdByName.get(trend.getName()));
+    }
+
+    Map<Integer, List<List<TwitNewsTweet>>> batches = new LinkedHashMap<Integer, List<List<TwitNewsTweet>>>();
+    for (TwitNewsTweet tweet : reader.getTweets()) {
+      Integer trendId = trendIdByDumpId.get(tweet.getTrendId());
+      if (trendId == null) {
+        continue;
+      }
+      List<List<TwitNewsTweet>> trendBatches = batches.get(trendId);
+      if (trendBatches == null) {
+        trendBatches = new ArrayList<List<TwitNewsTweet>>();
+        batches.put(trendId, trendBatches);
+      }
+      if (trendBatches.isEmpty() || trendBatches.get(trendBatches.size() - 1).size() == INGEST_BATCH_SIZE) {
+        trendBatches.add(new ArrayList<TwitNewsTweet>(INGEST_BATCH_SIZE));
+      }
+      trendBatches.get(trendBatches.size() - 1).add(tweet);
+    }
+    return batches;
+  }
+
+  /**
+   * Numbers the tweets from one past the given id, in batch order.
+   */
+  private static void renumberTweets(Map<Integer, List<List<TwitNewsTweet>>> batches, long maxTweetId) {
+    long tweetId = maxTweetId;
+    for (List<List<TwitNewsTweet>> trendBatches : batches.values()) {
+      for (List<TwitNewsTweet> batch : trendBatches) {
+        for (TwitNewsTweet tweet : batch) {
+          tweet.setTweetId(++tweetId);
+        }
+      }
+    }
+  }
+
+  private static long maxTweetId(MySQL_UI sql) throws Exception {
+    Connection conn = sql.borrowConnection();
+    PreparedStatement statement = null;
+    ResultSet result = null;
+    try {
+      statement = conn.prepareStatement("SELECT COALESCE(MAX(tweetId), 0) FROM " + sql.getTweetTableName());
+      result = statement.executeQuery();
+      result.next();
+      return result.getLong(1);
+    }
+    finally {
+      sql.cleanUp(statement, result);
+      sql.releaseConnection(conn);
+    }
+  }
+
+  private static void deleteTweetsAfter(MySQL_UI sql, long tweetId) throws Exception {
+    Connection conn = sql.borrowConnection();
+    PreparedStatement statement = null;
+    try {
+      statement = conn.prepareStatement("DELETE FROM " + sql.getTweetTableName() + " WHERE tweetId>?");
+      statement.setLong(1, tweetId);
+      statement.executeUpdate();
+    }
+    finally {
+      sql.cleanUp(statement, null);
+      sql.releaseConnection(conn);
+    }
+  }
+}
@@ -0,0 +1,338 @@
+package datastructures;
+
+import java.util.*;
+
+/**
+ * An Aho-Corasick automaton that finds every occurrence of a fixed set of patterns in a text in one linear pass,
+ * however many patterns there are. Matching ignores case, lower casing one code point at a time, and can optionally
+ * ignore spaces too, so that the trend "Occupy Wall St" is found in "#OccupyWallSt".
+ *
+ * Automatons are immutable once built, so one instance can be shared by any number of matching threads. Use a
+ * {@link Builder} to create them.
+ */
+public class AhoCorasick {
+
+  /**
+   * Receives the matches found by {@link AhoCorasick#match(CharSequence, MatchSink)}.
+   */
+  public interface MatchSink {
+
+    /**
+     * Called once per occurrence of a pattern, in the order the occurrences end in the text.
+     *
+     * @param value The value the pattern was added with.
+     * @param end The index in the text just after the last char of the occurrence.
+     */
+    void match(int value, int end);
+  }
+
+  private static final int ROOT = 0;
+  private static final int NONE = -1;
+  private static final int[] NO_VALUES = new int[0];
+
+  private final boolean ignoreSpaces;
+  private final int numPatterns;
+
+  // Transitions of state s are labels/targets[edgeStart[s], edgeStart[s + 1]), sorted by label.
+  private final int[] edgeStart;
+  private final char[] labels;
+  private final int[] targets;
+
+  // Transitions out of the root for ASCII chars, the state most chars are matched from.
+  private final int[] rootAscii = new int[128];
+
+  private final int[] fail;
+
+  // Values of the patterns ending at state s are values[valueStart[s], valueStart[s + 1]).
+  private final int[] valueStart;
+  private final int[] values;
+
+  // The closest state down the failure chain of s that has values, NONE if there is none.
+  private final int[] outputLink;
+
+  private AhoCorasick(Builder builder) {
+    this.ignoreSpaces = builder.ignoreSpaces;
+    this.numPatterns = builder.numPatterns;
+
+    List<TreeMap<Character, Integer>> trie = builder.trie;
+    int numStates = trie.size();
+
+    edgeStart = new int[numStates + 1];
+    int numEdges = 0;
+    for (int s = 0; s < numStates; ++s) {
+      edgeStart[s] = numEdges;
+      numEdges += trie.get(s).size();
+    }
+    edgeStart[numStates] = numEdges;
+    labels = new char[numEdges];
+    targets = new int[numEdges];
+    for (int s = 0; s < numStates; ++s) {
+      int e = edgeStart[s];
+      for (Map.Entry<Character, Integer> edge : trie.get(s).entrySet()) {
+        labels[e] = edge.getKey();
+        targets[e] = edge.getValue();
+        ++e;
+      }
+    }
+    for (char c = 0; c < 128; ++c) {
+      int target = child(ROOT, c);
+      rootAscii[c] = target == NONE ? ROOT : target;
+    }
+
+    valueStart = new int[numStates + 1];
+    int numValues = 0;
+    for (int s = 0; s < numStates; ++s) {
+      valueStart[s] = numValues;
+      List<Integer> stateValues = builder.values.get(s);
+      numValues += stateValues == null ? 0 : stateValues.size();
+    }
+    valueStart[numStates] = numValues;
+    values = new int[numValues];
+    for (int s = 0; s < numStates; ++s) {
+      List<Integer> stateValues = builder.values.get(s);
+      if (stateValues != null) {
+        for (int i = 0; i < stateValues.size(); ++i) {
+          values[valueStart[s] + i] = stateValues.get(i);
+        }
+      }
+    }
+
+    // Failure and output links, breadth first so a state's links are set before its children need them.
+    fail = new int[numStates];
+    outputLink = new int[numStates];
+    outputLink[ROOT] = NONE;
+    int[] queue = new int[numStates];
+    int head = 0;
+    int tail = 0;
+    for (int e = edgeStart[ROOT]; e < edgeStart[ROOT + 1]; ++e) {
+      fail[targets[e]] = ROOT;
+      outputLink[targets[e]] = NONE;
+      queue[tail++] = targets[e];
+    }
+    while (head < tail) {
+      int s = queue[head++];
+      for (int e = edgeStart[s]; e < edgeStart[s + 1]; ++e) {
+        int child = targets[e];
+        int f = fail[s];
+        int next;
+        while ((next = child(f, labels[e])) == NONE && f != ROOT) {
+          f = fail[f];
+        }
+        fail[child] = next == NONE ? ROOT : next;
+        outputLink[child] = hasValues(fail[child]) ? fail[child] : outputLink[fail[child]];
+        queue[tail++] = child;
+      }
+    }
+  }
+
+  /**
+   * @return The number of patterns the automaton was built from.
+   */
+  public int size() {
+    return numPatterns;
+  }
+
+  /**
+   * Reports every occurrence of every pattern in the text, overlapping ones included.
+   *
+   * @param text The text to search.
+   * @param sink Receives the matches.
+   * @return int the number of matches reported.
+   */
+  public int match(CharSequence text, MatchSink sink) {
+    int matches = 0;
+    int state = ROOT;
+    int length = text.length();
+    for (int i = 0; i < length; ++i) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        if (c == ' ' && ignoreSpaces) {
+          continue;
+        }
+        state = state == ROOT ? rootAscii[c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c] : step(state, lowerAscii(c));
+      }
+      else if (c == '\u0130') {
+        // The one char whose lower case is two chars: i followed by a combining dot above.
+        state = step(state, 'i');
+        matches += report(state, i + 1, sink);
+        state = step(state, '\u0307');
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+        int lower = Character.toLowerCase(Character.toCodePoint(c, text.charAt(i + 1)));
+        ++i;
+        if (Character.isBmpCodePoint(lower)) {
+          state = step(state, (char) lower);
+        }
+        else {
+          state = step(state, Character.highSurrogate(lower));
+          matches += report(state, i + 1, sink);
+          state = step(state, Character.lowSurrogate(lower));
+        }
+      }
+      else {
+        state = step(state, Character.toLowerCase(c));
+      }
+      matches += report(state, i + 1, sink);
+    }
+    return matches;
+  }
+
+  /**
+   * Finds which patterns occur in the text.
+   *
+   * @param text The text to search.
+   * @return The distinct values of the patterns found, in the order their first occurrence ends in the text.
+   */
+  public int[] matchAll(CharSequence text) {
+    final int[][] found = {NO_VALUES};
+    final int[] numFound = {0};
+    match(text, new MatchSink() {
+      @Override
+      public void match(int value, int end) {
+        for (int i = 0; i < numFound[0]; ++i) {
+          if (found[0][i] == value) {
+            return;
+          }
+        }
+        if (numFound[0] == found[0].length) {
+          found[0] = Arrays.copyOf(found[0], Math.max(4, numFound[0] * 2));
+        }
+        found[0][numFound[0]++] = value;
+      }
+    });
+    return numFound[0] == found[0].length ? found[0] : Arrays.copyOf(found[0], numFound[0]);
+  }
+
+  private int step(int state, char c) {
+    int next;
+    while ((next = child(state, c)) == NONE) {
+      if (state == ROOT) {
+        return ROOT;
+      }
+      state = fail[state];
+    }
+    return next;
+  }
+
+  private int report(int state, int end, MatchSink sink) {
+    int matches = 0;
+    int s = hasValues(state) ? state : outputLink[state];
+    while (s != NONE) {
+      for (int v = valueStart[s]; v < valueStart[s + 1]; ++v) {
+        sink.match(values[v], end);
+        ++matches;
+      }
+      s = outputLink[s];
+    }
+    return matches;
+  }
+
+  private boolean hasValues(int state) {
+    return valueStart[state] != valueStart[state + 1];
+  }
+
+  private int child(int state, char c) {
+    int low = edgeStart[state];
+    int high = edgeStart[state + 1] - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      char label = labels[mid];
+      if (label < c) {
+        low = mid + 1;
+      }
+      else if (label > c) {
+        high = mid - 1;
+      }
+      else {
+        return targets[mid];
+      }
+    }
+    return NONE;
+  }
+
+  private static char lowerAscii(char c) {
+    return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  /**
+   * Collects patterns and builds an {@link AhoCorasick} from them. Builders are not thread safe.
+   */
+  public static class Builder {
+
+    private final boolean ignoreSpaces;
+    private final List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+    private final Map<Integer, List<Integer>> values = new HashMap<Integer, List<Integer>>();
+    private int numPatterns = 0;
+
+    /**
+     * Creates a new Builder.
+     *
+     * @param ignoreSpaces Whether ' ' chars are skipped, in patterns as well as in the texts searched.
+     */
+    public Builder(boolean ignoreSpaces) {
+      this.ignoreSpaces = ignoreSpaces;
+      trie.add(new TreeMap<Character, Integer>());
+    }
+
+    /**
+     * Adds a pattern. Patterns that are empty once spaces are ignored would match everywhere, so they are skipped.
+     *
+     * @param pattern The pattern.
+     * @param value The value reported when the pattern is found. Several patterns may share a value.
+     * @return This builder.
+     */
+    public Builder add(String pattern, int value) {
+      String normalized = normalize(pattern);
+      if (normalized.length() == 0) {
+        return this;
+      }
+      int state = ROOT;
+      for (int i = 0; i < normalized.length(); ++i) {
+        Character c = normalized.charAt(i);
+        Integer next = trie.get(state).get(c);
+        if (next == null) {
+          next = trie.size();
+          trie.add(new TreeMap<Character, Integer>());
+          trie.get(state).put(c, next);
+        }
+        state = next;
+      }
+      List<Integer> stateValues = values.get(state);
+      if (stateValues == null) {
+        stateValues = new ArrayList<Integer>(1);
+        values.put(state, stateValues);
+      }
+      stateValues.add(value);
+      ++numPatterns;
+      return this;
+    }
+
+    public AhoCorasick build() {
+      return new AhoCorasick(this);
+    }
+
+    /**
+     * Lower cases the pattern exactly the way {@link AhoCorasick#match} lower cases the text.
+     */
+    private String normalize(String pattern) {
+      StringBuilder sb = new StringBuilder(pattern.length());
+      for (int i = 0; i < pattern.length(); ++i) {
+        char c = pattern.charAt(i);
+        if (c == ' ' && ignoreSpaces) {
+          continue;
+        }
+        if (c == '\u0130') {
+          sb.append('i').append('\u0307');
+        }
+        else if (Character.isHighSurrogate(c) && i + 1 < pattern.length() &&
+                 Character.isLowSurrogate(pattern.charAt(i + 1))) {
+          sb.appendCodePoint(Character.toLowerCase(Character.toCodePoint(c, pattern.charAt(++i))));
+        }
+        else {
+          sb.append(Character.toLowerCase(c));
+        }
+      }
+      return sb.toString();
+    }
+  }
+}
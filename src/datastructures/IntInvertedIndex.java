@@ -0,0 +1,264 @@
+package datastructures;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An {@link InvertedIndex} from String terms to int values, such as trend ids, without boxing. Terms get dense ids
+ * from a {@link TermDictionary} and values get dense slots in the order they are first put, so each term's postings
+ * are a sorted int[] of value slots. Counting how many terms of a document point at each value is done by an
+ * {@link Accumulator}, which only touches primitive arrays.
+ *
+ * The index is not thread safe while it is being built. Once {@link #freeze()} has been called it can no longer
+ * change, and any number of threads can read it without locking, each through its own accumulator, as long as the
+ * index was handed to them through a volatile write, such as an AtomicReference.
+ */
+public class IntInvertedIndex {
+
+  private static final int[] NO_POSTINGS = new int[0];
+
+  private final TermDictionary dictionary = new TermDictionary();
+
+  // Sorted value slots per term id, only the first postingSizes[termId] entries are in use.
+  private int[][] postings = new int[16][];
+  private int[] postingSizes = new int[16];
+
+  private int[] slotValues = new int[16];
+  private int numSlots = 0;
+
+  // Only consulted when putting, so boxing here stays off the lookup path.
+  private final Map<Integer, Integer> valueToSlot = new HashMap<Integer, Integer>();
+
+  private boolean frozen = false;
+
+  public TermDictionary getDictionary() {
+    return dictionary;
+  }
+
+  /**
+   * @return The number of terms in the index.
+   */
+  public int size() {
+    return dictionary.size();
+  }
+
+  public boolean isEmpty() {
+    return dictionary.isEmpty();
+  }
+
+  /**
+   * @return The number of distinct values in the index.
+   */
+  public int numValues() {
+    return numSlots;
+  }
+
+  public boolean containsKey(String term) {
+    return dictionary.get(term) != TermDictionary.NOT_FOUND;
+  }
+
+  /**
+   * @param term The term.
+   * @return The values the term points at, ordered by when each value was first put, empty if the term is unknown.
+   */
+  public int[] get(String term) {
+    int termId = dictionary.get(term);
+    if (termId == TermDictionary.NOT_FOUND) {
+      return NO_POSTINGS;
+    }
+    int[] values = new int[postingSizes[termId]];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = slotValues[postings[termId][i]];
+    }
+    return values;
+  }
+
+  public void put(String term, int value) {
+    checkNotFrozen();
+    int termId = dictionary.intern(term);
+    if (termId == postings.length) {
+      postings = Arrays.copyOf(postings, termId * 2);
+      postingSizes = Arrays.copyOf(postingSizes, termId * 2);
+    }
+    if (postings[termId] == null) {
+      postings[termId] = new int[2];
+    }
+
+    int slot = slotFor(value);
+    int[] list = postings[termId];
+    int size = postingSizes[termId];
+    int index = Arrays.binarySearch(list, 0, size, slot);
+    if (index >= 0) {
+      return;
+    }
+    index = -(index + 1);
+    if (size == list.length) {
+      list = Arrays.copyOf(list, size * 2);
+      postings[termId] = list;
+    }
+    System.arraycopy(list, index, list, index + 1, size - index);
+    list[index] = slot;
+    postingSizes[termId] = size + 1;
+  }
+
+  public void putAll(Collection<String> terms, int value) {
+    for (String term : terms) {
+      put(term, value);
+    }
+  }
+
+  public void clear() {
+    checkNotFrozen();
+    Arrays.fill(postings, 0, dictionary.size(), null);
+    Arrays.fill(postingSizes, 0, dictionary.size(), 0);
+    dictionary.clear();
+    valueToSlot.clear();
+    numSlots = 0;
+  }
+
+  /**
+   * Makes the index read only. Puts and clears throw an IllegalStateException afterwards.
+   */
+  public void freeze() {
+    frozen = true;
+  }
+
+  public boolean isFrozen() {
+    return frozen;
+  }
+
+  /**
+   * Creates an accumulator for this index. Accumulators are not thread safe, keep one per thread.
+   *
+   * @return A new, empty accumulator.
+   */
+  public Accumulator newAccumulator() {
+    return new Accumulator();
+  }
+
+  private void checkNotFrozen() {
+    if (frozen) {
+      throw new IllegalStateException("The index is frozen.");
+    }
+  }
+
+  private int slotFor(int value) {
+    Integer slot = valueToSlot.get(value);
+    if (slot != null) {
+      return slot;
+    }
+    if (numSlots == slotValues.length) {
+      slotValues = Arrays.copyOf(slotValues, numSlots * 2);
+    }
+    slotValues[numSlots] = value;
+    valueToSlot.put(value, numSlots);
+    return numSlots++;
+  }
+
+  /**
+   * Counts, for one document at a time, how many of the document's distinct terms point at each value. Call
+   * {@link #reset()} before each document, add its terms, then read off the best value. Puts made to the index are
+   * only picked up by the next reset.
+   */
+  public final class Accumulator {
+
+    private int[] counts = new int[0];
+    private int[] touchedSlots = new int[0];
+    private int numTouched = 0;
+
+    // A term is only counted once per document: termStamps[termId] == stamp once it has been added.
+    private int[] termStamps = new int[0];
+    private int stamp = 0;
+
+    private Accumulator() {
+    }
+
+    /**
+     * Clears the counts of the previous document.
+     */
+    public void reset() {
+      for (int i = 0; i < numTouched; ++i) {
+        counts[touchedSlots[i]] = 0;
+      }
+      numTouched = 0;
+      if (counts.length < numSlots) {
+        counts = new int[slotValues.length];
+        touchedSlots = new int[slotValues.length];
+      }
+      if (++stamp == 0) {
+        Arrays.fill(termStamps, 0);
+        stamp = 1;
+      }
+    }
+
+    /**
+     * Adds a term given as a char buffer, ignoring it if it is not in the index.
+     *
+     * @param buffer Holds the term in [0, length).
+     * @param length The length of the term.
+     * @return boolean true if the term is in the index.
+     */
+    public boolean addTerm(char[] buffer, int length) {
+      int termId = dictionary.get(buffer, 0, length);
+      if (termId == TermDictionary.NOT_FOUND) {
+        return false;
+      }
+      addTerm(termId);
+      return true;
+    }
+
+    /**
+     * Counts a term towards every value it points at, unless the term was already added since the last reset.
+     *
+     * @param termId The id of the term in the index's dictionary.
+     */
+    public void addTerm(int termId) {
+      if (termId >= termStamps.length) {
+        termStamps = Arrays.copyOf(termStamps, Math.max(dictionary.size(), termId + 1));
+      }
+      if (termStamps[termId] == stamp) {
+        return;
+      }
+      termStamps[termId] = stamp;
+
+      int[] slots = postings[termId];
+      int size = postingSizes[termId];
+      for (int i = 0; i < size; ++i) {
+        int slot = slots[i];
+        if (counts[slot]++ == 0) {
+          touchedSlots[numTouched++] = slot;
+        }
+      }
+    }
+
+    /**
+     * @return The value with the highest count, the lowest value on ties, or 0 if nothing has been counted.
+     */
+    public int getBestValue() {
+      int best = bestSlot();
+      return best < 0 ? 0 : slotValues[best];
+    }
+
+    /**
+     * @return The count of the value returned by {@link #getBestValue()}, 0 if nothing has been counted.
+     */
+    public int getBestCount() {
+      int best = bestSlot();
+      return best < 0 ? 0 : counts[best];
+    }
+
+    private int bestSlot() {
+      int best = -1;
+      for (int i = 0; i < numTouched; ++i) {
+        int slot = touchedSlots[i];
+        if (best < 0 || counts[slot] > counts[best] ||
+            (counts[slot] == counts[best] && slotValues[slot] < slotValues[best])) {
+          best = slot;
+        }
+      }
+      return best;
+    }
+  }
+}
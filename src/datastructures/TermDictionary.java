@@ -0,0 +1,151 @@
+package datastructures;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense int ids, 0, 1, 2, ..., to terms in the order they are first interned. Lookups can be made straight
+ * from a char buffer, such as the one a {@link util.KeywordTokenizer} reports keywords in, without building a String.
+ */
+public class TermDictionary {
+
+  public static final int NOT_FOUND = -1;
+
+  private String[] terms = new String[16];
+  private int[] hashes = new int[16];
+  private int size = 0;
+
+  // Open addressing table of term ids, EMPTY marks a free slot.
+  private static final int EMPTY = -1;
+  private int[] table = newTable(32);
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @param termId The id of a term.
+   * @return The term with the given id.
+   */
+  public String term(int termId) {
+    if (termId < 0 || termId >= size) {
+      throw new IndexOutOfBoundsException("No term with id " + termId);
+    }
+    return terms[termId];
+  }
+
+  /**
+   * Returns the id of a term, assigning it the next free id if it is new.
+   *
+   * @param term The term.
+   * @return int the id of the term.
+   */
+  public int intern(String term) {
+    int termId = get(term);
+    if (termId != NOT_FOUND) {
+      return termId;
+    }
+    if (size == terms.length) {
+      terms = Arrays.copyOf(terms, size * 2);
+      hashes = Arrays.copyOf(hashes, size * 2);
+    }
+    if ((size + 1) * 2 > table.length) {
+      rehash(table.length * 2);
+    }
+    termId = size++;
+    terms[termId] = term;
+    hashes[termId] = term.hashCode();
+    insert(termId);
+    return termId;
+  }
+
+  /**
+   * @param term The term.
+   * @return int the id of the term, {@link #NOT_FOUND} if it has never been interned.
+   */
+  public int get(String term) {
+    int hash = term.hashCode();
+    int slot = spread(hash) & (table.length - 1);
+    int termId;
+    while ((termId = table[slot]) != EMPTY) {
+      if (hashes[termId] == hash && terms[termId].equals(term)) {
+        return termId;
+      }
+      slot = (slot + 1) & (table.length - 1);
+    }
+    return NOT_FOUND;
+  }
+
+  /**
+   * Looks up the term held in buffer[offset, offset + length).
+   *
+   * @param buffer Holds the term.
+   * @param offset Index of the first char of the term.
+   * @param length Length of the term in chars.
+   * @return int the id of the term, {@link #NOT_FOUND} if it has never been interned.
+   */
+  public int get(char[] buffer, int offset, int length) {
+    int hash = 0;
+    for (int i = offset; i < offset + length; ++i) {
+      hash = 31 * hash + buffer[i];
+    }
+    int slot = spread(hash) & (table.length - 1);
+    int termId;
+    while ((termId = table[slot]) != EMPTY) {
+      if (hashes[termId] == hash && regionEquals(terms[termId], buffer, offset, length)) {
+        return termId;
+      }
+      slot = (slot + 1) & (table.length - 1);
+    }
+    return NOT_FOUND;
+  }
+
+  /**
+   * Forgets every term. Ids are handed out from 0 again afterwards.
+   */
+  public void clear() {
+    Arrays.fill(terms, 0, size, null);
+    Arrays.fill(table, EMPTY);
+    size = 0;
+  }
+
+  private void rehash(int capacity) {
+    table = newTable(capacity);
+    for (int termId = 0; termId < size; ++termId) {
+      insert(termId);
+    }
+  }
+
+  private void insert(int termId) {
+    int slot = spread(hashes[termId]) & (table.length - 1);
+    while (table[slot] != EMPTY) {
+      slot = (slot + 1) & (table.length - 1);
+    }
+    table[slot] = termId;
+  }
+
+  private static boolean regionEquals(String term, char[] buffer, int offset, int length) {
+    if (term.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; ++i) {
+      if (term.charAt(i) != buffer[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int[] newTable(int capacity) {
+    int[] table = new int[capacity];
+    Arrays.fill(table, EMPTY);
+    return table;
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+}
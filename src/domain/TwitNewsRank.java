@@ -10,7 +10,7 @@ public class TwitNewsRank {
 
   private int rankId;
   private int trendId;
-  private int tweetId;
+  private long tweetId;
   private int rank;
 
   public int getRankId() {
@@ -29,11 +29,11 @@ public class TwitNewsRank {
     this.trendId = trendId;
   }
 
-  public int getTweetId() {
+  public long getTweetId() {
     return tweetId;
   }
 
-  public void setTweetId(int tweetId) {
+  public void setTweetId(long tweetId) {
     this.tweetId = tweetId;
   }
 
@@ -78,7 +78,7 @@ public class TwitNewsRank {
     long temp;
     result = rankId;
     result = 31 * result + trendId;
-    result = 31 * result + tweetId;
+    result = 31 * result + (int) (tweetId ^ (tweetId >>> 32));
     temp = rank != +0.0d ? Double.doubleToLongBits(rank) : 0L;
     result = 31 * result + (int) (temp ^ (temp >>> 32));
     return result;
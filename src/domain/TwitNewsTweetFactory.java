@@ -49,7 +49,7 @@ public class TwitNewsTweetFactory {
   public static TwitNewsTweet fromStatus(Status status, int trendId) {
     TwitNewsTweet twitNewsTweet = new TwitNewsTweet();
     twitNewsTweet.setTweetId(status.getId());
-    twitNewsTweet.setTweetId(trendId);
+    twitNewsTweet.setTrendId(trendId);
     twitNewsTweet.setText(status.getText());
 
     User user = status.getUser();
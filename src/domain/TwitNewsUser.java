@@ -78,4 +78,16 @@ public class TwitNewsUser {
     result = 31 * result + numFollowers;
     return result;
   }
+
+  @Override
+  public String toString() {
+    final StringBuffer sb = new StringBuffer();
+    sb.append("TwitNewsUser");
+    sb.append("{userName='").append(userName).append('\'');
+    sb.append(", name='").append(name).append('\'');
+    sb.append(", isVerifiedUser=").append(isVerifiedUser);
+    sb.append(", numFollowers=").append(numFollowers);
+    sb.append('}');
+    return sb.toString();
+  }
 }
@@ -9,7 +9,12 @@ package fileIO;
  */
 public class FileConstants {
   
-  public static final String PATH_1 = "C:\\Users\\Ricky\\Documents\\Eclipse\\TwitterNews\\src\\fileIO\\badwords.txt";
-  public static final String PATH_2 = "C:\\Users\\Ricky\\Documents\\Eclipse\\TwitterNews\\src\\fileIO\\swear.txt";
+  public static final String BAD_WORDS = "files/badwords.txt";
+  public static final String SWEAR_WORDS = "files/swear.txt";
+  public static final String STOP_WORDS = "files/stopwords.txt";
+
+  // Compiled from the word lists above by util.Lexicon.
+  public static final String BAD_WORDS_LEXICON = "files/badwords.lex";
+  public static final String STOP_WORDS_LEXICON = "files/stopwords.lex";
 
 }
@@ -0,0 +1,322 @@
+package fileIO;
+
+import domain.TwitNewsRank;
+import domain.TwitNewsTrend;
+import domain.TwitNewsTweet;
+import domain.TwitNewsUser;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the rows of a textual SQL dump of TweetDB (see data/TweetDB_*.sql) into domain objects. Only the
+ * INSERT INTO ... VALUES blocks for the trends, tweets, users and ranks tables are parsed, everything else in the
+ * dump is skipped.
+ */
+public class SqlDumpReader {
+
+  private final File handle;
+
+  private final List<TwitNewsTrend> trends = new ArrayList<TwitNewsTrend>();
+  private final List<TwitNewsTweet> tweets = new ArrayList<TwitNewsTweet>();
+  private final List<TwitNewsUser> users = new ArrayList<TwitNewsUser>();
+  private final List<TwitNewsRank> ranks = new ArrayList<TwitNewsRank>();
+
+  // Parser state
+  private String dump;
+  private int pos;
+
+  /**
+   * Creates a new reader for the given dump.
+   *
+   * @param filePath Path to the .sql dump.
+   */
+  public SqlDumpReader(String filePath) {
+    this.handle = new File(filePath);
+  }
+
+  public List<TwitNewsTrend> getTrends() {
+    return trends;
+  }
+
+  public List<TwitNewsTweet> getTweets() {
+    return tweets;
+  }
+
+  public List<TwitNewsUser> getUsers() {
+    return users;
+  }
+
+  public List<TwitNewsRank> getRanks() {
+    return ranks;
+  }
+
+  /**
+   * Reads and parses the dump. Rows from every INSERT block are appended to the lists returned by the getters.
+   *
+   * @throws IOException If the file can't be read or is not a dump we understand.
+   */
+  public void read() throws IOException {
+    dump = readFile();
+    pos = 0;
+    try {
+      int insert;
+      while ((insert = dump.indexOf("INSERT INTO ", pos)) >= 0) {
+        pos = insert + "INSERT INTO ".length();
+        parseInsert();
+      }
+    }
+    finally {
+      dump = null;
+    }
+  }
+
+  private String readFile() throws IOException {
+    StringBuilder sb = new StringBuilder((int) handle.length());
+    Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(handle), Charset.forName("UTF-8")));
+    try {
+      char[] buffer = new char[8192];
+      int read;
+      while ((read = reader.read(buffer)) != -1) {
+        sb.append(buffer, 0, read);
+      }
+    }
+    finally {
+      reader.close();
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Parses one INSERT INTO `table` (`col`, ...) VALUES (...), (...); statement.
+   */
+  private void parseInsert() throws IOException {
+    String table = parseIdentifier();
+
+    skipWhitespace();
+    expect('(');
+    List<String> columns = new ArrayList<String>();
+    while (true) {
+      skipWhitespace();
+      columns.add(parseIdentifier());
+      skipWhitespace();
+      if (peek() == ',') {
+        ++pos;
+      }
+      else {
+        expect(')');
+        break;
+      }
+    }
+
+    skipWhitespace();
+    if (!dump.startsWith("VALUES", pos)) {
+      throw new IOException("Expected VALUES at offset " + pos + " of " + handle);
+    }
+    pos += "VALUES".length();
+
+    String[] row = new String[columns.size()];
+    while (true) {
+      skipWhitespace();
+      expect('(');
+      for (int i = 0; i < row.length; ++i) {
+        skipWhitespace();
+        row[i] = parseValue();
+        skipWhitespace();
+        if (i < row.length - 1) {
+          expect(',');
+        }
+      }
+      expect(')');
+      addRow(table, columns, row);
+
+      skipWhitespace();
+      char next = peek();
+      ++pos;
+      if (next == ';') {
+        return;
+      }
+      if (next != ',') {
+        throw new IOException("Unexpected '" + next + "' at offset " + (pos - 1) + " of " + handle);
+      }
+    }
+  }
+
+  private void addRow(String table, List<String> columns, String[] row) {
+    if (table.equals("trends")) {
+      TwitNewsTrend trend = new TwitNewsTrend();
+      trend.setTrendId(intValue(row[columns.indexOf("trendId")]));
+      trend.setName(row[columns.indexOf("trendName")]);
+      trends.add(trend);
+    }
+    else if (table.equals("tweets")) {
+      tweets.add(toTweet(columns, row));
+    }
+    else if (table.equals("users")) {
+      TwitNewsUser user = new TwitNewsUser();
+      user.setUserName(row[columns.indexOf("userName")]);
+      user.setName(row[columns.indexOf("name")]);
+      user.setVerifiedUser(booleanValue(row[columns.indexOf("isVerifiedUser")]));
+      user.setNumFollowers(intValue(row[columns.indexOf("numFollowers")]));
+      users.add(user);
+    }
+    else if (table.equals("ranks")) {
+      TwitNewsRank rank = new TwitNewsRank();
+      rank.setRankId(intValue(row[columns.indexOf("rankId")]));
+      rank.setTrendId(intValue(row[columns.indexOf("trendId")]));
+      rank.setTweetId(longValue(row[columns.indexOf("tweetId")]));
+      rank.setRank(intValue(row[columns.indexOf("rank")]));
+      ranks.add(rank);
+    }
+  }
+
+  private TwitNewsTweet toTweet(List<String> columns, String[] row) {
+    TwitNewsTweet tweet = new TwitNewsTweet();
+    for (int i = 0; i < row.length; ++i) {
+      String column = columns.get(i);
+      String value = row[i];
+      if (column.equals("tweetId")) {
+        tweet.setTweetId(longValue(value));
+      }
+      else if (column.equals("trendId")) {
+        tweet.setTrendId(intValue(value));
+      }
+      else if (column.equals("userName")) {
+        tweet.setUserName(value);
+      }
+      else if (column.equals("isVerifiedUser")) {
+        tweet.setVerifiedUser(booleanValue(value));
+      }
+      else if (column.equals("numFollowers")) {
+        tweet.setNumFollowers(intValue(value));
+      }
+      else if (column.equals("text")) {
+        tweet.setText(value);
+      }
+      else if (column.equals("timestamp")) {
+        tweet.setTimestamp(value == null ? null : Timestamp.valueOf(value));
+      }
+      else if (column.equals("locationName")) {
+        tweet.setLocationName(value);
+      }
+      else if (column.equals("latitude")) {
+        tweet.setLatitude(doubleValue(value));
+      }
+      else if (column.equals("longitude")) {
+        tweet.setLongitude(doubleValue(value));
+      }
+      else if (column.equals("hasLink")) {
+        tweet.setHasLink(booleanValue(value));
+      }
+      else if (column.equals("link")) {
+        tweet.setLink(value);
+      }
+      else if (column.equals("isRetweet")) {
+        tweet.setRetweet(booleanValue(value));
+      }
+      else if (column.equals("retweetCount")) {
+        tweet.setRetweetCount(longValue(value));
+      }
+      else if (column.equals("tfidf")) {
+        tweet.setTfidf(intValue(value));
+      }
+      else if (column.equals("rank")) {
+        tweet.setRank(intValue(value));
+      }
+    }
+    return tweet;
+  }
+
+  private String parseIdentifier() throws IOException {
+    expect('`');
+    int end = dump.indexOf('`', pos);
+    if (end < 0) {
+      throw new IOException("Unterminated identifier at offset " + pos + " of " + handle);
+    }
+    String identifier = dump.substring(pos, end);
+    pos = end + 1;
+    return identifier;
+  }
+
+  /**
+   * Parses a single value, returning null for NULL and the unescaped contents for strings.
+   */
+  private String parseValue() throws IOException {
+    char c = peek();
+    if (c == '\'') {
+      ++pos;
+      StringBuilder sb = new StringBuilder();
+      while (true) {
+        c = dump.charAt(pos++);
+        if (c == '\'') {
+          return sb.toString();
+        }
+        if (c == '\\') {
+          c = dump.charAt(pos++);
+          switch (c) {
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            case 't': sb.append('\t'); break;
+            case '0': sb.append('\0'); break;
+            case 'Z': sb.append((char) 26); break;
+            default: sb.append(c);
+          }
+        }
+        else {
+          sb.append(c);
+        }
+      }
+    }
+    int start = pos;
+    while (pos < dump.length() && dump.charAt(pos) != ',' && dump.charAt(pos) != ')') {
+      ++pos;
+    }
+    String literal = dump.substring(start, pos).trim();
+    if (literal.equalsIgnoreCase("NULL")) {
+      return null;
+    }
+    if (literal.length() == 0) {
+      throw new IOException("Empty value at offset " + start + " of " + handle);
+    }
+    return literal;
+  }
+
+  private char peek() throws IOException {
+    if (pos >= dump.length()) {
+      throw new IOException("Unexpected end of " + handle);
+    }
+    return dump.charAt(pos);
+  }
+
+  private void expect(char c) throws IOException {
+    if (peek() != c) {
+      throw new IOException("Expected '" + c + "' at offset " + pos + " of " + handle + " but found '" + peek() + "'");
+    }
+    ++pos;
+  }
+
+  private void skipWhitespace() {
+    while (pos < dump.length() && Character.isWhitespace(dump.charAt(pos))) {
+      ++pos;
+    }
+  }
+
+  private static int intValue(String value) {
+    return value == null ? 0 : Integer.parseInt(value);
+  }
+
+  private static long longValue(String value) {
+    return value == null ? 0L : Long.parseLong(value);
+  }
+
+  private static double doubleValue(String value) {
+    return value == null ? 0.0 : Double.parseDouble(value);
+  }
+
+  private static boolean booleanValue(String value) {
+    return value != null && !value.equals("0");
+  }
+}
@@ -0,0 +1,387 @@
+package fileIO;
+
+import dao.TweetHandler;
+import domain.TwitNewsTrend;
+import domain.TwitNewsTweet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads a compact columnar archive of tweets written by {@link TweetArchiveWriter}, usually converted from a SQL
+ * dump. The file is memory mapped, the dictionaries are decoded once when it is opened, and the tweets of a trend are
+ * decoded column by column as they are scanned, so re-ranking a dump reads it at close to memory speed instead of
+ * reloading it into MySQL first.
+ *
+ * Tweets are handed out in the order the ranker streams them from the db: grouped by trend, then by the exact bytes
+ * of their text, then by tweet id. Trends can be scanned from several threads at once.
+ */
+public class TweetArchive {
+
+  static final int MAGIC = 0x54574131;  // "TWA1"
+
+  static final int SECTION_TRENDS = 0;
+  static final int SECTION_TWEET_ID = 1;
+  static final int SECTION_USER_DICT = 2;
+  static final int SECTION_USER = 3;
+  static final int SECTION_LINK_DICT = 4;
+  static final int SECTION_LINK = 5;
+  static final int SECTION_LOCATION_DICT = 6;
+  static final int SECTION_LOCATION = 7;
+  static final int SECTION_TEXT = 8;
+  static final int SECTION_TIMESTAMP = 9;
+  static final int SECTION_FLAGS = 10;
+  static final int SECTION_NUM_FOLLOWERS = 11;
+  static final int SECTION_RETWEET_COUNT = 12;
+  static final int SECTION_SCORES = 13;
+  static final int SECTION_GEO = 14;
+  static final int NUM_SECTIONS = 15;
+
+  // The variable length sections, in the order their per trend start offsets are stored in.
+  private static final int[] STREAMS = {SECTION_TWEET_ID, SECTION_TEXT, SECTION_TIMESTAMP, SECTION_NUM_FOLLOWERS,
+                                        SECTION_RETWEET_COUNT, SECTION_SCORES, SECTION_GEO};
+
+  static final int FLAG_VERIFIED = 1;
+  static final int FLAG_HAS_LINK = 1 << 1;
+  static final int FLAG_RETWEET = 1 << 2;
+  static final int FLAG_HAS_TIMESTAMP = 1 << 3;
+  static final int FLAG_HAS_GEO = 1 << 4;
+  static final int NUM_FLAGS = 5;
+
+  // Magic, number of tweets and the start of every section plus the end of the last one.
+  static final int HEADER_BYTES = 8 + 8 * (NUM_SECTIONS + 1);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File file;
+  private final MappedByteBuffer buffer;
+  private final int numTweets;
+  private final int[] sectionStarts = new int[NUM_SECTIONS + 1];
+
+  private final String[] userNames;
+  private final String[] links;
+  private final String[] locations;
+  private final PackedColumn userColumn;
+  private final PackedColumn linkColumn;
+  private final PackedColumn locationColumn;
+  private final PackedColumn flagColumn;
+
+  private final List<TwitNewsTrend> trends = new ArrayList<TwitNewsTrend>();
+  private final List<Group> groups = new ArrayList<Group>();
+
+  /**
+   * Opens an archive.
+   *
+   * @param file The archive file.
+   * @throws IOException If the file can't be read or is not an archive.
+   */
+  public TweetArchive(File file) throws IOException {
+    this.file = file;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() > Integer.MAX_VALUE || raf.length() < HEADER_BYTES) {
+        throw new IOException(file + " is not a tweet archive of a size we can map.");
+      }
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    }
+    finally {
+      raf.close();
+    }
+
+    if (buffer.getInt(0) != MAGIC) {
+      throw new IOException(file + " is not a tweet archive.");
+    }
+    numTweets = buffer.getInt(4);
+    for (int i = 0; i <= NUM_SECTIONS; ++i) {
+      long start = buffer.getLong(8 + 8 * i);
+      if (start < HEADER_BYTES || start > buffer.capacity() || (i > 0 && start < sectionStarts[i - 1])) {
+        throw new IOException("Corrupt section table in " + file);
+      }
+      sectionStarts[i] = (int) start;
+    }
+
+    userNames = readDictionary(SECTION_USER_DICT);
+    links = readDictionary(SECTION_LINK_DICT);
+    locations = readDictionary(SECTION_LOCATION_DICT);
+    userColumn = new PackedColumn(SECTION_USER);
+    linkColumn = new PackedColumn(SECTION_LINK);
+    locationColumn = new PackedColumn(SECTION_LOCATION);
+    flagColumn = new PackedColumn(SECTION_FLAGS);
+    readTrends();
+  }
+
+  /**
+   * Converts a SQL dump path to the path of its archive, next to it.
+   *
+   * @param dumpPath Path to a .sql dump.
+   * @return The path with .sql replaced by .twa.
+   */
+  public static String archivePath(String dumpPath) {
+    return (dumpPath.endsWith(".sql") ? dumpPath.substring(0, dumpPath.length() - 4) : dumpPath) + ".twa";
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return The trends of the archive, in the order their tweets are stored in.
+   */
+  public List<TwitNewsTrend> getTrends() {
+    return Collections.unmodifiableList(trends);
+  }
+
+  public int getNumTweets() {
+    return numTweets;
+  }
+
+  /**
+   * @param trendId The id of a trend.
+   * @return int the number of tweets of the trend, 0 if it is not in the archive.
+   */
+  public int getNumTweets(int trendId) {
+    Group group = findGroup(trendId);
+    return group == null ? 0 : group.numRows;
+  }
+
+  /**
+   * Hands every tweet of the archive to a handler.
+   *
+   * @param handler Receives the tweets, trend after trend.
+   * @return int the number of tweets scanned.
+   */
+  public int scan(TweetHandler handler) {
+    int count = 0;
+    for (Group group : groups) {
+      count += scan(group, handler);
+    }
+    return count;
+  }
+
+  /**
+   * Hands every tweet of a trend to a handler.
+   *
+   * @param trendId The id of the trend.
+   * @param handler Receives the tweets, ordered by the exact bytes of their text and then by tweet id.
+   * @return int the number of tweets scanned, 0 if the trend is not in the archive.
+   */
+  public int scan(int trendId, TweetHandler handler) {
+    Group group = findGroup(trendId);
+    return group == null ? 0 : scan(group, handler);
+  }
+
+  private int scan(Group group, TweetHandler handler) {
+    Stream tweetIds = new Stream(SECTION_TWEET_ID, group);
+    Stream texts = new Stream(SECTION_TEXT, group);
+    Stream timestamps = new Stream(SECTION_TIMESTAMP, group);
+    Stream numFollowers = new Stream(SECTION_NUM_FOLLOWERS, group);
+    Stream retweetCounts = new Stream(SECTION_RETWEET_COUNT, group);
+    Stream scores = new Stream(SECTION_SCORES, group);
+    Stream geo = new Stream(SECTION_GEO, group);
+    byte[] scratch = new byte[256];
+
+    long tweetId = 0;
+    long timestamp = 0;
+    int end = group.firstRow + group.numRows;
+    for (int row = group.firstRow; row < end; ++row) {
+      TwitNewsTweet tweet = new TwitNewsTweet();
+      tweetId += tweetIds.readVarLong();
+      tweet.setTweetId(tweetId);
+      tweet.setTrendId(group.trendId);
+
+      int textLength = (int) texts.readVarLong() - 1;
+      if (textLength >= 0) {
+        if (textLength > scratch.length) {
+          scratch = new byte[textLength];
+        }
+        texts.read(scratch, textLength);
+        tweet.setText(new String(scratch, 0, textLength, UTF8));
+      }
+
+      int flags = flagColumn.get(row);
+      tweet.setVerifiedUser((flags & FLAG_VERIFIED) != 0);
+      tweet.setHasLink((flags & FLAG_HAS_LINK) != 0);
+      tweet.setRetweet((flags & FLAG_RETWEET) != 0);
+      if ((flags & FLAG_HAS_TIMESTAMP) != 0) {
+        timestamp += timestamps.readVarLong();
+        tweet.setTimestamp(new Timestamp(timestamp));
+      }
+      if ((flags & FLAG_HAS_GEO) != 0) {
+        tweet.setLatitude(geo.readDouble());
+        tweet.setLongitude(geo.readDouble());
+      }
+
+      tweet.setUserName(userNames[userColumn.get(row)]);
+      tweet.setLink(links[linkColumn.get(row)]);
+      tweet.setLocationName(locations[locationColumn.get(row)]);
+      tweet.setNumFollowers((int) numFollowers.readVarLong());
+      tweet.setRetweetCount(retweetCounts.readVarLong());
+      tweet.setTfidf((int) scores.readVarLong());
+      tweet.setRank((int) scores.readVarLong());
+      handler.onTweet(tweet);
+    }
+    return group.numRows;
+  }
+
+  private Group findGroup(int trendId) {
+    for (Group group : groups) {
+      if (group.trendId == trendId) {
+        return group;
+      }
+    }
+    return null;
+  }
+
+  private void readTrends() throws IOException {
+    Stream in = new Stream(SECTION_TRENDS, 0);
+    int numTrends = in.readInt();
+    for (int i = 0; i < numTrends; ++i) {
+      Group group = new Group();
+      group.trendId = in.readInt();
+      String name = in.readString();
+      group.firstRow = in.readInt();
+      group.numRows = in.readInt();
+      for (int j = 0; j < STREAMS.length; ++j) {
+        group.streamStarts[j] = in.readInt();
+      }
+      if (group.firstRow < 0 || group.numRows < 0 || group.firstRow + group.numRows > numTweets) {
+        throw new IOException("Corrupt trend " + name + " in " + file);
+      }
+      groups.add(group);
+
+      TwitNewsTrend trend = new TwitNewsTrend();
+      trend.setTrendId(group.trendId);
+      trend.setName(name);
+      trends.add(trend);
+    }
+  }
+
+  private String[] readDictionary(int section) {
+    Stream in = new Stream(section, 0);
+    String[] values = new String[in.readInt() + 1];
+    for (int i = 1; i < values.length; ++i) {
+      values[i] = in.readString();
+    }
+    return values;
+  }
+
+  /**
+   * The rows of one trend, and where its part of each variable length section starts.
+   */
+  private static final class Group {
+
+    private int trendId;
+    private int firstRow;
+    private int numRows;
+    private final int[] streamStarts = new int[STREAMS.length];
+  }
+
+  /**
+   * Reads one section sequentially from a start offset.
+   */
+  private final class Stream {
+
+    private int pos;
+    private final int end;
+    private final ByteBuffer view = buffer.duplicate();
+
+    private Stream(int section, int offset) {
+      this.pos = sectionStarts[section] + offset;
+      this.end = sectionStarts[section + 1];
+    }
+
+    private Stream(int section, Group group) {
+      this(section, group.streamStarts[streamIndex(section)]);
+    }
+
+    long readVarLong() {
+      long zigzag = 0;
+      int shift = 0;
+      while (true) {
+        byte b = buffer.get(pos++);
+        zigzag |= (long) (b & 0x7f) << shift;
+        if (b >= 0) {
+          break;
+        }
+        shift += 7;
+      }
+      return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    int readInt() {
+      int value = buffer.getInt(pos);
+      pos += 4;
+      return value;
+    }
+
+    double readDouble() {
+      double value = buffer.getDouble(pos);
+      pos += 8;
+      return value;
+    }
+
+    void read(byte[] dst, int length) {
+      if (pos + length > end) {
+        throw new IndexOutOfBoundsException("Read past the end of a section of " + file);
+      }
+      view.position(pos);
+      view.get(dst, 0, length);
+      pos += length;
+    }
+
+    String readString() {
+      int length = (int) readVarLong() - 1;
+      if (length < 0) {
+        return null;
+      }
+      byte[] utf8 = new byte[length];
+      read(utf8, length);
+      return new String(utf8, UTF8);
+    }
+  }
+
+  private static int streamIndex(int section) {
+    for (int i = 0; i < STREAMS.length; ++i) {
+      if (STREAMS[i] == section) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Section " + section + " is not a stream.");
+  }
+
+  /**
+   * A section of ints of a fixed number of bits each, packed into longs.
+   */
+  private final class PackedColumn {
+
+    private final int wordsStart;
+    private final int bitsPerValue;
+    private final long mask;
+
+    private PackedColumn(int section) {
+      this.bitsPerValue = buffer.getInt(sectionStarts[section]);
+      this.wordsStart = sectionStarts[section] + 4;
+      this.mask = (1L << bitsPerValue) - 1;
+    }
+
+    int get(int index) {
+      long bit = (long) index * bitsPerValue;
+      int word = (int) (bit >>> 6);
+      int shift = (int) (bit & 63);
+      long value = buffer.getLong(wordsStart + 8 * word) >>> shift;
+      if (shift + bitsPerValue > 64) {
+        value |= buffer.getLong(wordsStart + 8 * (word + 1)) << (64 - shift);
+      }
+      return (int) (value & mask);
+    }
+  }
+}
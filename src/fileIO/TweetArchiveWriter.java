@@ -0,0 +1,321 @@
+package fileIO;
+
+import domain.TwitNewsTrend;
+import domain.TwitNewsTweet;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import static fileIO.TweetArchive.*;
+
+/**
+ * Writes tweets to a {@link TweetArchive} file. The tweets are sorted by trend, then by the bytes of their text and
+ * then by tweet id, the order the ranker streams them from the db in, and every trend gets a row group of its own
+ * that can be scanned without touching the others.
+ *
+ * Within the file every column is stored on its own: user names, links and location names as indexes into a
+ * dictionary of the distinct values, bit-packed to as few bits as the dictionary needs, timestamps and tweet ids as
+ * variable length deltas from the previous row of the group, the booleans as bit-packed flags, and counts as
+ * variable length ints. Geo coordinates are only stored for the rows that have them.
+ */
+public class TweetArchiveWriter {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private TweetArchiveWriter() {}
+
+  /**
+   * Writes an archive of the tweets. Tweets whose trend id is not among the trends are left out.
+   *
+   * @param file The archive file to write.
+   * @param trends The trends of the tweets.
+   * @param tweets The tweets.
+   * @return int the number of tweets written.
+   * @throws IOException If the file could not be written.
+   */
+  public static int write(File file, List<TwitNewsTrend> trends, List<TwitNewsTweet> tweets) throws IOException {
+    Map<Integer, List<Row>> rowsByTrendId = new LinkedHashMap<Integer, List<Row>>();
+    for (TwitNewsTrend trend : trends) {
+      if (!rowsByTrendId.containsKey(trend.getTrendId())) {
+        rowsByTrendId.put(trend.getTrendId(), new ArrayList<Row>());
+      }
+    }
+    int numTweets = 0;
+    for (TwitNewsTweet tweet : tweets) {
+      List<Row> rows = rowsByTrendId.get(tweet.getTrendId());
+      if (rows != null) {
+        rows.add(new Row(tweet));
+        ++numTweets;
+      }
+    }
+
+    Dictionary userNames = new Dictionary();
+    Dictionary links = new Dictionary();
+    Dictionary locations = new Dictionary();
+    for (List<Row> rows : rowsByTrendId.values()) {
+      Collections.sort(rows);
+      for (Row row : rows) {
+        userNames.add(row.tweet.getUserName());
+        links.add(row.tweet.getLink());
+        locations.add(row.tweet.getLocationName());
+      }
+    }
+
+    Column trendColumn = new Column();
+    Column tweetIds = new Column();
+    Column texts = new Column();
+    Column timestamps = new Column();
+    Column numFollowers = new Column();
+    Column retweetCounts = new Column();
+    Column scores = new Column();
+    Column geo = new Column();
+    PackedInts userColumn = new PackedInts(numTweets, userNames.bitsPerIndex());
+    PackedInts linkColumn = new PackedInts(numTweets, links.bitsPerIndex());
+    PackedInts locationColumn = new PackedInts(numTweets, locations.bitsPerIndex());
+    PackedInts flags = new PackedInts(numTweets, NUM_FLAGS);
+
+    trendColumn.out.writeInt(rowsByTrendId.size());
+    int row = 0;
+    Set<Integer> written = new HashSet<Integer>();
+    for (TwitNewsTrend trend : trends) {
+      if (!written.add(trend.getTrendId())) {
+        continue;
+      }
+      List<Row> rows = rowsByTrendId.get(trend.getTrendId());
+      trendColumn.out.writeInt(trend.getTrendId());
+      trendColumn.writeString(trend.getName());
+      trendColumn.out.writeInt(row);
+      trendColumn.out.writeInt(rows.size());
+      for (Column stream : new Column[]{tweetIds, texts, timestamps, numFollowers, retweetCounts, scores, geo}) {
+        trendColumn.out.writeInt(stream.bytes.size());
+      }
+
+      long previousTweetId = 0;
+      long previousTimestamp = 0;
+      for (Row r : rows) {
+        TwitNewsTweet tweet = r.tweet;
+        tweetIds.writeVarLong(tweet.getTweetId() - previousTweetId);
+        previousTweetId = tweet.getTweetId();
+
+        texts.writeUtf8(r.text);
+
+        int rowFlags = 0;
+        if (tweet.isVerifiedUser()) {
+          rowFlags |= FLAG_VERIFIED;
+        }
+        if (tweet.isHasLink()) {
+          rowFlags |= FLAG_HAS_LINK;
+        }
+        if (tweet.isRetweet()) {
+          rowFlags |= FLAG_RETWEET;
+        }
+        if (tweet.getTimestamp() != null) {
+          rowFlags |= FLAG_HAS_TIMESTAMP;
+          timestamps.writeVarLong(tweet.getTimestamp().getTime() - previousTimestamp);
+          previousTimestamp = tweet.getTimestamp().getTime();
+        }
+        if (tweet.getLatitude() != 0.0 || tweet.getLongitude() != 0.0) {
+          rowFlags |= FLAG_HAS_GEO;
+          geo.out.writeDouble(tweet.getLatitude());
+          geo.out.writeDouble(tweet.getLongitude());
+        }
+        flags.set(row, rowFlags);
+
+        userColumn.set(row, userNames.indexOf(tweet.getUserName()));
+        linkColumn.set(row, links.indexOf(tweet.getLink()));
+        locationColumn.set(row, locations.indexOf(tweet.getLocationName()));
+        numFollowers.writeVarLong(tweet.getNumFollowers());
+        retweetCounts.writeVarLong(tweet.getRetweetCount());
+        scores.writeVarLong(tweet.getTfidf());
+        scores.writeVarLong(tweet.getRank());
+        ++row;
+      }
+    }
+
+    byte[][] sections = new byte[NUM_SECTIONS][];
+    sections[SECTION_TRENDS] = trendColumn.toByteArray();
+    sections[SECTION_TWEET_ID] = tweetIds.toByteArray();
+    sections[SECTION_USER_DICT] = userNames.toByteArray();
+    sections[SECTION_USER] = userColumn.toByteArray();
+    sections[SECTION_LINK_DICT] = links.toByteArray();
+    sections[SECTION_LINK] = linkColumn.toByteArray();
+    sections[SECTION_LOCATION_DICT] = locations.toByteArray();
+    sections[SECTION_LOCATION] = locationColumn.toByteArray();
+    sections[SECTION_TEXT] = texts.toByteArray();
+    sections[SECTION_TIMESTAMP] = timestamps.toByteArray();
+    sections[SECTION_FLAGS] = flags.toByteArray();
+    sections[SECTION_NUM_FOLLOWERS] = numFollowers.toByteArray();
+    sections[SECTION_RETWEET_COUNT] = retweetCounts.toByteArray();
+    sections[SECTION_SCORES] = scores.toByteArray();
+    sections[SECTION_GEO] = geo.toByteArray();
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(numTweets);
+      long offset = HEADER_BYTES;
+      for (byte[] section : sections) {
+        out.writeLong(offset);
+        offset += section.length;
+      }
+      out.writeLong(offset);
+      for (byte[] section : sections) {
+        out.write(section);
+      }
+    }
+    finally {
+      out.close();
+    }
+    return numTweets;
+  }
+
+  /**
+   * A tweet with the UTF-8 bytes of its text, sorted the way the ranker reads tweets.
+   */
+  private static final class Row implements Comparable<Row> {
+
+    private final TwitNewsTweet tweet;
+    private final byte[] text;
+
+    private Row(TwitNewsTweet tweet) {
+      this.tweet = tweet;
+      this.text = tweet.getText() == null ? null : tweet.getText().getBytes(UTF8);
+    }
+
+    @Override
+    public int compareTo(Row that) {
+      if (text == null || that.text == null) {
+        if (text != that.text) {
+          return text == null ? -1 : 1;
+        }
+      }
+      else {
+        int length = Math.min(text.length, that.text.length);
+        for (int i = 0; i < length; ++i) {
+          int diff = (text[i] & 0xff) - (that.text[i] & 0xff);
+          if (diff != 0) {
+            return diff;
+          }
+        }
+        if (text.length != that.text.length) {
+          return text.length - that.text.length;
+        }
+      }
+      if (tweet.getTweetId() != that.tweet.getTweetId()) {
+        return tweet.getTweetId() < that.tweet.getTweetId() ? -1 : 1;
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * A column being written, as bytes.
+   */
+  private static class Column {
+
+    protected final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    protected final DataOutputStream out = new DataOutputStream(bytes);
+
+    /**
+     * Writes a zigzag encoded variable length long, 7 bits per byte, so small values of either sign take one byte.
+     */
+    void writeVarLong(long value) throws IOException {
+      long zigzag = (value << 1) ^ (value >> 63);
+      while ((zigzag & ~0x7fL) != 0) {
+        out.writeByte((int) ((zigzag & 0x7f) | 0x80));
+        zigzag >>>= 7;
+      }
+      out.writeByte((int) zigzag);
+    }
+
+    /**
+     * Writes the length of the UTF-8 bytes plus one, 0 for null, followed by the bytes.
+     */
+    void writeString(String s) throws IOException {
+      writeUtf8(s == null ? null : s.getBytes(UTF8));
+    }
+
+    void writeUtf8(byte[] utf8) throws IOException {
+      if (utf8 == null) {
+        writeVarLong(0);
+        return;
+      }
+      writeVarLong(utf8.length + 1);
+      out.write(utf8);
+    }
+
+    byte[] toByteArray() throws IOException {
+      out.flush();
+      return bytes.toByteArray();
+    }
+  }
+
+  /**
+   * The distinct values of a nullable string column, in order of first appearance. Index 0 stands for null.
+   */
+  private static final class Dictionary extends Column {
+
+    private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+    private final List<String> values = new ArrayList<String>();
+
+    void add(String value) {
+      if (value != null && !indexes.containsKey(value)) {
+        values.add(value);
+        indexes.put(value, values.size());
+      }
+    }
+
+    int indexOf(String value) {
+      return value == null ? 0 : indexes.get(value);
+    }
+
+    int bitsPerIndex() {
+      return Math.max(1, 32 - Integer.numberOfLeadingZeros(values.size()));
+    }
+
+    @Override
+    byte[] toByteArray() throws IOException {
+      out.writeInt(values.size());
+      for (String value : values) {
+        writeString(value);
+      }
+      return super.toByteArray();
+    }
+  }
+
+  /**
+   * A column of ints of a fixed number of bits each, packed into longs.
+   */
+  private static final class PackedInts {
+
+    private final int bitsPerValue;
+    private final long[] words;
+
+    PackedInts(int numValues, int bitsPerValue) {
+      this.bitsPerValue = bitsPerValue;
+      this.words = new long[(int) (((long) numValues * bitsPerValue + 63) / 64)];
+    }
+
+    void set(int index, int value) {
+      long bit = (long) index * bitsPerValue;
+      int word = (int) (bit >>> 6);
+      int shift = (int) (bit & 63);
+      words[word] |= ((long) value) << shift;
+      if (shift + bitsPerValue > 64) {
+        words[word + 1] |= ((long) value) >>> (64 - shift);
+      }
+    }
+
+    byte[] toByteArray() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + 8 * words.length);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(bitsPerValue);
+      for (long word : words) {
+        out.writeLong(word);
+      }
+      out.flush();
+      return bytes.toByteArray();
+    }
+  }
+}
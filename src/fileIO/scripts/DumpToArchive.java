@@ -0,0 +1,94 @@
+package fileIO.scripts;
+
+import dao.TweetHandler;
+import domain.TwitNewsTweet;
+import fileIO.SqlDumpReader;
+import fileIO.TweetArchive;
+import fileIO.TweetArchiveWriter;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Quick script that converts SQL dumps into {@link TweetArchive} files, each written next to its dump with .sql
+ * replaced by .twa. Takes the dumps to convert as arguments, or converts every dump in data/ if none are given.
+ * Every archive is read back and checked against its dump, and the time to parse the dump is printed next to the
+ * time to scan the archive. Exits with status 1 if an archive does not match its dump.
+ */
+public class DumpToArchive {
+
+  public static void main(String[] args) throws IOException {
+    List<String> dumps = new ArrayList<String>(Arrays.asList(args));
+    if (dumps.isEmpty()) {
+      String[] names = new File("data").list(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return name.endsWith(".sql");
+        }
+      });
+      Arrays.sort(names);
+      for (String name : names) {
+        dumps.add("data/" + name);
+      }
+    }
+
+    boolean allMatch = true;
+    for (String dump : dumps) {
+      long start = System.nanoTime();
+      SqlDumpReader reader = new SqlDumpReader(dump);
+      reader.read();
+      long parseNanos = System.nanoTime() - start;
+
+      File archiveFile = new File(TweetArchive.archivePath(dump));
+      int numWritten = TweetArchiveWriter.write(archiveFile, reader.getTrends(), reader.getTweets());
+
+      start = System.nanoTime();
+      TweetArchive archive = new TweetArchive(archiveFile);
+      final List<TwitNewsTweet> scanned = new ArrayList<TwitNewsTweet>(archive.getNumTweets());
+      archive.scan(new TweetHandler() {
+        @Override
+        public void onTweet(TwitNewsTweet tweet) {
+          scanned.add(tweet);
+        }
+      });
+      long scanNanos = System.nanoTime() - start;
+
+      int mismatches = compare(reader.getTweets(), scanned);
+      allMatch &= mismatches == 0 && scanned.size() == numWritten;
+      System.out.println(String.format("%s: %d of %d tweets, %d -> %d bytes, parse %.1fms, scan %.1fms, %d mismatches",
+                                       archiveFile, numWritten, reader.getTweets().size(), new File(dump).length(),
+                                       archiveFile.length(), parseNanos / 1e6, scanNanos / 1e6, mismatches));
+    }
+    System.exit(allMatch ? 0 : 1);
+  }
+
+  /**
+   * Matches the scanned tweets to the dumped ones by tweet id and counts those that differ in any column.
+   */
+  private static int compare(List<TwitNewsTweet> dumped, List<TwitNewsTweet> scanned) {
+    Map<Long, TwitNewsTweet> dumpedById = new HashMap<Long, TwitNewsTweet>();
+    for (TwitNewsTweet tweet : dumped) {
+      dumpedById.put(tweet.getTweetId(), tweet);
+    }
+    int mismatches = 0;
+    for (TwitNewsTweet tweet : scanned) {
+      TwitNewsTweet expected = dumpedById.get(tweet.getTweetId());
+      if (expected == null || !describe(expected).equals(describe(tweet))) {
+        if (mismatches++ < 5) {
+          System.out.println("  expected " + (expected == null ? null : describe(expected)));
+          System.out.println("  got      " + describe(tweet));
+        }
+      }
+    }
+    return mismatches;
+  }
+
+  private static String describe(TwitNewsTweet tweet) {
+    return Arrays.asList(tweet.getTweetId(), tweet.getTrendId(), tweet.getUserName(), tweet.isVerifiedUser(),
+                         tweet.getNumFollowers(), tweet.getText(), tweet.getTimestamp(), tweet.getLocationName(),
+                         tweet.getLatitude(), tweet.getLongitude(), tweet.isHasLink(), tweet.getLink(),
+                         tweet.isRetweet(), tweet.getRetweetCount(), tweet.getTfidf(), tweet.getRank()).toString();
+  }
+}
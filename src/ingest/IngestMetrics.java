@@ -0,0 +1,168 @@
+package ingest;
+
+import dao.UserCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backpressure metrics for an {@link IngestPipeline}. All counters are cumulative since the pipeline was created
+ * and are safe to read from any thread.
+ */
+public class IngestMetrics {
+
+  private final AtomicLong enqueued = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong trackLimited = new AtomicLong();
+  private final AtomicLong flushes = new AtomicLong();
+  private final AtomicLong failedFlushes = new AtomicLong();
+  private final AtomicLong tweetsWritten = new AtomicLong();
+  private final AtomicLong usersWritten = new AtomicLong();
+  private final AtomicLong totalFlushNanos = new AtomicLong();
+  private final AtomicLong maxFlushNanos = new AtomicLong();
+  private final AtomicLong lastFlushNanos = new AtomicLong();
+
+  private final IngestPipeline pipeline;
+
+  IngestMetrics(IngestPipeline pipeline) {
+    this.pipeline = pipeline;
+  }
+
+  void recordEnqueued() {
+    enqueued.incrementAndGet();
+  }
+
+  void recordDropped() {
+    dropped.incrementAndGet();
+  }
+
+  void recordFlush(long nanos, int tweets, int users, boolean success) {
+    flushes.incrementAndGet();
+    if (!success) {
+      failedFlushes.incrementAndGet();
+    }
+    tweetsWritten.addAndGet(tweets);
+    usersWritten.addAndGet(users);
+    totalFlushNanos.addAndGet(nanos);
+    lastFlushNanos.set(nanos);
+    long max = maxFlushNanos.get();
+    while (nanos > max && !maxFlushNanos.compareAndSet(max, nanos)) {
+      max = maxFlushNanos.get();
+    }
+  }
+
+  /**
+   * Records a track limitation notice from the Stream API, so stream side losses show up next to our own drops.
+   *
+   * @param numberOfLimitedStatuses The number of statuses twitter reported as not delivered.
+   */
+  public void recordTrackLimitation(int numberOfLimitedStatuses) {
+    trackLimited.addAndGet(numberOfLimitedStatuses);
+  }
+
+  public int getQueueDepth() {
+    return pipeline.getQueueDepth();
+  }
+
+  public int getQueueCapacity() {
+    return pipeline.getQueueCapacity();
+  }
+
+  /**
+   * @return The number of records spooled but not yet read back, 0 if the pipeline is not spooled.
+   */
+  public long getSpooledRecords() {
+    Spool spool = pipeline.getSpool();
+    return spool == null ? 0 : spool.getUnreadRecords();
+  }
+
+  /**
+   * @return The number of spool segment files on disk, 0 if the pipeline is not spooled.
+   */
+  public int getSpoolSegments() {
+    Spool spool = pipeline.getSpool();
+    return spool == null ? 0 : spool.getNumSegments();
+  }
+
+  public long getEnqueued() {
+    return enqueued.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getTrackLimited() {
+    return trackLimited.get();
+  }
+
+  public long getFlushes() {
+    return flushes.get();
+  }
+
+  public long getFailedFlushes() {
+    return failedFlushes.get();
+  }
+
+  public long getTweetsWritten() {
+    return tweetsWritten.get();
+  }
+
+  public long getUsersWritten() {
+    return usersWritten.get();
+  }
+
+  /**
+   * @return The number of tweets not written because a tweet with the same status id had been written before.
+   */
+  public long getRepeatsSkipped() {
+    return pipeline.getBuffer().getRepeatsSkipped();
+  }
+
+  public double getLastFlushLatencyMillis() {
+    return lastFlushNanos.get() / 1000000.0;
+  }
+
+  public double getMaxFlushLatencyMillis() {
+    return maxFlushNanos.get() / 1000000.0;
+  }
+
+  public double getMeanFlushLatencyMillis() {
+    long count = flushes.get();
+    if (count == 0) {
+      return 0.0;
+    }
+    return totalFlushNanos.get() / 1000000.0 / count;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuffer sb = new StringBuffer();
+    sb.append("IngestMetrics");
+    if (pipeline.getSpool() != null) {
+      sb.append("{spooledRecords=").append(getSpooledRecords());
+      sb.append(", spoolSegments=").append(getSpoolSegments());
+    }
+    else {
+      sb.append("{queueDepth=").append(getQueueDepth()).append('/').append(getQueueCapacity());
+    }
+    sb.append(", enqueued=").append(getEnqueued());
+    sb.append(", dropped=").append(getDropped());
+    sb.append(", trackLimited=").append(getTrackLimited());
+    sb.append(", flushes=").append(getFlushes());
+    sb.append(", failedFlushes=").append(getFailedFlushes());
+    sb.append(", tweetsWritten=").append(getTweetsWritten());
+    sb.append(", usersWritten=").append(getUsersWritten());
+    sb.append(", repeatsSkipped=").append(getRepeatsSkipped());
+    sb.append(", lastFlushMillis=").append(String.format("%.2f", getLastFlushLatencyMillis()));
+    sb.append(", meanFlushMillis=").append(String.format("%.2f", getMeanFlushLatencyMillis()));
+    sb.append(", maxFlushMillis=").append(String.format("%.2f", getMaxFlushLatencyMillis()));
+    UserCache userCache = pipeline.getBuffer().getUserCache();
+    if (userCache != null) {
+      sb.append(", userCacheHitRate=").append(String.format("%.3f", userCache.getHitRate()));
+      sb.append(", userWritesSkipped=").append(userCache.getWritesSkipped());
+      sb.append(", userCacheEvictions=").append(userCache.getEvictions());
+    }
+    sb.append('}');
+    return sb.toString();
+  }
+}
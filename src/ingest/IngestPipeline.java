@@ -0,0 +1,304 @@
+package ingest;
+
+import database.MySQL_UI;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static util.TwitNewsConstants.INGEST_BATCH_SIZE;
+import static util.TwitNewsConstants.INGEST_QUEUE_CAPACITY;
+import static util.TwitNewsConstants.INGEST_SPOOL_DIR;
+import static util.TwitNewsConstants.INGEST_SPOOL_MAX_SEGMENTS;
+import static util.TwitNewsConstants.INGEST_SPOOL_SEGMENT_BYTES;
+import static util.TwitNewsConstants.INGEST_WRITER_THREADS;
+
+/**
+ * A staged ingest pipeline sitting between a StatusListener and the db. The stream thread only converts statuses and
+ * offers them to a bounded ring buffer, while a pool of writer threads drains the buffer into a
+ * {@link WriteBehindBuffer}, which commits the tweets and users of many records in one transaction. When the ring
+ * buffer is full new records are dropped and counted rather than blocking the stream thread.
+ *
+ * A spooled pipeline instead appends every record to a {@link Spool} on disk, from which a replayer thread feeds the
+ * write-behind buffer. Records are only acknowledged in the spool once committed, and uncommitted batches are retried
+ * rather than dropped, so a db outage costs disk space instead of memory or records, and records spooled before a
+ * restart are replayed by the next run.
+ */
+public class IngestPipeline {
+
+  private static final Logger log = Logger.getLogger(IngestPipeline.class.getName());
+
+  // How long a writer waits for more records before checking whether the pipeline is still running.
+  private static final long POLL_TIMEOUT_MILLIS = 100;
+
+  private final WriteBehindBuffer buffer;
+  private final Spool spool;
+  private final BlockingQueue<IngestRecord> queue;
+  private final int capacity;
+  private final int maxBatchSize;
+  private final IngestMetrics metrics = new IngestMetrics(this);
+  private final List<Thread> writers = new ArrayList<Thread>();
+
+  private volatile boolean running = false;
+
+  /**
+   * Creates a new IngestPipeline. The pipeline does not accept records until {@link #start()} is called.
+   *
+   * @param buffer The {@link WriteBehindBuffer} the writers hand records to, started and shut down with the pipeline.
+   * @param numWriters The number of writer threads draining the ring buffer.
+   * @param capacity The maximum number of records buffered before new records are dropped.
+   * @param maxBatchSize The maximum number of records a writer takes from the ring buffer at once.
+   */
+  public IngestPipeline(WriteBehindBuffer buffer, int numWriters, int capacity, int maxBatchSize) {
+    if (numWriters < 1 || capacity < 1 || maxBatchSize < 1) {
+      throw new IllegalArgumentException("Writers, capacity and batch size must all be positive.");
+    }
+    this.buffer = buffer;
+    this.spool = null;
+    buffer.setIngestMetrics(metrics);
+    this.capacity = capacity;
+    this.maxBatchSize = maxBatchSize;
+    this.queue = new ArrayBlockingQueue<IngestRecord>(capacity);
+    for (int i = 0; i < numWriters; ++i) {
+      Thread writer = new Thread(new Writer(), "ingest-writer-" + i);
+      writer.setDaemon(true);
+      writers.add(writer);
+    }
+  }
+
+  /**
+   * Creates a new spooled IngestPipeline. The pipeline does not accept records until {@link #start()} is called.
+   *
+   * @param buffer The {@link WriteBehindBuffer} the replayer hands records to, started and shut down with the
+   *               pipeline. Its batches are retried until they commit.
+   * @param spool The {@link Spool} records are appended to, closed with the pipeline.
+   * @param maxBatchSize The maximum number of records the replayer reads from the spool at once.
+   */
+  public IngestPipeline(WriteBehindBuffer buffer, final Spool spool, int maxBatchSize) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be positive.");
+    }
+    this.buffer = buffer;
+    this.spool = spool;
+    this.capacity = 0;
+    this.maxBatchSize = maxBatchSize;
+    this.queue = null;
+    buffer.setIngestMetrics(metrics);
+    buffer.setCommitListener(new WriteBehindBuffer.CommitListener() {
+      @Override
+      public void committed(long mark) {
+        try {
+          spool.ack(mark);
+        }
+        catch (IOException e) {
+          // The records are read again on the next run, which is harmless.
+          e.printStackTrace();
+        }
+      }
+    });
+    Thread replayer = new Thread(new Replayer(), "ingest-replayer");
+    replayer.setDaemon(true);
+    writers.add(replayer);
+  }
+
+  /**
+   * Creates a new IngestPipeline sized from the twitnews.ingest.* system properties, falling back to the defaults in
+   * {@link util.TwitNewsConstants}. The pipeline is spooled to the directory set by twitnews.spool.dir unless that is
+   * set to an empty string.
+   *
+   * @param sql The {@link MySQL_UI} the writers persist to.
+   * @return The new, not yet started, pipeline, with a write-behind buffer sized from the twitnews.writeBehind.*
+   *         system properties.
+   */
+  public static IngestPipeline create(MySQL_UI sql) {
+    String spoolDir = System.getProperty("twitnews.spool.dir", INGEST_SPOOL_DIR);
+    if (spoolDir.length() > 0) {
+      try {
+        Spool spool = new Spool(new File(spoolDir),
+                                Integer.getInteger("twitnews.spool.segmentBytes", INGEST_SPOOL_SEGMENT_BYTES),
+                                Integer.getInteger("twitnews.spool.maxSegments", INGEST_SPOOL_MAX_SEGMENTS));
+        return new IngestPipeline(WriteBehindBuffer.create(sql), spool,
+                                  Integer.getInteger("twitnews.ingest.batchSize", INGEST_BATCH_SIZE));
+      }
+      catch (IOException e) {
+        log.severe("Failure opening the spool in " + spoolDir + ", buffering records in memory only.");
+        e.printStackTrace();
+      }
+    }
+    return new IngestPipeline(WriteBehindBuffer.create(sql),
+                              Integer.getInteger("twitnews.ingest.writers", INGEST_WRITER_THREADS),
+                              Integer.getInteger("twitnews.ingest.capacity", INGEST_QUEUE_CAPACITY),
+                              Integer.getInteger("twitnews.ingest.batchSize", INGEST_BATCH_SIZE));
+  }
+
+  /**
+   * Starts the writer or replayer threads and the write-behind buffer.
+   */
+  public void start() {
+    running = true;
+    buffer.start();
+    for (Thread writer : writers) {
+      writer.start();
+    }
+  }
+
+  /**
+   * Offers a record to the pipeline without blocking. Intended to be called from the stream thread.
+   *
+   * @param record The record to persist.
+   * @return boolean true if the record was accepted, false if it was dropped because the buffer or spool is full.
+   */
+  public boolean offer(IngestRecord record) {
+    boolean accepted;
+    if (spool != null) {
+      accepted = running && spool.append(IngestRecordCodec.encode(record));
+    }
+    else {
+      accepted = running && queue.offer(record);
+    }
+    if (accepted) {
+      metrics.recordEnqueued();
+      return true;
+    }
+    metrics.recordDropped();
+    return false;
+  }
+
+  /**
+   * Stops accepting records and waits for the writers to drain whatever is still buffered, and for the write-behind
+   * buffer to commit it.
+   *
+   * @param timeoutMillis The maximum time to wait for the writers to finish.
+   */
+  public void shutdown(long timeoutMillis) {
+    running = false;
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    for (Thread writer : writers) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        break;
+      }
+      try {
+        writer.join(remaining);
+      }
+      catch (InterruptedException e) {
+        log.warning("Interrupted while waiting for ingest writers to finish!");
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    if (queue != null && !queue.isEmpty()) {
+      log.severe(queue.size() + " records were still buffered when the pipeline shut down.");
+    }
+    buffer.shutdown(Math.max(1, deadline - System.currentTimeMillis()));
+    if (spool != null) {
+      if (spool.getUnreadRecords() > 0) {
+        log.warning(spool.getUnreadRecords() + " spooled records are left for the next run to replay.");
+      }
+      spool.close();
+    }
+  }
+
+  public IngestMetrics getMetrics() {
+    return metrics;
+  }
+
+  public WriteBehindBuffer getBuffer() {
+    return buffer;
+  }
+
+  int getQueueDepth() {
+    return queue == null ? 0 : queue.size();
+  }
+
+  Spool getSpool() {
+    return spool;
+  }
+
+  int getQueueCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Drains the queue into the write-behind buffer, a batch of records at a time.
+   */
+  private class Writer implements Runnable {
+
+    private final List<IngestRecord> batch = new ArrayList<IngestRecord>(maxBatchSize);
+
+    @Override
+    public void run() {
+      while (running || !queue.isEmpty()) {
+        try {
+          IngestRecord first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+          if (first != null) {
+            batch.add(first);
+            queue.drainTo(batch, maxBatchSize - 1);
+            buffer.addRecords(batch);
+            batch.clear();
+          }
+        }
+        catch (InterruptedException e) {
+          log.warning("Ingest writer interrupted, exiting.");
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the spool into the write-behind buffer, a batch of records at a time, passing on the spool position after
+   * each batch so the buffer can acknowledge it once committed. Blocks while the buffer is full, leaving the backlog
+   * on disk.
+   */
+  private class Replayer implements Runnable {
+
+    private final List<byte[]> spooled = new ArrayList<byte[]>(maxBatchSize);
+    private final List<IngestRecord> batch = new ArrayList<IngestRecord>(maxBatchSize);
+    private long lastForced = 0;
+
+    @Override
+    public void run() {
+      while (true) {
+        // Read before the spool, so that whatever was spooled before shutdown is still replayed.
+        boolean wasRunning = running;
+        long position = spool.read(spooled, maxBatchSize);
+        if (spooled.isEmpty()) {
+          if (!wasRunning) {
+            return;
+          }
+          try {
+            Thread.sleep(POLL_TIMEOUT_MILLIS);
+          }
+          catch (InterruptedException e) {
+            log.warning("Ingest replayer interrupted, exiting.");
+            return;
+          }
+          continue;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastForced >= POLL_TIMEOUT_MILLIS) {
+          spool.force();
+          lastForced = now;
+        }
+        for (byte[] bytes : spooled) {
+          try {
+            batch.add(IngestRecordCodec.decode(bytes));
+          }
+          catch (IOException e) {
+            log.severe("Skipping an unreadable spooled record.");
+            e.printStackTrace();
+          }
+        }
+        buffer.addRecords(batch, position);
+        spooled.clear();
+        batch.clear();
+      }
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package ingest;
+
+import domain.TwitNewsTweet;
+import domain.TwitNewsUser;
+
+/**
+ * A single unit of work handed from a StatusListener to the ingest writers. Holds everything produced from one
+ * status so that the stream thread never has to touch the db.
+ */
+public class IngestRecord {
+
+  private final int trendId;
+  private final TwitNewsTweet tweet;
+  private final TwitNewsTweet originalTweet;
+  private final TwitNewsUser user;
+
+  /**
+   * Creates a new IngestRecord.
+   *
+   * @param trendId The id of the trend the tweet belongs to.
+   * @param tweet The tweet converted from the status.
+   * @param originalTweet The retweeted status converted to a tweet, null if the status is not a retweet.
+   * @param user The author of the status, can be null.
+   */
+  public IngestRecord(int trendId, TwitNewsTweet tweet, TwitNewsTweet originalTweet, TwitNewsUser user) {
+    this.trendId = trendId;
+    this.tweet = tweet;
+    this.originalTweet = originalTweet;
+    this.user = user;
+  }
+
+  public int getTrendId() {
+    return trendId;
+  }
+
+  public TwitNewsTweet getTweet() {
+    return tweet;
+  }
+
+  public TwitNewsTweet getOriginalTweet() {
+    return originalTweet;
+  }
+
+  public TwitNewsUser getUser() {
+    return user;
+  }
+}
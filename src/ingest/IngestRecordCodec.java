@@ -0,0 +1,144 @@
+package ingest;
+
+import domain.TwitNewsTweet;
+import domain.TwitNewsUser;
+
+import java.io.*;
+import java.sql.Timestamp;
+
+/**
+ * Turns {@link IngestRecord}s into bytes for the {@link Spool} and back. The first byte is a format version, so
+ * records spooled by an older build can still be told apart once the format changes.
+ */
+final class IngestRecordCodec {
+
+  private static final byte VERSION = 1;
+
+  private IngestRecordCodec() {}
+
+  /**
+   * @param record The record.
+   * @return The record as bytes.
+   */
+  static byte[] encode(IngestRecord record) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(VERSION);
+      out.writeInt(record.getTrendId());
+      writeTweet(out, record.getTweet());
+      writeTweet(out, record.getOriginalTweet());
+      writeUser(out, record.getUser());
+      out.flush();
+    }
+    catch (IOException e) {
+      // Only thrown for a string of over 64KB, which no tweet or user has.
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @param bytes The bytes of a record.
+   * @return The record.
+   * @throws IOException If the bytes are not a record of this format.
+   */
+  static IngestRecord decode(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    byte version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unknown spooled record version " + version);
+    }
+    int trendId = in.readInt();
+    TwitNewsTweet tweet = readTweet(in);
+    TwitNewsTweet originalTweet = readTweet(in);
+    TwitNewsUser user = readUser(in);
+    return new IngestRecord(trendId, tweet, originalTweet, user);
+  }
+
+  private static void writeTweet(DataOutputStream out, TwitNewsTweet tweet) throws IOException {
+    out.writeBoolean(tweet != null);
+    if (tweet == null) {
+      return;
+    }
+    out.writeLong(tweet.getTweetId());
+    out.writeInt(tweet.getTrendId());
+    writeString(out, tweet.getText());
+    out.writeLong(tweet.getUserId());
+    writeString(out, tweet.getUserName());
+    out.writeBoolean(tweet.isVerifiedUser());
+    out.writeInt(tweet.getNumFollowers());
+    out.writeLong(tweet.getTimestamp() == null ? Long.MIN_VALUE : tweet.getTimestamp().getTime());
+    writeString(out, tweet.getLocationName());
+    out.writeDouble(tweet.getLatitude());
+    out.writeDouble(tweet.getLongitude());
+    out.writeBoolean(tweet.isHasLink());
+    writeString(out, tweet.getLink());
+    out.writeBoolean(tweet.isRetweet());
+    out.writeLong(tweet.getRetweetCount());
+    out.writeInt(tweet.getNumTrendsContained());
+    out.writeInt(tweet.getTfidf());
+    out.writeInt(tweet.getRank());
+  }
+
+  private static TwitNewsTweet readTweet(DataInputStream in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    TwitNewsTweet tweet = new TwitNewsTweet();
+    tweet.setTweetId(in.readLong());
+    tweet.setTrendId(in.readInt());
+    tweet.setText(readString(in));
+    tweet.setUserId(in.readLong());
+    tweet.setUserName(readString(in));
+    tweet.setVerifiedUser(in.readBoolean());
+    tweet.setNumFollowers(in.readInt());
+    long timestamp = in.readLong();
+    tweet.setTimestamp(timestamp == Long.MIN_VALUE ? null : new Timestamp(timestamp));
+    tweet.setLocationName(readString(in));
+    tweet.setLatitude(in.readDouble());
+    tweet.setLongitude(in.readDouble());
+    tweet.setHasLink(in.readBoolean());
+    tweet.setLink(readString(in));
+    tweet.setRetweet(in.readBoolean());
+    tweet.setRetweetCount(in.readLong());
+    tweet.setNumTrendsContained(in.readInt());
+    tweet.setTfidf(in.readInt());
+    tweet.setRank(in.readInt());
+    return tweet;
+  }
+
+  private static void writeUser(DataOutputStream out, TwitNewsUser user) throws IOException {
+    out.writeBoolean(user != null);
+    if (user == null) {
+      return;
+    }
+    writeString(out, user.getUserName());
+    writeString(out, user.getName());
+    out.writeBoolean(user.isVerifiedUser());
+    out.writeInt(user.getNumFollowers());
+  }
+
+  private static TwitNewsUser readUser(DataInputStream in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    TwitNewsUser user = new TwitNewsUser();
+    user.setUserName(readString(in));
+    user.setName(readString(in));
+    user.setVerifiedUser(in.readBoolean());
+    user.setNumFollowers(in.readInt());
+    return user;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
@@ -0,0 +1,220 @@
+package ingest;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the status ids of the tweets committed to the db, so that repeats, above all the original of every
+ * retweet, are dropped before they reach JDBC. The db does not need this to stay consistent, tweets are keyed on their
+ * status id and inserted with INSERT IGNORE, it only saves the round trips.
+ *
+ * Ids are kept twice. A window of the most recent ids is held exactly, in a ring and an open addressing hash set, and
+ * only an id found there is taken for a repeat. A Bloom filter of at least BITS_PER_ID bits per id remembers many more
+ * of them in little memory, and counts the ids committed again that it had probably seen, the repeats the window was
+ * too small to catch, which INSERT IGNORE then drops. The Bloom filter is cleared once it holds bloomIds ids, so that
+ * its false positive rate stays below about 1 in 15000, while the window keeps the latest ids across the reset.
+ *
+ * Not thread safe, the {@link WriteBehindBuffer} only calls it while holding its lock. The arrays are allocated on
+ * the first id, so buffers that never see a tweet don't pay for them.
+ */
+public class SeenTweetIds {
+
+  // 20 bits and 14 hashes per id give a false positive rate of about 6.7e-5 once the filter is full.
+  private static final int BITS_PER_ID = 20;
+  private static final int NUM_HASHES = 14;
+
+  // Marks empty slots of the window, ids of 0 are never remembered.
+  private static final long EMPTY = 0;
+
+  private final int windowSize;
+  private final int bloomIds;
+
+  private long[] window;
+  private int windowNext = 0;
+  private long[] table;
+  private int tableMask;
+
+  private long[] bloom;
+  private long bloomMask;
+  private int numBloomIds = 0;
+
+  private long repeats = 0;
+  private long probableRepeats = 0;
+  private long bloomResets = 0;
+
+  /**
+   * @param windowSize The number of most recent ids remembered exactly.
+   * @param bloomIds The number of ids the Bloom filter holds before it is cleared.
+   */
+  public SeenTweetIds(int windowSize, int bloomIds) {
+    if (windowSize < 1 || bloomIds < 1) {
+      throw new IllegalArgumentException("Need windowSize >= 1 and bloomIds >= 1.");
+    }
+    this.windowSize = windowSize;
+    this.bloomIds = bloomIds;
+  }
+
+  /**
+   * Tells whether an id is in the window, counting it as a repeat if it is.
+   *
+   * @param tweetId The status id of a tweet.
+   * @return boolean true if the id is among the most recent ids added, false if not or if it is 0, which tweets
+   *         without a status id have.
+   */
+  public boolean contains(long tweetId) {
+    if (tweetId == EMPTY || window == null || !windowContains(tweetId)) {
+      return false;
+    }
+    ++repeats;
+    return true;
+  }
+
+  /**
+   * Remembers the id of a committed tweet.
+   *
+   * @param tweetId The status id of a tweet.
+   */
+  public void add(long tweetId) {
+    if (tweetId == EMPTY) {
+      return;
+    }
+    if (window == null) {
+      allocate();
+    }
+    if (windowContains(tweetId)) {
+      return;
+    }
+    long hash = mix(tweetId);
+    long step = mix(hash) | 1;
+    if (bloomContains(hash, step)) {
+      ++probableRepeats;
+    }
+    else {
+      if (numBloomIds == bloomIds) {
+        Arrays.fill(bloom, 0);
+        numBloomIds = 0;
+        ++bloomResets;
+      }
+      bloomAdd(hash, step);
+    }
+    windowAdd(tweetId);
+  }
+
+  /**
+   * @return The number of ids found in the window.
+   */
+  public long getRepeats() {
+    return repeats;
+  }
+
+  /**
+   * @return The number of ids committed again that the Bloom filter had seen, or took for seen, but the window had
+   *         not.
+   */
+  public long getProbableRepeats() {
+    return probableRepeats;
+  }
+
+  /**
+   * @return How often the Bloom filter has been cleared.
+   */
+  public long getBloomResets() {
+    return bloomResets;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuffer sb = new StringBuffer();
+    sb.append("SeenTweetIds");
+    sb.append("{windowSize=").append(windowSize);
+    sb.append(", bloomIds=").append(numBloomIds).append('/').append(bloomIds);
+    sb.append(", repeats=").append(repeats);
+    sb.append(", probableRepeats=").append(probableRepeats);
+    sb.append(", bloomResets=").append(bloomResets);
+    sb.append('}');
+    return sb.toString();
+  }
+
+  private void allocate() {
+    window = new long[windowSize];
+    int tableSize = Integer.highestOneBit(Math.max(1, windowSize - 1)) << 2;
+    table = new long[tableSize];
+    tableMask = tableSize - 1;
+    long numBits = Long.highestOneBit(Math.max(64, (long) bloomIds * BITS_PER_ID - 1)) << 1;
+    bloom = new long[(int) (numBits >>> 6)];
+    bloomMask = numBits - 1;
+  }
+
+  private boolean bloomContains(long hash, long step) {
+    for (int i = 0; i < NUM_HASHES; ++i) {
+      long bit = (hash + i * step) & bloomMask;
+      if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void bloomAdd(long hash, long step) {
+    for (int i = 0; i < NUM_HASHES; ++i) {
+      long bit = (hash + i * step) & bloomMask;
+      bloom[(int) (bit >>> 6)] |= 1L << bit;
+    }
+    ++numBloomIds;
+  }
+
+  private boolean windowContains(long tweetId) {
+    for (int slot = (int) mix(tweetId) & tableMask; table[slot] != EMPTY; slot = (slot + 1) & tableMask) {
+      if (table[slot] == tweetId) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds an id that is not in the window, evicting the oldest one once the window is full.
+   */
+  private void windowAdd(long tweetId) {
+    if (window[windowNext] != EMPTY) {
+      windowRemove(window[windowNext]);
+    }
+    window[windowNext] = tweetId;
+    windowNext = (windowNext + 1) % windowSize;
+    int slot = (int) mix(tweetId) & tableMask;
+    while (table[slot] != EMPTY) {
+      slot = (slot + 1) & tableMask;
+    }
+    table[slot] = tweetId;
+  }
+
+  /**
+   * Removes an id from the hash set, shifting back the ids after it that would no longer be found past the hole.
+   */
+  private void windowRemove(long tweetId) {
+    int hole = (int) mix(tweetId) & tableMask;
+    while (table[hole] != tweetId) {
+      hole = (hole + 1) & tableMask;
+    }
+    for (int slot = (hole + 1) & tableMask; table[slot] != EMPTY; slot = (slot + 1) & tableMask) {
+      int home = (int) mix(table[slot]) & tableMask;
+      if (((slot - home) & tableMask) >= ((slot - hole) & tableMask)) {
+        table[hole] = table[slot];
+        hole = slot;
+      }
+    }
+    table[hole] = EMPTY;
+  }
+
+  /**
+   * Spreads the bits of an id, the finalizer of MurmurHash3. Status ids are mostly a timestamp and a sequence number,
+   * far from uniform in their low bits.
+   */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,355 @@
+package ingest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only spool of records on disk, written through memory mapped segment files. Records are appended by the
+ * stream thread and read back in order by a replayer, which acknowledges a position once everything before it is in
+ * the db. Fully acknowledged segments are deleted, and a spool opened again resumes reading from the last
+ * acknowledged position, so records that were spooled but not yet acknowledged when the process died are replayed.
+ * A record can therefore be replayed more than once, never lost.
+ *
+ * Each record is stored as its length, the CRC32 of its bytes and the bytes. The length is written last, so a record
+ * whose length is still 0 was never completely written. Opening a spool drops any torn record at the end of the last
+ * segment. Memory use does not depend on the size of the backlog, which only takes up disk space, up to maxSegments
+ * segments, after which appends fail.
+ */
+public class Spool {
+
+  private static final Logger log = Logger.getLogger(Spool.class.getName());
+
+  private static final int HEADER_BYTES = 8;
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".spool";
+  private static final String ACK_FILE = "ack";
+
+  private final File dir;
+  private final int segmentBytes;
+  private final int maxSegments;
+
+  // Guarded by this.
+  private long firstSeq;
+  private long writeSeq;
+  private int writeOffset;
+  private MappedByteBuffer writeBuffer;
+  private long readSeq;
+  private int readOffset;
+  private MappedByteBuffer readBuffer;
+  private long ackedPosition;
+  private long numUnread = 0;
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * Opens the spool in a directory, creating it if needed, and recovers the read and write positions of a spool
+   * left there by an earlier run.
+   *
+   * @param dir The directory holding the segment files and the ack file.
+   * @param segmentBytes The size of each segment file, which also bounds the size of a record.
+   * @param maxSegments The most segment files kept at once.
+   * @throws IOException If the spool could not be opened.
+   */
+  public Spool(File dir, int segmentBytes, int maxSegments) throws IOException {
+    if (segmentBytes <= HEADER_BYTES || maxSegments < 1) {
+      throw new IllegalArgumentException("Need segmentBytes > " + HEADER_BYTES + " and maxSegments >= 1.");
+    }
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = maxSegments;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create spool directory " + dir);
+    }
+    recover();
+  }
+
+  /**
+   * Appends a record.
+   *
+   * @param record The bytes of the record.
+   * @return boolean true if the record was spooled, false if it is too large or the spool is full.
+   */
+  public synchronized boolean append(byte[] record) {
+    if (HEADER_BYTES + record.length > segmentBytes) {
+      log.warning("Not spooling a record of " + record.length + " bytes, larger than a segment.");
+      return false;
+    }
+    try {
+      if (writeOffset + HEADER_BYTES + record.length > segmentBytes) {
+        if (writeSeq - firstSeq + 1 >= maxSegments) {
+          return false;
+        }
+        writeBuffer.force();
+        ++writeSeq;
+        writeOffset = 0;
+        writeBuffer = map(writeSeq);
+      }
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
+    crc.reset();
+    crc.update(record, 0, record.length);
+    ByteBuffer target = writeBuffer.duplicate();
+    target.position(writeOffset + HEADER_BYTES);
+    target.put(record);
+    writeBuffer.putInt(writeOffset + 4, (int) crc.getValue());
+    writeBuffer.putInt(writeOffset, record.length);
+    writeOffset += HEADER_BYTES + record.length;
+    ++numUnread;
+    return true;
+  }
+
+  /**
+   * Reads the next records after those already read.
+   *
+   * @param records Receives the records.
+   * @param maxRecords The most records to read.
+   * @return long the position after the last record read, to {@link #ack(long)} once they are in the db.
+   */
+  public synchronized long read(List<byte[]> records, int maxRecords) {
+    int numRead = 0;
+    while (numRead < maxRecords) {
+      byte[] record = readRecord(readBuffer, readOffset);
+      if (record == null) {
+        if (readSeq == writeSeq) {
+          break;
+        }
+        // The rest of a finished segment is empty.
+        try {
+          ++readSeq;
+          readOffset = 0;
+          readBuffer = readSeq == writeSeq ? writeBuffer : map(readSeq);
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+          break;
+        }
+        continue;
+      }
+      records.add(record);
+      readOffset += HEADER_BYTES + record.length;
+      ++numRead;
+    }
+    numUnread -= numRead;
+    return position(readSeq, readOffset);
+  }
+
+  /**
+   * Acknowledges that every record before a position is in the db. The position is remembered across runs, and the
+   * segments wholly before it are deleted.
+   *
+   * @param position A position returned by {@link #read(List, int)}.
+   * @throws IOException If the position could not be saved.
+   */
+  public synchronized void ack(long position) throws IOException {
+    if (position <= ackedPosition) {
+      return;
+    }
+    File tmp = new File(dir, ACK_FILE + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      out.write(ByteBuffer.allocate(8).putLong(position).array());
+      out.getFD().sync();
+    }
+    finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), new File(dir, ACK_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+    ackedPosition = position;
+
+    long ackedSeq = position >>> 32;
+    while (firstSeq < ackedSeq) {
+      File segment = segmentFile(firstSeq);
+      if (segment.exists() && !segment.delete()) {
+        log.warning("Could not delete acknowledged spool segment " + segment);
+      }
+      ++firstSeq;
+    }
+  }
+
+  /**
+   * Writes the spooled records through to disk, so they survive the machine going down and not just the process.
+   */
+  public void force() {
+    MappedByteBuffer buffer;
+    synchronized (this) {
+      buffer = writeBuffer;
+    }
+    if (buffer != null) {
+      buffer.force();
+    }
+  }
+
+  /**
+   * Forces the spool to disk. Records not yet acknowledged are read again when the spool is next opened.
+   */
+  public void close() {
+    force();
+  }
+
+  /**
+   * @return The number of records appended but not yet read.
+   */
+  public synchronized long getUnreadRecords() {
+    return numUnread;
+  }
+
+  /**
+   * @return The number of segment files currently kept.
+   */
+  public synchronized int getNumSegments() {
+    return (int) (writeSeq - firstSeq + 1);
+  }
+
+  /**
+   * Finds the segments and ack position left by an earlier run, counts the records not yet acknowledged, and wipes
+   * whatever follows the last complete record, so a torn record is never mistaken for a complete one later.
+   */
+  private void recover() throws IOException {
+    long[] seqs = listSegments();
+    ackedPosition = readAck();
+    long ackedSeq = ackedPosition >>> 32;
+
+    // Segments wholly before the acknowledged position were about to be deleted.
+    int first = 0;
+    while (first < seqs.length && seqs[first] < ackedSeq) {
+      segmentFile(seqs[first]).delete();
+      ++first;
+    }
+    if (first == seqs.length) {
+      // Starts after the acknowledged position, which later acks must move past to be saved.
+      long startSeq = (int) ackedPosition == 0 ? ackedSeq : ackedSeq + 1;
+      firstSeq = startSeq;
+      writeSeq = startSeq;
+      writeOffset = 0;
+      writeBuffer = map(writeSeq);
+      readSeq = startSeq;
+      readOffset = 0;
+      readBuffer = writeBuffer;
+      return;
+    }
+    firstSeq = seqs[first];
+    if (seqs[first] == ackedSeq) {
+      readSeq = ackedSeq;
+      readOffset = (int) ackedPosition;
+    }
+    else {
+      readSeq = seqs[first];
+      readOffset = 0;
+    }
+
+    long seq = readSeq;
+    int offset = readOffset;
+    for (int i = first; i < seqs.length; ++i) {
+      if (seqs[i] != seq) {
+        offset = 0;
+        seq = seqs[i];
+      }
+      if (i + 1 < seqs.length && seqs[i + 1] != seq + 1) {
+        throw new IOException("Spool segment " + (seq + 1) + " is missing from " + dir);
+      }
+      MappedByteBuffer buffer = map(seq);
+      byte[] record;
+      while ((record = readRecord(buffer, offset)) != null) {
+        offset += HEADER_BYTES + record.length;
+        ++numUnread;
+      }
+      if (i == seqs.length - 1) {
+        writeSeq = seq;
+        writeOffset = offset;
+        writeBuffer = buffer;
+        for (int j = offset; j < segmentBytes; ++j) {
+          buffer.put(j, (byte) 0);
+        }
+        buffer.force();
+      }
+    }
+    readBuffer = readSeq == writeSeq ? writeBuffer : map(readSeq);
+    if (numUnread > 0) {
+      log.info("Recovered " + numUnread + " spooled records to replay from " + dir);
+    }
+  }
+
+  /**
+   * @return The complete record at the offset, or null if there is none.
+   */
+  private byte[] readRecord(MappedByteBuffer buffer, int offset) {
+    if (offset + HEADER_BYTES > segmentBytes) {
+      return null;
+    }
+    int length = buffer.getInt(offset);
+    if (length <= 0 || length > segmentBytes - offset - HEADER_BYTES) {
+      return null;
+    }
+    byte[] record = new byte[length];
+    ByteBuffer source = buffer.duplicate();
+    source.position(offset + HEADER_BYTES);
+    source.get(record);
+    crc.reset();
+    crc.update(record, 0, length);
+    return (int) crc.getValue() == buffer.getInt(offset + 4) ? record : null;
+  }
+
+  private MappedByteBuffer map(long seq) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segmentFile(seq), "rw");
+    try {
+      if (file.length() != segmentBytes) {
+        file.setLength(segmentBytes);
+      }
+      // The mapping stays valid after the file is closed.
+      return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+    finally {
+      file.close();
+    }
+  }
+
+  private long readAck() throws IOException {
+    File ack = new File(dir, ACK_FILE);
+    if (!ack.exists()) {
+      return 0;
+    }
+    byte[] bytes = Files.readAllBytes(ack.toPath());
+    if (bytes.length != 8) {
+      throw new IOException("Corrupt spool ack file " + ack);
+    }
+    return ByteBuffer.wrap(bytes).getLong();
+  }
+
+  private long[] listSegments() {
+    File[] files = dir.listFiles();
+    long[] seqs = new long[files == null ? 0 : files.length];
+    int numSegments = 0;
+    for (int i = 0; i < seqs.length; ++i) {
+      String name = files[i].getName();
+      if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+        seqs[numSegments++] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                                            name.length() - SEGMENT_SUFFIX.length()));
+      }
+    }
+    seqs = Arrays.copyOf(seqs, numSegments);
+    Arrays.sort(seqs);
+    return seqs;
+  }
+
+  private File segmentFile(long seq) {
+    return new File(dir, SEGMENT_PREFIX + String.format("%012d", seq) + SEGMENT_SUFFIX);
+  }
+
+  private static long position(long seq, int offset) {
+    return (seq << 32) | offset;
+  }
+}
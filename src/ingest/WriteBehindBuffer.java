@@ -0,0 +1,855 @@
+package ingest;
+
+import dao.RankDAO;
+import dao.TweetDAO;
+import dao.UserCache;
+import dao.UserDAO;
+import database.MySQL_UI;
+import domain.TwitNewsRank;
+import domain.TwitNewsTweet;
+import domain.TwitNewsUser;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static util.TwitNewsConstants.SEEN_TWEET_IDS_BLOOM_IDS;
+import static util.TwitNewsConstants.SEEN_TWEET_IDS_WINDOW;
+import static util.TwitNewsConstants.WRITE_BEHIND_CAPACITY;
+import static util.TwitNewsConstants.WRITE_BEHIND_DEAD_LETTER_FILE;
+import static util.TwitNewsConstants.WRITE_BEHIND_MAX_LATENCY_MILLIS;
+import static util.TwitNewsConstants.WRITE_BEHIND_MAX_ROWS;
+
+/**
+ * Buffers tweets, users and ranks in memory and writes them behind the threads that add them, all pending rows in
+ * one transaction. A flush starts as soon as maxRows rows are pending or the oldest pending row has waited
+ * maxLatencyMillis, whichever comes first, so rows are at most about maxLatencyMillis plus one commit behind, while
+ * a busy stream is committed in few large transactions rather than one per entity type and batch.
+ *
+ * A failed transaction is rolled back and retried with a backoff, and dropped after MAX_FLUSH_ATTEMPTS attempts,
+ * unless a {@link CommitListener} is set. Rows the db rejects for good, those failing a constraint or holding data it
+ * can't store, are not retried: they are found by committing the rows of the failed part of the batch one by one,
+ * appended to a dead letter file and left out, so that they hold up neither the rows after them nor the marks. While
+ * a flush is running new rows keep collecting, and the threads adding rows block once capacity rows are pending.
+ *
+ * Tweets are keyed on their status id. A tweet already pending, or recently committed, is not added again, see
+ * {@link SeenTweetIds}. Ids are only remembered once their tweets are committed, so that tweets of a dropped batch
+ * are written when they come again. Any other repeat is ignored by the insert.
+ */
+public class WriteBehindBuffer {
+
+  private static final Logger log = Logger.getLogger(WriteBehindBuffer.class.getName());
+
+  // How many times a failed transaction is retried before its rows are dropped.
+  private static final int MAX_FLUSH_ATTEMPTS = 3;
+  private static final long RETRY_BACKOFF_MILLIS = 1000;
+
+  private final MySQL_UI sql;
+  private final TweetDAO tweetDAO;
+  private final UserDAO userDAO;
+  private final RankDAO rankDAO;
+  private final int maxRows;
+  private final long maxLatencyMillis;
+  private final int capacity;
+  private final File deadLetterFile;
+  private final Thread flusher;
+  private final SeenTweetIds seenTweetIds;
+
+  // Guarded by this.
+  private Batch pending = new Batch();
+  private boolean running = false;
+  private boolean shutdown = false;
+  private long pendingRepeats = 0;
+
+  private IngestMetrics ingestMetrics = null;
+  private CommitListener commitListener = null;
+
+  private final AtomicLong commits = new AtomicLong();
+  private final AtomicLong failedCommits = new AtomicLong();
+  private final AtomicLong rowsWritten = new AtomicLong();
+  private final AtomicLong rowsDropped = new AtomicLong();
+  private final AtomicLong rowsRejected = new AtomicLong();
+  private final AtomicLong lastStalenessMillis = new AtomicLong();
+  private final AtomicLong maxStalenessMillis = new AtomicLong();
+
+  /**
+   * Creates a new WriteBehindBuffer. Rows can be added right away, but are only written once {@link #start()} is
+   * called.
+   *
+   * @param sql The {@link MySQL_UI} to write to.
+   * @param maxRows The number of pending rows that starts a flush.
+   * @param maxLatencyMillis How long the oldest pending row waits at most before a flush starts.
+   * @param capacity The number of pending rows at which adding rows blocks until a flush has taken them.
+   */
+  public WriteBehindBuffer(MySQL_UI sql, int maxRows, long maxLatencyMillis, int capacity) {
+    this(sql, maxRows, maxLatencyMillis, capacity, new SeenTweetIds(SEEN_TWEET_IDS_WINDOW, SEEN_TWEET_IDS_BLOOM_IDS));
+  }
+
+  /**
+   * Creates a new WriteBehindBuffer. Rows can be added right away, but are only written once {@link #start()} is
+   * called.
+   *
+   * @param sql The {@link MySQL_UI} to write to.
+   * @param maxRows The number of pending rows that starts a flush.
+   * @param maxLatencyMillis How long the oldest pending row waits at most before a flush starts.
+   * @param capacity The number of pending rows at which adding rows blocks until a flush has taken them.
+   * @param seenTweetIds Remembers the ids of the tweets added, to drop repeats.
+   */
+  public WriteBehindBuffer(MySQL_UI sql, int maxRows, long maxLatencyMillis, int capacity,
+                           SeenTweetIds seenTweetIds) {
+    if (maxRows < 1 || maxLatencyMillis < 0 || capacity < maxRows) {
+      throw new IllegalArgumentException("Need maxRows >= 1, maxLatencyMillis >= 0 and capacity >= maxRows.");
+    }
+    this.sql = sql;
+    this.tweetDAO = new TweetDAO(sql);
+    this.userDAO = new UserDAO(sql);
+    this.rankDAO = new RankDAO(sql);
+    this.maxRows = maxRows;
+    this.maxLatencyMillis = maxLatencyMillis;
+    this.capacity = capacity;
+    this.deadLetterFile = new File(System.getProperty("twitnews.writeBehind.deadLetterFile",
+                                                      WRITE_BEHIND_DEAD_LETTER_FILE));
+    this.seenTweetIds = seenTweetIds;
+    this.flusher = new Thread(new Flusher(), "write-behind-flusher");
+    this.flusher.setDaemon(true);
+  }
+
+  /**
+   * Creates a new WriteBehindBuffer sized from the twitnews.writeBehind.* and twitnews.seenTweetIds.* system
+   * properties, falling back to the defaults in {@link util.TwitNewsConstants}.
+   *
+   * @param sql The {@link MySQL_UI} to write to.
+   * @return The new, not yet started, buffer.
+   */
+  public static WriteBehindBuffer create(MySQL_UI sql) {
+    int maxRows = Integer.getInteger("twitnews.writeBehind.maxRows", WRITE_BEHIND_MAX_ROWS);
+    return new WriteBehindBuffer(sql, maxRows,
+                                 Integer.getInteger("twitnews.writeBehind.maxLatencyMillis",
+                                                    WRITE_BEHIND_MAX_LATENCY_MILLIS),
+                                 Math.max(maxRows, Integer.getInteger("twitnews.writeBehind.capacity",
+                                                                      WRITE_BEHIND_CAPACITY)),
+                                 new SeenTweetIds(Integer.getInteger("twitnews.seenTweetIds.window",
+                                                                     SEEN_TWEET_IDS_WINDOW),
+                                                  Integer.getInteger("twitnews.seenTweetIds.bloomIds",
+                                                                     SEEN_TWEET_IDS_BLOOM_IDS)));
+  }
+
+  /**
+   * Starts the flusher thread.
+   */
+  public synchronized void start() {
+    running = true;
+    flusher.start();
+  }
+
+  /**
+   * Buffers a tweet, unless a tweet with the same status id has been added before.
+   *
+   * @param tweet The tweet.
+   * @param trendId The id of the trend of the tweet.
+   */
+  public void addTweet(TwitNewsTweet tweet, int trendId) {
+    synchronized (this) {
+      awaitRoom();
+      if (bufferTweet(tweet, trendId)) {
+        rowAdded();
+      }
+    }
+  }
+
+  /**
+   * Buffers a user. A user already pending is only written once, and a user the {@link UserCache} knows to be in
+   * the db unchanged is not written at all.
+   *
+   * @param user The user.
+   */
+  public void addUser(TwitNewsUser user) {
+    if (isPersisted(user)) {
+      return;
+    }
+    synchronized (this) {
+      awaitRoom();
+      if (pending.addUser(user)) {
+        rowAdded();
+      }
+    }
+  }
+
+  /**
+   * Buffers a rank.
+   *
+   * @param rank The rank.
+   */
+  public void addRank(TwitNewsRank rank) {
+    synchronized (this) {
+      awaitRoom();
+      pending.addRank(rank);
+      rowAdded();
+    }
+  }
+
+  /**
+   * Buffers the tweets and user of a batch of ingest records, taking the lock once for the whole batch.
+   *
+   * @param records The records.
+   */
+  void addRecords(Collection<IngestRecord> records) {
+    addRecords(records, -1);
+  }
+
+  /**
+   * Buffers the tweets and user of a batch of ingest records, and tells the {@link CommitListener} about the mark
+   * once they are committed. Tweets added before, most often the originals of retweets, are skipped.
+   *
+   * @param records The records.
+   * @param mark A mark that never decreases from one call to the next, -1 for none.
+   */
+  void addRecords(Collection<IngestRecord> records, long mark) {
+    synchronized (this) {
+      awaitRoom();
+      pending.mark = Math.max(pending.mark, mark);
+      for (IngestRecord record : records) {
+        if (bufferTweet(record.getTweet(), record.getTrendId())) {
+          rowAdded();
+        }
+        if (record.getOriginalTweet() != null && bufferTweet(record.getOriginalTweet(), record.getTrendId())) {
+          rowAdded();
+        }
+        if (record.getUser() != null && !isPersisted(record.getUser()) && pending.addUser(record.getUser())) {
+          rowAdded();
+        }
+      }
+    }
+  }
+
+  /**
+   * Buffers a tweet unless a tweet with its status id is pending or was recently committed. Must hold the lock.
+   *
+   * @return boolean true if the tweet was buffered.
+   */
+  private boolean bufferTweet(TwitNewsTweet tweet, int trendId) {
+    if (seenTweetIds.contains(tweet.getTweetId())) {
+      return false;
+    }
+    if (!pending.addTweet(tweet, trendId)) {
+      ++pendingRepeats;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Remembers the status ids of the tweets committed so far from a batch.
+   */
+  private synchronized void rememberCommitted(Batch batch) {
+    for (long tweetId : batch.committedTweetIds) {
+      seenTweetIds.add(tweetId);
+    }
+    batch.committedTweetIds.clear();
+  }
+
+  /**
+   * @return The cache of users known to be in the db, null if there is none.
+   */
+  UserCache getUserCache() {
+    return userDAO.getUserCache();
+  }
+
+  private boolean isPersisted(TwitNewsUser user) {
+    UserCache userCache = userDAO.getUserCache();
+    return userCache != null && userCache.isPersisted(user);
+  }
+
+  /**
+   * Reports every flush attempt to the metrics of an {@link IngestPipeline} as well.
+   */
+  synchronized void setIngestMetrics(IngestMetrics ingestMetrics) {
+    this.ingestMetrics = ingestMetrics;
+  }
+
+  /**
+   * Tells a listener about the mark of every batch committed. Batches are never dropped once a listener is set, they
+   * are retried until they commit, so that no mark is passed on while rows before it are missing.
+   */
+  synchronized void setCommitListener(CommitListener commitListener) {
+    this.commitListener = commitListener;
+  }
+
+  /**
+   * Stops accepting rows and waits for the flusher to write whatever is still pending.
+   *
+   * @param timeoutMillis The maximum time to wait for the flusher to finish.
+   */
+  public void shutdown(long timeoutMillis) {
+    synchronized (this) {
+      shutdown = true;
+      notifyAll();
+    }
+    try {
+      flusher.join(Math.max(1, timeoutMillis));
+    }
+    catch (InterruptedException e) {
+      log.warning("Interrupted while waiting for the write-behind flusher to finish!");
+      Thread.currentThread().interrupt();
+    }
+    int numPending = getPendingRows();
+    if (numPending > 0) {
+      log.severe(numPending + " rows were still pending when the write-behind buffer shut down.");
+    }
+  }
+
+  /**
+   * Blocks while the buffer is full. Must hold the lock. Interrupted threads add their rows anyway rather than
+   * losing them.
+   */
+  private void awaitRoom() {
+    if (shutdown) {
+      throw new IllegalStateException("The write-behind buffer has been shut down.");
+    }
+    while (running && pending.numRows >= capacity) {
+      try {
+        wait();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Must hold the lock.
+   */
+  private void rowAdded() {
+    if (pending.numRows++ == 0) {
+      pending.firstAddedAt = System.currentTimeMillis();
+      notifyAll();
+    }
+    else if (pending.numRows == maxRows) {
+      notifyAll();
+    }
+  }
+
+  public synchronized int getPendingRows() {
+    return pending.numRows;
+  }
+
+  public long getCommits() {
+    return commits.get();
+  }
+
+  public long getFailedCommits() {
+    return failedCommits.get();
+  }
+
+  public long getRowsWritten() {
+    return rowsWritten.get();
+  }
+
+  public long getRowsDropped() {
+    return rowsDropped.get();
+  }
+
+  /**
+   * @return The number of rows the db rejected for good, which were written to the dead letter file instead.
+   */
+  public long getRowsRejected() {
+    return rowsRejected.get();
+  }
+
+  /**
+   * @return The number of tweets not buffered because a tweet with the same status id was pending or committed.
+   */
+  public synchronized long getRepeatsSkipped() {
+    return seenTweetIds.getRepeats() + pendingRepeats;
+  }
+
+  /**
+   * @return The number of committed tweets that were probably committed before, longer ago than the window of
+   *         {@link SeenTweetIds} reaches. The insert ignored them.
+   */
+  public synchronized long getProbableRepeatsWritten() {
+    return seenTweetIds.getProbableRepeats();
+  }
+
+  /**
+   * @return How long the oldest row of the last committed flush had waited by the time it was committed.
+   */
+  public long getLastStalenessMillis() {
+    return lastStalenessMillis.get();
+  }
+
+  /**
+   * @return The largest {@link #getLastStalenessMillis()} so far.
+   */
+  public long getMaxStalenessMillis() {
+    return maxStalenessMillis.get();
+  }
+
+  @Override
+  public String toString() {
+    final StringBuffer sb = new StringBuffer();
+    sb.append("WriteBehindBuffer");
+    sb.append("{pendingRows=").append(getPendingRows()).append('/').append(capacity);
+    sb.append(", commits=").append(getCommits());
+    sb.append(", failedCommits=").append(getFailedCommits());
+    sb.append(", rowsWritten=").append(getRowsWritten());
+    sb.append(", rowsDropped=").append(getRowsDropped());
+    sb.append(", rowsRejected=").append(getRowsRejected());
+    sb.append(", repeatsSkipped=").append(getRepeatsSkipped());
+    sb.append(", probableRepeatsWritten=").append(getProbableRepeatsWritten());
+    sb.append(", lastStalenessMillis=").append(getLastStalenessMillis());
+    sb.append(", maxStalenessMillis=").append(getMaxStalenessMillis());
+    sb.append('}');
+    return sb.toString();
+  }
+
+  /**
+   * Takes the pending rows whenever a flush is due and writes them, one transaction at a time.
+   */
+  private class Flusher implements Runnable {
+
+    @Override
+    public void run() {
+      while (true) {
+        Batch batch;
+        synchronized (WriteBehindBuffer.this) {
+          try {
+            while (!isDue()) {
+              if (pending.numRows == 0) {
+                if (shutdown) {
+                  return;
+                }
+                WriteBehindBuffer.this.wait();
+              }
+              else {
+                WriteBehindBuffer.this.wait(Math.max(1, pending.firstAddedAt + maxLatencyMillis -
+                                                        System.currentTimeMillis()));
+              }
+            }
+          }
+          catch (InterruptedException e) {
+            log.warning("Write-behind flusher interrupted, flushing what it has and exiting.");
+            shutdown = true;
+            Thread.currentThread().interrupt();
+          }
+          batch = pending;
+          pending = new Batch();
+          // Wakes up adders waiting for room.
+          WriteBehindBuffer.this.notifyAll();
+        }
+        if (batch.numRows > 0) {
+          flush(batch);
+        }
+        if (Thread.currentThread().isInterrupted()) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Must hold the lock.
+     */
+    private boolean isDue() {
+      return pending.numRows > 0 &&
+             (shutdown || pending.numRows >= maxRows ||
+              System.currentTimeMillis() - pending.firstAddedAt >= maxLatencyMillis);
+    }
+
+    private void flush(Batch batch) {
+      IngestMetrics metrics;
+      CommitListener listener;
+      synchronized (WriteBehindBuffer.this) {
+        metrics = ingestMetrics;
+        listener = commitListener;
+      }
+      for (int attempt = 1; ; ++attempt) {
+        long start = System.nanoTime();
+        int numRows = batch.numRows + batch.numRejected;
+        int numTweets = batch.numTweets + batch.numRejectedTweets;
+        int numUsers = batch.users.size() + batch.numRejectedUsers;
+        boolean success;
+
+        // Without a pool the single connection is shared with everyone else, who must not run statements inside
+        // our transaction.
+        if (sql.isPooled()) {
+          success = commit(batch);
+        }
+        else {
+          synchronized (sql) {
+            success = commit(batch);
+          }
+        }
+        rememberCommitted(batch);
+
+        // A failed batch may still have committed some of its trends, which are no longer in it, and rejected rows
+        // are taken out without being written.
+        if (metrics != null) {
+          metrics.recordFlush(System.nanoTime() - start,
+                              numTweets - (batch.numTweets + batch.numRejectedTweets),
+                              numUsers - (batch.users.size() + batch.numRejectedUsers), success);
+        }
+        rowsWritten.addAndGet(numRows - (batch.numRows + batch.numRejected));
+
+        if (success) {
+          commits.incrementAndGet();
+          long staleness = System.currentTimeMillis() - batch.firstAddedAt;
+          lastStalenessMillis.set(staleness);
+          long max = maxStalenessMillis.get();
+          while (staleness > max && !maxStalenessMillis.compareAndSet(max, staleness)) {
+            max = maxStalenessMillis.get();
+          }
+          if (listener != null && batch.mark >= 0) {
+            listener.committed(batch.mark);
+          }
+          return;
+        }
+
+        failedCommits.incrementAndGet();
+        if (listener == null && attempt >= MAX_FLUSH_ATTEMPTS) {
+          log.severe("Failure committing " + batch.numRows + " rows after " + attempt + " attempts, dropping them.");
+          rowsDropped.addAndGet(batch.numRows);
+          return;
+        }
+        log.severe("Failure committing " + batch.numRows + " rows. Will try again.");
+        try {
+          Thread.sleep(RETRY_BACKOFF_MILLIS * Math.min(attempt, MAX_FLUSH_ATTEMPTS));
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          if (listener != null) {
+            // Whoever set the listener still has the rows after the last mark it was told about.
+            log.severe("Interrupted, leaving " + batch.numRows + " uncommitted rows to the commit listener.");
+            return;
+          }
+          // Otherwise still retries, but exits after this batch.
+        }
+      }
+    }
+
+    /**
+     * Writes the batch in one transaction, tweets first, then users, then ranks. Should that fail, the tweets of
+     * every trend, the users and the ranks are committed in transactions of their own, so that rows of one trend the
+     * db rejects don't hold back the rows of the others. A part the db rejects for good is committed row by row, and
+     * the rows it rejects are written to the dead letter file. Whatever committed or was rejected is taken out of the
+     * batch.
+     *
+     * @return boolean true if nothing is left in the batch, false if rows failed that are worth retrying.
+     */
+    private boolean commit(final Batch batch) {
+      final Map<Integer, List<TwitNewsTweet>> noTweets = Collections.emptyMap();
+      final Set<TwitNewsUser> noUsers = Collections.emptySet();
+      final List<TwitNewsRank> noRanks = Collections.emptyList();
+      try {
+        transaction(batch.tweetsByTrendId, batch.users, batch.ranks);
+        userDAO.committed(batch.users);
+        for (List<TwitNewsTweet> tweets : batch.tweetsByTrendId.values()) {
+          batch.committed(tweets);
+        }
+        batch.clear();
+        return true;
+      }
+      catch (SQLException e) {
+        e.printStackTrace();
+        if (batch.numParts() <= 1 && !isPermanent(e)) {
+          return false;
+        }
+      }
+
+      log.warning("Failure committing " + batch.numRows + " rows at once, committing the tweets of each trend, the " +
+                  "users and the ranks on their own.");
+      for (final Integer trendId : new ArrayList<Integer>(batch.tweetsByTrendId.keySet())) {
+        try {
+          transaction(Collections.singletonMap(trendId, batch.tweetsByTrendId.get(trendId)), noUsers, noRanks);
+          batch.committed(batch.tweetsByTrendId.get(trendId));
+          batch.retainTweets(trendId, Collections.<TwitNewsTweet>emptyList());
+        }
+        catch (SQLException e) {
+          log.severe("Failure committing the tweets of trend " + trendId + ".");
+          e.printStackTrace();
+          if (isPermanent(e)) {
+            List<TwitNewsTweet> tweets = batch.tweetsByTrendId.get(trendId);
+            batch.retainTweets(trendId, commitOneByOne(batch, tweets, new RowWriter<TwitNewsTweet>() {
+              @Override
+              public void write(TwitNewsTweet tweet) throws SQLException {
+                transaction(Collections.singletonMap(trendId, Collections.singletonList(tweet)), noUsers, noRanks);
+                batch.committed(Collections.singletonList(tweet));
+              }
+            }));
+          }
+        }
+      }
+      if (!batch.users.isEmpty()) {
+        try {
+          transaction(noTweets, batch.users, noRanks);
+          userDAO.committed(batch.users);
+          batch.retainUsers(Collections.<TwitNewsUser>emptyList());
+        }
+        catch (SQLException e) {
+          log.severe("Failure committing " + batch.users.size() + " users.");
+          e.printStackTrace();
+          if (isPermanent(e)) {
+            List<TwitNewsUser> users = new ArrayList<TwitNewsUser>(batch.users);
+            batch.retainUsers(commitOneByOne(batch, users, new RowWriter<TwitNewsUser>() {
+              @Override
+              public void write(TwitNewsUser user) throws SQLException {
+                transaction(noTweets, Collections.singleton(user), noRanks);
+                userDAO.committed(Collections.singleton(user));
+              }
+            }));
+          }
+        }
+      }
+      if (!batch.ranks.isEmpty()) {
+        try {
+          transaction(noTweets, noUsers, batch.ranks);
+          batch.retainRanks(Collections.<TwitNewsRank>emptyList());
+        }
+        catch (SQLException e) {
+          log.severe("Failure committing " + batch.ranks.size() + " ranks.");
+          e.printStackTrace();
+          if (isPermanent(e)) {
+            batch.retainRanks(commitOneByOne(batch, batch.ranks, new RowWriter<TwitNewsRank>() {
+              @Override
+              public void write(TwitNewsRank rank) throws SQLException {
+                transaction(noTweets, noUsers, Collections.singletonList(rank));
+              }
+            }));
+          }
+        }
+      }
+      return batch.numRows == 0;
+    }
+
+    /**
+     * Commits rows one at a time, writing those the db rejects for good to the dead letter file.
+     *
+     * @return The rows that failed for some other reason, to be retried.
+     */
+    private <T> List<T> commitOneByOne(Batch batch, List<T> rows, RowWriter<T> writer) {
+      List<T> failed = new ArrayList<T>();
+      for (T row : rows) {
+        try {
+          writer.write(row);
+        }
+        catch (SQLException e) {
+          if (isPermanent(e)) {
+            reject(batch, row, e);
+          }
+          else {
+            failed.add(row);
+          }
+        }
+      }
+      return failed;
+    }
+
+    /**
+     * Writes tweets, users and ranks in one transaction, rolling it back if anything fails.
+     *
+     * @throws SQLException If the transaction was rolled back.
+     */
+    private void transaction(Map<Integer, List<TwitNewsTweet>> tweetsByTrendId, Set<TwitNewsUser> users,
+                             List<TwitNewsRank> ranks) throws SQLException {
+      Connection conn = null;
+      try {
+        conn = sql.borrowConnection();
+        conn.setAutoCommit(false);
+        for (Map.Entry<Integer, List<TwitNewsTweet>> entry : tweetsByTrendId.entrySet()) {
+          tweetDAO.insertTweets(conn, entry.getValue(), entry.getKey());
+        }
+        if (!users.isEmpty()) {
+          userDAO.insertUsers(conn, users);
+        }
+        if (!ranks.isEmpty()) {
+          rankDAO.insertRanks(conn, ranks);
+        }
+        conn.commit();
+      }
+      catch (SQLException e) {
+        sql.rollback(conn);
+        throw e;
+      }
+      catch (RuntimeException e) {
+        // A row that can't even be bound.
+        sql.rollback(conn);
+        throw new SQLDataException("Failure binding a row.", e);
+      }
+      finally {
+        sql.releaseConnection(conn);
+      }
+    }
+
+    /**
+     * Appends a row the db rejected for good to the dead letter file, along with why.
+     */
+    private void reject(Batch batch, Object row, SQLException e) {
+      rowsRejected.incrementAndGet();
+      ++batch.numRejected;
+      if (row instanceof TwitNewsTweet) {
+        ++batch.numRejectedTweets;
+      }
+      else if (row instanceof TwitNewsUser) {
+        ++batch.numRejectedUsers;
+      }
+      log.severe("The db rejected " + row + ", writing it to " + deadLetterFile + ": " + e.getMessage());
+      synchronized (deadLetterFile) {
+        PrintWriter out = null;
+        try {
+          out = new PrintWriter(new FileWriter(deadLetterFile, true));
+          out.println(System.currentTimeMillis() + "\t" + e.getSQLState() + "\t" + e.getMessage() + "\t" + row);
+        }
+        catch (IOException ioe) {
+          log.severe("Failure writing to " + deadLetterFile + ", the rejected row is lost.");
+          ioe.printStackTrace();
+        }
+        finally {
+          if (out != null) {
+            out.close();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Tells whether the db rejected rows for good, because they break a constraint or hold data it can't store, rather
+   * than for something that may pass, like a lost connection or a deadlock.
+   *
+   * @param e The exception of a failed statement.
+   * @return boolean true if retrying the same rows can't succeed.
+   */
+  static boolean isPermanent(SQLException e) {
+    for (SQLException next = e; next != null; next = next.getNextException()) {
+      if (next instanceof SQLIntegrityConstraintViolationException || next instanceof SQLDataException) {
+        return true;
+      }
+      String sqlState = next.getSQLState();
+      if (sqlState != null && (sqlState.startsWith("22") || sqlState.startsWith("23"))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes a single row in a transaction of its own.
+   */
+  private interface RowWriter<T> {
+
+    void write(T row) throws SQLException;
+  }
+
+  /**
+   * The rows of one transaction.
+   */
+  private static final class Batch {
+
+    private final Map<Integer, List<TwitNewsTweet>> tweetsByTrendId = new LinkedHashMap<Integer, List<TwitNewsTweet>>();
+    private final Set<TwitNewsUser> users = new LinkedHashSet<TwitNewsUser>();
+    private final List<TwitNewsRank> ranks = new ArrayList<TwitNewsRank>();
+    // The status ids of the tweets added, and of those committed but not yet remembered as seen.
+    private final Set<Long> tweetIds = new HashSet<Long>();
+    private final List<Long> committedTweetIds = new ArrayList<Long>();
+    private int numTweets = 0;
+    private int numRows = 0;
+    // Rows rejected for good so far, already taken out of the counts above.
+    private int numRejected = 0;
+    private int numRejectedTweets = 0;
+    private int numRejectedUsers = 0;
+    private long firstAddedAt = 0;
+    private long mark = -1;
+
+    /**
+     * @return boolean true if the tweet was added, false if a tweet with the same status id already was.
+     */
+    private boolean addTweet(TwitNewsTweet tweet, int trendId) {
+      if (tweet.getTweetId() != 0 && !tweetIds.add(tweet.getTweetId())) {
+        return false;
+      }
+      List<TwitNewsTweet> tweetsForTrend = tweetsByTrendId.get(trendId);
+      if (tweetsForTrend == null) {
+        tweetsForTrend = new ArrayList<TwitNewsTweet>();
+        tweetsByTrendId.put(trendId, tweetsForTrend);
+      }
+      tweetsForTrend.add(tweet);
+      ++numTweets;
+      return true;
+    }
+
+    private boolean addUser(TwitNewsUser user) {
+      return users.add(user);
+    }
+
+    private void committed(List<TwitNewsTweet> tweets) {
+      for (TwitNewsTweet tweet : tweets) {
+        committedTweetIds.add(tweet.getTweetId());
+      }
+    }
+
+    private void addRank(TwitNewsRank rank) {
+      ranks.add(rank);
+    }
+
+    /**
+     * @return The number of transactions the batch falls apart into, one per trend, one for the users and one for
+     *         the ranks.
+     */
+    private int numParts() {
+      return tweetsByTrendId.size() + (users.isEmpty() ? 0 : 1) + (ranks.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Keeps only the given tweets of a trend, once the others are committed or rejected.
+     */
+    private void retainTweets(int trendId, List<TwitNewsTweet> remaining) {
+      List<TwitNewsTweet> tweets = tweetsByTrendId.remove(trendId);
+      numTweets -= tweets.size() - remaining.size();
+      numRows -= tweets.size() - remaining.size();
+      if (!remaining.isEmpty()) {
+        tweetsByTrendId.put(trendId, new ArrayList<TwitNewsTweet>(remaining));
+      }
+    }
+
+    private void retainUsers(List<TwitNewsUser> remaining) {
+      numRows -= users.size() - remaining.size();
+      users.retainAll(new HashSet<TwitNewsUser>(remaining));
+    }
+
+    private void retainRanks(List<TwitNewsRank> remaining) {
+      numRows -= ranks.size() - remaining.size();
+      List<TwitNewsRank> kept = new ArrayList<TwitNewsRank>(remaining);
+      ranks.clear();
+      ranks.addAll(kept);
+    }
+
+    private void clear() {
+      tweetsByTrendId.clear();
+      users.clear();
+      ranks.clear();
+      numTweets = 0;
+      numRows = 0;
+    }
+  }
+
+  /**
+   * Told about the marks of committed batches, see {@link #setCommitListener(CommitListener)}.
+   */
+  interface CommitListener {
+
+    /**
+     * Called on the flusher thread once a batch is committed.
+     *
+     * @param mark The highest mark added with the rows of the batch.
+     */
+    void committed(long mark);
+  }
+}
@@ -0,0 +1,151 @@
+package ranker;
+
+import java.util.Arrays;
+
+/**
+ * Collapses near duplicate tweets into clusters as they are streamed, keeping the best ranked tweet of every cluster.
+ * A tweet joins the first cluster whose {@link SimHash} fingerprint is at most {@link #MAX_DISTANCE} bits away from
+ * its own, and starts a new cluster otherwise. A cluster keeps the fingerprint of the tweet that started it.
+ *
+ * Fingerprints are indexed in four bands of 16 bits. Two fingerprints at most three bits apart agree on at least one
+ * band, so looking a fingerprint up only compares it against the clusters sharing one of its bands. Per cluster the
+ * index holds the fingerprint, the best tweet id and rank, and a link per band, no text. Not thread safe, but
+ * indexes built on several threads can be merged into one.
+ */
+public class NearDuplicateIndex {
+
+  /**
+   * The largest number of bits in which fingerprints of near duplicates differ. The banding finds every cluster this
+   * close, and no more than 3 bits can be guaranteed with four bands.
+   */
+  public static final int MAX_DISTANCE = 3;
+
+  private static final int NUM_BANDS = 4;
+  private static final int BAND_BITS = 16;
+  private static final int NONE = -1;
+
+  private long[] fingerprints = new long[16];
+  private long[] tweetIds = new long[16];
+  private int[] ranks = new int[16];
+  private int size = 0;
+
+  // The clusters of a band value are chained from heads[band][value & mask] through next[band].
+  private final int[][] heads = new int[NUM_BANDS][];
+  private final int[][] next = new int[NUM_BANDS][];
+  private int mask;
+
+  public NearDuplicateIndex() {
+    for (int band = 0; band < NUM_BANDS; ++band) {
+      heads[band] = new int[16];
+      Arrays.fill(heads[band], NONE);
+      next[band] = new int[16];
+    }
+    mask = 15;
+  }
+
+  /**
+   * Adds a tweet, either to the cluster of a near duplicate or as a new cluster.
+   *
+   * @param fingerprint The {@link SimHash} fingerprint of the tweet's text.
+   * @param tweetId The id of the tweet.
+   * @param rank The rank of the tweet.
+   * @return boolean true if the tweet started a new cluster.
+   */
+  public boolean add(long fingerprint, long tweetId, int rank) {
+    int cluster = find(fingerprint);
+    if (cluster != NONE) {
+      // The first of the best ranked tweets wins.
+      if (rank > ranks[cluster]) {
+        tweetIds[cluster] = tweetId;
+        ranks[cluster] = rank;
+      }
+      return false;
+    }
+    if (size == fingerprints.length) {
+      grow();
+    }
+    fingerprints[size] = fingerprint;
+    tweetIds[size] = tweetId;
+    ranks[size] = rank;
+    link(size);
+    ++size;
+    return true;
+  }
+
+  /**
+   * Adds the best tweet of every cluster of another index, collapsing clusters that are near duplicates.
+   *
+   * @param other The index to merge into this one.
+   */
+  public void addAll(NearDuplicateIndex other) {
+    for (int i = 0; i < other.size; ++i) {
+      add(other.fingerprints[i], other.tweetIds[i], other.ranks[i]);
+    }
+  }
+
+  /**
+   * @return The number of clusters.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return The id of the best ranked tweet of the cluster.
+   */
+  public long getTweetId(int cluster) {
+    return tweetIds[cluster];
+  }
+
+  /**
+   * @return The rank of the best ranked tweet of the cluster.
+   */
+  public int getRank(int cluster) {
+    return ranks[cluster];
+  }
+
+  private int find(long fingerprint) {
+    for (int band = 0; band < NUM_BANDS; ++band) {
+      int value = band(fingerprint, band);
+      for (int i = heads[band][value & mask]; i != NONE; i = next[band][i]) {
+        if (band(fingerprints[i], band) == value && SimHash.distance(fingerprints[i], fingerprint) <= MAX_DISTANCE) {
+          return i;
+        }
+      }
+    }
+    return NONE;
+  }
+
+  private void link(int cluster) {
+    for (int band = 0; band < NUM_BANDS; ++band) {
+      int slot = band(fingerprints[cluster], band) & mask;
+      next[band][cluster] = heads[band][slot];
+      heads[band][slot] = cluster;
+    }
+  }
+
+  /**
+   * Doubles the capacity, and the number of chains so they stay short.
+   */
+  private void grow() {
+    int capacity = fingerprints.length * 2;
+    fingerprints = Arrays.copyOf(fingerprints, capacity);
+    tweetIds = Arrays.copyOf(tweetIds, capacity);
+    ranks = Arrays.copyOf(ranks, capacity);
+    if (capacity <= 1 << BAND_BITS) {
+      mask = capacity - 1;
+    }
+    for (int band = 0; band < NUM_BANDS; ++band) {
+      heads[band] = new int[mask + 1];
+      Arrays.fill(heads[band], NONE);
+      next[band] = new int[capacity];
+    }
+    for (int i = 0; i < size; ++i) {
+      link(i);
+    }
+  }
+
+  private static int band(long fingerprint, int band) {
+    return (int) (fingerprint >>> (band * BAND_BITS)) & ((1 << BAND_BITS) - 1);
+  }
+}
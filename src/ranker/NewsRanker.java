@@ -2,15 +2,19 @@ package ranker;
 
 import dao.TrendDAO;
 import dao.TweetDAO;
+import dao.TweetHandler;
 import database.MySQL_UI;
 import database.SqlConstants;
 import domain.TwitNewsTrend;
 import domain.TwitNewsTweet;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RecursiveAction;
 
 import static util.TwitNewsConstants.MAX_RETWEENT_COUNT;
 import static util.TwitNewsConstants.MAX_TWITTER_FOLLOWERS;
+import static util.TwitNewsConstants.RANK_BATCH_SIZE;
 
 /**
  * Created by IntelliJ IDEA.
@@ -24,12 +28,26 @@ public class NewsRanker {
   /**
    * Entry point for the ranker.
    *
-   * @param args Command line arguments.
+   * @param args Command line arguments. First argument: optional parallelism level, see
+   *             {@link RankingPool#parallelism(String[])}.
    */
   public static void main(String[] args) {
+    int parallelism = RankingPool.parallelism(args);
+    if (parallelism > 1) {
+      // The pool has connections of its own.
+      RankingPool pool = new RankingPool(parallelism, RankingPool.chunkSize());
+      try {
+        rankInParallel(pool, new TrendDAO(pool.sql()).fetchAllTrends());
+      }
+      finally {
+        pool.shutdown();
+      }
+      return;
+    }
 
-    // Create appropriate DAO objects
-    MySQL_UI sql = new MySQL_UI(SqlConstants.HOST, SqlConstants.PORT, SqlConstants.USER, SqlConstants.PASSWORD);
+    // Create appropriate DAO objects, with room for a tweet stream and the rank writes at the same time
+    MySQL_UI sql = MySQL_UI.createPooled(SqlConstants.HOST, SqlConstants.PORT, SqlConstants.USER,
+                                         SqlConstants.PASSWORD, 2);
     TrendDAO trendDAO = new TrendDAO(sql);
     TweetDAO tweetDAO = new TweetDAO(sql);
 
@@ -38,19 +56,77 @@ public class NewsRanker {
 
     for (TwitNewsTrend trend : trends) {
       System.out.println("Ranking tweets for trend: " + trend.getName());
-      List<TwitNewsTweet> tweets = tweetDAO.fetchTweets(trend.getTrendId());
+      RankUpdater updater = new RankUpdater(tweetDAO);
+      tweetDAO.streamTweets(trend.getTrendId(), updater);
+      updater.finish();
+    }
+    sql.closeConnection();
+  }
+
+  /**
+   * Re-ranks every trend on a {@link RankingPool}. Each tweet's rank only depends on the tweet itself, so every
+   * tweet id range of every trend is streamed, ranked and written back independently.
+   *
+   * @param pool The pool to rank on, and whose connections to use.
+   * @param trends The trends to rank.
+   */
+  private static void rankInParallel(final RankingPool pool, List<TwitNewsTrend> trends) {
+    List<RecursiveAction> trendTasks = new ArrayList<RecursiveAction>();
+    for (final TwitNewsTrend trend : trends) {
+      trendTasks.add(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          System.out.println("Ranking tweets for trend: " + trend.getName());
+          final int trendId = trend.getTrendId();
+
+          List<RecursiveAction> chunks = new ArrayList<RecursiveAction>();
+          for (final long[] range : pool.tweetIdRanges(new TweetDAO(pool.sql()), trendId)) {
+            chunks.add(new RecursiveAction() {
+              @Override
+              protected void compute() {
+                RankUpdater updater = new RankUpdater(new TweetDAO(pool.sql()));
+                new TweetDAO(pool.sql()).streamTweets(trendId, range[0], range[1], updater);
+                updater.finish();
+              }
+            });
+          }
+          invokeAll(chunks);
+        }
+      });
+    }
+    pool.invokeAll(trendTasks);
+  }
+
+  /**
+   * Re-ranks tweets as they are streamed in and writes the new ranks back in batches, so only one batch of tweets is
+   * held in memory at a time.
+   */
+  private static final class RankUpdater implements TweetHandler {
 
-      for (TwitNewsTweet tweet : tweets) {
+    private final TweetDAO writeTweetDAO;
+    private final List<TwitNewsTweet> batch = new ArrayList<TwitNewsTweet>();
 
-        // Update the new rank
-        int newRankScore = computeRank(tweet);
-        tweet.setRank(newRankScore);
+    private RankUpdater(TweetDAO writeTweetDAO) {
+      this.writeTweetDAO = writeTweetDAO;
+    }
 
+    @Override
+    public void onTweet(TwitNewsTweet tweet) {
+      // Update the new rank
+      tweet.setRank(computeRank(tweet));
+      batch.add(tweet);
+      if (batch.size() >= RANK_BATCH_SIZE) {
+        writeTweetDAO.updateRanks(batch);
+        batch.clear();
+      }
+    }
+
+    private void finish() {
+      if (!batch.isEmpty()) {
+        writeTweetDAO.updateRanks(batch);
+        batch.clear();
       }
-      tweetDAO.updateRanks(tweets);
-      tweets.clear();
     }
-    sql.closeConnection();
   }
 
   public static int computeRank(TwitNewsTweet tweet) {
@@ -1,17 +1,23 @@
 package ranker;
 
-import dao.RankDAO;
 import dao.TrendDAO;
 import dao.TweetDAO;
+import dao.TweetHandler;
 import database.MySQL_UI;
 import database.SqlConstants;
 import domain.TwitNewsRank;
 import domain.TwitNewsTrend;
 import domain.TwitNewsTweet;
-import fileIO.FileConstants;
-import fileIO.FileIO;
+import fileIO.TweetArchive;
+import ingest.WriteBehindBuffer;
+import util.Lexicon;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import static util.TwitNewsConstants.MAX_RETWEENT_COUNT;
 import static util.TwitNewsConstants.MAX_TWITTER_FOLLOWERS;
@@ -24,81 +30,249 @@ import static util.TwitNewsConstants.MAX_TWITTER_FOLLOWERS;
  */
 public class Ranker {
 
+  // How long the rank writes still pending once every trend is ranked may take to commit.
+  private static final long RANK_BUFFER_SHUTDOWN_MILLIS = 600000;
+
   /**
    * Entry point for the ranker.
    *
-   * @param args Command line arguments.
+   * @param args Command line arguments. First argument: optional parallelism level, see
+   *             {@link RankingPool#parallelism(String[])}, or --archive followed by the {@link TweetArchive} files
+   *             to rank instead of the tweets in the db.
    */
-  public static void main(String[] args) {
-    MySQL_UI sql = new MySQL_UI(SqlConstants.HOST, SqlConstants.PORT, SqlConstants.USER, SqlConstants.PASSWORD);
+  public static void main(String[] args) throws IOException {
+    if (args.length > 0 && args[0].equals("--archive")) {
+      rankArchives(Arrays.asList(args).subList(1, args.length));
+      return;
+    }
+    int parallelism = RankingPool.parallelism(args);
+    if (parallelism > 1) {
+      // The pool has connections of its own.
+      RankingPool pool = new RankingPool(parallelism, RankingPool.chunkSize());
+      try {
+        List<TwitNewsTrend> trends = new TrendDAO(pool.sql()).fetchAllTrends();
+        rankInParallel(pool, trends, new SpamScorer(trends, Lexicon.badWords().words()));
+      }
+      finally {
+        pool.shutdown();
+      }
+      return;
+    }
+
+    // Room for a tweet stream and the rank writes at the same time.
+    MySQL_UI sql = MySQL_UI.createPooled(SqlConstants.HOST, SqlConstants.PORT, SqlConstants.USER,
+                                         SqlConstants.PASSWORD, 2);
     TrendDAO trendDAO = new TrendDAO(sql);
-    TweetDAO tweetDAO = new TweetDAO(sql);
-    RankDAO rankDAO = new RankDAO(sql);
     List<TwitNewsTrend> trends = trendDAO.fetchAllTrends();
-    FileIO badWordsFile1 = new FileIO(FileConstants.PATH_1);
-    FileIO badWordsFile2 = new FileIO(FileConstants.PATH_2);
 
+    SpamScorer spamScorer = new SpamScorer(trends, Lexicon.badWords().words());
+
+    TweetDAO tweetDAO = new TweetDAO(sql);
+    WriteBehindBuffer rankBuffer = WriteBehindBuffer.create(sql);
+    rankBuffer.start();
     for (TwitNewsTrend trend : trends) {
       System.out.println("Ranking tweets for trend: " + trend.getName());
-      List<TwitNewsTweet> tweets = tweetDAO.fetchTweets(trend.getTrendId());
-      Map<String, TwitNewsRank> tweetMap = new HashMap<String, TwitNewsRank>();
-      Set<String> badWordSet = new HashSet<String>();
-      
-      double numTweetsWithLinks = 0.0;
-      double numRetweetsForTrend = 0.0;
-      
-      // collects bad words from the two input text files
-      badWordSet = badWordsFile1.getWordSet(badWordSet);
-      badWordSet = badWordsFile2.getWordSet(badWordSet);
-      
-      for (TwitNewsTweet tweet : tweets) {
-        int rankScore = computeRank(tweet, trends, badWordSet);
-        TwitNewsRank rank = new TwitNewsRank();
-        rank.setTrendId(trend.getTrendId());
-        rank.setTweetId((int) tweet.getTweetId());
-        rank.setRank(rankScore);
-
-        if (tweet.isHasLink() && rankScore > 0) {
-          ++numTweetsWithLinks;
-        }
-        if (tweet.isRetweet() && rankScore > 0) {
-          ++numRetweetsForTrend;
-        }
+      TrendRanking ranking = new TrendRanking(trend.getTrendId(), spamScorer, rankBuffer);
+      tweetDAO.streamTweetsByText(trend.getTrendId(), 0, 1, ranking);
+      ranking.finish();
+      computeNewsRank(trend, ranking.numTweetsWithLinks, ranking.numRetweetsForTrend, ranking.numTweets);
+    }
+    rankBuffer.shutdown(RANK_BUFFER_SHUTDOWN_MILLIS);
+    sql.closeConnection();
+  }
+
+  /**
+   * Ranks every trend on a {@link RankingPool}. Trends are ranked concurrently, and trends with more tweets than the
+   * chunk size are also split into chunks that are ranked concurrently. Chunks are split by a hash of the tweet text
+   * rather than by tweet id, so that every duplicate of a text is fingerprinted only once, and the near duplicates
+   * found by the chunks are collapsed across chunks once they are merged.
+   *
+   * @param pool The pool to rank on, and whose connections to use.
+   * @param trends The trends to rank.
+   * @param spamScorer The spam scorer for the trends, shared by every chunk.
+   */
+  private static void rankInParallel(final RankingPool pool, List<TwitNewsTrend> trends,
+                                     final SpamScorer spamScorer) {
+    final WriteBehindBuffer rankBuffer = WriteBehindBuffer.create(pool.sql());
+    rankBuffer.start();
+    try {
+      List<RecursiveAction> trendTasks = new ArrayList<RecursiveAction>();
+      for (final TwitNewsTrend trend : trends) {
+        trendTasks.add(new RecursiveAction() {
+          @Override
+          protected void compute() {
+            System.out.println("Ranking tweets for trend: " + trend.getName());
+            final int trendId = trend.getTrendId();
+            final int numChunks = Math.max(1, pool.numChunks(new TweetDAO(pool.sql()), trendId));
+
+            List<RecursiveTask<TrendRanking>> chunks = new ArrayList<RecursiveTask<TrendRanking>>();
+            for (int i = 0; i < numChunks; ++i) {
+              final int chunk = i;
+              chunks.add(new RecursiveTask<TrendRanking>() {
+                @Override
+                protected TrendRanking compute() {
+                  TrendRanking ranking = new TrendRanking(trendId, spamScorer, rankBuffer);
+                  new TweetDAO(pool.sql()).streamTweetsByText(trendId, chunk, numChunks, ranking);
+                  return ranking;
+                }
+              });
+            }
+            invokeAll(chunks);
 
-        // We want to remove duplicates!
-        if (tweetMap.containsKey(tweet.getText())) {
-          TwitNewsRank highestRank = tweetMap.get(tweet.getText());
-          if (rank.getRank() > highestRank.getRank()) {
-            tweetMap.put(tweet.getText(), rank);
+            TrendRanking ranking = chunks.get(0).join();
+            for (int i = 1; i < chunks.size(); ++i) {
+              ranking.merge(chunks.get(i).join());
+            }
+            ranking.finish();
+            computeNewsRank(trend, ranking.numTweetsWithLinks, ranking.numRetweetsForTrend, ranking.numTweets);
           }
+        });
+      }
+      pool.invokeAll(trendTasks);
+    }
+    finally {
+      rankBuffer.shutdown(RANK_BUFFER_SHUTDOWN_MILLIS);
+    }
+  }
+
+  /**
+   * Ranks the tweets of {@link TweetArchive} files, read straight from the mapped files rather than through the db.
+   * Archives hold their trends' rows sorted the way {@link TweetDAO#streamTweetsByText} streams them, so every trend
+   * is ranked in one pass of its row group, and the row groups of an archive are ranked concurrently. The ranks are
+   * only counted, not stored, as the archived tweets need not be in the db.
+   *
+   * @param paths The archive files.
+   * @throws IOException If an archive could not be read.
+   */
+  private static void rankArchives(List<String> paths) throws IOException {
+    List<String> badWords = Lexicon.badWords().words();
+    ForkJoinPool pool = new ForkJoinPool(RankingPool.parallelism(new String[0]));
+    try {
+      for (String path : paths) {
+        final TweetArchive archive = new TweetArchive(new File(path));
+        final List<TwitNewsTrend> trends = archive.getTrends();
+        final SpamScorer spamScorer = new SpamScorer(trends, badWords);
+        final int[] numRanks = new int[trends.size()];
+        long start = System.nanoTime();
+
+        List<RecursiveAction> trendTasks = new ArrayList<RecursiveAction>();
+        for (int i = 0; i < trends.size(); ++i) {
+          final int index = i;
+          trendTasks.add(new RecursiveAction() {
+            @Override
+            protected void compute() {
+              TwitNewsTrend trend = trends.get(index);
+              TrendRanking ranking = new TrendRanking(trend.getTrendId(), spamScorer, null);
+              archive.scan(trend.getTrendId(), ranking);
+              ranking.finish();
+              numRanks[index] = ranking.numRanks;
+              computeNewsRank(trend, ranking.numTweetsWithLinks, ranking.numRetweetsForTrend, ranking.numTweets);
+            }
+          });
         }
-        else {
-          tweetMap.put(tweet.getText(), rank);
+        for (RecursiveAction task : trendTasks) {
+          pool.execute(task);
         }
+        int totalRanks = 0;
+        for (int i = 0; i < trendTasks.size(); ++i) {
+          trendTasks.get(i).join();
+          totalRanks += numRanks[i];
+        }
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println(path + ": ranked " + archive.getNumTweets() + " tweets into " + totalRanks + " ranks in " +
+                           millis + "ms (" + archive.getNumTweets() * 1000L / millis + " tweets/s)");
       }
-      if (!tweetMap.values().isEmpty()) {
-        List<TwitNewsRank> ranks = new ArrayList<TwitNewsRank>();
-        for (TwitNewsRank rank : tweetMap.values()) {
-          ranks.add(rank);
-          if (ranks.size() > 100) {
-            rankDAO.insertRanks(ranks);
-            ranks.clear();
-          }
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Ranks the tweets of one trend as they are streamed in grouped by text, and collapses near duplicates with a
+   * {@link NearDuplicateIndex}, keeping only the best ranked tweet of every cluster. "RT @user:" copies, tweets that
+   * only differ in their links and small edits all end up in one cluster. A text is fingerprinted once however many
+   * copies of it arrive, and only the current text and the fingerprint of every cluster are held in memory. The ranks
+   * are handed to a {@link WriteBehindBuffer} once the stream has ended, as a later tweet may still beat a cluster's
+   * best.
+   */
+  private static final class TrendRanking implements TweetHandler {
+
+    private final int trendId;
+    private final SpamScorer spamScorer;
+    private final WriteBehindBuffer rankBuffer;
+
+    // We want to remove duplicates! The first of the best ranked tweets of a cluster wins.
+    private final NearDuplicateIndex clusters = new NearDuplicateIndex();
+    private String currentText = null;
+    private long currentFingerprint = 0;
+
+    private double numTweetsWithLinks = 0.0;
+    private double numRetweetsForTrend = 0.0;
+    private int numTweets = 0;
+    private int numRanks = 0;
+
+    private TrendRanking(int trendId, SpamScorer spamScorer, WriteBehindBuffer rankBuffer) {
+      this.trendId = trendId;
+      this.spamScorer = spamScorer;
+      this.rankBuffer = rankBuffer;
+    }
+
+    @Override
+    public void onTweet(TwitNewsTweet tweet) {
+      int rankScore = computeRank(tweet, spamScorer);
+
+      if (tweet.isHasLink() && rankScore > 0) {
+        ++numTweetsWithLinks;
+      }
+      if (tweet.isRetweet() && rankScore > 0) {
+        ++numRetweetsForTrend;
+      }
+      ++numTweets;
+
+      if (!tweet.getText().equals(currentText)) {
+        currentText = tweet.getText();
+        currentFingerprint = SimHash.fingerprint(currentText);
+      }
+      clusters.add(currentFingerprint, tweet.getTweetId(), rankScore);
+    }
+
+    /**
+     * Adds the clusters and counts of a ranking of another chunk of the same trend.
+     */
+    private void merge(TrendRanking other) {
+      clusters.addAll(other.clusters);
+      numTweetsWithLinks += other.numTweetsWithLinks;
+      numRetweetsForTrend += other.numRetweetsForTrend;
+      numTweets += other.numTweets;
+    }
+
+    /**
+     * Hands over the rank of the best tweet of every cluster once the stream has ended.
+     */
+    private void finish() {
+      for (int i = 0; i < clusters.size(); ++i) {
+        if (rankBuffer != null) {
+          TwitNewsRank rank = new TwitNewsRank();
+          rank.setTrendId(trendId);
+          rank.setTweetId(clusters.getTweetId(i));
+          rank.setRank(clusters.getRank(i));
+          rankBuffer.addRank(rank);
         }
       }
-      computeNewsRank(trend, numTweetsWithLinks, numRetweetsForTrend, tweets.size());
+      numRanks = clusters.size();
+      currentText = null;
     }
-    sql.closeConnection();
   }
 
   /**
    * The main tweet rank algorithm.
    *
    * @param tweet The tweet to rank.
-   * @param trends The trends.
+   * @param spamScorer The spam scorer for the trends being ranked.
    * @return int The rank of the tweet.
    */
-  private static int computeRank(TwitNewsTweet tweet, List<TwitNewsTrend> trends, Set<String> badWordSet) {
+  public static int computeRank(TwitNewsTweet tweet, SpamScorer spamScorer) {
 
     // Weights for each of the various parameters we are considering
     // These should add up to 1
@@ -125,53 +299,11 @@ public class Ranker {
       trustScore += 1 * trustFactor;
     }
 
-    double spamScore = computeSpamScore(tweet, trends, badWordSet);
+    double spamScore = spamScorer.score(tweet);
     // Scale by 1 million and cast to int to avoid sql decimal issues
     return (int) (1000000 * (linkScore + trustScore - spamScore));
   }
 
-  /**
-   * Computes a spam score for the tweet.
-   *
-   * @param tweet The tweet.
-   * @param trends The trends.
-   * @param badWordSet A set of bad or spam words to penalize against.
-   * @return A ranking indicating how spammy this tweet is.
-   */
-  private static double computeSpamScore(TwitNewsTweet tweet, List<TwitNewsTrend> trends, Set<String> badWordSet) {
-    String[] tokens = tweet.getText().trim().split("");
-    String[] words = tweet.getText().trim().split(" ");
-    int numChars = tweet.getText().length();
-    int numUninterestingChars = 0;
-    
-    for (TwitNewsTrend trend : trends) {
-      if (tweet.getTrendId() != trend.getTrendId()) {
-        if (tweet.getText().toLowerCase().contains(trend.getName().toLowerCase())) {
-          numUninterestingChars += trend.getName().length();
-        }
-      }
-    }
-    
-    for (String token : tokens) {
-      for (TwitNewsTrend trend : trends) {
-        if (!token.trim().toLowerCase().equals(trend.getName().trim().toLowerCase())) {
-          if (token.startsWith("#")) {
-            numUninterestingChars += token.length();
-          }
-        }
-      }
-    }
-    
-    // add bad words to uninteresting count
-    for (String word : words) {
-      if (badWordSet.contains(word.trim().toLowerCase())) {
-        numUninterestingChars += word.length();
-      }
-    }
-    
-    return numUninterestingChars / numChars;
-  }
-
   /**
    * Attempts to rank how news worthy a trend is.
    *
@@ -190,9 +322,11 @@ public class Ranker {
     double retweetsToTweetsRatio = numRetweets / numTweets;
 
     if (numTweets != 0) {
-      System.out.println("> links to tweet ratio:     " + linksToTweetRatio);
-      System.out.println("> retweets to tweets ratio: " + retweetsToTweetsRatio);
-      System.out.println("> news rank ratio:          " + (linksToTweetRatio + retweetsToTweetsRatio - hashtagPenalty));
+      // One println, so the output of trends ranked in parallel doesn't interleave.
+      System.out.println("> " + trend.getName() + "\n" +
+                         "> links to tweet ratio:     " + linksToTweetRatio + "\n" +
+                         "> retweets to tweets ratio: " + retweetsToTweetsRatio + "\n" +
+                         "> news rank ratio:          " + (linksToTweetRatio + retweetsToTweetsRatio - hashtagPenalty));
     }
   }
 
@@ -0,0 +1,132 @@
+package ranker;
+
+import dao.TweetDAO;
+import database.MySQL_UI;
+import database.SqlConstants;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import static util.TwitNewsConstants.RANK_CHUNK_SIZE;
+import static util.TwitNewsConstants.RANK_PARALLELISM;
+
+/**
+ * A ForkJoinPool for ranking trends in parallel. The workers share one pooled {@link MySQL_UI}, with room for every
+ * worker to hold a tweet stream open and write ranks at the same time, which is closed on {@link #shutdown()}.
+ */
+public class RankingPool {
+
+  private final ForkJoinPool pool;
+  private final int chunkSize;
+
+  private final MySQL_UI sql;
+
+  /**
+   * Creates a new RankingPool.
+   *
+   * @param parallelism The number of worker threads.
+   * @param chunkSize Trends with more tweets than this are split into tweet id ranges of about this many tweets.
+   */
+  public RankingPool(int parallelism, int chunkSize) {
+    this.pool = new ForkJoinPool(parallelism);
+    this.chunkSize = chunkSize;
+    // One connection per worker for its open stream, one for its writes.
+    this.sql = MySQL_UI.createPooled(SqlConstants.HOST, SqlConstants.PORT, SqlConstants.USER, SqlConstants.PASSWORD,
+                                     2 * parallelism);
+  }
+
+  /**
+   * Reads the parallelism level from the first command line argument, falling back to the twitnews.rank.parallelism
+   * system property.
+   *
+   * @param args The command line arguments of the ranker.
+   * @return int the parallelism level, 1 for ranking on the calling thread.
+   */
+  public static int parallelism(String[] args) {
+    int parallelism = args.length > 0 ? Integer.parseInt(args[0]) :
+                      Integer.getInteger("twitnews.rank.parallelism", RANK_PARALLELISM);
+    return Math.max(1, parallelism);
+  }
+
+  /**
+   * @return The chunk size set by the twitnews.rank.chunkSize system property.
+   */
+  public static int chunkSize() {
+    return Math.max(1, Integer.getInteger("twitnews.rank.chunkSize", RANK_CHUNK_SIZE));
+  }
+
+  /**
+   * @return The pooled db connections shared by the workers.
+   */
+  public MySQL_UI sql() {
+    return sql;
+  }
+
+  /**
+   * Runs the tasks on the pool, blocking until all of them have completed.
+   *
+   * @param tasks The tasks.
+   */
+  public void invokeAll(final Collection<? extends ForkJoinTask<?>> tasks) {
+    pool.invoke(new RecursiveAction() {
+      @Override
+      protected void compute() {
+        ForkJoinTask.invokeAll(tasks);
+      }
+    });
+  }
+
+  /**
+   * @param tweetDAO A TweetDAO.
+   * @param trendId The id of the trend.
+   * @return int the number of chunks of about chunkSize tweets the tweets of the trend make up, 0 if it has none.
+   */
+  public int numChunks(TweetDAO tweetDAO, int trendId) {
+    long count = tweetDAO.fetchTweetIdRange(trendId)[2];
+    return (int) ((count + chunkSize - 1) / chunkSize);
+  }
+
+  /**
+   * Splits the tweets of a trend into tweet id ranges of about chunkSize tweets each, assuming ids are spread
+   * evenly between the lowest and highest id of the trend.
+   *
+   * @param tweetDAO A TweetDAO.
+   * @param trendId The id of the trend.
+   * @return A list of {from, to} tweet id ranges, to exclusive, empty if the trend has no tweets.
+   */
+  public List<long[]> tweetIdRanges(TweetDAO tweetDAO, int trendId) {
+    List<long[]> ranges = new ArrayList<long[]>();
+    long[] range = tweetDAO.fetchTweetIdRange(trendId);
+    long min = range[0];
+    long max = range[1];
+    long count = range[2];
+    if (count == 0) {
+      return ranges;
+    }
+    long numChunks = (count + chunkSize - 1) / chunkSize;
+    long step = Math.max(1, (max - min + numChunks) / numChunks);
+    for (long from = min; from <= max; from += step) {
+      ranges.add(new long[]{from, Math.min(from + step, max + 1)});
+    }
+    return ranges;
+  }
+
+  /**
+   * Stops the worker threads and closes the connections.
+   */
+  public void shutdown() {
+    pool.shutdown();
+    try {
+      pool.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    sql.closeConnection();
+  }
+}
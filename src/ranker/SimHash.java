@@ -0,0 +1,144 @@
+package ranker;
+
+/**
+ * 64 bit SimHash fingerprints of tweet texts. Texts that differ in a few words have fingerprints that differ in a few
+ * bits, so near duplicate tweets can be found by the Hamming distance of their fingerprints, see
+ * {@link NearDuplicateIndex}.
+ *
+ * The parts of a tweet that retweets and link shorteners add are left out before hashing: any leading "RT @user:"
+ * and every link. The remaining words, runs of letters and digits, are lower cased and hashed on their own and as
+ * pairs of neighbouring words, so that reordering words also moves the fingerprint.
+ */
+public final class SimHash {
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private SimHash() {}
+
+  /**
+   * @param text The text of a tweet.
+   * @return The fingerprint of the text. Texts without a single word are fingerprinted as a whole, so they only ever
+   *         match texts that are the same but for case.
+   */
+  public static long fingerprint(CharSequence text) {
+    int[] weights = new int[64];
+    int numFeatures = 0;
+    long previousWord = 0;
+    boolean hasPreviousWord = false;
+
+    int length = text.length();
+    int i = skipRetweetPrefix(text);
+    while (i < length) {
+      char c = text.charAt(i);
+      if (isLinkStart(text, i)) {
+        while (i < length && !Character.isWhitespace(text.charAt(i))) {
+          ++i;
+        }
+        continue;
+      }
+      if (!Character.isLetterOrDigit(c)) {
+        ++i;
+        continue;
+      }
+      long word = FNV_OFFSET_BASIS;
+      while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+        word = (word ^ Character.toLowerCase(text.charAt(i))) * FNV_PRIME;
+        ++i;
+      }
+      add(weights, mix(word));
+      if (hasPreviousWord) {
+        add(weights, mix(previousWord * 31 + word));
+      }
+      previousWord = word;
+      hasPreviousWord = true;
+      ++numFeatures;
+    }
+
+    if (numFeatures == 0) {
+      long whole = FNV_OFFSET_BASIS;
+      for (int j = 0; j < length; ++j) {
+        whole = (whole ^ Character.toLowerCase(text.charAt(j))) * FNV_PRIME;
+      }
+      return mix(whole);
+    }
+    long fingerprint = 0;
+    for (int bit = 0; bit < 64; ++bit) {
+      if (weights[bit] > 0) {
+        fingerprint |= 1L << bit;
+      }
+    }
+    return fingerprint;
+  }
+
+  /**
+   * @return The number of bits two fingerprints differ in.
+   */
+  public static int distance(long a, long b) {
+    return Long.bitCount(a ^ b);
+  }
+
+  private static void add(int[] weights, long hash) {
+    for (int bit = 0; bit < 64; ++bit) {
+      weights[bit] += (int) ((hash >>> bit) & 1) * 2 - 1;
+    }
+  }
+
+  /**
+   * Skips any number of leading "RT @user:" prefixes, with or without the colon.
+   *
+   * @return The index the text proper starts at.
+   */
+  private static int skipRetweetPrefix(CharSequence text) {
+    int start = 0;
+    while (true) {
+      int i = start;
+      while (i < text.length() && text.charAt(i) == ' ') {
+        ++i;
+      }
+      if (i + 3 >= text.length() || (text.charAt(i) != 'R' && text.charAt(i) != 'r') ||
+          (text.charAt(i + 1) != 'T' && text.charAt(i + 1) != 't') || text.charAt(i + 2) != ' ' ||
+          text.charAt(i + 3) != '@') {
+        return start;
+      }
+      i += 4;
+      while (i < text.length() && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_')) {
+        ++i;
+      }
+      if (i < text.length() && text.charAt(i) == ':') {
+        ++i;
+      }
+      start = i;
+    }
+  }
+
+  private static boolean isLinkStart(CharSequence text, int i) {
+    return (i == 0 || Character.isWhitespace(text.charAt(i - 1))) &&
+           (startsWithIgnoreCase(text, i, "http://") || startsWithIgnoreCase(text, i, "https://") ||
+            startsWithIgnoreCase(text, i, "www."));
+  }
+
+  private static boolean startsWithIgnoreCase(CharSequence text, int i, String prefix) {
+    if (i + prefix.length() > text.length()) {
+      return false;
+    }
+    for (int j = 0; j < prefix.length(); ++j) {
+      if (Character.toLowerCase(text.charAt(i + j)) != prefix.charAt(j)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Spreads the bits of a hash, the finalizer of MurmurHash3.
+   */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
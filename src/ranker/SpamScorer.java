@@ -0,0 +1,141 @@
+package ranker;
+
+import datastructures.AhoCorasick;
+import domain.TwitNewsTrend;
+import domain.TwitNewsTweet;
+
+import java.util.*;
+
+/**
+ * Scores how spammy tweets are, as the share of their chars that are uninteresting: mentions of trends other than
+ * the tweet's own, hashtags that are not a trend, and bad words. The trend names, the bad words and the hashtag sign
+ * are compiled into one {@link AhoCorasick} automaton when the scorer is created, so a tweet is scored in a single
+ * pass over its text however many trends and bad words there are.
+ *
+ * Create one scorer per ranking run and share it between the ranking threads, scorers are immutable.
+ */
+public class SpamScorer {
+
+  // Values of the automaton's patterns: trends are added with their index in the trend list, bad words with minus
+  // their length, and the hashtag sign with HASHTAG.
+  private static final int HASHTAG = Integer.MIN_VALUE;
+  private static final String HASHTAG_SIGN = "#";
+
+  private final TwitNewsTrend[] trends;
+  private final Set<String> trendNames = new HashSet<String>();
+  private final AhoCorasick matcher;
+
+  /**
+   * Compiles the trends and the bad words into a scorer.
+   *
+   * @param trends The trends being ranked.
+   * @param badWords Lower cased bad or spam words to penalize against, usually those of the shared
+   *                 {@link util.Lexicon#badWords()}. Only whole words are penalized, so words containing a space never
+   *                 match.
+   */
+  public SpamScorer(List<TwitNewsTrend> trends, Collection<String> badWords) {
+    this.trends = trends.toArray(new TwitNewsTrend[trends.size()]);
+    AhoCorasick.Builder builder = new AhoCorasick.Builder(false);
+    for (int i = 0; i < this.trends.length; ++i) {
+      builder.add(this.trends[i].getName(), i);
+      trendNames.add(this.trends[i].getName().trim().toLowerCase());
+    }
+    for (String badWord : badWords) {
+      if (badWord.indexOf(' ') < 0) {
+        builder.add(badWord, -badWord.length());
+      }
+    }
+    builder.add(HASHTAG_SIGN, HASHTAG);
+    matcher = builder.build();
+  }
+
+  /**
+   * Computes a spam score for the tweet. Every trend other than the tweet's own that the text mentions counts with
+   * the length of its name, however often it is mentioned. Every hashtag and every bad word counts with its length.
+   *
+   * @param tweet The tweet.
+   * @return The share of uninteresting chars in the text, between 0 and 1.
+   */
+  public double score(TwitNewsTweet tweet) {
+    final String text = tweet.getText();
+    if (text == null || text.length() == 0) {
+      return 0.0;
+    }
+    final int ownTrendId = tweet.getTrendId();
+    final int[] numUninterestingChars = {0};
+    final int[][] mentioned = {new int[4]};
+    final int[] numMentioned = {0};
+
+    matcher.match(text, new AhoCorasick.MatchSink() {
+      @Override
+      public void match(int value, int end) {
+        if (value == HASHTAG) {
+          numUninterestingChars[0] += hashtagLength(text, end - 1);
+        }
+        else if (value < 0) {
+          if (isWholeWord(text, end + value, end)) {
+            numUninterestingChars[0] -= value;
+          }
+        }
+        else if (trends[value].getTrendId() != ownTrendId) {
+          for (int i = 0; i < numMentioned[0]; ++i) {
+            if (mentioned[0][i] == value) {
+              return;
+            }
+          }
+          if (numMentioned[0] == mentioned[0].length) {
+            mentioned[0] = Arrays.copyOf(mentioned[0], numMentioned[0] * 2);
+          }
+          mentioned[0][numMentioned[0]++] = value;
+          numUninterestingChars[0] += trends[value].getName().length();
+        }
+      }
+    });
+
+    return Math.min(1.0, (double) numUninterestingChars[0] / text.length());
+  }
+
+  /**
+   * @return The length of the hashtag starting with the '#' at start, or 0 if that '#' does not start a word or the
+   *         hashtag is the name of a trend.
+   */
+  private int hashtagLength(String text, int start) {
+    if (!startsWord(text, start)) {
+      return 0;
+    }
+    int end = text.indexOf(' ', start);
+    if (end < 0) {
+      end = text.length();
+    }
+    while (end > start && text.charAt(end - 1) <= ' ') {
+      --end;
+    }
+    return trendNames.contains(text.substring(start, end).toLowerCase()) ? 0 : end - start;
+  }
+
+  /**
+   * Words are separated by spaces and trimmed, the way Ranker has always split tweets into words.
+   *
+   * @return Whether text[start, end) is a whole word.
+   */
+  private static boolean isWholeWord(String text, int start, int end) {
+    if (start < 0 || !startsWord(text, start)) {
+      return false;
+    }
+    for (int i = end; i < text.length() && text.charAt(i) != ' '; ++i) {
+      if (text.charAt(i) > ' ') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean startsWord(String text, int start) {
+    for (int i = start - 1; i >= 0 && text.charAt(i) != ' '; --i) {
+      if (text.charAt(i) > ' ') {
+        return false;
+      }
+    }
+    return true;
+  }
+}
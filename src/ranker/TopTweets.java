@@ -0,0 +1,111 @@
+package ranker;
+
+import domain.TwitNewsTweet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The best ranked tweets of a trend seen so far, at most a fixed number of them. Tweets are kept in a min heap on
+ * their rank, so offering a tweet costs O(log K) and a tweet that does not beat the worst one kept costs O(1). Ties
+ * go to the tweet that was kept first.
+ *
+ * Instances are thread safe, tweets can be offered and the best ones read from any thread at any time.
+ */
+public class TopTweets {
+
+  private static final Comparator<TwitNewsTweet> BY_RANK_DESCENDING = new Comparator<TwitNewsTweet>() {
+    @Override
+    public int compare(TwitNewsTweet a, TwitNewsTweet b) {
+      return a.getRank() < b.getRank() ? 1 : a.getRank() > b.getRank() ? -1 : 0;
+    }
+  };
+
+  // A min heap on rank, heap[0] is the worst tweet kept.
+  private final TwitNewsTweet[] heap;
+  private int size = 0;
+
+  /**
+   * @param capacity The number of tweets to keep.
+   */
+  public TopTweets(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Must keep at least one tweet, not " + capacity + ".");
+    }
+    this.heap = new TwitNewsTweet[capacity];
+  }
+
+  /**
+   * Keeps the tweet if it is among the best ranked ones seen so far. The tweet is kept by reference, so its rank
+   * must not change once it has been offered.
+   *
+   * @param tweet A ranked tweet.
+   * @return boolean true if the tweet was kept.
+   */
+  public synchronized boolean offer(TwitNewsTweet tweet) {
+    if (size < heap.length) {
+      heap[size] = tweet;
+      siftUp(size++);
+      return true;
+    }
+    if (tweet.getRank() <= heap[0].getRank()) {
+      return false;
+    }
+    heap[0] = tweet;
+    siftDown(0);
+    return true;
+  }
+
+  /**
+   * @param n The number of tweets wanted.
+   * @return The best ranked tweets kept, at most n of them, best first.
+   */
+  public synchronized List<TwitNewsTweet> best(int n) {
+    TwitNewsTweet[] sorted = Arrays.copyOf(heap, size);
+    Arrays.sort(sorted, BY_RANK_DESCENDING);
+    return new ArrayList<TwitNewsTweet>(Arrays.asList(sorted).subList(0, Math.max(0, Math.min(n, size))));
+  }
+
+  /**
+   * @return The number of tweets kept.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return heap.length;
+  }
+
+  private void siftUp(int i) {
+    TwitNewsTweet tweet = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (heap[parent].getRank() <= tweet.getRank()) {
+        break;
+      }
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = tweet;
+  }
+
+  private void siftDown(int i) {
+    TwitNewsTweet tweet = heap[i];
+    int half = size >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && heap[child + 1].getRank() < heap[child].getRank()) {
+        ++child;
+      }
+      if (tweet.getRank() <= heap[child].getRank()) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = tweet;
+  }
+}
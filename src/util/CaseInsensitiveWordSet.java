@@ -0,0 +1,191 @@
+package util;
+
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * A read only set of lower cased words that can be probed with any slice of a CharSequence, lower casing the slice on
+ * the fly instead of allocating a lower cased copy of it. contains(s, start, end) answers exactly what
+ * set.contains(s.subSequence(start, end).toString().toLowerCase()) would for the set the words were copied from.
+ */
+public final class CaseInsensitiveWordSet implements WordSet {
+
+  private static final char CAPITAL_I_WITH_DOT = '\u0130';
+  private static final char CAPITAL_SIGMA = '\u03A3';
+
+  // Returned by lowerCasedHash for slices that have to be lower cased by String.
+  static final long NEEDS_STRING_LOWER_CASE = -1L;
+
+  // String.toLowerCase() has locale specific rules for these languages that Character.toLowerCase() doesn't know.
+  private static final boolean LOCALE_SENSITIVE;
+  static {
+    String language = Locale.getDefault().getLanguage();
+    LOCALE_SENSITIVE = language.equals("tr") || language.equals("az") || language.equals("lt");
+  }
+
+  private final String[] words;
+  private final int[] hashes;
+  private final int mask;
+  private final int size;
+
+  /**
+   * Creates a new CaseInsensitiveWordSet.
+   *
+   * @param words Lower cased words, like the ones {@link fileIO.FileIO#getWordSet} reads. Words are stored as given,
+   *              so a word that is not lower cased can never be matched.
+   */
+  public CaseInsensitiveWordSet(Collection<String> words) {
+    int capacity = 16;
+    while (capacity < words.size() * 2) {
+      capacity <<= 1;
+    }
+    this.words = new String[capacity];
+    this.hashes = new int[capacity];
+    this.mask = capacity - 1;
+
+    int count = 0;
+    for (String word : words) {
+      int hash = word.hashCode();
+      int slot = spread(hash) & mask;
+      boolean duplicate = false;
+      while (this.words[slot] != null) {
+        if (hashes[slot] == hash && this.words[slot].equals(word)) {
+          duplicate = true;
+          break;
+        }
+        slot = (slot + 1) & mask;
+      }
+      if (!duplicate) {
+        this.words[slot] = word;
+        hashes[slot] = hash;
+        ++count;
+      }
+    }
+    this.size = count;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean contains(CharSequence s) {
+    return contains(s, 0, s.length());
+  }
+
+  @Override
+  public boolean contains(CharSequence s, int start, int end) {
+    long hashAndLength = lowerCasedHash(s, start, end);
+    if (hashAndLength == NEEDS_STRING_LOWER_CASE) {
+      return containsExactly(s.subSequence(start, end).toString().toLowerCase());
+    }
+    int hash = (int) hashAndLength;
+    int length = (int) (hashAndLength >>> 32);
+
+    int slot = spread(hash) & mask;
+    String word;
+    while ((word = words[slot]) != null) {
+      if (hashes[slot] == hash && word.length() == length && matchesLowerCased(word, s, start, end)) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  /**
+   * Hashes the lower cased slice [start, end) of s the same way String.hashCode() hashes the lower cased String.
+   *
+   * @return The hash in the low 32 bits and the length of the lower cased slice in the high 32 bits, or
+   *         NEEDS_STRING_LOWER_CASE if the slice can only be lower cased correctly by String.toLowerCase().
+   */
+  static long lowerCasedHash(CharSequence s, int start, int end) {
+    if (LOCALE_SENSITIVE) {
+      return NEEDS_STRING_LOWER_CASE;
+    }
+    int hash = 0;
+    int length = 0;
+    int i = start;
+    while (i < end) {
+      char c = s.charAt(i);
+      if (c == CAPITAL_I_WITH_DOT || c == CAPITAL_SIGMA) {
+        // Lower cases to two chars, or depending on its neighbours. Rare enough to leave to String.
+        return NEEDS_STRING_LOWER_CASE;
+      }
+      if (c < 0x80) {
+        hash = 31 * hash + (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+        ++length;
+        ++i;
+        continue;
+      }
+      int codePoint = codePointAt(s, i, end);
+      int lower = Character.toLowerCase(codePoint);
+      if (Character.isBmpCodePoint(lower)) {
+        hash = 31 * hash + lower;
+        ++length;
+      }
+      else {
+        hash = 31 * (31 * hash + Character.highSurrogate(lower)) + Character.lowSurrogate(lower);
+        length += 2;
+      }
+      i += Character.charCount(codePoint);
+    }
+    return ((long) length << 32) | (hash & 0xFFFFFFFFL);
+  }
+
+  private boolean containsExactly(String word) {
+    int hash = word.hashCode();
+    int slot = spread(hash) & mask;
+    String candidate;
+    while ((candidate = words[slot]) != null) {
+      if (hashes[slot] == hash && candidate.equals(word)) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  /**
+   * Compares a stored word against the lower cased slice [start, end) of s.
+   */
+  private static boolean matchesLowerCased(String word, CharSequence s, int start, int end) {
+    int j = 0;
+    int i = start;
+    while (i < end) {
+      int codePoint = codePointAt(s, i, end);
+      int lower = Character.toLowerCase(codePoint);
+      if (Character.isBmpCodePoint(lower)) {
+        if (word.charAt(j++) != lower) {
+          return false;
+        }
+      }
+      else {
+        if (word.charAt(j++) != Character.highSurrogate(lower) || word.charAt(j++) != Character.lowSurrogate(lower)) {
+          return false;
+        }
+      }
+      i += Character.charCount(codePoint);
+    }
+    return true;
+  }
+
+  /**
+   * Like Character.codePointAt, but never pairs a high surrogate with a low surrogate past the end of the slice.
+   */
+  static int codePointAt(CharSequence s, int index, int end) {
+    char high = s.charAt(index);
+    if (Character.isHighSurrogate(high) && index + 1 < end) {
+      char low = s.charAt(index + 1);
+      if (Character.isLowSurrogate(low)) {
+        return Character.toCodePoint(high, low);
+      }
+    }
+    return high;
+  }
+
+  static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+}
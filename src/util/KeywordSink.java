@@ -0,0 +1,17 @@
+package util;
+
+/**
+ * Receives the keywords found by a {@link KeywordTokenizer}.
+ */
+public interface KeywordSink {
+
+  /**
+   * Called once per keyword, in the order the keywords appear in the text. The same keyword is reported again each
+   * time it reappears, so sinks that need a set must dedup themselves.
+   *
+   * @param buffer Holds the keyword in [0, length). Owned by the tokenizer and overwritten by the next keyword, so it
+   *               must be copied if it is kept.
+   * @param length The length of the keyword in chars.
+   */
+  void keyword(char[] buffer, int length);
+}
@@ -0,0 +1,137 @@
+package util;
+
+/**
+ * Splits tweet text into keywords in a single pass, without regexes or per word allocation. A keyword is a space
+ * separated word that does not start with '@', stripped of everything but letters and numbers, that starts with an
+ * upper case char and is not a stop word. This is the same rule {@link TextUtils#parseKeywordsFromTweetText} has
+ * always applied, and it produces the same keywords in the same order.
+ *
+ * Instances keep a scratch buffer between calls and are not thread safe, keep one per thread.
+ */
+public final class KeywordTokenizer {
+
+  private char[] buffer = new char[64];
+
+  // Lets the stop word set probe the buffer without copying it into a String.
+  private final BufferView bufferView = new BufferView();
+
+  /**
+   * Reports every keyword in the text to the sink.
+   *
+   * @param text The text of the tweet.
+   * @param stopWords Words that are never keywords.
+   * @param sink Receives the keywords, duplicates included.
+   * @return int the number of keywords reported.
+   */
+  public int tokenize(CharSequence text, WordSet stopWords, KeywordSink sink) {
+    int reported = 0;
+    int length = text.length();
+    int start = 0;
+    while (start <= length) {
+      int end = start;
+      while (end < length && text.charAt(end) != ' ') {
+        ++end;
+      }
+      if (end > start && text.charAt(start) != '@' && isKeyword(text, start, end, stopWords)) {
+        sink.keyword(buffer, bufferView.length);
+        ++reported;
+      }
+      start = end + 1;
+    }
+    return reported;
+  }
+
+  /**
+   * Strips the word [start, end) into the buffer and checks whether what is left is a keyword.
+   */
+  private boolean isKeyword(CharSequence text, int start, int end, WordSet stopWords) {
+    if (buffer.length < end - start) {
+      buffer = new char[Math.max(end - start, buffer.length * 2)];
+    }
+    int cleanedLength = 0;
+    int i = start;
+    while (i < end) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+          buffer[cleanedLength++] = c;
+        }
+        ++i;
+        continue;
+      }
+      int codePoint = CaseInsensitiveWordSet.codePointAt(text, i, end);
+      int charCount = Character.charCount(codePoint);
+      if (isLetterOrNumber(codePoint)) {
+        buffer[cleanedLength++] = c;
+        if (charCount == 2) {
+          buffer[cleanedLength++] = text.charAt(i + 1);
+        }
+      }
+      i += charCount;
+    }
+    bufferView.length = cleanedLength;
+
+    // Cheapest check first, a keyword must start with an upper case char.
+    if (cleanedLength == 0 || !Character.isUpperCase(buffer[0])) {
+      return false;
+    }
+
+    // Stop words are matched against the trimmed word as well as the stripped one.
+    int trimmedStart = start;
+    int trimmedEnd = end;
+    while (trimmedStart < trimmedEnd && text.charAt(trimmedStart) <= ' ') {
+      ++trimmedStart;
+    }
+    while (trimmedStart < trimmedEnd && text.charAt(trimmedEnd - 1) <= ' ') {
+      --trimmedEnd;
+    }
+    return !stopWords.contains(text, trimmedStart, trimmedEnd) && !stopWords.contains(bufferView, 0, cleanedLength);
+  }
+
+  /**
+   * Matches the code points the regex classes \p{L} and \p{N} match.
+   */
+  private static boolean isLetterOrNumber(int codePoint) {
+    switch (Character.getType(codePoint)) {
+      case Character.UPPERCASE_LETTER:
+      case Character.LOWERCASE_LETTER:
+      case Character.TITLECASE_LETTER:
+      case Character.MODIFIER_LETTER:
+      case Character.OTHER_LETTER:
+      case Character.DECIMAL_DIGIT_NUMBER:
+      case Character.LETTER_NUMBER:
+      case Character.OTHER_NUMBER:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * A CharSequence over the scratch buffer.
+   */
+  private final class BufferView implements CharSequence {
+
+    private int length;
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return buffer[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return new String(buffer, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+      return new String(buffer, 0, length);
+    }
+  }
+}
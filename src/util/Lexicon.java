@@ -0,0 +1,303 @@
+package util;
+
+import fileIO.FileConstants;
+import fileIO.FileIO;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A {@link WordSet} compiled into a binary open addressing hash table and memory mapped, so that the word lists in
+ * files/ are parsed once rather than by every process that needs them, and the pages are shared between processes.
+ * Lookups hash the lower cased slice on the fly and compare it straight against the mapped chars, allocating nothing.
+ *
+ * The layout is a header of the magic, the number of words and the number of slots, then a slot of the word hash and
+ * the word offset per slot, empty slots having offset 0, then the words, each a char count followed by its chars.
+ * Words are hashed like String.hashCode() hashes them, so a lexicon matches exactly what a
+ * {@link CaseInsensitiveWordSet} of the same words matches.
+ *
+ * Every crawler and ranker in a process shares the lexicons returned by {@link #stopWords()} and
+ * {@link #badWords()}. They are compiled next to their word lists on first use, and again whenever a word list is
+ * newer than its compiled lexicon. Lexicons are immutable, so any number of threads can probe them at once.
+ */
+public final class Lexicon implements WordSet {
+
+  private static final Logger log = Logger.getLogger(Lexicon.class.getName());
+
+  static final int MAGIC = 0x4C455831;  // "LEX1"
+
+  // Magic, number of words and number of slots.
+  private static final int HEADER_BYTES = 12;
+  private static final int SLOT_BYTES = 8;
+
+  private static final Map<String, Lexicon> shared = new HashMap<String, Lexicon>();
+
+  private final ByteBuffer buffer;
+  private final int size;
+  private final int mask;
+
+  /**
+   * Maps a compiled lexicon.
+   *
+   * @param file The lexicon file, written by {@link #compile(File, String...)}.
+   * @throws IOException If the file can't be read or is not a lexicon.
+   */
+  public Lexicon(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() > Integer.MAX_VALUE || raf.length() < HEADER_BYTES) {
+        throw new IOException(file + " is not a lexicon of a size we can map.");
+      }
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    }
+    finally {
+      raf.close();
+    }
+    if (buffer.getInt(0) != MAGIC) {
+      throw new IOException(file + " is not a lexicon.");
+    }
+    size = buffer.getInt(4);
+    mask = buffer.getInt(8) - 1;
+  }
+
+  private Lexicon(ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.size = buffer.getInt(4);
+    this.mask = buffer.getInt(8) - 1;
+  }
+
+  /**
+   * @return The shared lexicon of the stop words in {@link FileConstants#STOP_WORDS}.
+   */
+  public static Lexicon stopWords() {
+    return shared(FileConstants.STOP_WORDS_LEXICON, FileConstants.STOP_WORDS);
+  }
+
+  /**
+   * @return The shared lexicon of the bad and swear words in {@link FileConstants#BAD_WORDS} and
+   *         {@link FileConstants#SWEAR_WORDS}.
+   */
+  public static Lexicon badWords() {
+    return shared(FileConstants.BAD_WORDS_LEXICON, FileConstants.BAD_WORDS, FileConstants.SWEAR_WORDS);
+  }
+
+  /**
+   * Returns the lexicon compiled from the word lists, opening it on first use. Should the compiled file be out of
+   * date and impossible to rewrite, the word lists are compiled into memory instead.
+   *
+   * @param lexiconPath Where the compiled lexicon is kept.
+   * @param wordFiles The word lists, one word per line.
+   * @return The lexicon every caller asking for lexiconPath shares.
+   */
+  public static synchronized Lexicon shared(String lexiconPath, String... wordFiles) {
+    Lexicon lexicon = shared.get(lexiconPath);
+    if (lexicon == null) {
+      try {
+        lexicon = open(new File(lexiconPath), wordFiles);
+      }
+      catch (IOException e) {
+        log.severe("Could not compile " + lexiconPath + ", keeping its words in memory.");
+        e.printStackTrace();
+        lexicon = new Lexicon(compile(readWords(wordFiles)));
+      }
+      shared.put(lexiconPath, lexicon);
+    }
+    return lexicon;
+  }
+
+  /**
+   * Compiles words into a lexicon held in memory rather than mapped, for word lists that are not kept in files.
+   *
+   * @param words Lower cased words.
+   * @return The lexicon.
+   */
+  public static Lexicon of(Collection<String> words) {
+    return new Lexicon(compile(new TreeSet<String>(words)));
+  }
+
+  /**
+   * Maps a lexicon, compiling it first if it is missing or older than any of its word lists.
+   *
+   * @param file The lexicon file.
+   * @param wordFiles The word lists it is compiled from.
+   * @return The lexicon.
+   * @throws IOException If the lexicon can't be compiled or mapped.
+   */
+  public static Lexicon open(File file, String... wordFiles) throws IOException {
+    boolean stale = !file.isFile();
+    for (String wordFile : wordFiles) {
+      stale |= new File(wordFile).lastModified() > file.lastModified();
+    }
+    if (stale) {
+      compile(file, wordFiles);
+    }
+    return new Lexicon(file);
+  }
+
+  /**
+   * Compiles word lists into a lexicon file. The file is written next to its final location and then moved over it,
+   * so processes mapping the old file keep reading a whole lexicon.
+   *
+   * @param file The lexicon file to write.
+   * @param wordFiles The word lists, one word per line, read like {@link FileIO#getWordSet} reads them.
+   * @return The number of words in the lexicon.
+   * @throws IOException If the file can't be written.
+   */
+  public static int compile(File file, String... wordFiles) throws IOException {
+    ByteBuffer compiled = compile(readWords(wordFiles));
+    File tmp = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      FileChannel channel = out.getChannel();
+      while (compiled.hasRemaining()) {
+        channel.write(compiled);
+      }
+    }
+    finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Could not move " + tmp + " to " + file + ".");
+    }
+    return compiled.getInt(4);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean contains(CharSequence s) {
+    return contains(s, 0, s.length());
+  }
+
+  @Override
+  public boolean contains(CharSequence s, int start, int end) {
+    long hashAndLength = CaseInsensitiveWordSet.lowerCasedHash(s, start, end);
+    if (hashAndLength == CaseInsensitiveWordSet.NEEDS_STRING_LOWER_CASE) {
+      String word = s.subSequence(start, end).toString().toLowerCase();
+      return find(word, word.hashCode(), word.length(), 0, word.length());
+    }
+    return find(s, (int) hashAndLength, (int) (hashAndLength >>> 32), start, end);
+  }
+
+  /**
+   * @return Every word in the lexicon, for callers that compile the words into structures of their own.
+   */
+  public List<String> words() {
+    List<String> words = new ArrayList<String>(size);
+    for (int slot = 0; slot <= mask; ++slot) {
+      int offset = buffer.getInt(HEADER_BYTES + slot * SLOT_BYTES + 4);
+      if (offset != 0) {
+        char[] chars = new char[buffer.getChar(offset)];
+        for (int i = 0; i < chars.length; ++i) {
+          chars[i] = buffer.getChar(offset + 2 + 2 * i);
+        }
+        words.add(new String(chars));
+      }
+    }
+    return words;
+  }
+
+  @Override
+  public String toString() {
+    return "Lexicon{size=" + size + ", bytes=" + buffer.limit() + '}';
+  }
+
+  private boolean find(CharSequence s, int hash, int length, int start, int end) {
+    int slot = CaseInsensitiveWordSet.spread(hash) & mask;
+    int offset;
+    while ((offset = buffer.getInt(HEADER_BYTES + slot * SLOT_BYTES + 4)) != 0) {
+      if (buffer.getInt(HEADER_BYTES + slot * SLOT_BYTES) == hash && buffer.getChar(offset) == length &&
+          matchesLowerCased(offset + 2, s, start, end)) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  /**
+   * Compares the word whose chars start at offset against the lower cased slice [start, end) of s.
+   */
+  private boolean matchesLowerCased(int offset, CharSequence s, int start, int end) {
+    int i = start;
+    while (i < end) {
+      int codePoint = CaseInsensitiveWordSet.codePointAt(s, i, end);
+      int lower = Character.toLowerCase(codePoint);
+      if (Character.isBmpCodePoint(lower)) {
+        if (buffer.getChar(offset) != lower) {
+          return false;
+        }
+        offset += 2;
+      }
+      else {
+        if (buffer.getChar(offset) != Character.highSurrogate(lower) ||
+            buffer.getChar(offset + 2) != Character.lowSurrogate(lower)) {
+          return false;
+        }
+        offset += 4;
+      }
+      i += Character.charCount(codePoint);
+    }
+    return true;
+  }
+
+  private static Set<String> readWords(String... wordFiles) {
+    Set<String> words = new TreeSet<String>();
+    for (String wordFile : wordFiles) {
+      new FileIO(wordFile).getWordSet(words);
+    }
+    return words;
+  }
+
+  /**
+   * Lays the words out in a buffer, at most half of the slots filled.
+   */
+  private static ByteBuffer compile(Set<String> words) {
+    int numSlots = 16;
+    while (numSlots < words.size() * 2) {
+      numSlots <<= 1;
+    }
+    int dataStart = HEADER_BYTES + numSlots * SLOT_BYTES;
+    int numBytes = dataStart;
+    for (String word : words) {
+      numBytes += 2 + 2 * word.length();
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(numBytes);
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(8, numSlots);
+    int numWords = 0;
+    int offset = dataStart;
+    for (String word : words) {
+      if (word.length() > Character.MAX_VALUE) {
+        continue;
+      }
+      int hash = word.hashCode();
+      int slot = CaseInsensitiveWordSet.spread(hash) & (numSlots - 1);
+      while (buffer.getInt(HEADER_BYTES + slot * SLOT_BYTES + 4) != 0) {
+        slot = (slot + 1) & (numSlots - 1);
+      }
+      buffer.putInt(HEADER_BYTES + slot * SLOT_BYTES, hash);
+      buffer.putInt(HEADER_BYTES + slot * SLOT_BYTES + 4, offset);
+      buffer.putChar(offset, (char) word.length());
+      for (int i = 0; i < word.length(); ++i) {
+        buffer.putChar(offset + 2 + 2 * i, word.charAt(i));
+      }
+      offset += 2 + 2 * word.length();
+      ++numWords;
+    }
+    buffer.putInt(4, numWords);
+    buffer.limit(offset);
+    return buffer;
+  }
+}
@@ -12,23 +12,59 @@ import java.util.Set;
  */
 public class TextUtils {
 
+  // Tokenizers keep a scratch buffer, so each thread gets its own.
+  private static final ThreadLocal<KeywordTokenizer> tokenizers = new ThreadLocal<KeywordTokenizer>() {
+    @Override
+    protected KeywordTokenizer initialValue() {
+      return new KeywordTokenizer();
+    }
+  };
+
+  // The last stop word set each thread was called with, and the CaseInsensitiveWordSet copied from it.
+  private static final ThreadLocal<StopWords> lastStopWords = new ThreadLocal<StopWords>() {
+    @Override
+    protected StopWords initialValue() {
+      return new StopWords();
+    }
+  };
+
+  private static final class StopWords {
+    private Set<String> source;
+    private CaseInsensitiveWordSet words;
+  }
+
+  /**
+   * Parses the capitalized, non stop word keywords out of a tweet.
+   *
+   * @param text The text of the tweet.
+   * @param stopWords Lower cased words that are never keywords. Copied on first use by each thread, so the set must
+   *                  not change once it has been passed in.
+   * @return The keywords in the order they first appear.
+   */
   public static Set<String> parseKeywordsFromTweetText(String text, Set<String> stopWords) {
-    Set<String> keywords = new LinkedHashSet<String>();
-    String[] words = text.split(" ");
-    for (String word : words) {
-      // Don't consider usernames
-      if (!word.startsWith("@") && word.length() > 0) {
-        // strip out non-alphanumeric characters
-        String cleanedWord = word.replaceAll("[^\\p{L}\\p{N}]", "");
-        // Make sure the word is not a stop word
-        if (!(stopWords.contains(word.trim().toLowerCase()) || stopWords.contains(cleanedWord.trim().toLowerCase()))) {
-          // if a word is capitalized, add it to the phrase
-          if (cleanedWord.length() > 0 && Character.isUpperCase(cleanedWord.charAt(0))) {
-            keywords.add(cleanedWord);
-          }
-        }
-      }
+    StopWords last = lastStopWords.get();
+    if (last.source != stopWords) {
+      last.source = stopWords;
+      last.words = new CaseInsensitiveWordSet(stopWords);
     }
+    return parseKeywordsFromTweetText(text, last.words);
+  }
+
+  /**
+   * Parses the capitalized, non stop word keywords out of a tweet.
+   *
+   * @param text The text of the tweet.
+   * @param stopWords Words that are never keywords.
+   * @return The keywords in the order they first appear.
+   */
+  public static Set<String> parseKeywordsFromTweetText(String text, WordSet stopWords) {
+    final Set<String> keywords = new LinkedHashSet<String>();
+    tokenizers.get().tokenize(text, stopWords, new KeywordSink() {
+      @Override
+      public void keyword(char[] buffer, int length) {
+        keywords.add(new String(buffer, 0, length));
+      }
+    });
     return keywords;
   }
 
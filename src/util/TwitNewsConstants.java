@@ -21,5 +21,79 @@ public class TwitNewsConstants {
   public static final int ONE_MINUTE_IN_MILLIS = 1000;
   public static final int ONE_HOUR_IN_MILLIS = 3600000;
 
+  // Defaults for the ingest pipeline, each can be overridden with the system property in the comment.
+  public static final int INGEST_WRITER_THREADS = 1;       // twitnews.ingest.writers
+  public static final int INGEST_QUEUE_CAPACITY = 65536;   // twitnews.ingest.capacity
+  public static final int INGEST_BATCH_SIZE = 250;         // twitnews.ingest.batchSize
+
+  // Defaults for the ingest spool, an empty twitnews.spool.dir turns it off. 256 segments of 16MB bound the spool to
+  // 4GB of disk.
+  public static final String INGEST_SPOOL_DIR = "spool";                 // twitnews.spool.dir
+  public static final int INGEST_SPOOL_SEGMENT_BYTES = 16 * 1024 * 1024; // twitnews.spool.segmentBytes
+  public static final int INGEST_SPOOL_MAX_SEGMENTS = 256;               // twitnews.spool.maxSegments
+
+  // Defaults for the write-behind buffer. Buffered tweets, users and ranks are committed together once this many rows
+  // are pending or the oldest of them has waited this long, whichever comes first.
+  public static final int WRITE_BEHIND_MAX_ROWS = 1000;            // twitnews.writeBehind.maxRows
+  public static final int WRITE_BEHIND_MAX_LATENCY_MILLIS = 1000;  // twitnews.writeBehind.maxLatencyMillis
+  public static final int WRITE_BEHIND_CAPACITY = 10000;           // twitnews.writeBehind.capacity
+
+  // Where the write-behind buffer appends the rows the db rejects for good, one line per row.
+  public static final String WRITE_BEHIND_DEAD_LETTER_FILE = "rejected-rows.txt"; // twitnews.writeBehind.deadLetterFile
+
+  // Defaults for the status ids the write-behind buffer remembers, so that repeated tweets are not written again. The
+  // most recent ids are kept exactly, a Bloom filter of about 4MB keeps up to a million more.
+  public static final int SEEN_TWEET_IDS_WINDOW = 65536;           // twitnews.seenTweetIds.window
+  public static final int SEEN_TWEET_IDS_BLOOM_IDS = 1000000;      // twitnews.seenTweetIds.bloomIds
+
+  // Defaults for the user cache in front of UserDAO. Entries are refreshed after the time to live, so follower counts
+  // are at most an hour stale.
+  public static final int USER_CACHE_MAX_SIZE = 100000;         // twitnews.userCache.maxSize
+  public static final long USER_CACHE_TTL_MILLIS = 3600000;     // twitnews.userCache.ttlMillis
+
+  // Defaults for the twitter rate limit scheduler. The REST budget is the REST api's hourly limit for an account, and
+  // the reserve is left unspent before every reset for calls made outside the scheduler.
+  public static final int RATE_LIMIT_REST_PER_HOUR = 350;      // twitnews.rateLimit.restPerHour
+  public static final int RATE_LIMIT_SEARCH_PER_HOUR = 360;    // twitnews.rateLimit.searchPerHour
+  public static final int RATE_LIMIT_BURST = 10;               // twitnews.rateLimit.burst
+  public static final int RATE_LIMIT_RESERVE = 5;              // twitnews.rateLimit.reserve
+  public static final int RATE_LIMIT_WORKERS = 4;              // twitnews.rateLimit.workers
+
+  // Defaults for fetching retweet counts. Counts that would wait in line for the rate limit longer than a minute are
+  // skipped rather than hold up a crawl.
+  public static final int RETWEET_KNOWN_COUNTS = 100000;               // twitnews.retweets.knownCounts
+  public static final long RETWEET_MAX_WAIT_MILLIS = 60000;            // twitnews.retweets.maxWaitMillis
+
+  // Defaults for crawling several locations at once. Every location's trends are fetched again after the refresh
+  // interval, and a trend claimed by one location is left alone by the others for as long.
+  public static final long CRAWL_REFRESH_MILLIS = 3600000;     // twitnews.crawl.refreshMillis
+  public static final int CRAWL_ROUNDS = 1;                    // twitnews.crawl.rounds
+
+  // The stream server the stream crawlers read from, empty for the twitter Stream API. Point it at a FakeStreamServer,
+  // e.g. http://localhost:8089/, to crawl without the network.
+  public static final String STREAM_URL = "";                  // twitnews.stream.url
+  public static final int STREAM_PARSER_THREADS = 1;          // twitnews.stream.parserThreads
+
+  // The number of best ranked tweets the stream crawlers keep in memory for every trend they match against.
+  public static final int TOP_TWEETS_PER_TREND = 100;          // twitnews.topTweetsPerTrend
+
+  // Defaults for Ranker and NewsRanker. A parallelism of 1 ranks one trend at a time on the main thread, as before.
+  public static final int RANK_PARALLELISM = 1;            // twitnews.rank.parallelism
+  public static final int RANK_CHUNK_SIZE = 50000;         // twitnews.rank.chunkSize
+  public static final int RANK_BATCH_SIZE = 100;
+
+  // Rows fetched per round trip by streamed queries, Integer.MIN_VALUE streams row by row.
+  public static final int STREAM_FETCH_SIZE = Integer.MIN_VALUE;  // twitnews.fetchSize
+
+  // Defaults for pooled MySQL_UI instances. A streamed trend can hold a connection for minutes, hence the long
+  // leak threshold.
+  public static final int DB_MIN_CONNECTIONS = 1;                 // twitnews.db.minConnections
+  public static final int DB_MAX_CONNECTIONS = 8;                 // twitnews.db.maxConnections
+  public static final int DB_BORROW_TIMEOUT_MILLIS = 30000;       // twitnews.db.borrowTimeoutMillis
+  public static final int DB_LEAK_THRESHOLD_MILLIS = 600000;      // twitnews.db.leakThresholdMillis
+  public static final boolean DB_LEAK_STACK_TRACES = false;       // twitnews.db.leakStackTraces
+  public static final int DB_STATEMENT_CACHE_SIZE = 64;          // twitnews.db.statementCacheSize
+  public static final int DB_INSERT_CHUNK_SIZE = 100;            // twitnews.db.insertChunkSize
+
 
 }
@@ -0,0 +1,25 @@
+package util;
+
+/**
+ * A read only set of lower cased words that can be probed case insensitively with any slice of a CharSequence,
+ * without allocating a lower cased copy of the slice.
+ */
+public interface WordSet {
+
+  /**
+   * @return The number of distinct words in the set.
+   */
+  int size();
+
+  boolean contains(CharSequence s);
+
+  /**
+   * Checks whether the lower cased slice [start, end) of s is in the set.
+   *
+   * @param s The text holding the slice.
+   * @param start Index of the first char of the slice.
+   * @param end Index after the last char of the slice.
+   * @return boolean true if the slice, lower cased, is one of the words.
+   */
+  boolean contains(CharSequence s, int start, int end);
+}
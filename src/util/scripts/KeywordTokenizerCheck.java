@@ -0,0 +1,135 @@
+package util.scripts;
+
+import domain.TwitNewsTrend;
+import domain.TwitNewsTweet;
+import fileIO.FileConstants;
+import fileIO.FileIO;
+import fileIO.SqlDumpReader;
+import util.Lexicon;
+import util.TextUtils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Quick script that checks the tokenizer behind TextUtils.parseKeywordsFromTweetText against the regex based
+ * implementation it replaced, on every trend and tweet in the given dumps plus a handful of hand written edge cases.
+ * Every text is parsed with the stop words in a Set as well as in a {@link Lexicon}. Takes the dumps to check as
+ * arguments, or checks every dump in data/ if none are given. Exits with status 1 if any text produces different
+ * keywords.
+ */
+public class KeywordTokenizerCheck {
+
+  private static final String[] EDGE_CASES = {
+      "", " ", "   ", "@", "@Obama", " @Obama Obama", "Obama  Obama\tObama\n", "\tObama\t", "Obama's", "U.S.A.",
+      "#Occupy", "$AAPL", "2011", "\u216B Roman", "\u00BD Half", "\u01C5ungla", "\u0130stanbul", "\u0130",
+      "\u03A3\u039F\u03A6\u0399\u0391", "\u039F\u0394\u039F\u03A3", "\u212Aelvin", "\uD835\uDC00lpha",
+      "\uD835 Broken", "Broken\uD835", "\uDC00Low", "A\u0301ccent", "\u00C9COLE", "The", "THE", "Th\u00E9", "And",
+      "I", "I'm", "\uFB01 Ligature", "\u65E5\u672C Tokyo", "\u00DCn\u00EFc\u00F6d\u00E9", "Stra\u00DFe STRASSE",
+  };
+
+  // Stop words that exercise the case mappings String.toLowerCase() and Character.toLowerCase() disagree on.
+  private static final String[] EDGE_STOP_WORDS = {
+      "the", "and", "kelvin", "i\u0307stanbul", "i\u0307", "\u03C3\u03BF\u03C6\u03B9\u03B1",
+      "\u03BF\u03B4\u03BF\u03C2", "\u03BF\u03B4\u03BF\u03C3", "\uD835\uDC00lpha", "\u00E9cole", "stra\u00DFe",
+      "obama's",
+  };
+
+  public static void main(String[] args) throws IOException {
+    List<String> dumps = new ArrayList<String>(Arrays.asList(args));
+    if (dumps.isEmpty()) {
+      File[] files = new File("data").listFiles(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return name.endsWith(".sql");
+        }
+      });
+      if (files != null) {
+        for (File file : files) {
+          dumps.add(file.getPath());
+        }
+      }
+      Collections.sort(dumps);
+    }
+
+    Set<String> stopWords = new HashSet<String>();
+    new FileIO(FileConstants.STOP_WORDS).getWordSet(stopWords);
+    Set<String> edgeStopWords = new HashSet<String>(stopWords);
+    edgeStopWords.addAll(Arrays.asList(EDGE_STOP_WORDS));
+    Lexicon stopWordLexicon = Lexicon.stopWords();
+    Lexicon edgeStopWordLexicon = Lexicon.of(edgeStopWords);
+
+    int checked = 0;
+    int mismatches = 0;
+    for (String dump : dumps) {
+      SqlDumpReader reader = new SqlDumpReader(dump);
+      reader.read();
+      List<String> texts = new ArrayList<String>();
+      for (TwitNewsTrend trend : reader.getTrends()) {
+        texts.add(trend.getName());
+      }
+      for (TwitNewsTweet tweet : reader.getTweets()) {
+        texts.add(tweet.getText());
+      }
+      int dumpMismatches = 0;
+      for (String text : texts) {
+        if (text != null) {
+          dumpMismatches += compare(text, stopWords, stopWordLexicon);
+          ++checked;
+        }
+      }
+      System.out.println(dump + ": " + texts.size() + " texts, " + dumpMismatches + " mismatches.");
+      mismatches += dumpMismatches;
+    }
+
+    int edgeMismatches = 0;
+    for (String text : EDGE_CASES) {
+      edgeMismatches += compare(text, stopWords, stopWordLexicon) + compare(text, edgeStopWords, edgeStopWordLexicon);
+      ++checked;
+    }
+    System.out.println("Edge cases: " + EDGE_CASES.length + " texts, " + edgeMismatches + " mismatches.");
+    mismatches += edgeMismatches;
+
+    System.out.println("Checked " + checked + " texts, " + mismatches + " mismatches.");
+    if (mismatches > 0) {
+      System.exit(1);
+    }
+  }
+
+  private static int compare(String text, Set<String> stopWords, Lexicon lexicon) {
+    List<String> expected = new ArrayList<String>(legacyParseKeywordsFromTweetText(text, stopWords));
+    List<String> actual = new ArrayList<String>(TextUtils.parseKeywordsFromTweetText(text, stopWords));
+    List<String> fromLexicon = new ArrayList<String>(TextUtils.parseKeywordsFromTweetText(text, lexicon));
+    if (expected.equals(actual) && expected.equals(fromLexicon)) {
+      return 0;
+    }
+    System.out.println("Mismatch for \"" + text + "\": expected " + expected + " but got " + actual + " and " +
+                       fromLexicon + " from the lexicon");
+    return 1;
+  }
+
+  /**
+   * TextUtils.parseKeywordsFromTweetText as it was before the tokenizer, kept as the reference.
+   */
+  private static Set<String> legacyParseKeywordsFromTweetText(String text, Set<String> stopWords) {
+    Set<String> keywords = new LinkedHashSet<String>();
+    String[] words = text.split(" ");
+    for (String word : words) {
+      // Don't consider usernames
+      if (!word.startsWith("@") && word.length() > 0) {
+        // strip out non-alphanumeric characters
+        String cleanedWord = word.replaceAll("[^\\p{L}\\p{N}]", "");
+        // Make sure the word is not a stop word
+        if (!(stopWords.contains(word.trim().toLowerCase()) || stopWords.contains(cleanedWord.trim().toLowerCase()))) {
+          // if a word is capitalized, add it to the phrase
+          if (cleanedWord.length() > 0 && Character.isUpperCase(cleanedWord.charAt(0))) {
+            keywords.add(cleanedWord);
+          }
+        }
+      }
+    }
+    return keywords;
+  }
+}